@@ -0,0 +1,82 @@
+package dk.au.cs.dartkreader.bench;
+
+import dk.au.cs.ast.AConstructor;
+import dk.au.cs.ast.AFunctionNode;
+import dk.au.cs.ast.AMember;
+import dk.au.cs.ast.AProcedure;
+import dk.au.cs.ast.AStatement;
+import dk.au.cs.ast.ParallelTraversal;
+import dk.au.cs.dartkreader.loader.BinaryBuilder;
+import dk.au.cs.dartkreader.loader.BinaryLoader;
+import dk.au.cs.dartkreader.loader.BodyCache;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the bodies of 4096 members under a {@link BodyCache} budget, where a tenth of the members get
+ * nine tenths of the reads, as in a server answering queries about the code being edited. The counters of
+ * the cache are printed at the end of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class BodyCacheBenchmark {
+
+    @Param({"samples/dartk.dill"})
+    public String dill;
+
+    @Param({"2000000", "8000000", "1000000000"})
+    public long budget;
+
+    private BodyCache cache;
+    private AFunctionNode[] queries;
+
+    @Setup
+    public void setup() throws IOException {
+        cache = new BodyCache(budget);
+        AMember[] members = ParallelTraversal.members(
+                new BinaryBuilder(new BinaryLoader(), Paths.get(dill)).setBodyCache(cache).readProgramFile());
+        List<AFunctionNode> functions = new ArrayList<>();
+        for (AMember member : members) {
+            if (member instanceof AProcedure && ((AProcedure) member).function() != null) {
+                functions.add(((AProcedure) member).function());
+            } else if (member instanceof AConstructor) {
+                functions.add(((AConstructor) member).function());
+            }
+        }
+        Random random = new Random(42);
+        int hot = functions.size() / 10;
+        queries = new AFunctionNode[4096];
+        for (int i = 0; i < queries.length; i++) {
+            int index = random.nextInt(10) < 9 ? random.nextInt(hot) : hot + random.nextInt(functions.size() - hot);
+            queries[i] = functions.get(index);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.println("hits " + cache.hits() + ", misses " + cache.misses() + ", redecodes " + cache.redecodes()
+                + ", evictions " + cache.evictions() + ", resident " + cache.residentBytes() / 1024 + " KB");
+    }
+
+    @Benchmark
+    public int queryBodies() {
+        int loaded = 0;
+        for (AFunctionNode function : queries) {
+            AStatement body = function.body();
+            if (body != null) {
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,63 @@
+package dk.au.cs.dartkreader.bench;
+
+import dk.au.cs.ast.CallGraph;
+import dk.au.cs.ast.Program;
+import dk.au.cs.dartkreader.loader.BinaryBuilder;
+import dk.au.cs.dartkreader.loader.BinaryLoader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building a {@link CallGraph} of a loaded program with the pool's parallelism, and walking the callers
+ * of every member.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CallGraphBenchmark {
+
+    @Param({"samples/dartk.dill"})
+    public String dill;
+
+    @Param({"1", "2", "4"})
+    public int parallelism;
+
+    private Program program;
+    private ForkJoinPool pool;
+    private CallGraph graph;
+
+    @Setup
+    public void setup() throws IOException {
+        program = new BinaryBuilder(new BinaryLoader(), Paths.get(dill)).readProgramFile();
+        pool = new ForkJoinPool(parallelism);
+        graph = CallGraph.build(program, pool);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public CallGraph build() {
+        return CallGraph.build(program, pool);
+    }
+
+    @Benchmark
+    public long callersOfEveryMember() {
+        long sum = 0;
+        for (int member = 0; member < graph.members().length; member++) {
+            for (int edge = graph.callsTo(member); edge < graph.callsTo(member + 1); edge++) {
+                sum += graph.caller(edge);
+            }
+        }
+        return sum;
+    }
+}
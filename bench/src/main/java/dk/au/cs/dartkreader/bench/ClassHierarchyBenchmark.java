@@ -0,0 +1,135 @@
+package dk.au.cs.dartkreader.bench;
+
+import dk.au.cs.ast.AClass;
+import dk.au.cs.ast.ClassHierarchy;
+import dk.au.cs.ast.Program;
+import dk.au.cs.ast.Supertype;
+import dk.au.cs.dartkreader.loader.BinaryBuilder;
+import dk.au.cs.dartkreader.loader.BinaryLoader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building a {@link ClassHierarchy} and querying it with random pairs of classes, as class_hierarchy_bench.dart
+ * of the kernel, against walking the supertypes by hand. Each query benchmark answers {@link #QUERIES}
+ * queries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ClassHierarchyBenchmark {
+    private static final int QUERIES = 4096;
+
+    @Param({"samples/dartk.dill"})
+    public String dill;
+
+    private Program program;
+    private ClassHierarchy hierarchy;
+    private int[] subIds;
+    private int[] superIds;
+    private AClass[] subs;
+    private AClass[] supers;
+
+    @Setup
+    public void setup() throws IOException {
+        program = new BinaryBuilder(new BinaryLoader(), Paths.get(dill)).readProgramFile();
+        hierarchy = new ClassHierarchy(program);
+        AClass[] classes = hierarchy.classes();
+        Random random = new Random(12345);
+        subIds = new int[QUERIES];
+        superIds = new int[QUERIES];
+        subs = new AClass[QUERIES];
+        supers = new AClass[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            subIds[i] = random.nextInt(classes.length);
+            superIds[i] = random.nextInt(classes.length);
+            subs[i] = classes[subIds[i]];
+            supers[i] = classes[superIds[i]];
+        }
+    }
+
+    @Benchmark
+    public ClassHierarchy build() {
+        return new ClassHierarchy(program);
+    }
+
+    @Benchmark
+    public int isSubclassOf() {
+        int count = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            if (hierarchy.isSubclassOf(subIds[i], superIds[i])) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int isSubmixtureOf() {
+        int count = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            if (hierarchy.isSubmixtureOf(subIds[i], superIds[i])) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int isSubtypeOf() {
+        int count = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            if (hierarchy.isSubtypeOf(subIds[i], superIds[i])) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int isSubtypeOfClasses() {
+        int count = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            if (hierarchy.isSubtypeOf(subs[i], supers[i])) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int isSubtypeOfByWalking() {
+        int count = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            if (walk(subs[i], supers[i])) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean walk(AClass sub, AClass sup) {
+        if (sub == sup) {
+            return true;
+        }
+        if (sub.supertype() != null && walk(sub.supertype().classNode(), sup)) {
+            return true;
+        }
+        if (sub.mixedInType() != null && walk(sub.mixedInType().classNode(), sup)) {
+            return true;
+        }
+        for (Supertype type : sub.implementedTypes()) {
+            if (walk(type.classNode(), sup)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,139 @@
+package dk.au.cs.dartkreader.bench;
+
+import dk.au.cs.ast.*;
+import dk.au.cs.dartkreader.loader.BinaryBuilder;
+import dk.au.cs.dartkreader.loader.BinaryLoader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolving the names of the dynamic calls and property gets in a program against random classes with
+ * {@link DispatchTables}, against scanning the members up the superclass chain. Each lookup benchmark
+ * resolves {@link #LOOKUPS} names.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DispatchBenchmark {
+    private static final int LOOKUPS = 4096;
+
+    @Param({"samples/dartk.dill"})
+    public String dill;
+
+    private ClassHierarchy hierarchy;
+    private DispatchTables tables;
+    private AClass[] classes;
+    private AName[] names;
+    private int[] classIds;
+    private int[] nameIds;
+
+    @Setup
+    public void setup() throws IOException {
+        Program program = new BinaryBuilder(new BinaryLoader(), Paths.get(dill)).readProgramFile();
+        hierarchy = new ClassHierarchy(program);
+        tables = new DispatchTables(hierarchy);
+        tables.buildAll(ForkJoinPool.commonPool());
+
+        List<AName> callNames = new ArrayList<>();
+        program.accept(new RecursiveVisitor<Object>() {
+            @Override
+            public Object visitMethodInvocation(AMethodInvocation node) {
+                callNames.add(node.name());
+                return defaultExpression(node);
+            }
+
+            @Override
+            public Object visitPropertyGet(APropertyGet node) {
+                callNames.add(node.name());
+                return defaultExpression(node);
+            }
+        });
+        Random random = new Random(12345);
+        classes = new AClass[LOOKUPS];
+        names = new AName[LOOKUPS];
+        classIds = new int[LOOKUPS];
+        nameIds = new int[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            classIds[i] = random.nextInt(hierarchy.classes().length);
+            classes[i] = hierarchy.classes()[classIds[i]];
+            names[i] = callNames.get(random.nextInt(callNames.size()));
+            nameIds[i] = tables.nameId(names[i]);
+        }
+    }
+
+    @Benchmark
+    public DispatchTables build() {
+        DispatchTables tables = new DispatchTables(hierarchy);
+        tables.buildAll(ForkJoinPool.commonPool());
+        return tables;
+    }
+
+    @Benchmark
+    public int lookupByIds() {
+        int found = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (nameIds[i] >= 0 && tables.dispatchTarget(classIds[i], nameIds[i], false) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    public int lookupByNames() {
+        int found = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (tables.dispatchTarget(classes[i], names[i], false) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    public int lookupByScanning() {
+        int found = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (scan(classes[i], names[i]) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private static AMember scan(AClass c, AName name) {
+        for (; c != null; c = c.supertype() == null ? null : c.supertype().classNode()) {
+            AClass declaring = c;
+            while (declaring.mixedInType() != null) {
+                declaring = declaring.mixedInType().classNode();
+            }
+            for (AProcedure procedure : declaring.procedures()) {
+                if (!procedure.isStatic() && !procedure.isAbstract()
+                        && procedure.kind() != ProcedureKind.Setter() && sameName(procedure.name(), name)) {
+                    return procedure;
+                }
+            }
+            for (AField field : declaring.fields()) {
+                if (!AField.isStatic(field.flags()) && sameName(field.name(), name)) {
+                    return field;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean sameName(AName a, AName b) {
+        return a.name().equals(b.name()) && Objects.equals(a.library(), b.library());
+    }
+}
@@ -0,0 +1,73 @@
+package dk.au.cs.dartkreader.bench;
+
+import dk.au.cs.ast.AMember;
+import dk.au.cs.ast.Program;
+import dk.au.cs.dartkreader.loader.BinaryBuilder;
+import dk.au.cs.dartkreader.loader.BinaryLoader;
+import dk.au.cs.dartkreader.loader.DillIndex;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An IDE's "open this member" query answered with a {@link DillIndex} whose sidecar is written, versus
+ * loading the program to find the member. The dill is copied to a temporary directory for the sidecar.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class IndexBenchmark {
+
+    @Param({"samples/dartk.dill"})
+    public String dill;
+
+    @Param({"dart:core"})
+    public String library;
+
+    @Param({"String"})
+    public String className;
+
+    @Param({"substring"})
+    public String member;
+
+    private Path path;
+    private DillIndex index;
+    private BinaryBuilder builder;
+
+    @Setup
+    public void setup() throws IOException {
+        path = Files.createTempDirectory("dill-index").resolve(Paths.get(dill).getFileName());
+        Files.copy(Paths.get(dill), path);
+        index = DillIndex.open(path);
+        builder = index.builder(new BinaryLoader());
+    }
+
+    /** Hashing the dill, reading the sidecar, creating the nodes and decoding the one member. */
+    @Benchmark
+    public AMember openMember() throws IOException {
+        DillIndex index = DillIndex.open(path);
+        return index.builder(new BinaryLoader()).readIndexedMember(index.findMember(library, className, member));
+    }
+
+    /** The index and builder open already, as in a long running IDE process. */
+    @Benchmark
+    public AMember openedMember() {
+        return builder.readIndexedMember(index.findMember(library, className, member));
+    }
+
+    @Benchmark
+    public AMember loadedMember() throws IOException {
+        Program program = new BinaryBuilder(new BinaryLoader(), path).setLazyBodies(true).readProgramFile();
+        return program.libraries().stream()
+                .filter(l -> l.importUri().value().equals(library)).findFirst().get()
+                .classes().stream().filter(c -> className.equals(c.name())).findFirst().get()
+                .procedures().stream().filter(p -> p.name().name().equals(member)).findFirst().get();
+    }
+}
@@ -0,0 +1,73 @@
+package dk.au.cs.dartkreader.bench;
+
+import dk.au.cs.ast.Program;
+import dk.au.cs.dartkreader.loader.BinaryBuilder;
+import dk.au.cs.dartkreader.loader.BinaryLoader;
+import dk.au.cs.dartkreader.loader.DillIndex;
+import dk.au.cs.dartkreader.loader.FlatProgram;
+import dk.au.cs.dartkreader.loader.TreeShaker;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time-to-{@link Program} for a dill read onto the heap versus a memory mapped dill.
+ * Run with {@code -prof gc} to compare the allocation caused by the heap copy.
+ * The dill is copied to a temporary directory for the sidecar of its {@link DillIndex}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class LoadBenchmark {
+
+    @Param({"samples/dartk.dill"})
+    public String dill;
+
+    private Path path;
+
+    @Setup
+    public void setup() throws IOException {
+        path = Files.createTempDirectory("load").resolve(Paths.get(dill).getFileName());
+        Files.copy(Paths.get(dill), path);
+        DillIndex.open(path);
+    }
+
+    @Benchmark
+    public Program heapCopy() throws IOException {
+        byte[] bytes = Files.readAllBytes(path);
+        return new BinaryBuilder(new BinaryLoader(), bytes, path.getFileName().toString()).readProgramFile();
+    }
+
+    @Benchmark
+    public Program mapped() throws IOException {
+        return new BinaryBuilder(new BinaryLoader(), path).readProgramFile();
+    }
+
+    /** Time-to-outline: member bodies and field initializers are only skipped over. */
+    @Benchmark
+    public Program mappedLazy() throws IOException {
+        return new BinaryBuilder(new BinaryLoader(), path).setLazyBodies(true).readProgramFile();
+    }
+
+    /**
+     * Reading the sidecar of the index, finding the members reachable from the main method and decoding only
+     * those, with the headers of all libraries and classes.
+     */
+    @Benchmark
+    public Program treeShaken() throws IOException {
+        return new TreeShaker(DillIndex.open(path)).shake(new BinaryLoader());
+    }
+
+    /** Int columns instead of nodes; function nodes are not kept as nodes of their own. */
+    @Benchmark
+    public FlatProgram flat() throws IOException {
+        return new BinaryBuilder(new BinaryLoader(), path).readFlatProgramFile();
+    }
+}
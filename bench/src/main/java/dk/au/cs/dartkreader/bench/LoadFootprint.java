@@ -0,0 +1,108 @@
+package dk.au.cs.dartkreader.bench;
+
+import dk.au.cs.ast.Program;
+import dk.au.cs.dartkreader.loader.BinaryBuilder;
+import dk.au.cs.dartkreader.loader.BinaryLoader;
+import dk.au.cs.dartkreader.loader.DillIndex;
+import dk.au.cs.dartkreader.loader.FlatProgram;
+import dk.au.cs.dartkreader.loader.TreeShaker;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Reports resident set size and heap allocation of the heap copy, memory mapped, lazy and tree-shaken load
+ * paths, and of the int columns of a {@link FlatProgram}. The tree-shaken load reads the sidecar of a
+ * {@link DillIndex}, which is written for a copy of the dill in a temporary directory before the rounds.
+ * JMH does not measure RSS, so this is a plain main: {@code sbt "bench/runMain dk.au.cs.dartkreader.bench.LoadFootprint heap"}.
+ * Run each mode in its own JVM so the numbers do not mix.
+ */
+public class LoadFootprint {
+
+    public static void main(String[] args) throws IOException {
+        String mode = args.length > 0 ? args[0] : "mapped";
+        Path path = Paths.get(args.length > 1 ? args[1] : "samples/dartk.dill");
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        if (mode.equals("shaken")) {
+            Path copy = Files.createTempDirectory("footprint").resolve(path.getFileName());
+            Files.copy(path, copy);
+            DillIndex.open(copy);
+            path = copy;
+        }
+
+        long rssBefore = rssKb();
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        Object program = null;
+        for (int i = 0; i < rounds; i++) {
+            program = mode.equals("flat") ? FlatProgram.read(path) : load(mode, path);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        long liveHeap = liveHeapBytes();
+
+        System.out.println("mode:                 " + mode);
+        if (program instanceof Program) {
+            System.out.println("libraries:            " + ((Program) program).libraries().size());
+        } else {
+            System.out.println("flat nodes:           " + ((FlatProgram) program).nodeCount()
+                    + " (" + ((FlatProgram) program).sizeInBytes() / 1024 + " KB of columns)");
+        }
+        System.out.println("avg time-to-Program:  " + (elapsed / rounds / 1000000) + " ms");
+        System.out.println("avg allocation:       " + (allocated / rounds / 1024) + " KB");
+        System.out.println("RSS growth:           " + (rssKb() - rssBefore) + " KB");
+        System.out.println("live heap:            " + (liveHeap / 1024) + " KB");
+    }
+
+    static Program load(String mode, Path path) throws IOException {
+        switch (mode) {
+            case "heap":
+                byte[] bytes = Files.readAllBytes(path);
+                return new BinaryBuilder(new BinaryLoader(), bytes, path.getFileName().toString()).readProgramFile();
+            case "mapped":
+                return new BinaryBuilder(new BinaryLoader(), path).readProgramFile();
+            case "lazy":
+                return new BinaryBuilder(new BinaryLoader(), path).setLazyBodies(true).readProgramFile();
+            case "shaken":
+                return new TreeShaker(DillIndex.open(path)).shake(new BinaryLoader());
+            default:
+                throw new IllegalArgumentException(
+                        "Unknown mode: " + mode + " (expected heap, mapped, lazy, shaken or flat)");
+        }
+    }
+
+    /** Heap in use after a full collection, while the caller still holds the last loaded program. */
+    static long liveHeapBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    static long rssKb() throws IOException {
+        Path status = Paths.get("/proc/self/status");
+        if (!Files.exists(status)) {
+            return -1;
+        }
+        List<String> lines = Files.readAllLines(status);
+        for (String line : lines) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.replaceAll("[^0-9]", ""));
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,68 @@
+package dk.au.cs.dartkreader.bench;
+
+import dk.au.cs.ast.Location;
+import dk.au.cs.ast.Program;
+import dk.au.cs.dartkreader.loader.BinaryBuilder;
+import dk.au.cs.dartkreader.loader.BinaryLoader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolving offsets of the file with the most lines into lines and columns: one offset per call to
+ * {@link Program#getLocation}, as a tool reporting a single node does, and all of them in one call to
+ * {@link Program#getLocations}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class LocationBenchmark {
+    private static final int OFFSETS = 1024;
+
+    @Param({"samples/dartk.dill"})
+    public String dill;
+
+    private Program program;
+    private String fileUri;
+    private final int[] offsets = new int[OFFSETS];
+    private final int[] lines = new int[OFFSETS];
+    private final int[] columns = new int[OFFSETS];
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        program = new BinaryBuilder(new BinaryLoader(), Paths.get(dill)).setLazyBodies(true).readProgramFile();
+        int mostLines = -1;
+        for (String uri : program.uriToLineStarts().fileUris()) {
+            int[] starts = program.uriToLineStarts().lineStarts(uri);
+            if (starts.length > mostLines) {
+                mostLines = starts.length;
+                fileUri = uri;
+            }
+        }
+        int[] starts = program.uriToLineStarts().lineStarts(fileUri);
+        int length = starts[starts.length - 1] + 1;
+        Random random = new Random(42);
+        for (int i = 0; i < OFFSETS; i++) {
+            offsets[i] = random.nextInt(length);
+        }
+    }
+
+    @Benchmark
+    public Location getLocation() {
+        next = (next + 1) & (OFFSETS - 1);
+        return program.getLocation(fileUri, offsets[next]);
+    }
+
+    @Benchmark
+    public int[] getLocations() {
+        program.getLocations(fileUri, offsets, lines, columns);
+        return lines;
+    }
+}
@@ -0,0 +1,55 @@
+package dk.au.cs.dartkreader.bench;
+
+import dk.au.cs.ast.Program;
+import dk.au.cs.dartkreader.loader.BinaryBuilder;
+import dk.au.cs.dartkreader.loader.BinaryLoader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scaling of {@link BinaryBuilder#readProgramFile(ForkJoinPool)} with the pool's parallelism. The sequential
+ * load it is measured against is {@link LoadBenchmark#mapped} and {@link LoadBenchmark#mappedLazy}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ParallelLoadBenchmark {
+
+    @Param({"samples/dartk.dill"})
+    public String dill;
+
+    @Param({"1", "2", "4", "8", "16", "32"})
+    public int parallelism;
+
+    private Path path;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setup() {
+        path = Paths.get(dill);
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public Program parallel() throws IOException {
+        return new BinaryBuilder(new BinaryLoader(), path).readProgramFile(pool);
+    }
+
+    @Benchmark
+    public Program parallelLazy() throws IOException {
+        return new BinaryBuilder(new BinaryLoader(), path).setLazyBodies(true).readProgramFile(pool);
+    }
+}
@@ -0,0 +1,66 @@
+package dk.au.cs.dartkreader.bench;
+
+import dk.au.cs.ast.Program;
+import dk.au.cs.dartkreader.loader.BinaryBuilder;
+import dk.au.cs.dartkreader.loader.BinaryLoader;
+import dk.au.cs.dartkreader.loader.BinaryPrinter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to write a loaded {@link Program} back to a dill with {@link BinaryPrinter}. The bytes go to a
+ * channel that discards them, so only the encoding is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PrintBenchmark {
+
+    @Param({"samples/dartk.dill"})
+    public String dill;
+
+    private Program program;
+    private CountingChannel channel;
+
+    @Setup
+    public void setup() throws IOException {
+        program = new BinaryBuilder(new BinaryLoader(), Paths.get(dill)).readProgramFile();
+        channel = new CountingChannel();
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        channel.written = 0;
+        new BinaryPrinter(channel).writeProgramFile(program);
+        return channel.written;
+    }
+
+    private static class CountingChannel implements WritableByteChannel {
+        long written;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            src.position(src.limit());
+            written += length;
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
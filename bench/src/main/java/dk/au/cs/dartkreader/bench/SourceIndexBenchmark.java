@@ -0,0 +1,150 @@
+package dk.au.cs.dartkreader.bench;
+
+import dk.au.cs.ast.AExpression;
+import dk.au.cs.ast.AField;
+import dk.au.cs.ast.AMember;
+import dk.au.cs.ast.AProcedure;
+import dk.au.cs.ast.AstNode;
+import dk.au.cs.ast.ParallelTraversal;
+import dk.au.cs.ast.Program;
+import dk.au.cs.ast.RecursiveVisitor;
+import dk.au.cs.ast.SourceIndex;
+import dk.au.cs.ast.TreeNode;
+import dk.au.cs.dartkreader.loader.BinaryBuilder;
+import dk.au.cs.dartkreader.loader.BinaryLoader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hover queries for the innermost expression at an offset of the largest file of the program, answered by
+ * a {@link SourceIndex} versus by walking the members of the file per query, and the cost of indexing the file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SourceIndexBenchmark {
+    private static final int QUERIES = 256;
+
+    @Param({"samples/dartk.dill"})
+    public String dill;
+
+    private Program program;
+    private SourceIndex index;
+    private String fileUri;
+    private List<AMember> members;
+    private final int[] offsets = new int[QUERIES];
+
+    @Setup
+    public void setup() throws IOException {
+        program = new BinaryBuilder(new BinaryLoader(), Paths.get(dill)).readProgramFile();
+        Map<String, List<AMember>> byFile = new HashMap<>();
+        for (AMember member : ParallelTraversal.members(program)) {
+            String uri = member instanceof AField ? ((AField) member).fileUri()
+                    : member instanceof AProcedure ? ((AProcedure) member).fileUri() : null;
+            if (uri != null) {
+                byFile.computeIfAbsent(uri, k -> new ArrayList<>()).add(member);
+            }
+        }
+        fileUri = byFile.entrySet().stream().max((a, b) -> a.getValue().size() - b.getValue().size()).get().getKey();
+        members = byFile.get(fileUri);
+        List<Integer> all = new ArrayList<>();
+        for (AMember member : members) {
+            member.accept(new RecursiveVisitor<Object>() {
+                @Override
+                public Object defaultNode(AstNode node) {
+                    if (node instanceof AExpression && ((TreeNode) node).fileOffset() >= 0) {
+                        all.add(((TreeNode) node).fileOffset());
+                    }
+                    return super.defaultNode(node);
+                }
+            });
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < QUERIES; i++) {
+            offsets[i] = all.get(random.nextInt(all.size()));
+        }
+        index = new SourceIndex(program);
+        index.expressionAt(fileUri, 0);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public int indexed() {
+        int found = 0;
+        for (int offset : offsets) {
+            if (index.expressionAt(fileUri, offset) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public int walked() {
+        int found = 0;
+        for (int offset : offsets) {
+            if (walk(offset) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /** Indexing the file on a fresh index. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public AExpression build() {
+        return new SourceIndex(program).expressionAt(fileUri, offsets[0]);
+    }
+
+    /** The expression of least span containing the offset, spans being computed as the walk returns. */
+    private AExpression walk(int offset) {
+        SpanWalker walker = new SpanWalker(offset);
+        for (AMember member : members) {
+            member.accept(walker);
+        }
+        return walker.best;
+    }
+
+    private static class SpanWalker extends RecursiveVisitor<Object> {
+        final int offset;
+        int first = Integer.MAX_VALUE;
+        int last = Integer.MIN_VALUE;
+        AExpression best;
+        long bestLength = Long.MAX_VALUE;
+
+        SpanWalker(int offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public Object defaultNode(AstNode node) {
+            int outerFirst = first;
+            int outerLast = last;
+            int own = node instanceof TreeNode ? ((TreeNode) node).fileOffset() : -1;
+            first = own >= 0 ? own : Integer.MAX_VALUE;
+            last = own >= 0 ? own : Integer.MIN_VALUE;
+            super.defaultNode(node);
+            if (own >= 0 && node instanceof AExpression && first <= offset && offset <= last
+                    && (long) last - first < bestLength) {
+                best = (AExpression) node;
+                bestLength = (long) last - first;
+            }
+            first = Math.min(first, outerFirst);
+            last = Math.max(last, outerLast);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package dk.au.cs.dartkreader.bench;
+
+import dk.au.cs.ast.AMember;
+import dk.au.cs.ast.AMethodInvocation;
+import dk.au.cs.ast.AStaticInvocation;
+import dk.au.cs.ast.ConstructorInvocation;
+import dk.au.cs.ast.ParallelTraversal;
+import dk.au.cs.ast.Program;
+import dk.au.cs.ast.RecursiveVisitor;
+import dk.au.cs.dartkreader.loader.BinaryBuilder;
+import dk.au.cs.dartkreader.loader.BinaryEventReader;
+import dk.au.cs.dartkreader.loader.BinaryLoader;
+import dk.au.cs.dartkreader.loader.Tag;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A summary tool's workload, counting the invocations in each member, computed from the events of a
+ * {@link BinaryEventReader} versus by building the program and visiting it. Run with {@code -prof gc} to
+ * compare the allocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StreamBenchmark {
+
+    @Param({"samples/dartk.dill"})
+    public String dill;
+
+    private Path path;
+
+    @Setup
+    public void setup() {
+        path = Paths.get(dill);
+    }
+
+    @Benchmark
+    public int[] streamed() throws IOException {
+        InvocationCounter counter = new InvocationCounter();
+        new BinaryEventReader(path).read(counter);
+        return counter.counts;
+    }
+
+    @Benchmark
+    public int[] built() throws IOException {
+        Program program = new BinaryBuilder(new BinaryLoader(), path).readProgramFile();
+        AMember[] members = ParallelTraversal.members(program);
+        int[] counts = new int[members.length];
+        InvocationVisitor visitor = new InvocationVisitor();
+        for (int i = 0; i < members.length; i++) {
+            visitor.count = 0;
+            members[i].accept(visitor);
+            counts[i] = visitor.count;
+        }
+        return counts;
+    }
+
+    private static class InvocationVisitor extends RecursiveVisitor<Object> {
+        int count;
+
+        @Override
+        public Object visitMethodInvocation(AMethodInvocation node) {
+            count++;
+            return defaultExpression(node);
+        }
+
+        @Override
+        public Object visitStaticInvocation(AStaticInvocation node) {
+            count++;
+            return defaultExpression(node);
+        }
+
+        @Override
+        public Object visitConstructorInvocation(ConstructorInvocation node) {
+            count++;
+            return defaultExpression(node);
+        }
+    }
+
+    /** Invocations per member, in the order the members are encoded. */
+    private static class InvocationCounter implements BinaryEventReader.Handler {
+        int[] counts = new int[1024];
+        int members;
+        // Annotations of classes are outside any member.
+        boolean inMember;
+
+        @Override
+        public void enterMember(int tag, int index, int kind, int flags, int name) {
+            if (members == counts.length) {
+                counts = java.util.Arrays.copyOf(counts, 2 * members);
+            }
+            members++;
+            inMember = true;
+        }
+
+        @Override
+        public void exitMember(int tag, int index) {
+            inMember = false;
+        }
+
+        @Override
+        public void enterExpression(int tag, int offset) {
+            if (!inMember) {
+                return;
+            }
+            switch (tag) {
+                case Tag.MethodInvocation:
+                case Tag.StaticInvocation:
+                case Tag.ConstStaticInvocation:
+                case Tag.ConstructorInvocation:
+                case Tag.ConstConstructorInvocation:
+                    counts[members - 1]++;
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package dk.au.cs.dartkreader.bench;
+
+import dk.au.cs.ast.AClass;
+import dk.au.cs.ast.ALibrary;
+import dk.au.cs.ast.AMember;
+import dk.au.cs.ast.AProcedure;
+import dk.au.cs.ast.ParallelTraversal;
+import dk.au.cs.ast.Program;
+import dk.au.cs.dartkreader.loader.BinaryBuilder;
+import dk.au.cs.dartkreader.loader.BinaryLoader;
+import dk.au.cs.dartkreader.loader.SymbolIndex;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Qualified-name lookups of class procedures with a {@link SymbolIndex} versus scanning the libraries,
+ * classes and procedures of the program, and the cost of filling the index during a lazy load.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SymbolIndexBenchmark {
+    private static final int QUERIES = 1024;
+
+    @Param({"samples/dartk.dill"})
+    public String dill;
+
+    private Program program;
+    private SymbolIndex symbols;
+    private final String[] libraries = new String[QUERIES];
+    private final String[] classes = new String[QUERIES];
+    private final String[] names = new String[QUERIES];
+
+    @Setup
+    public void setup() throws IOException {
+        symbols = new SymbolIndex();
+        program = new BinaryBuilder(new BinaryLoader(), Paths.get(dill)).setSymbolIndex(symbols)
+                .setLazyBodies(true).readProgramFile();
+        Random random = new Random(42);
+        int i = 0;
+        for (AMember member : ParallelTraversal.members(program)) {
+            if (member instanceof AProcedure && member.name().library() == null && random.nextInt(16) == 0
+                    && i < QUERIES) {
+                for (ALibrary library : program.libraries()) {
+                    for (AClass c : library.classes()) {
+                        if (c.procedures().contains(member)) {
+                            libraries[i] = library.importUri().value();
+                            classes[i] = c.name();
+                            names[i++] = member.name().name();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public int indexed() {
+        int found = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            if (symbols.member(libraries[i], classes[i], names[i]) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public int scanned() {
+        int found = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            if (scan(libraries[i], classes[i], names[i]) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private AMember scan(String importUri, String className, String name) {
+        for (ALibrary library : program.libraries()) {
+            if (library.importUri().value().equals(importUri)) {
+                for (AClass c : library.classes()) {
+                    if (className.equals(c.name())) {
+                        for (AProcedure procedure : c.procedures()) {
+                            if (procedure.name().name().equals(name)) {
+                                return procedure;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Program loadLazy() throws IOException {
+        return new BinaryBuilder(new BinaryLoader(), Paths.get(dill)).setLazyBodies(true).readProgramFile();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public SymbolIndex loadLazyIndexed() throws IOException {
+        SymbolIndex symbols = new SymbolIndex();
+        new BinaryBuilder(new BinaryLoader(), Paths.get(dill)).setSymbolIndex(symbols).setLazyBodies(true)
+                .readProgramFile();
+        return symbols;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public int prefix() {
+        int found = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            List<?> members = symbols.withPrefix(libraries[i] + "::" + classes[i] + "::");
+            found += members.size();
+        }
+        return found;
+    }
+}
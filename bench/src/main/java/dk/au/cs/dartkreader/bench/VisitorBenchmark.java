@@ -0,0 +1,102 @@
+package dk.au.cs.dartkreader.bench;
+
+import dk.au.cs.ast.AMember;
+import dk.au.cs.ast.AStaticInvocation;
+import dk.au.cs.ast.AstNode;
+import dk.au.cs.ast.ParallelTraversal;
+import dk.au.cs.ast.Program;
+import dk.au.cs.ast.RecursiveVisitor;
+import dk.au.cs.dartkreader.loader.BinaryBuilder;
+import dk.au.cs.dartkreader.loader.BinaryLoader;
+import org.openjdk.jmh.annotations.*;
+import scala.runtime.AbstractFunction0;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time for a {@link RecursiveVisitor} that counts nodes to walk every member of a loaded program, on the
+ * calling thread and through {@link ParallelTraversal}. Only the parallel walk depends on the pool, so the
+ * sweep over its parallelism is a separate state and the sequential walk is measured once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class VisitorBenchmark {
+
+    @Param({"samples/dartk.dill"})
+    public String dill;
+
+    private AMember[] members;
+
+    @State(Scope.Benchmark)
+    public static class Pool {
+        @Param({"1", "2", "4", "8", "16", "32"})
+        public int parallelism;
+
+        private ForkJoinPool pool;
+        private ParallelTraversal traversal;
+
+        @Setup
+        public void setup() {
+            pool = new ForkJoinPool(parallelism);
+            traversal = new ParallelTraversal(pool, 16);
+        }
+
+        @TearDown
+        public void tearDown() {
+            pool.shutdown();
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        Program program = new BinaryBuilder(new BinaryLoader(), Paths.get(dill)).readProgramFile();
+        members = ParallelTraversal.members(program);
+    }
+
+    @Benchmark
+    public long sequential() {
+        Counter counter = new Counter();
+        for (AMember member : members) {
+            member.accept(counter);
+        }
+        return counter.nodes;
+    }
+
+    @Benchmark
+    public long parallel(Pool pool) {
+        long nodes = 0;
+        for (Counter counter : pool.traversal.visitMembers(members, new AbstractFunction0<Counter>() {
+            @Override
+            public Counter apply() {
+                return new Counter();
+            }
+        })) {
+            nodes += counter.nodes;
+        }
+        return nodes;
+    }
+
+    private static class Counter extends RecursiveVisitor<Object> {
+        long nodes;
+        long invocations;
+
+        @Override
+        public Object defaultNode(AstNode node) {
+            nodes++;
+            return super.defaultNode(node);
+        }
+
+        @Override
+        public Object visitStaticInvocation(AStaticInvocation node) {
+            invocations++;
+            return defaultExpression(node);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package dk.au.cs.dartkreader.loader;
+
+import dk.au.cs.ast.AClass;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reference resolution through {@link BinaryLoader#_extendList}: growing a class's member list from forward
+ * references in ascending order, and resolving references to members that already exist.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ExtendListBenchmark {
+
+    @Param({"16", "1024"})
+    public int members;
+
+    private BinaryLoader loader;
+    private AClass resolved;
+    private int[] order;
+
+    @Setup
+    public void setup() {
+        loader = new BinaryLoader();
+        resolved = AClass.build();
+        for (int i = 0; i < members; i++) {
+            loader.getClassMemberReference(resolved, Tag.ClassProcedureReference, i, null);
+        }
+        Random random = new Random(42);
+        order = new int[4 * members];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = random.nextInt(members);
+        }
+    }
+
+    @Benchmark
+    public void forward(Blackhole blackhole) {
+        AClass classNode = AClass.build();
+        for (int i = 0; i < members; i++) {
+            blackhole.consume(loader.getClassMemberReference(classNode, Tag.ClassProcedureReference, i, null));
+        }
+    }
+
+    @Benchmark
+    public void existing(Blackhole blackhole) {
+        for (int index : order) {
+            blackhole.consume(loader.getClassMemberReference(resolved, Tag.ClassProcedureReference, index, null));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package dk.au.cs.dartkreader.loader;
+
+import dk.au.cs.ast.AVariableDeclaration;
+import dk.au.cs.ast.TypeParameter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The {@code readExpression} and {@code readDartType} hot paths in isolation: every outermost expression and
+ * type of the dill, as recorded by a {@link ReadLog} during an eager load, is decoded again by a forked
+ * builder with placeholder scopes. References resolve to the nodes of the recorded load, and forks are plain
+ * builders, so this measures decoding and node allocation rather than the growth of the reference lists.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class HotPathBenchmark {
+
+    @Param({"samples/dartk.dill"})
+    public String dill;
+
+    private BinaryBuilder builder;
+    private final List<TypeParameter> typeParameters = new ArrayList<>();
+    private final List<AVariableDeclaration> variables = new ArrayList<>();
+    // Triples of byte offset, type parameters in scope and variables in scope.
+    private int[] expressions;
+    private int[] types;
+
+    @Setup
+    public void setup() throws IOException {
+        ReadLog log = new ReadLog(new BinaryLoader(), Paths.get(dill));
+        log.readProgramFile();
+        builder = log;
+        expressions = roots(log.expressions, log.expressionCount, BinaryBuilder::readExpression);
+        types = roots(log.types, log.typeCount, BinaryBuilder::readDartType);
+    }
+
+    /** Drops the reads nested in an earlier read, so that every byte is decoded once per replay. */
+    private int[] roots(int[] entries, int count, Consumer<BinaryBuilder> read) {
+        int[] roots = new int[3 * count];
+        int rootCount = 0;
+        int end = 0;
+        for (int i = 0; i < count; i++) {
+            if (entries[3 * i] < end) {
+                continue;
+            }
+            while (typeParameters.size() < entries[3 * i + 1]) {
+                typeParameters.add(new TypeParameter(null, null));
+            }
+            while (variables.size() < entries[3 * i + 2]) {
+                variables.add(new AVariableDeclaration(null, null, null, null, false, false));
+            }
+            BinaryBuilder replay = fork(entries, i);
+            read.accept(replay);
+            end = replay.byteIndex();
+            System.arraycopy(entries, 3 * i, roots, 3 * rootCount++, 3);
+        }
+        return Arrays.copyOf(roots, 3 * rootCount);
+    }
+
+    private BinaryBuilder fork(int[] roots, int index) {
+        return builder.fork(roots[3 * index],
+                typeParameters.subList(0, roots[3 * index + 1]),
+                variables.subList(0, roots[3 * index + 2]));
+    }
+
+    @Benchmark
+    public void readExpression(Blackhole blackhole) {
+        for (int i = 0; i < expressions.length / 3; i++) {
+            blackhole.consume(fork(expressions, i).readExpression());
+        }
+    }
+
+    @Benchmark
+    public void readDartType(Blackhole blackhole) {
+        for (int i = 0; i < types.length / 3; i++) {
+            blackhole.consume(fork(types, i).readDartType());
+        }
+    }
+}
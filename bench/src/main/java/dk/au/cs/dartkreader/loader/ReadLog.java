@@ -0,0 +1,50 @@
+package dk.au.cs.dartkreader.loader;
+
+import dk.au.cs.ast.AExpression;
+import dk.au.cs.ast.DartType;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A builder that records where it starts reading expressions and types, with the number of type parameters
+ * and variables in scope at each, so that the readExpression and readDartType hot paths can be replayed in
+ * isolation by the benchmarks. Entries are in the order they were read, so nested reads follow the read
+ * enclosing them.
+ */
+final class ReadLog extends BinaryBuilder {
+    // Triples of byte offset, type parameters in scope and variables in scope.
+    int[] expressions = new int[3 * 1024];
+    int expressionCount;
+    int[] types = new int[3 * 1024];
+    int typeCount;
+
+    ReadLog(BinaryLoader loader, Path path) throws IOException {
+        super(loader, path);
+    }
+
+    @Override
+    AExpression readExpression() {
+        if (3 * expressionCount == expressions.length) {
+            expressions = Arrays.copyOf(expressions, 2 * expressions.length);
+        }
+        append(expressions, expressionCount++, byteIndex(), typeParameterDepth(), variableDepth());
+        return super.readExpression();
+    }
+
+    @Override
+    DartType readDartType() {
+        if (3 * typeCount == types.length) {
+            types = Arrays.copyOf(types, 2 * types.length);
+        }
+        append(types, typeCount++, byteIndex(), typeParameterDepth(), 0);
+        return super.readDartType();
+    }
+
+    private static void append(int[] entries, int index, int offset, int typeParameters, int variables) {
+        entries[3 * index] = offset;
+        entries[3 * index + 1] = typeParameters;
+        entries[3 * index + 2] = variables;
+    }
+}
@@ -0,0 +1,67 @@
+package dk.au.cs.dartkreader.loader;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding every entry of the dill's string table, reading entries that are already decoded, and looking
+ * entries up by their UTF-8 bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StringTableBenchmark {
+
+    @Param({"samples/dartk.dill"})
+    public String dill;
+
+    private StringTable table;
+    private byte[][] names;
+
+    @Setup
+    public void setup() throws IOException {
+        BinaryBuilder builder = new BinaryBuilder(new BinaryLoader(), Paths.get(dill)).setLazyBodies(true);
+        builder.readProgramFile();
+        table = builder.getStringTable();
+        // Every 16th entry, plus one name that is not in the table.
+        names = new byte[table.size() / 16 + 1][];
+        for (int i = 0; i < names.length - 1; i++) {
+            names[i] = table.get(16 * i).getBytes(StandardCharsets.UTF_8);
+        }
+        names[names.length - 1] = "not a name in the table".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < table.size(); i++) {
+            table.get(i);
+        }
+        table.indexOf(names[0]);
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) {
+        StringTable fresh = new StringTable(table);
+        for (int i = 0; i < fresh.size(); i++) {
+            blackhole.consume(fresh.get(i));
+        }
+    }
+
+    @Benchmark
+    public void decoded(Blackhole blackhole) {
+        for (int i = 0; i < table.size(); i++) {
+            blackhole.consume(table.get(i));
+        }
+    }
+
+    @Benchmark
+    public void indexOf(Blackhole blackhole) {
+        for (byte[] name : names) {
+            blackhole.consume(table.indexOf(name));
+        }
+    }
+}
@@ -1,10 +1,21 @@
 package dk.au.cs.dartkreader.loader;
 
-import scala.math.BigInt;
-
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import dk.au.cs.ast.*;
 /**
  * Copy pasted and modified from ast_from_binary.dart in the kernel project at tagget SDK release 1.21.1.
@@ -15,7 +26,7 @@ public class BinaryBuilder {
     }
 
     interface TagIndexObjectBuilder<T> {
-        T build(int tag);
+        T build(int tag, int index);
     }
 
 
@@ -24,8 +35,10 @@ public class BinaryBuilder {
     }
 
 
+    private static final DartType[] noTypes = new DartType[0];
+
     private final BinaryLoader loader;
-    private final List<ALibrary> importTable = new ArrayList<>();
+    private final List<ALibrary> importTable;
     private final List<AVariableDeclaration> variableStack = new ArrayList<>();
     private final List<LabeledStatement> labelStack = new ArrayList<>();
     private int labelStackBase = 0;
@@ -33,18 +46,129 @@ public class BinaryBuilder {
     private final List<SwitchCase> switchCaseStack = new ArrayList<>();
     private final List<TypeParameter> typeParameterStack = new ArrayList<>();
     private final String filename;
-    private final byte[] _bytes;
+    private final ByteBuffer _bytes;
     private int _byteIndex = 0;
 
     private ALibrary _currentLibrary;
-    private List<String> _stringTable;
-    private List<String> _sourceUriTable;
+    // The class whose members are being read, or null for the members of the library.
+    private AClass _currentClass;
+    // String table index of the text of the last name read, and the import table index of its library or -1.
+    private int _nameText;
+    private int _nameLibrary;
+    private StringTable _stringTable;
+    private StringTable _sourceUriTable;
     private int _transformerFlags = 0;
+    private boolean lazyBodies = false;
+    private BodyCache bodyCache;
+    private LoadStats stats;
+    // The nodes, lists and list slots this builder has built, for a body cache to account a decoded body.
+    private int decodedNodes;
+    private int decodedLists;
+    private int decodedSlots;
+    // Set by a dill index to take the tables and byte ranges of this file from its plan instead of scanning.
+    private LoadPlan plan;
+    // Walks what this builder skips; created on the first skip, once the string tables have been read.
+    private SkipScanner scanner;
+    // Set while building a dill index, to record the classes and members skipped.
+    DillIndex.Scan indexScan;
+    // Set by a dill index to seek to what it locates; the libraries and classes whose headers have been read.
+    private DillIndex index;
+    private final BitSet libraryHeaders = new BitSet();
+    private final BitSet classHeaders = new BitSet();
+    private SymbolIndex symbols;
 
     public BinaryBuilder(BinaryLoader loader, byte[] _bytes, String filename) {
+        this(loader, ByteBuffer.wrap(_bytes), filename);
+    }
+
+    /**
+     * Reads from the given buffer using absolute indexing, so the buffer's position and limit are left untouched.
+     */
+    public BinaryBuilder(BinaryLoader loader, ByteBuffer _bytes, String filename) {
         this.loader = loader;
-        this._bytes = _bytes;
+        this._bytes = _bytes.duplicate().order(ByteOrder.BIG_ENDIAN);
         this.filename = filename;
+        this.importTable = new ArrayList<>();
+    }
+
+    /**
+     * A builder positioned at {@code byteIndex} that shares the tables of {@code parent} but has its own
+     * cursor and scope stacks.
+     */
+    private BinaryBuilder(BinaryBuilder parent, int byteIndex) {
+        this.loader = parent.loader;
+        this._bytes = parent._bytes;
+        this.filename = parent.filename;
+        this.importTable = parent.importTable;
+        this._stringTable = parent._stringTable;
+        this._sourceUriTable = parent._sourceUriTable;
+        this._byteIndex = byteIndex;
+        this.stats = parent.stats;
+    }
+
+    /**
+     * The string table of the file read so far, for comparing or looking up names as raw bytes.
+     */
+    public StringTable getStringTable() {
+        return _stringTable;
+    }
+
+    /**
+     * When enabled, member function bodies and field initializers are skipped during loading and decoded
+     * on first access of {@link AFunctionNode#body()} or {@link AField#initializer()}.
+     */
+    public BinaryBuilder setLazyBodies(boolean lazyBodies) {
+        this.lazyBodies = lazyBodies;
+        return this;
+    }
+
+    /**
+     * Loads bodies lazily, as {@link #setLazyBodies} does, and lets the cache evict decoded function bodies
+     * to keep them within its budget. Null turns eviction off again, leaving bodies lazy.
+     */
+    public BinaryBuilder setBodyCache(BodyCache bodyCache) {
+        this.bodyCache = bodyCache;
+        if (bodyCache != null) {
+            lazyBodies = true;
+        }
+        return this;
+    }
+
+    /**
+     * Adds every library, class and member to the index as it is decoded, so that they can be looked up by
+     * qualified name once the program is read. Null turns this off.
+     */
+    public BinaryBuilder setSymbolIndex(SymbolIndex symbols) {
+        this.symbols = symbols;
+        return this;
+    }
+
+    /**
+     * Records node counts and bytes, library decode times, string table hits and reference resolutions of
+     * this load into the given stats. Nodes are counted for each library loaded, bodies included whether or
+     * not they are decoded yet, in a separate walk of its bytes. Null turns recording off.
+     */
+    public BinaryBuilder setStats(LoadStats stats) {
+        this.stats = stats;
+        return this;
+    }
+
+    /**
+     * Memory maps the file, decoding directly from the mapped region instead of copying it onto the heap.
+     */
+    public BinaryBuilder(BinaryLoader loader, Path path) throws IOException {
+        this(loader, map(path), path.getFileName().toString());
+    }
+
+    static ByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Dill file too large to map: " + path + " (" + size + " bytes)");
+            }
+            // The mapping stays valid after the channel is closed.
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
     }
 
 
@@ -60,6 +184,8 @@ public class BinaryBuilder {
     }
 
     private <T> List<T> mkList(int size) {
+        decodedLists++;
+        decodedSlots += size;
         ArrayList l = new ArrayList<>(size);
         for (int i = 0; i < size; i++)
             l.add(null);
@@ -67,7 +193,14 @@ public class BinaryBuilder {
     }
 
     private int readByte() {
-        return _bytes[_byteIndex++] & 0xFF; // From unsigned to signed
+        return _bytes.get(_byteIndex++) & 0xFF; // From unsigned to signed
+    }
+
+    private void skipUInt() {
+        int bbyte = readByte();
+        if ((bbyte & 0x80) != 0) {
+            _byteIndex += (bbyte & 0x40) == 0 ? 1 : 3;
+        }
     }
 
     private int readUInt() {
@@ -88,39 +221,30 @@ public class BinaryBuilder {
     }
 
     private int readMagicWord() {
-        return (readByte() << 24) |
-                (readByte() << 16) |
-                (readByte() << 8) |
-                readByte();
+        int word = _bytes.getInt(_byteIndex);
+        _byteIndex += 4;
+        return word;
     }
 
-    private String readStringEntry() {
-        int numBytes = readUInt();
-        // Utf8Decoder will skip leading BOM characters, but we must preserve them.
-        // Collect leading BOMs before passing the bytes onto Utf8Decoder.
-        int numByteOrderMarks = 0;
-        while (_byteIndex + 2 < _bytes.length &&
-                _bytes[_byteIndex] == 0xef &&
-                _bytes[_byteIndex + 1] == 0xbb &&
-                _bytes[_byteIndex + 2] == 0xbf) {
-            ++numByteOrderMarks;
-            _byteIndex += 3;
-            numBytes -= 3;
-        }
-        String string = new String(_bytes, _byteIndex, numBytes);
-        _byteIndex += numBytes;
-        if (numByteOrderMarks > 0) {
-            return '\ufeff' * numByteOrderMarks + string;
+    /**
+     * Records where each entry of a string table starts and ends; entries are decoded on first reference.
+     */
+    private StringTable readStringTableOffsets() {
+        int length = readUInt();
+        int[] offsets = new int[2 * length];
+        for (int i = 0; i < length; ++i) {
+            int numBytes = readUInt();
+            offsets[2 * i] = _byteIndex;
+            _byteIndex += numBytes;
+            offsets[2 * i + 1] = _byteIndex;
         }
-        return string;
+        StringTable table = new StringTable(_bytes, offsets);
+        table.stats = stats;
+        return table;
     }
 
     private void readStringTable() {
-        int length = readUInt();
-        _stringTable = mkList(length);
-        for (int i = 0; i < length; ++i) {
-            _stringTable.set(i, readStringEntry());
-        }
+        _stringTable = readStringTableOffsets();
     }
 
     private String readUriReference() {
@@ -128,11 +252,7 @@ public class BinaryBuilder {
     }
 
     private void readSourceUriTable() {
-        int length = readUInt();
-        _sourceUriTable = mkList(length);
-        for (int i = 0; i < length; ++i) {
-            _sourceUriTable.set(i, readStringEntry());
-        }
+        _sourceUriTable = readStringTableOffsets();
     }
 
     private String readStringReference() {
@@ -140,8 +260,8 @@ public class BinaryBuilder {
     }
 
     private String readStringOrNullIfEmpty() {
-        String string = readStringReference();
-        return string.isEmpty() ? null : string;
+        int index = readUInt();
+        return _stringTable.isEmpty(index) ? null : _stringTable.get(index);
     }
 
     private AInferredValue readOptionalInferredValue() {
@@ -155,19 +275,20 @@ public class BinaryBuilder {
     }
 
     private boolean readAndCheckOptionTag() {
-        AnyTag$.Value tag = AnyTag.apply(readByte());
-        if (tag == AnyTag.Nothing()) {
-            return false;
-        } else if (tag == AnyTag.Something()) {
-            return true;
-        } else {
-            throw fail("Invalid Option tag: " + tag);
+        int tag = readByte();
+        switch (tag) {
+            case Tag.Nothing:
+                return false;
+            case Tag.Something:
+                return true;
+            default:
+                throw fail("Invalid Option tag: " + AnyTag.apply(tag));
         }
     }
 
     private List<AExpression> readAnnotationList(TreeNode parent) {
         int length = readUInt();
-        if (length == 0) return new ArrayList<>();
+        if (length == 0) return mkList(0);
         List<AExpression> list = mkList(length);
         for (int i = 0; i < length; ++i) {
             list.set(i, readExpression());
@@ -178,6 +299,7 @@ public class BinaryBuilder {
     private <T> void _fillTreeNodeList(
             List<T> list, NodeBuilder<T> objBuilder, TreeNode parent) {
         int amount = readUInt();
+        decodedSlots += amount;
         setLength(list, amount);
         for (int i = 0; i < amount; ++i) {
             T tn = objBuilder.build();
@@ -187,6 +309,7 @@ public class BinaryBuilder {
 
     private <T> void _fillNonTreeNodeList(List<T> list, NodeBuilder<T> buildObject) {
         int amount = readUInt();
+        decodedSlots += amount;
         setLength(list, amount);
         for (int i = 0; i < amount; ++i) {
             list.set(i, buildObject.build());
@@ -194,51 +317,486 @@ public class BinaryBuilder {
     }
 
     public Program readProgramFile() {
+        LineStarts uriToLineStarts = readProgramHeader();
+        for (int i = 0; i < importTable.size(); ++i) {
+            _currentLibrary = importTable.get(i);
+            int libraryStart = _byteIndex;
+            long start = stats == null ? 0 : System.nanoTime();
+            readLibrary(i);
+            if (stats != null) {
+                stats.library(_currentLibrary.importUri().value(), System.nanoTime() - start);
+                countNodes(libraryStart, i);
+            }
+        }
+        AMember mainMethod = readMemberReference(true);
+        return new Program(importTable, mainMethod, uriToLineStarts);
+    }
+
+    /**
+     * Reads the program into the int columns of a {@link FlatProgram} instead of building nodes. The loader
+     * and the settings of this builder are not used.
+     */
+    public FlatProgram readFlatProgramFile() {
+        return FlatProgram.read(new BinaryEventReader(_bytes, filename));
+    }
+
+    /**
+     * Decodes the libraries of the program on the given pool. A sequential pre-pass reads each library header
+     * and skips over its classes and members to find their byte ranges, then every class, and the top-level
+     * members of every library, are decoded as separate tasks by forked builders. References across tasks
+     * resolve to the same nodes through the loader.
+     */
+    public Program readProgramFile(ForkJoinPool pool) {
+        LineStarts uriToLineStarts = readProgramHeader();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int i = 0; i < importTable.size(); ++i) {
+            ALibrary library = importTable.get(i);
+            _currentLibrary = library;
+            if (stats != null) {
+                int libraryStart = _byteIndex;
+                int libraryIndex = i;
+                tasks.add(pool.submit(() -> countNodes(libraryStart, libraryIndex)));
+            }
+            readLibraryHeader(i);
+            int classCount = readUInt();
+            synchronized (library.classes()) {
+                setLength(library.classes(), classCount);
+            }
+            for (int j = 0; j < classCount; ++j) {
+                int tag = readByte();
+                int index = j;
+                BinaryBuilder builder = forkLibrary(library);
+                tasks.add(pool.submit(() -> builder.decodeTask(library, () -> builder.readClassTask(tag, index))));
+                skipClass(tag);
+            }
+            BinaryBuilder builder = forkLibrary(library);
+            tasks.add(pool.submit(() -> builder.decodeTask(library, () -> {
+                builder._fillLazilyLoadedList(library.fields(),
+                        (int tag, int index) -> builder.readField((AField) loader.getLibraryMemberReference(library, tag, index, stats), tag));
+                builder._fillLazilyLoadedList(library.procedures(),
+                        (int tag, int index) -> builder.readProcedure((AProcedure) loader.getLibraryMemberReference(library, tag, index, stats), tag));
+            })));
+            skipMemberList();
+            skipMemberList();
+        }
+        // Flags seen while skipping belong to the tasks that decode those members.
+        _transformerFlags = 0;
+        AMember mainMethod = readMemberReference(true);
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+        return new Program(importTable, mainMethod, uriToLineStarts);
+    }
+
+    /** Runs a task of the parallel load, counting its time towards the library when recording stats. */
+    private void decodeTask(ALibrary library, Runnable task) {
+        if (stats == null) {
+            task.run();
+            return;
+        }
+        long start = System.nanoTime();
+        task.run();
+        stats.library(library.importUri().value(), System.nanoTime() - start);
+    }
+
+    /**
+     * Counts the nodes of the library at the given index and start into the stats, in a walk of its bytes of
+     * its own so that decoding does not pay for counting.
+     */
+    private void countNodes(int start, int index) {
+        new NodeCounter(stats, eventReader()).countLibrary(start, index);
+    }
+
+    /** A reader of the bytes of this builder, once its string tables have been read. */
+    BinaryEventReader eventReader() {
+        return new BinaryEventReader(_bytes, filename, _stringTable, _sourceUriTable);
+    }
+
+    /** Reads the class of the current library whose tag byte the parent builder has read. */
+    private void readClassTask(int tag, int index) {
+        readClass(loader.getClassReference(_currentLibrary, tag, index, stats), tag);
+    }
+
+    private BinaryBuilder forkLibrary(ALibrary library) {
+        BinaryBuilder builder = new BinaryBuilder(this, _byteIndex);
+        builder._currentLibrary = library;
+        builder.lazyBodies = lazyBodies;
+        builder.bodyCache = bodyCache;
+        builder.symbols = symbols;
+        return builder;
+    }
+
+    private LineStartTable readProgramHeader() {
         MagicWordTag$.Value magic = MagicWordTag.apply(readMagicWord());
         if (magic != MagicWordTag.ProgramFile()) {
             throw fail("This is not a binary dart file. \nMagic number was: " + Integer.toHexString(magic.id()));
         }
+        if (plan != null) {
+            return readPlannedHeader();
+        }
         readStringTable();
 
-        HashMap<String, Integer[]> uriToLineStarts = readUriToLineStarts();
+        LineStartTable uriToLineStarts = readUriToLineStarts();
         int importTableLength = readUInt();
         setLength(importTable, importTableLength);
         for (int i = 0; i < importTableLength; ++i) {
             importTable.set(i, ALibrary.build());
         }
-        for (int i = 0; i < importTableLength; ++i) {
+        return uriToLineStarts;
+    }
+
+    /**
+     * Takes the tables from the plan and creates the node of every library, class and member up front, so that
+     * references never have to grow a list or create a node, and moves to the first library.
+     */
+    private LineStartTable readPlannedHeader() {
+        _stringTable = new StringTable(_bytes, plan.strings);
+        _stringTable.stats = stats;
+        _sourceUriTable = new StringTable(_bytes, plan.uris);
+        _sourceUriTable.stats = stats;
+        int libraryCount = plan.libraryStarts.length;
+        setLength(importTable, libraryCount);
+        for (int i = 0; i < libraryCount; ++i) {
+            ALibrary library = ALibrary.build();
+            importTable.set(i, library);
+            for (int k = plan.firstClass[i]; k < plan.firstClass[i + 1]; ++k) {
+                AClass classNode = loader._buildClassReference(_bytes.get(plan.classStarts[k]) & 0xFF);
+                library.classes().add(classNode);
+                prefill(classNode.fields(), plan.classFields[k], loader::_buildFieldReference);
+                prefill(classNode.constructors(), plan.classConstructors[k], loader::_buildConstructorReference);
+                prefill(classNode.procedures(), plan.classProcedures[k], loader::_buildProcedureReference);
+            }
+            prefill(library.fields(), plan.libraryFields[i], loader::_buildFieldReference);
+            prefill(library.procedures(), plan.libraryProcedures[i], loader::_buildProcedureReference);
+        }
+        _byteIndex = libraryCount > 0 ? plan.libraryStarts[0] : plan.mainStart;
+        return new LineStartTable(_bytes, _sourceUriTable, plan.lineStarts);
+    }
+
+    private <T> void prefill(List<T> list, int length, BinaryLoader.Builder<T> build) {
+        for (int i = 0; i < length; ++i) {
+            list.add(build.build());
+        }
+    }
+
+    /**
+     * Reads the header and skips over every library, recording where its parts are in a {@link LoadPlan}.
+     */
+    LoadPlan readLoadPlan() {
+        return readLoadPlan(null);
+    }
+
+    /**
+     * Reads a plan as above, adding a SHA-256 digest of the byte range of each library to {@code digests} if
+     * it is not null. References to strings and source URIs are digested as a 64-bit hash of the entry they
+     * refer to, and references to libraries by index, with the import URI of every index referenced digested
+     * at the end. A library's digest thus only changes when the library does, and not when the string tables
+     * are reordered around it; moving libraries within the import table still changes the digests.
+     */
+    LoadPlan readLoadPlan(List<byte[]> digests) {
+        LineStartTable uriToLineStarts = readProgramHeader();
+        byte[][] skippedDigests = null;
+        BitSet[] referenced = null;
+        if (digests != null) {
+            try {
+                scanner().digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            skippedDigests = new byte[importTable.size()][];
+            referenced = new BitSet[importTable.size()];
+        }
+        int libraryCount = importTable.size();
+        int[] libraryStarts = new int[libraryCount];
+        int[] memberStarts = new int[libraryCount];
+        int[] libraryFields = new int[libraryCount];
+        int[] libraryProcedures = new int[libraryCount];
+        int[] firstClass = new int[libraryCount + 1];
+        // Per class: the byte index of its tag and its number of fields, constructors and procedures.
+        int[] classes = new int[4 * 64];
+        int classTotal = 0;
+        for (int i = 0; i < libraryCount; ++i) {
             _currentLibrary = importTable.get(i);
-            readLibrary();
+            libraryStarts[i] = _byteIndex;
+            if (digests != null) {
+                scanner().digestFrom(_byteIndex);
+                scanner.readLibraryHeader(i);
+            }
+            readLibraryHeader(i);
+            int classCount = readUInt();
+            firstClass[i] = classTotal;
+            for (int j = 0; j < classCount; ++j, ++classTotal) {
+                if (4 * classTotal == classes.length) {
+                    classes = Arrays.copyOf(classes, 2 * classes.length);
+                }
+                classes[4 * classTotal] = _byteIndex;
+                int[] counts = skipClass(readByte());
+                System.arraycopy(counts, 0, classes, 4 * classTotal + 1, 3);
+            }
+            memberStarts[i] = _byteIndex;
+            libraryFields[i] = skipMemberList();
+            libraryProcedures[i] = skipMemberList();
+            if (digests != null) {
+                scanner.digestSkipped(_byteIndex);
+                skippedDigests[i] = scanner.digest.digest();
+                referenced[i] = (BitSet) scanner.referencedLibraries.clone();
+                scanner.referencedLibraries.clear();
+            }
         }
-        AMember mainMethod = readMemberReference(true);
-        return new Program(importTable, mainMethod, uriToLineStarts);
+        firstClass[libraryCount] = classTotal;
+        _transformerFlags = 0;
+        if (digests != null) {
+            long[] importUriHashes = new long[libraryCount];
+            for (int i = 0; i < libraryCount; ++i) {
+                importUriHashes[i] = StringTable.contentHash(importUri(i).getBytes(StandardCharsets.UTF_8));
+            }
+            for (int i = 0; i < libraryCount; ++i) {
+                scanner.digest.update(skippedDigests[i]);
+                for (int j = referenced[i].nextSetBit(0); j >= 0; j = referenced[i].nextSetBit(j + 1)) {
+                    scanner.digestLong(j);
+                    scanner.digestLong(importUriHashes[j]);
+                }
+                digests.add(scanner.digest.digest());
+            }
+            scanner.digest = null;
+        }
+        int[] classStarts = new int[classTotal];
+        int[] classFields = new int[classTotal];
+        int[] classConstructors = new int[classTotal];
+        int[] classProcedures = new int[classTotal];
+        for (int k = 0; k < classTotal; ++k) {
+            classStarts[k] = classes[4 * k];
+            classFields[k] = classes[4 * k + 1];
+            classConstructors[k] = classes[4 * k + 2];
+            classProcedures[k] = classes[4 * k + 3];
+        }
+        return new LoadPlan(_stringTable.offsets(), _sourceUriTable.offsets(), uriToLineStarts.ranges(),
+                libraryStarts, memberStarts, libraryFields, libraryProcedures, firstClass,
+                classStarts, classFields, classConstructors, classProcedures, _byteIndex);
+    }
+
+    /** Import URI of the given library, once its header has been read. */
+    String importUri(int library) {
+        return importTable.get(library).importUri().value();
+    }
+
+    /** Whether the given library is external, once its header has been read. */
+    boolean isExternal(int library) {
+        return importTable.get(library).isExternal();
+    }
+
+    /**
+     * Replaces the libraries of the import table read with a plan by the given ones, so that references
+     * resolve to their nodes.
+     */
+    void link(List<ALibrary> libraries) {
+        for (int i = 0; i < libraries.size(); ++i) {
+            importTable.set(i, libraries.get(i));
+        }
+    }
+
+    /**
+     * Reads the program into the given libraries, which are linked in place of those of the import table read
+     * with the plan, decoding only the libraries marked in {@code decode}. The libraries that are not decoded
+     * keep their contents. Classes and members of decoded libraries are filled into the nodes already at their
+     * index, so references to them from libraries that are not decoded stay valid.
+     */
+    Program readProgramFile(LoadPlan plan, List<ALibrary> libraries, boolean[] decode) {
+        link(libraries);
+        for (int i = 0; i < libraries.size(); ++i) {
+            if (!decode[i]) {
+                continue;
+            }
+            _byteIndex = plan.libraryStarts[i];
+            _currentLibrary = libraries.get(i);
+            long start = stats == null ? 0 : System.nanoTime();
+            readLibrary(i);
+            if (stats != null) {
+                stats.library(_currentLibrary.importUri().value(), System.nanoTime() - start);
+                countNodes(plan.libraryStarts[i], i);
+            }
+        }
+        return new Program(importTable, readMainMethod(plan), lineStarts(plan));
+    }
+
+    /**
+     * Submits a task to the pool for each library marked in {@code decode}, each decoding the library with
+     * a forked builder. The import table must have been linked.
+     */
+    List<ForkJoinTask<?>> submitLibraries(ForkJoinPool pool, LoadPlan plan, boolean[] decode) {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int i = 0; i < decode.length; ++i) {
+            if (decode[i]) {
+                ALibrary library = importTable.get(i);
+                BinaryBuilder builder = forkLibrary(library);
+                builder._byteIndex = plan.libraryStarts[i];
+                int index = i;
+                tasks.add(pool.submit(() -> builder.decodeTask(library, () -> builder.readLibrary(index))));
+            }
+        }
+        return tasks;
+    }
+
+    AMember readMainMethod(LoadPlan plan) {
+        _byteIndex = plan.mainStart;
+        return readMemberReference(true);
+    }
+
+    LineStartTable lineStarts(LoadPlan plan) {
+        return new LineStartTable(_bytes, _sourceUriTable, plan.lineStarts);
+    }
+
+    /**
+     * Takes the tables and byte ranges of the file from the index and creates the node of every library, class
+     * and member, without decoding any of them.
+     */
+    void readIndexedHeader(DillIndex index) {
+        this.index = index;
+        plan = index.plan();
+        readProgramHeader();
+    }
+
+    /**
+     * Decodes the library at the given position of the import table with all its classes and members, seeking
+     * to it with the {@link DillIndex} this builder was opened with. The other libraries keep their nodes, so
+     * references into them stay valid but their contents are not read.
+     */
+    public ALibrary readIndexedLibrary(int library) {
+        checkIndexed();
+        _currentLibrary = importTable.get(library);
+        _byteIndex = plan.libraryStarts[library];
+        readLibrary(library);
+        libraryHeaders.set(library);
+        classHeaders.set(plan.firstClass[library], plan.firstClass[library + 1]);
+        return _currentLibrary;
+    }
+
+    /** Decodes the class with the given index id and its members, and the header of its library. */
+    public AClass readIndexedClass(int classId) {
+        checkIndexed();
+        int library = index.classLibrary(classId);
+        enterIndexedLibrary(library);
+        AClass node = _currentLibrary.classes().get(classId - plan.firstClass[library]);
+        _byteIndex = plan.classStarts[classId];
+        readClass(node, readByte());
+        classHeaders.set(classId);
+        return node;
+    }
+
+    /**
+     * Decodes the member with the given index id, and the headers of its library and class, which hold what
+     * the member's types refer to.
+     */
+    public AMember readIndexedMember(int member) {
+        checkIndexed();
+        int library = index.memberLibrary(member);
+        enterIndexedLibrary(library);
+        int classId = index.memberClass(member);
+        int tag = index.memberTag(member);
+        AMember node;
+        if (classId < 0) {
+            node = loader.getLibraryMemberReference(_currentLibrary, tag, index.memberListIndex(member), stats);
+        } else {
+            AClass classNode = _currentLibrary.classes().get(classId - plan.firstClass[library]);
+            if (classHeaders.get(classId)) {
+                typeParameterStack.addAll(classNode.typeParameters());
+                _currentClass = classNode;
+            } else {
+                _byteIndex = plan.classStarts[classId];
+                readClassHeader(classNode, readByte());
+                classHeaders.set(classId);
+            }
+            node = loader.getClassMemberReference(classNode, tag, index.memberListIndex(member), stats);
+        }
+        _byteIndex = index.memberStart(member) + 1;
+        switch (tag) {
+            case Tag.Field:
+                readField((AField) node, tag);
+                break;
+            case Tag.Constructor:
+                readConstructor((AConstructor) node, tag);
+                break;
+            default:
+                readProcedure((AProcedure) node, tag);
+        }
+        typeParameterStack.clear();
+        _currentClass = null;
+        return node;
     }
 
-    private HashMap<String, Integer[]> readUriToLineStarts() {
+    /** Decodes the header of the library at the given position of the import table, without its classes. */
+    public ALibrary readIndexedLibraryHeader(int library) {
+        checkIndexed();
+        enterIndexedLibrary(library);
+        return _currentLibrary;
+    }
+
+    /** Decodes the header of the class with the given index id, and of its library, without its members. */
+    public AClass readIndexedClassHeader(int classId) {
+        checkIndexed();
+        int library = index.classLibrary(classId);
+        enterIndexedLibrary(library);
+        AClass node = _currentLibrary.classes().get(classId - plan.firstClass[library]);
+        if (!classHeaders.get(classId)) {
+            _byteIndex = plan.classStarts[classId];
+            readClassHeader(node, readByte());
+            classHeaders.set(classId);
+            typeParameterStack.clear();
+            _currentClass = null;
+        }
+        return node;
+    }
+
+    /**
+     * The program of the indexed dill, with the nodes created by the index and whatever has been decoded into
+     * them so far.
+     */
+    Program readIndexedProgram() {
+        checkIndexed();
+        return new Program(importTable, readMainMethod(plan), lineStarts(plan));
+    }
+
+    private void enterIndexedLibrary(int library) {
+        _currentLibrary = importTable.get(library);
+        if (!libraryHeaders.get(library)) {
+            _byteIndex = plan.libraryStarts[library];
+            readLibraryHeader(library);
+            libraryHeaders.set(library);
+        }
+    }
+
+    private void checkIndexed() {
+        if (index == null) {
+            throw new IllegalStateException("Not opened with a DillIndex: " + filename);
+        }
+    }
+
+    private LineStartTable readUriToLineStarts() {
         readSourceUriTable();
         int length = _sourceUriTable.size();
-        HashMap<String, Integer[]> uriToLineStarts = new HashMap<>();
+        int[] ranges = new int[2 * length];
         for (int i = 0; i < length; ++i) {
-            String uri = _sourceUriTable.get(i);
             int lineCount = readUInt();
-            Integer[] lineStarts = new Integer[lineCount];
-            int previousLineStart = 0;
+            ranges[2 * i] = _byteIndex;
+            ranges[2 * i + 1] = lineCount;
             for (int j = 0; j < lineCount; ++j) {
-                int lineStart = readUInt() + previousLineStart;
-                lineStarts[j] = lineStart;
-                previousLineStart = lineStart;
+                skipUInt();
             }
-            uriToLineStarts.put(uri, lineStarts);
         }
-        return uriToLineStarts;
+        return new LineStartTable(_bytes, _sourceUriTable, ranges);
     }
 
+    /**
+     * The builder must take its node from the loader, which places it in the list, so that nodes referenced
+     * before they are read are filled in rather than replaced.
+     */
     private <T> void _fillLazilyLoadedList(List<T> list, TagIndexObjectBuilder<T> buildObject) {
         int length = readUInt();
-        setLength(list, length);
+        synchronized (list) {
+            setLength(list, length);
+        }
         for (int i = 0; i < length; ++i) {
-            int tag = readByte();
-            list.set(i, buildObject.build(tag));
+            buildObject.build(readByte(), i);
         }
     }
 
@@ -248,8 +806,8 @@ public class BinaryBuilder {
     }
 
     private AClass readClassReference(boolean allowNull) {
-        AnyTag$.Value tag = AnyTag.apply(readByte());
-        if (tag == AnyTag.NullReference()) {
+        int tag = readByte();
+        if (tag == Tag.NullReference) {
             if (!allowNull) {
                 throw new RuntimeException("Expected a class reference to be valid but was `null`.");
             }
@@ -257,111 +815,142 @@ public class BinaryBuilder {
         } else {
             ALibrary library = readLibraryReference();
             int index = readUInt();
-            return loader.getClassReference(library, tag.id(), index);
+            return loader.getClassReference(library, tag, index, stats);
         }
     }
 
     private AMember readMemberReference(boolean allowNull) {
-        AnyTag$.Value tag = AnyTag.apply(readByte());
-        if (tag == AnyTag.LibraryFieldReference() || tag == AnyTag.LibraryProcedureReference()) {
-            ALibrary library = readLibraryReference();
-            int index = readUInt();
-            return loader.getLibraryMemberReference(library, tag.id(), index);
-        } else if (tag == AnyTag.ClassFieldReference() || tag == AnyTag.ClassConstructorReference() || tag == AnyTag.ClassProcedureReference()) {
-            AClass classNode = readClassReference(false);
-            int index = readUInt();
-            return loader.getClassMemberReference(classNode, tag.id(), index);
-        } else if (tag == AnyTag.NullReference()) {
-            if (!allowNull) {
-                throw new RuntimeException("Expected a member reference to be valid but was `null`.");
+        int tag = readByte();
+        switch (tag) {
+            case Tag.LibraryFieldReference:
+            case Tag.LibraryProcedureReference: {
+                ALibrary library = readLibraryReference();
+                int index = readUInt();
+                return loader.getLibraryMemberReference(library, tag, index, stats);
             }
-            return null;
-        } else {
-            throw fail("Invalid member reference tag: " + tag);
+            case Tag.ClassFieldReference:
+            case Tag.ClassConstructorReference:
+            case Tag.ClassProcedureReference: {
+                AClass classNode = readClassReference(false);
+                int index = readUInt();
+                return loader.getClassMemberReference(classNode, tag, index, stats);
+            }
+            case Tag.NullReference:
+                if (!allowNull) {
+                    throw new RuntimeException("Expected a member reference to be valid but was `null`.");
+                }
+                return null;
+            default:
+                throw fail("Invalid member reference tag: " + AnyTag.apply(tag));
         }
     }
 
     private AName readName() {
-        String text = readStringReference();
+        decodedNodes++;
+        _nameText = readUInt();
+        String text = _stringTable.get(_nameText);
         if (!text.isEmpty() && text.startsWith("_")) {
-            return new AName(text, readLibraryReference());
+            _nameLibrary = readUInt();
+            return new AName(text, importTable.get(_nameLibrary));
         } else {
+            _nameLibrary = -1;
             return new AName(text, null);
         }
     }
 
-    private AUri readImportUri() {
-        return new AUri(readStringReference());
+    /** Reads the current library, which is at the given index of the import table. */
+    private void readLibrary(int libraryIndex) {
+        readLibraryHeader(libraryIndex);
+        _fillLazilyLoadedList(_currentLibrary.classes(),
+                (int tag, int index) -> readClass(loader.getClassReference(_currentLibrary, tag, index, stats), tag));
+        _fillLazilyLoadedList(_currentLibrary.fields(),
+                (int tag, int index) -> readField((AField) loader.getLibraryMemberReference(_currentLibrary, tag, index, stats), tag));
+        _fillLazilyLoadedList(_currentLibrary.procedures(),
+                (int tag, int index) -> readProcedure((AProcedure) loader.getLibraryMemberReference(_currentLibrary, tag, index, stats), tag));
     }
 
-    private void readLibrary() {
+    private void readLibraryHeader(int libraryIndex) {
         int flags = readByte();
         _currentLibrary.isExternal_$eq((flags & 0x1) != 0);
         _currentLibrary.name_$eq(readStringOrNullIfEmpty());
-        _currentLibrary.importUri_$eq(readImportUri());
+        int importUri = readUInt();
+        _currentLibrary.importUri_$eq(new AUri(_stringTable.get(importUri)));
+        if (symbols != null) {
+            symbols.addLibrary(_stringTable, importUri, libraryIndex, _currentLibrary);
+        }
 
         // TODO(jensj): We currently save (almost the same) uri twice.
         _currentLibrary.fileUri_$eq(readUriReference());
-
-        _fillLazilyLoadedList(_currentLibrary.classes(), (int tag) -> readClass(AClass.build(), tag));
-        _fillLazilyLoadedList(_currentLibrary.fields(), (int tag) -> readField(AField.build(null), tag));
-        _fillLazilyLoadedList(_currentLibrary.procedures(), (int tag) -> readProcedure(AProcedure.build(null, null, null), tag));
     }
 
     private AClass readClass(AClass node, int tag) {
         assert (node != null);
-        AnyTag$.Value t = AnyTag.apply(tag);
-        if (t == AnyTag.NormalClass()) {
-            readNormalClass(node);
-        } else if (t == AnyTag.MixinClass()) {
-            readMixinClass(node);
-        } else {
-            throw fail("Invalid class tag: " + tag);
+        switch (tag) {
+            case Tag.NormalClass:
+                readNormalClass(node);
+                break;
+            case Tag.MixinClass:
+                readMixinClass(node);
+                break;
+            default:
+                throw fail("Invalid class tag: " + tag);
         }
         return node;
     }
 
     private void readNormalClass(AClass node) {
-        int flags = readByte();
-        node.isAbstract_$eq((flags & 0x1) != 0);
-        node.level_$eq(
-                _currentLibrary.isExternal()
-                        ?
-                        ((flags & 0x2) != 0) ?
-                                ClassLevel.Type()
-                                : ClassLevel.Hierarchy()
-                        : ClassLevel.Body());
-        node.name_$eq(readStringOrNullIfEmpty());
-        node.fileUri_$eq(readUriReference());
-        node.annotations_$eq(readAnnotationList(node));
-
-        readAndPushTypeParameterList(node.typeParameters(), node);
-        node.supertype_$eq(readSupertypeOption());
-
-        _fillNonTreeNodeList(node.implementedTypes(), () -> readSupertype());
-        _fillLazilyLoadedList(node.fields(), (int tag) -> readField(AField.build(null), tag));
-        _fillLazilyLoadedList(node.constructors(), (int tag) -> readConstructor(AConstructor.build(null), tag));
-        _fillLazilyLoadedList(node.procedures(), (int tag) -> readProcedure(AProcedure.build(null, null, null), tag));
+        readClassHeader(node, Tag.NormalClass);
+        _fillLazilyLoadedList(node.fields(),
+                (int tag, int index) -> readField((AField) loader.getClassMemberReference(node, tag, index, stats), tag));
+        _fillLazilyLoadedList(node.constructors(),
+                (int tag, int index) -> readConstructor((AConstructor) loader.getClassMemberReference(node, tag, index, stats), tag));
+        _fillLazilyLoadedList(node.procedures(),
+                (int tag, int index) -> readProcedure((AProcedure) loader.getClassMemberReference(node, tag, index, stats), tag));
         typeParameterStack.clear();
+        _currentClass = null;
     }
 
     private void readMixinClass(AClass node) {
+        readClassHeader(node, Tag.MixinClass);
+        _fillLazilyLoadedList(node.constructors(),
+                (int tag, int index) -> readConstructor((AConstructor) loader.getClassMemberReference(node, tag, index, stats), tag));
+        // A node read before as a normal class keeps no members of it. The lists are shared with other
+        // builders resolving references into them.
+        synchronized (node.fields()) {
+            setLength(node.fields(), 0);
+        }
+        synchronized (node.procedures()) {
+            setLength(node.procedures(), 0);
+        }
+        typeParameterStack.clear();
+        _currentClass = null;
+    }
+
+    /** Reads a class up to its members, leaving its type parameters on the stack. */
+    private void readClassHeader(AClass node, int tag) {
         int flags = readByte();
         node.isAbstract_$eq((flags & 0x1) != 0);
         node.level_$eq(_currentLibrary.isExternal()
                 ? ((flags & 0x2) != 0) ? ClassLevel.Type() : ClassLevel.Hierarchy()
                 : ClassLevel.Body());
-
-        node.name_$eq(readStringOrNullIfEmpty());
+        int name = readUInt();
+        node.name_$eq(_stringTable.isEmpty(name) ? null : _stringTable.get(name));
+        if (symbols != null) {
+            symbols.addClass(_currentLibrary, name, node);
+        }
+        _currentClass = node;
         node.fileUri_$eq(readUriReference());
         node.annotations_$eq(readAnnotationList(node));
 
         readAndPushTypeParameterList(node.typeParameters(), node);
-        node.supertype_$eq(readSupertype());
-        node.mixedInType_$eq(readSupertype());
+        if (tag == Tag.NormalClass) {
+            node.supertype_$eq(readSupertypeOption());
+            node.mixedInType_$eq(null);
+        } else {
+            node.supertype_$eq(readSupertype());
+            node.mixedInType_$eq(readSupertype());
+        }
         _fillNonTreeNodeList(node.implementedTypes(), () -> readSupertype());
-        _fillLazilyLoadedList(node.constructors(), (int tag) -> readConstructor(AConstructor.build(null), tag));
-        typeParameterStack.clear();
     }
 
     private int getAndResetTransformerFlags() {
@@ -379,28 +968,34 @@ public class BinaryBuilder {
         // Note: as with readProcedure and readConstructor, the tag parameter
         // is unused, but we pass it in to clarify that the tag has already been
         // consumed from the input.
-        assert (AnyTag.apply(tag) == AnyTag.Field());
+        assert (tag == Tag.Field);
         node.fileOffset_$eq(readOffset());
         node.flags_$eq(readByte());
         node.name_$eq(readName());
+        addSymbol(node);
         node.fileUri_$eq(readUriReference());
         node.annotations_$eq(readAnnotationList(node));
 
         node.ttype_$eq(readDartType());
         node.inferredValue_$eq(readOptionalInferredValue());
-        node.initializer_$eq(readExpressionOption());
+        if (lazyBodies) {
+            node.deferInitializer(deferExpressionOption());
+        } else {
+            node.initializer_$eq(readExpressionOption());
+        }
 
         node.transformerFlags_$eq(getAndResetTransformerFlags());
         return node;
     }
 
     private AConstructor readConstructor(AConstructor node, int tag) {
-        assert (AnyTag.apply(tag) == AnyTag.Constructor());
+        assert (tag == Tag.Constructor);
         node.flags_$eq(readByte());
         node.name_$eq(readName());
+        addSymbol(node);
         node.annotations_$eq(readAnnotationList(node));
 
-        node.function_$eq(readFunctionNode());
+        node.function_$eq(readFunctionNode(lazyBodies));
 
         pushVariableDeclarations(node.function().positionalParameters());
         pushVariableDeclarations(node.function().namedParameters());
@@ -413,11 +1008,12 @@ public class BinaryBuilder {
     }
 
     private AProcedure readProcedure(AProcedure node, int tag) {
-        assert (AnyTag.apply(tag) == AnyTag.Procedure());
+        assert (tag == Tag.Procedure);
         int kindIndex = readByte();
         node.kind_$eq(ProcedureKind.apply(kindIndex));
         node.flags_$eq(readByte());
         node.name_$eq(readName());
+        addSymbol(node);
         node.fileUri_$eq(readUriReference());
         node.annotations_$eq(readAnnotationList(node));
 
@@ -426,28 +1022,40 @@ public class BinaryBuilder {
         return node;
     }
 
+    private void addSymbol(AMember node) {
+        if (symbols != null) {
+            symbols.addMember(_currentLibrary, _currentClass, _nameText, _nameLibrary, node);
+        }
+    }
+
     private AInitializer readInitializer() {
-        AnyTag$.Value tag = AnyTag.apply(readByte());
-        if (tag == AnyTag.InvalidInitializer()) {
-            return new AInvalidInitializer();
-        } else if (tag == AnyTag.FieldInitializer()) {
-            return new FieldInitializer(readMemberReference(false), readExpression());
-        } else if (tag == AnyTag.SuperInitializer()) {
-            return new SuperInitializer(readMemberReference(false), readArguments());
-        } else if (tag == AnyTag.RedirectingInitializer()) {
-            return new RedirectingInitializer(readMemberReference(false), readArguments());
-        } else if (tag == AnyTag.LocalInitializer()) {
-            return new ALocalInitializer(readAndPushVariableDeclaration());
-        } else {
-            throw fail("Invalid initializer tag:" + tag);
+        int tag = readByte();
+        switch (tag) {
+            case Tag.InvalidInitializer:
+                return new AInvalidInitializer();
+            case Tag.FieldInitializer:
+                return new FieldInitializer(readMemberReference(false), readExpression());
+            case Tag.SuperInitializer:
+                return new SuperInitializer(readMemberReference(false), readArguments());
+            case Tag.RedirectingInitializer:
+                return new RedirectingInitializer(readMemberReference(false), readArguments());
+            case Tag.LocalInitializer:
+                return new ALocalInitializer(readAndPushVariableDeclaration());
+            default:
+                throw fail("Invalid initializer tag:" + AnyTag.apply(tag));
         }
     }
 
     private AFunctionNode readFunctionNodeOption() {
-        return readAndCheckOptionTag() ? readFunctionNode() : null;
+        return readAndCheckOptionTag() ? readFunctionNode(lazyBodies) : null;
     }
 
     private AFunctionNode readFunctionNode() {
+        return readFunctionNode(false);
+    }
+
+    private AFunctionNode readFunctionNode(boolean deferBody) {
+        decodedNodes++;
         AsyncMarker$.Value asyncMarker = AsyncMarker.apply(readByte());
         int typeParameterStackHeight = typeParameterStack.size();
         List<TypeParameter> typeParameters = readAndPushTypeParameterList(null, null);
@@ -458,15 +1066,23 @@ public class BinaryBuilder {
 
         DartType returnType = readDartType();
         AInferredValue inferredReturnValue = readOptionalInferredValue();
-        int oldLabelStackBase = labelStackBase;
-        labelStackBase = labelStack.size();
-        AStatement body = readStatementOption();
-        labelStackBase = oldLabelStackBase;
-        variableStack.clear();
+        LazyDecoder<AStatement> bodyDecoder = null;
+        CachedBody cachedBody = null;
+        AStatement body = null;
+        if (deferBody && bodyCache != null) {
+            cachedBody = new CachedBody(this, bodyCache);
+            skipStatementOption();
+        } else if (deferBody) {
+            bodyDecoder = deferStatementOption();
+        } else {
+            int oldLabelStackBase = labelStackBase;
+            labelStackBase = labelStack.size();
+            body = readStatementOption();
+            labelStackBase = oldLabelStackBase;
+        }
         setLength(variableStack, variableStackHeight);
-        typeParameterStack.clear();
         setLength(typeParameterStack, typeParameterStackHeight);
-        return new AFunctionNode(body,
+        AFunctionNode node = new AFunctionNode(body,
                 typeParameters,
                 requiredParameterCount,
                 positional,
@@ -474,6 +1090,82 @@ public class BinaryBuilder {
                 returnType,
                 inferredReturnValue,
                 asyncMarker);
+        if (cachedBody != null) {
+            cachedBody.node = node;
+            bodyCache.register(node);
+            node.deferBody(cachedBody, bodyCache);
+        } else if (bodyDecoder != null) {
+            node.deferBody(bodyDecoder);
+        }
+        return node;
+    }
+
+    /**
+     * A body deferred under a body cache. Each decode tells the cache how many nodes, lists and list slots it
+     * built, so that the cache accounts the body as decoded rather than by its encoded length.
+     */
+    private static final class CachedBody implements LazyDecoder<AStatement> {
+        private final BinaryBuilder parent;
+        private final BodyCache cache;
+        private final int offset;
+        private final List<TypeParameter> typeParameters;
+        private final List<AVariableDeclaration> variables;
+        AFunctionNode node;
+
+        CachedBody(BinaryBuilder parent, BodyCache cache) {
+            this.parent = parent;
+            this.cache = cache;
+            this.offset = parent._byteIndex;
+            this.typeParameters = new ArrayList<>(parent.typeParameterStack);
+            this.variables = new ArrayList<>(parent.variableStack);
+        }
+
+        @Override
+        public AStatement decode() {
+            BinaryBuilder builder = parent.fork(offset, typeParameters, variables);
+            AStatement body = builder.readStatementOption();
+            cache.decoded(node, builder.decodedNodes, builder.decodedLists, builder.decodedSlots);
+            return body;
+        }
+    }
+
+    /**
+     * Skips a member body, capturing the type parameters and variables in scope so that a forked builder
+     * can decode it later. Labels and switch cases never cross a member boundary.
+     */
+    private LazyDecoder<AStatement> deferStatementOption() {
+        int offset = _byteIndex;
+        List<TypeParameter> typeParameters = new ArrayList<>(typeParameterStack);
+        List<AVariableDeclaration> variables = new ArrayList<>(variableStack);
+        skipStatementOption();
+        return () -> fork(offset, typeParameters, variables).readStatementOption();
+    }
+
+    private LazyDecoder<AExpression> deferExpressionOption() {
+        int offset = _byteIndex;
+        List<TypeParameter> typeParameters = new ArrayList<>(typeParameterStack);
+        List<AVariableDeclaration> variables = new ArrayList<>(variableStack);
+        skipExpressionOption();
+        return () -> fork(offset, typeParameters, variables).readExpressionOption();
+    }
+
+    BinaryBuilder fork(int offset, List<TypeParameter> typeParameters, List<AVariableDeclaration> variables) {
+        BinaryBuilder builder = new BinaryBuilder(this, offset);
+        builder.typeParameterStack.addAll(typeParameters);
+        builder.variableStack.addAll(variables);
+        return builder;
+    }
+
+    int byteIndex() {
+        return _byteIndex;
+    }
+
+    int typeParameterDepth() {
+        return typeParameterStack.size();
+    }
+
+    int variableDepth() {
+        return variableStack.size();
     }
 
     private void pushVariableDeclaration(AVariableDeclaration variable) {
@@ -516,160 +1208,179 @@ public class BinaryBuilder {
         return readAndCheckOptionTag() ? readExpression() : null;
     }
 
-    private AExpression readExpression() {
+    AExpression readExpression() {
+        decodedNodes++;
         int tagByte = readByte();
-        int tag = (tagByte & Masks.SpecializedTagHighBit().id()) == 0
+        int tag = (tagByte & Tag.SpecializedTagHighBit) == 0
                 ? tagByte
-                : (tagByte & Masks.SpecializedTagMask().id());
-        AnyTag$.Value t = AnyTag.apply(tag);
-        if (t == AnyTag.InvalidExpression())
-            return new AInvalidExpression();
-        else if (t == AnyTag.VariableGet())
-            return new AVariableGet(readVariableReference(), readDartTypeOption());
-        else if (t == AnyTag.SpecializedVariableGet()) {
-            int index = tagByte & Masks.SpecializedPayloadMask().id();
-            return new AVariableGet(variableStack.get(index), null);
-        } else if (t == AnyTag.VariableSet())
-            return new AVariableSet(readVariableReference(), readExpression());
-        else if (t == AnyTag.SpecializedVariableSet()) {
-            int index = tagByte & Masks.SpecializedPayloadMask().id();
-            return new AVariableSet(variableStack.get(index), readExpression());
-        } else if (t == AnyTag.PropertyGet()) {
-            int offset = readOffset();
-            APropertyGet pg = new APropertyGet(readExpression(), readName(), readMemberReference(true));
-            pg.fileOffset_$eq(offset);
-            return pg;
-        } else if (t == AnyTag.PropertySet()) {
-            int offset = readOffset();
-            APropertySet pg = new APropertySet(readExpression(), readName(), readExpression(), readMemberReference(true));
-            pg.fileOffset_$eq(offset);
-            return pg;
-        } else if (t == AnyTag.SuperPropertyGet()) {
-            addTransformerFlag(TransformerFlag.superCalls().id());
-            return new ASuperPropertyGet(readName(), readMemberReference(true));
-        } else if (t == AnyTag.SuperPropertySet()) {
-            addTransformerFlag(TransformerFlag.superCalls().id());
-            return new ASuperPropertySet(readName(), readExpression(), readMemberReference(true));
-        } else if (t == AnyTag.DirectPropertyGet()) {
-            return new ADirectPropertyGet(readExpression(), readMemberReference(false));
-        } else if (t == AnyTag.DirectPropertySet()) {
-            return new ADirectPropertySet(readExpression(), readMemberReference(false), readExpression());
-        } else if (t == AnyTag.StaticGet()) {
-            int offset = readOffset();
-            AStaticGet sg = new AStaticGet(readMemberReference(false));
-            sg.fileOffset_$eq(offset);
-            return sg;
-        } else if (t == AnyTag.StaticSet()) {
-            return new AStaticSet(readMemberReference(false), readExpression());
-        } else if (t == AnyTag.MethodInvocation()) {
-            int offset = readOffset();
-            AMethodInvocation mi = new AMethodInvocation(readExpression(), readName(), readArguments(), readMemberReference(true));
-            mi.fileOffset_$eq(offset);
-            return mi;
-        } else if (t == AnyTag.SuperMethodInvocation()) {
-            int offset = readOffset();
-            addTransformerFlag(TransformerFlag.superCalls().id());
-            ASuperMethodInvocation smi = new ASuperMethodInvocation(
-                    readName(), readArguments(), readMemberReference(true));
-            smi.fileOffset_$eq(offset);
-            return smi;
-        } else if (t == AnyTag.DirectMethodInvocation()) {
-            return new ADirectMethodInvocation(readExpression(), readMemberReference(false), readArguments());
-        } else if (t == AnyTag.StaticInvocation()) {
-            int offset = readOffset();
-            AStaticInvocation si = new AStaticInvocation(readMemberReference(false), readArguments(), false);
-            si.fileOffset_$eq(offset);
-            return si;
-        } else if (t == AnyTag.ConstStaticInvocation()) {
-            int offset = readOffset();
-            AStaticInvocation si = new AStaticInvocation(readMemberReference(false), readArguments(), true);
-            si.fileOffset_$eq(offset);
-            return si;
-        } else if (t == AnyTag.ConstructorInvocation()) {
-            int offset = readOffset();
-            ConstructorInvocation ci = new ConstructorInvocation(readMemberReference(false), readArguments(), false);
-            ci.fileOffset_$eq(offset);
-            return ci;
-        } else if (t == AnyTag.ConstConstructorInvocation()) {
-            int offset = readOffset();
-            ConstructorInvocation ci = new ConstructorInvocation(readMemberReference(false), readArguments(), true);
-            ci.fileOffset_$eq(offset);
-            return ci;
-        } else if (t == AnyTag.Not()) {
-            return new Not(readExpression());
-        } else if (t == AnyTag.LogicalExpression())
-            return new ALogicalExpression(readExpression(),
-                    logicalOperatorToString(readByte()), readExpression());
-        else if (t == AnyTag.ConditionalExpression())
-            return new AConditionalExpression(readExpression(), readExpression(),
-                    readExpression(), readDartTypeOption());
-        else if (t == AnyTag.StringConcatenation())
-            return new StringConcatenation(readExpressionList());
-        else if (t == AnyTag.IsExpression())
-            return new IsExpression(readExpression(), readDartType());
-        else if (t == AnyTag.AsExpression())
-            return new AsExpression(readExpression(), readDartType());
-        else if (t == AnyTag.StringLiteral())
-            return new AStringLiteral(readStringReference());
-        else if (t == AnyTag.SpecializedIntLiteral()) {
-            int biasedValue = tagByte & Masks.SpecializedPayloadMask().id();
-            return new AIntLiteral(BigInt.apply(biasedValue - OtherEnum.SpecializedIntLiteralBias().id()));
-        } else if (t == AnyTag.PositiveIntLiteral())
-            return new AIntLiteral(BigInt.apply(readUInt()));
-        else if (t == AnyTag.NegativeIntLiteral())
-            return new AIntLiteral(BigInt.apply(-readUInt()));
-        else if (t == AnyTag.BigIntLiteral())
-            return new AIntLiteral(BigInt.apply(readStringReference()));
-        else if (t == AnyTag.DoubleLiteral())
-            return new ADoubleLiteral(Double.valueOf(readStringReference()));
-        else if (t == AnyTag.TrueLiteral())
-            return new ABooleanLiteral(true);
-        else if (t == AnyTag.FalseLiteral())
-            return new ABooleanLiteral(false);
-        else if (t == AnyTag.NullLiteral())
-            return new ANullLiteral();
-        else if (t == AnyTag.SymbolLiteral())
-            return new ASymbolLiteral(readStringReference());
-        else if (t == AnyTag.TypeLiteral())
-            return new TypeLiteral(readDartType());
-        else if (t == AnyTag.ThisExpression())
-            return new ThisExpression();
-        else if (t == AnyTag.Rethrow())
-            return new Rethrow();
-        else if (t == AnyTag.Throw()) {
-            int offset = readOffset();
-            Throw th = new Throw(readExpression());
-            th.fileOffset_$eq(offset);
-            return th;
-        } else if (t == AnyTag.ListLiteral()) {
-            DartType typeArgument = readDartType();
-            return new ListLiteral(readExpressionList(), typeArgument, false);
-        } else if (t == AnyTag.ConstListLiteral()) {
-            DartType typeArgument = readDartType();
-            return new ListLiteral(readExpressionList(),
-                    typeArgument, true);
-        } else if (t == AnyTag.MapLiteral()) {
-            DartType keyType = readDartType();
-            DartType valueType = readDartType();
-            return new MapLiteral(readMapEntryList(), keyType, valueType, false);
-        } else if (t == AnyTag.ConstMapLiteral()) {
-            DartType keyType = readDartType();
-            DartType valueType = readDartType();
-            return new MapLiteral(readMapEntryList(), keyType, valueType, true);
-        } else if (t == AnyTag.AwaitExpression())
-            return new AwaitExpression(readExpression());
-        else if (t == AnyTag.FunctionExpression())
-            return new FunctionExpression(readFunctionNode());
-        else if (t == AnyTag.Let()) {
-            AVariableDeclaration variable = readVariableDeclaration();
-            int stackHeight = variableStack.size();
-            pushVariableDeclaration(variable);
-            AExpression body = readExpression();
-            variableStack.clear();
-            setLength(variableStack, stackHeight);
-            return new Let(variable, body);
-        } else
-            throw fail("Invalid expression tag: " + tag);
+                : (tagByte & Tag.SpecializedTagMask);
+        switch (tag) {
+            case Tag.InvalidExpression:
+                return new AInvalidExpression();
+            case Tag.VariableGet:
+                return new AVariableGet(readVariableReference(), readDartTypeOption());
+            case Tag.SpecializedVariableGet: {
+                int index = tagByte & Tag.SpecializedPayloadMask;
+                return new AVariableGet(variableStack.get(index), null);
+            }
+            case Tag.VariableSet:
+                return new AVariableSet(readVariableReference(), readExpression());
+            case Tag.SpecializedVariableSet: {
+                int index = tagByte & Tag.SpecializedPayloadMask;
+                return new AVariableSet(variableStack.get(index), readExpression());
+            }
+            case Tag.PropertyGet: {
+                int offset = readOffset();
+                APropertyGet pg = new APropertyGet(readExpression(), readName(), readMemberReference(true));
+                pg.fileOffset_$eq(offset);
+                return pg;
+            }
+            case Tag.PropertySet: {
+                int offset = readOffset();
+                APropertySet pg = new APropertySet(readExpression(), readName(), readExpression(), readMemberReference(true));
+                pg.fileOffset_$eq(offset);
+                return pg;
+            }
+            case Tag.SuperPropertyGet:
+                addTransformerFlag(TransformerFlag.superCalls().id());
+                return new ASuperPropertyGet(readName(), readMemberReference(true));
+            case Tag.SuperPropertySet:
+                addTransformerFlag(TransformerFlag.superCalls().id());
+                return new ASuperPropertySet(readName(), readExpression(), readMemberReference(true));
+            case Tag.DirectPropertyGet:
+                return new ADirectPropertyGet(readExpression(), readMemberReference(false));
+            case Tag.DirectPropertySet:
+                return new ADirectPropertySet(readExpression(), readMemberReference(false), readExpression());
+            case Tag.StaticGet: {
+                int offset = readOffset();
+                AStaticGet sg = new AStaticGet(readMemberReference(false));
+                sg.fileOffset_$eq(offset);
+                return sg;
+            }
+            case Tag.StaticSet:
+                return new AStaticSet(readMemberReference(false), readExpression());
+            case Tag.MethodInvocation: {
+                int offset = readOffset();
+                AMethodInvocation mi = new AMethodInvocation(readExpression(), readName(), readArguments(), readMemberReference(true));
+                mi.fileOffset_$eq(offset);
+                return mi;
+            }
+            case Tag.SuperMethodInvocation: {
+                int offset = readOffset();
+                addTransformerFlag(TransformerFlag.superCalls().id());
+                ASuperMethodInvocation smi = new ASuperMethodInvocation(
+                        readName(), readArguments(), readMemberReference(true));
+                smi.fileOffset_$eq(offset);
+                return smi;
+            }
+            case Tag.DirectMethodInvocation:
+                return new ADirectMethodInvocation(readExpression(), readMemberReference(false), readArguments());
+            case Tag.StaticInvocation: {
+                int offset = readOffset();
+                AStaticInvocation si = new AStaticInvocation(readMemberReference(false), readArguments(), false);
+                si.fileOffset_$eq(offset);
+                return si;
+            }
+            case Tag.ConstStaticInvocation: {
+                int offset = readOffset();
+                AStaticInvocation si = new AStaticInvocation(readMemberReference(false), readArguments(), true);
+                si.fileOffset_$eq(offset);
+                return si;
+            }
+            case Tag.ConstructorInvocation: {
+                int offset = readOffset();
+                ConstructorInvocation ci = new ConstructorInvocation(readMemberReference(false), readArguments(), false);
+                ci.fileOffset_$eq(offset);
+                return ci;
+            }
+            case Tag.ConstConstructorInvocation: {
+                int offset = readOffset();
+                ConstructorInvocation ci = new ConstructorInvocation(readMemberReference(false), readArguments(), true);
+                ci.fileOffset_$eq(offset);
+                return ci;
+            }
+            case Tag.Not:
+                return new Not(readExpression());
+            case Tag.LogicalExpression:
+                return new ALogicalExpression(readExpression(),
+                        logicalOperatorToString(readByte()), readExpression());
+            case Tag.ConditionalExpression:
+                return new AConditionalExpression(readExpression(), readExpression(),
+                        readExpression(), readDartTypeOption());
+            case Tag.StringConcatenation:
+                return new StringConcatenation(readExpressionList());
+            case Tag.IsExpression:
+                return new IsExpression(readExpression(), readDartType());
+            case Tag.AsExpression:
+                return new AsExpression(readExpression(), readDartType());
+            case Tag.StringLiteral:
+                return new AStringLiteral(readStringReference());
+            case Tag.SpecializedIntLiteral: {
+                int biasedValue = tagByte & Tag.SpecializedPayloadMask;
+                return AIntLiteral.valueOf(biasedValue - Tag.SpecializedIntLiteralBias);
+            }
+            case Tag.PositiveIntLiteral:
+                return AIntLiteral.valueOf(readUInt());
+            case Tag.NegativeIntLiteral:
+                return AIntLiteral.valueOf(-readUInt());
+            case Tag.BigIntLiteral:
+                return AIntLiteral.parse(readStringReference());
+            case Tag.DoubleLiteral:
+                return new ADoubleLiteral(Double.valueOf(readStringReference()));
+            case Tag.TrueLiteral:
+                return new ABooleanLiteral(true);
+            case Tag.FalseLiteral:
+                return new ABooleanLiteral(false);
+            case Tag.NullLiteral:
+                return new ANullLiteral();
+            case Tag.SymbolLiteral:
+                return new ASymbolLiteral(readStringReference());
+            case Tag.TypeLiteral:
+                return new TypeLiteral(readDartType());
+            case Tag.ThisExpression:
+                return new ThisExpression();
+            case Tag.Rethrow:
+                return new Rethrow();
+            case Tag.Throw: {
+                int offset = readOffset();
+                Throw th = new Throw(readExpression());
+                th.fileOffset_$eq(offset);
+                return th;
+            }
+            case Tag.ListLiteral: {
+                DartType typeArgument = readDartType();
+                return new ListLiteral(readExpressionList(), typeArgument, false);
+            }
+            case Tag.ConstListLiteral: {
+                DartType typeArgument = readDartType();
+                return new ListLiteral(readExpressionList(),
+                        typeArgument, true);
+            }
+            case Tag.MapLiteral: {
+                DartType keyType = readDartType();
+                DartType valueType = readDartType();
+                return new MapLiteral(readMapEntryList(), keyType, valueType, false);
+            }
+            case Tag.ConstMapLiteral: {
+                DartType keyType = readDartType();
+                DartType valueType = readDartType();
+                return new MapLiteral(readMapEntryList(), keyType, valueType, true);
+            }
+            case Tag.AwaitExpression:
+                return new AwaitExpression(readExpression());
+            case Tag.FunctionExpression:
+                return new FunctionExpression(readFunctionNode());
+            case Tag.Let: {
+                AVariableDeclaration variable = readVariableDeclaration();
+                int stackHeight = variableStack.size();
+                pushVariableDeclaration(variable);
+                AExpression body = readExpression();
+                setLength(variableStack, stackHeight);
+                return new Let(variable, body);
+            }
+            default:
+                throw fail("Invalid expression tag: " + tag);
+        }
     }
 
 
@@ -683,6 +1394,7 @@ public class BinaryBuilder {
     }
 
     private MapEntry readMapEntry() {
+        decodedNodes++;
         return new MapEntry(readExpression(), readExpression());
     }
 
@@ -708,94 +1420,105 @@ public class BinaryBuilder {
     }
 
     private AStatement readStatement() {
+        decodedNodes++;
         int tag = readByte();
-        AnyTag$.Value t = AnyTag.apply(tag);
-
-        if (t == AnyTag.InvalidStatement())
-            return new AInvalidStatement();
-        else if (t == AnyTag.ExpressionStatement())
-            return new AExpressionStatement(readExpression());
-        else if (t == AnyTag.Block())
-            return readBlock();
-        else if (t == AnyTag.EmptyStatement())
-            return new AEmptyStatement();
-        else if (t == AnyTag.AssertStatement())
-            return new AssertStatement(readExpression(), readExpressionOption());
-        else if (t == AnyTag.LabeledStatement()) {
-            LabeledStatement label = new LabeledStatement(null);
-            labelStack.add(label);
-            label.body_$eq(readStatement());
-            labelStack.remove(labelStack.size() - 1);
-            return label;
-        } else if (t == AnyTag.BreakStatement()) {
-            int index = readUInt();
-            return new BreakStatement(labelStack.get(labelStackBase + index));
-        } else if (t == AnyTag.WhileStatement())
-            return new WhileStatement(readExpression(), readStatement());
-        else if (t == AnyTag.DoStatement())
-            return new DoStatement(readStatement(), readExpression());
-        else if (t == AnyTag.ForStatement()) {
-            int variableStackHeight = variableStack.size();
-            List<AVariableDeclaration> variables = readAndPushVariableDeclarationList();
-            AExpression condition = readExpressionOption();
-            List<AExpression> updates = readExpressionList();
-            AStatement body = readStatement();
-
-            setLength(variableStack, variableStackHeight);
-
-            return new ForStatement(variables, condition, updates, body);
-        } else if (t == AnyTag.ForInStatement() || t == AnyTag.AsyncForInStatement()) {
-            boolean isAsync = (t == AnyTag.AsyncForInStatement());
-            int variableStackHeight = variableStack.size();
-            AVariableDeclaration variable = readAndPushVariableDeclaration();
-            AExpression iterable = readExpression();
-            AStatement body = readStatement();
-
-            setLength(variableStack, variableStackHeight);
-
-            return new ForInStatement(variable, iterable, body, isAsync);
-        } else if (t == AnyTag.SwitchStatement()) {
-            AExpression expression = readExpression();
-            int count = readUInt();
-            List<SwitchCase> cases = mkList(count);
-            for (int i = 0; i < count; i++)
-                cases.set(i, SwitchCase.build());
-            switchCaseStack.addAll(cases);
-            for (int i = 0; i < cases.size(); ++i) {
-                SwitchCase caseNode = cases.get(i);
-                _fillTreeNodeList(caseNode.expressions(), () -> readExpression(), caseNode);
-                caseNode.isDefault_$eq(readByte() == 1);
-                caseNode.body_$eq(readStatement());
-            }
-            setLength(switchCaseStack, switchCaseStack.size() - count);
-            return new SwitchStatement(expression, cases);
-        } else if (t == AnyTag.ContinueSwitchStatement()) {
-            int index = readUInt();
-            return new ContinueSwitchStatement(switchCaseStack.get(index));
-        } else if (t == AnyTag.IfStatement())
-            return new IfStatement(readExpression(), readStatement(), readStatementOrNullIfEmpty());
-        else if (t == AnyTag.ReturnStatement())
-            return new ReturnStatement(readExpressionOption());
-        else if (t == AnyTag.TryCatch())
-            return new TryCatch(readStatement(), readCatchList());
-        else if (t == AnyTag.TryFinally())
-            return new TryFinally(readStatement(), readStatement());
-        else if (t == AnyTag.YieldStatement()) {
-            int flags = readByte();
-            return new YieldStatement(readExpression(),
-                    (flags & YieldStatement.FlagYieldStar()) != 0,
-                    (flags & YieldStatement.FlagNative()) != 0);
-        } else if (t == AnyTag.VariableDeclaration()) {
-            AVariableDeclaration variable = readVariableDeclaration();
-            variableStack.add(variable); // Will be popped by the enclosing scope.
-            return variable;
-        } else if (t == AnyTag.FunctionDeclaration()) {
-            AVariableDeclaration variable = readVariableDeclaration();
-            variableStack.add(variable); // Will be popped by the enclosing scope.
-            AFunctionNode function = readFunctionNode();
-            return new FunctionDeclaration(variable, function);
-        } else {
-            throw fail("Invalid statement tag: " + tag);
+        switch (tag) {
+            case Tag.InvalidStatement:
+                return new AInvalidStatement();
+            case Tag.ExpressionStatement:
+                return new AExpressionStatement(readExpression());
+            case Tag.Block:
+                return readBlock();
+            case Tag.EmptyStatement:
+                return new AEmptyStatement();
+            case Tag.AssertStatement:
+                return new AssertStatement(readExpression(), readExpressionOption());
+            case Tag.LabeledStatement: {
+                LabeledStatement label = new LabeledStatement(null);
+                labelStack.add(label);
+                label.body_$eq(readStatement());
+                labelStack.remove(labelStack.size() - 1);
+                return label;
+            }
+            case Tag.BreakStatement: {
+                int index = readUInt();
+                return new BreakStatement(labelStack.get(labelStackBase + index));
+            }
+            case Tag.WhileStatement:
+                return new WhileStatement(readExpression(), readStatement());
+            case Tag.DoStatement:
+                return new DoStatement(readStatement(), readExpression());
+            case Tag.ForStatement: {
+                int variableStackHeight = variableStack.size();
+                List<AVariableDeclaration> variables = readAndPushVariableDeclarationList();
+                AExpression condition = readExpressionOption();
+                List<AExpression> updates = readExpressionList();
+                AStatement body = readStatement();
+
+                setLength(variableStack, variableStackHeight);
+
+                return new ForStatement(variables, condition, updates, body);
+            }
+            case Tag.ForInStatement:
+            case Tag.AsyncForInStatement: {
+                boolean isAsync = (tag == Tag.AsyncForInStatement);
+                int variableStackHeight = variableStack.size();
+                AVariableDeclaration variable = readAndPushVariableDeclaration();
+                AExpression iterable = readExpression();
+                AStatement body = readStatement();
+
+                setLength(variableStack, variableStackHeight);
+
+                return new ForInStatement(variable, iterable, body, isAsync);
+            }
+            case Tag.SwitchStatement: {
+                AExpression expression = readExpression();
+                int count = readUInt();
+                List<SwitchCase> cases = mkList(count);
+                decodedNodes += count;
+                for (int i = 0; i < count; i++)
+                    cases.set(i, SwitchCase.build());
+                switchCaseStack.addAll(cases);
+                for (int i = 0; i < cases.size(); ++i) {
+                    SwitchCase caseNode = cases.get(i);
+                    _fillTreeNodeList(caseNode.expressions(), () -> readExpression(), caseNode);
+                    caseNode.isDefault_$eq(readByte() == 1);
+                    caseNode.body_$eq(readStatement());
+                }
+                setLength(switchCaseStack, switchCaseStack.size() - count);
+                return new SwitchStatement(expression, cases);
+            }
+            case Tag.ContinueSwitchStatement: {
+                int index = readUInt();
+                return new ContinueSwitchStatement(switchCaseStack.get(index));
+            }
+            case Tag.IfStatement:
+                return new IfStatement(readExpression(), readStatement(), readStatementOrNullIfEmpty());
+            case Tag.ReturnStatement:
+                return new ReturnStatement(readExpressionOption());
+            case Tag.TryCatch:
+                return new TryCatch(readStatement(), readCatchList());
+            case Tag.TryFinally:
+                return new TryFinally(readStatement(), readStatement());
+            case Tag.YieldStatement: {
+                int flags = readByte();
+                return new YieldStatement(readExpression(),
+                        (flags & YieldStatement.FlagYieldStar()) != 0,
+                        (flags & YieldStatement.FlagNative()) != 0);
+            }
+            case Tag.VariableDeclaration: {
+                AVariableDeclaration variable = readVariableDeclaration();
+                variableStack.add(variable); // Will be popped by the enclosing scope.
+                return variable;
+            }
+            case Tag.FunctionDeclaration: {
+                AVariableDeclaration variable = readVariableDeclaration();
+                variableStack.add(variable); // Will be popped by the enclosing scope.
+                AFunctionNode function = readFunctionNode();
+                return new FunctionDeclaration(variable, function);
+            }
+            default:
+                throw fail("Invalid statement tag: " + tag);
         }
     }
 
@@ -808,6 +1531,7 @@ public class BinaryBuilder {
     }
 
     private ACatch readCatch() {
+        decodedNodes++;
         int variableStackHeight = variableStack.size();
         DartType guard = readDartType();
         AVariableDeclaration exception = readAndPushVariableDeclarationOption();
@@ -826,7 +1550,8 @@ public class BinaryBuilder {
 
     private Supertype readSupertype() {
         InterfaceType type = (InterfaceType) readDartType();
-        return new Supertype(type.classNode(), type.typeArguments());
+        // The arguments of a shared type are unmodifiable; those of a supertype belong to it alone.
+        return new Supertype(type.classNode(), new ArrayList<>(type.typeArguments()));
     }
 
     private Supertype readSupertypeOption() {
@@ -865,56 +1590,74 @@ public class BinaryBuilder {
         return readAndCheckOptionTag() ? readDartType() : null;
     }
 
-    private DartType readDartType() {
+    DartType readDartType() {
         int tag = readByte();
-        AnyTag$.Value t = AnyTag.apply(tag);
-        if (t == AnyTag.BottomType())
-            return new BottomType();
-        else if (t == AnyTag.InvalidType())
-            return new InvalidType();
-        else if (t == AnyTag.DynamicType())
-            return new DynamicType();
-        else if (t == AnyTag.VoidType())
-            return new VoidType();
-        else if (t == AnyTag.InterfaceType())
-            return new InterfaceType(readClassReference(false), readDartTypeList());
-        else if (t == AnyTag.SimpleInterfaceType())
-            return new InterfaceType(readClassReference(false), new ArrayList<>());
-        else if (t == AnyTag.FunctionType()) {
-            int typeParameterStackHeight = typeParameterStack.size();
-            List<TypeParameter> typeParameters = readAndPushTypeParameterList(null, null);
-            int requiredParameterCount = readUInt();
-            List<DartType> positional = readDartTypeList();
-            List<NamedType> named = readNamedTypeList();
-            DartType returnType = readDartType();
-            setLength(typeParameterStack, typeParameterStackHeight);
-            return FunctionType.build(positional, returnType,
-                    typeParameters,
-                    requiredParameterCount,
-                    named);
-        } else if (t == AnyTag.SimpleFunctionType()) {
-            List<DartType> positional = readDartTypeList();
-            DartType returnType = readDartType();
-            return FunctionType.build(positional, returnType);
-        } else if (t == AnyTag.TypeParameterType()) {
-            int index = readUInt();
-            return new TypeParameterType(typeParameterStack.get(index));
-        } else {
-            throw fail("Invalid dart type tag: " + tag + "(" + t + ")");
+        switch (tag) {
+            case Tag.BottomType:
+                return TypeCanonicalizer.BOTTOM;
+            case Tag.InvalidType:
+                return TypeCanonicalizer.INVALID;
+            case Tag.DynamicType:
+                return TypeCanonicalizer.DYNAMIC;
+            case Tag.VoidType:
+                return TypeCanonicalizer.VOID;
+            case Tag.InterfaceType: {
+                AClass classNode = readClassReference(false);
+                DartType[] typeArguments = new DartType[readUInt()];
+                for (int i = 0; i < typeArguments.length; i++)
+                    typeArguments[i] = readDartType();
+                return loader.types.interfaceType(classNode, typeArguments);
+            }
+            case Tag.SimpleInterfaceType:
+                return loader.types.interfaceType(readClassReference(false), noTypes);
+            case Tag.FunctionType: {
+                int typeParameterStackHeight = typeParameterStack.size();
+                List<TypeParameter> typeParameters = readAndPushTypeParameterList(null, null);
+                int requiredParameterCount = readUInt();
+                List<DartType> positional = readDartTypeList();
+                List<NamedType> named = readNamedTypeList();
+                DartType returnType = readDartType();
+                setLength(typeParameterStack, typeParameterStackHeight);
+                if (typeParameters.isEmpty()) {
+                    return loader.types.functionType(positional, returnType, named, requiredParameterCount);
+                }
+                return FunctionType.build(positional, returnType,
+                        typeParameters,
+                        requiredParameterCount,
+                        named);
+            }
+            case Tag.SimpleFunctionType: {
+                List<DartType> positional = readDartTypeList();
+                DartType returnType = readDartType();
+                return loader.types.functionType(positional, returnType, Collections.<NamedType>emptyList(), positional.size());
+            }
+            case Tag.TypeParameterType: {
+                int index = readUInt();
+                return loader.types.typeParameterType(typeParameterStack.get(index));
+            }
+            default:
+                throw fail("Invalid dart type tag: " + tag + "(" + AnyTag.apply(tag) + ")");
         }
     }
 
     private List<TypeParameter> readAndPushTypeParameterList(List<TypeParameter> list, TreeNode parent) {
         int length = readUInt();
-        if (length == 0) return list != null ? list : new ArrayList<>();
+        if (length == 0) {
+            if (list == null) return new ArrayList<>();
+            list.clear();
+            return list;
+        }
         if (list == null) {
             list = mkList(length);
             for (int i = 0; i < length; i++)
                 list.set(i, new TypeParameter(null, null));
         } else {
+            // A class read again keeps its type parameters, so that the types built over them stay valid.
             setLength(list, length);
             for (int i = 0; i < length; ++i) {
-                list.set(i, new TypeParameter(null, null));
+                if (list.get(i) == null) {
+                    list.set(i, new TypeParameter(null, null));
+                }
             }
         }
         typeParameterStack.addAll(list);
@@ -930,6 +1673,7 @@ public class BinaryBuilder {
     }
 
     private AArguments readArguments() {
+        decodedNodes++;
         List<DartType> typeArguments = readDartTypeList();
         List<AExpression> positional = readExpressionList();
         List<ANamedExpression> named = readNamedExpressionList();
@@ -946,6 +1690,7 @@ public class BinaryBuilder {
     }
 
     private ANamedExpression readNamedExpression() {
+        decodedNodes++;
         return new ANamedExpression(readStringReference(), readExpression());
     }
 
@@ -969,6 +1714,7 @@ public class BinaryBuilder {
     }
 
     private AVariableDeclaration readVariableDeclaration() {
+        decodedNodes++;
         int flags = readByte();
         return new AVariableDeclaration(readStringOrNullIfEmpty(),
                 readDartType(),
@@ -978,6 +1724,44 @@ public class BinaryBuilder {
                 (flags & 0x2) != 0);
     }
 
+    // Skipping: classes, member lists and bodies are walked by the skip scanner, from and up to _byteIndex.
+
+    private SkipScanner scanner() {
+        if (scanner == null) {
+            scanner = new SkipScanner(_bytes, filename, _stringTable, _sourceUriTable, indexScan);
+        }
+        scanner.seek(_byteIndex);
+        return scanner;
+    }
+
+    private void skipped() {
+        _byteIndex = scanner.byteIndex();
+        addTransformerFlag(scanner.takeTransformerFlags());
+    }
+
+    /** Returns the number of fields, constructors and procedures of the skipped class. */
+    private int[] skipClass(int tag) {
+        int[] counts = scanner().readClass(tag, -1);
+        skipped();
+        return counts;
+    }
+
+    private int skipMemberList() {
+        int length = scanner().readMemberList();
+        skipped();
+        return length;
+    }
+
+    private void skipStatementOption() {
+        scanner().readStatementOption();
+        skipped();
+    }
+
+    private void skipExpressionOption() {
+        scanner().readExpressionOption();
+        skipped();
+    }
+
     private int readOffset() {
         // Offset is saved as unsigned,
         // but actually ranges from -1 and up (thus the -1)
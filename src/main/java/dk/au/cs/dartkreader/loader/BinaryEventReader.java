@@ -0,0 +1,1007 @@
+package dk.au.cs.dartkreader.loader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import dk.au.cs.ast.AnyTag;
+import dk.au.cs.ast.ParseError;
+
+/**
+ * Walks the encoding {@link BinaryBuilder} reads and reports what it finds to a {@link Handler} instead of
+ * building nodes, for tools that only need a summary of a program. The walk follows the skip scanner of
+ * {@link BinaryBuilder}: libraries, classes, members, initializers, statements and expressions are reported
+ * as nested enter and exit events carrying their tag, and names, references and literals as events carrying
+ * their payload, in the order they are encoded. Types are reported as enter and exit events only.
+ * <p>
+ * Strings and URIs are reported as indices into {@link #strings()} and {@link #sourceUris()}, and variables,
+ * labels, switch cases and type parameters are never materialized: their scopes are kept as stack depths,
+ * and references to them as indices into those stacks. Apart from the offsets of the string tables, the
+ * walk thus allocates nothing, whatever the size of the program.
+ * <p>
+ * The walk is also the skip scanner of {@link BinaryBuilder}, which walks single classes, member lists and
+ * bodies of a file it is reading with a {@link SkipScanner}.
+ */
+public class BinaryEventReader {
+
+    /**
+     * Receives the events of a walk. Every method does nothing by default. Events between the enter and
+     * exit of a node belong to that node or to the nodes nested in it.
+     */
+    public interface Handler {
+        default void enterLibrary(int index, int flags, int name, int importUri, int fileUri) {
+        }
+
+        default void exitLibrary(int index) {
+        }
+
+        default void enterClass(int tag, int index, int flags, int name) {
+        }
+
+        default void exitClass(int tag, int index) {
+        }
+
+        /**
+         * A field, constructor or procedure at the given index of its list in the enclosing class, or in the
+         * library if there is none. The kind is the procedure kind index, or -1 for fields and constructors.
+         */
+        default void enterMember(int tag, int index, int kind, int flags, int name) {
+        }
+
+        default void exitMember(int tag, int index) {
+        }
+
+        default void enterInitializer(int tag) {
+        }
+
+        default void exitInitializer(int tag) {
+        }
+
+        default void enterStatement(int tag) {
+        }
+
+        default void exitStatement(int tag) {
+        }
+
+        /** Specialized tags are reported as their general tag; the offset is -1 if the tag has none. */
+        default void enterExpression(int tag, int offset) {
+        }
+
+        default void exitExpression(int tag) {
+        }
+
+        default void enterType(int tag) {
+        }
+
+        default void exitType(int tag) {
+        }
+
+        /** The class of an interface type. */
+        default void classReference(int tag, int library, int index) {
+        }
+
+        /** The type parameter of a type parameter type, as an index into the type parameters in scope. */
+        default void typeParameterReference(int index) {
+        }
+
+        /** The number of required positional parameters of a function type. */
+        default void requiredParameterCount(int count) {
+        }
+
+        /** A type parameter of a class, function or function type; its bound is read before the exit. */
+        default void enterTypeParameter(int name) {
+        }
+
+        default void exitTypeParameter() {
+        }
+
+        /** A named parameter of a function type; its type is read before the exit. */
+        default void enterNamedType(int name) {
+        }
+
+        default void exitNamedType() {
+        }
+
+        /** A member reference; the class index is -1 for library members. Null references are not reported. */
+        default void memberReference(int tag, int library, int classIndex, int index) {
+        }
+
+        /** The name of a property or method access; the library is -1 for public names. */
+        default void name(int text, int library) {
+        }
+
+        /** A variable that is pushed at the given index of the variable stack once its initializer is read. */
+        default void enterVariableDeclaration(int index, int flags, int name) {
+        }
+
+        default void exitVariableDeclaration(int index) {
+        }
+
+        default void variableReference(int index) {
+        }
+
+        /** The target of a break, as an index into the stack of enclosing labeled statements. */
+        default void labelReference(int index) {
+        }
+
+        default void switchCaseReference(int index) {
+        }
+
+        default void stringLiteral(int string) {
+        }
+
+        default void intLiteral(long value) {
+        }
+
+        default void bigIntLiteral(int string) {
+        }
+
+        default void doubleLiteral(int string) {
+        }
+
+        default void symbolLiteral(int string) {
+        }
+    }
+
+    private final String filename;
+    private final ByteBuffer _bytes;
+    private int _byteIndex = 0;
+    // Where the tag of the node whose enter event is being reported starts.
+    private int nodeStart;
+
+    private StringTable _stringTable;
+    private StringTable _sourceUriTable;
+    private Handler handler;
+
+    private int variableDepth;
+    private int labelDepth;
+    private int labelStackBase;
+    private int switchCaseDepth;
+    private int typeParameterDepth;
+
+    public BinaryEventReader(byte[] _bytes, String filename) {
+        this(ByteBuffer.wrap(_bytes), filename);
+    }
+
+    /**
+     * Reads from the given buffer using absolute indexing, so the buffer's position and limit are left untouched.
+     */
+    public BinaryEventReader(ByteBuffer _bytes, String filename) {
+        this._bytes = _bytes.duplicate().order(ByteOrder.BIG_ENDIAN);
+        this.filename = filename;
+    }
+
+    /**
+     * Memory maps the file, reading directly from the mapped region instead of copying it onto the heap.
+     */
+    public BinaryEventReader(Path path) throws IOException {
+        this(BinaryBuilder.map(path), path.getFileName().toString());
+    }
+
+    /**
+     * Walks parts of a file whose string tables a builder has read, from wherever {@link #seek} puts it.
+     */
+    BinaryEventReader(ByteBuffer _bytes, String filename, StringTable strings, StringTable sourceUris) {
+        this._bytes = _bytes;
+        this.filename = filename;
+        this._stringTable = strings;
+        this._sourceUriTable = sourceUris;
+    }
+
+    void setHandler(Handler handler) {
+        this.handler = handler;
+    }
+
+    int byteIndex() {
+        return _byteIndex;
+    }
+
+    void seek(int byteIndex) {
+        _byteIndex = byteIndex;
+    }
+
+    /** The byte index of the tag of the library, class, member or node whose enter event is being reported. */
+    int nodeStart() {
+        return nodeStart;
+    }
+
+    /** The string table of the file, once a walk has started. */
+    public StringTable strings() {
+        return _stringTable;
+    }
+
+    /** The source URI table of the file, once a walk has started. */
+    public StringTable sourceUris() {
+        return _sourceUriTable;
+    }
+
+    int byteLength() {
+        return _bytes.limit();
+    }
+
+    /** Variables in scope at the current event. */
+    public int variableDepth() {
+        return variableDepth;
+    }
+
+    public int labelDepth() {
+        return labelDepth;
+    }
+
+    public int switchCaseDepth() {
+        return switchCaseDepth;
+    }
+
+    /** Type parameters of the enclosing classes and functions in scope at the current event. */
+    public int typeParameterDepth() {
+        return typeParameterDepth;
+    }
+
+    /**
+     * Walks the whole program file, ending with a member reference to its main method after the last library.
+     */
+    public void read(Handler handler) {
+        this.handler = handler;
+        _byteIndex = 0;
+        variableDepth = labelDepth = labelStackBase = switchCaseDepth = typeParameterDepth = 0;
+        if (readMagicWord() != Tag.ProgramFile) {
+            throw fail("This is not a binary dart file.");
+        }
+        _stringTable = readStringTableOffsets();
+        _sourceUriTable = readStringTableOffsets();
+        for (int i = 0; i < _sourceUriTable.size(); ++i) {
+            int lineCount = readUInt();
+            for (int j = 0; j < lineCount; ++j) {
+                readUInt();
+            }
+        }
+        int libraryCount = readUInt();
+        for (int i = 0; i < libraryCount; ++i) {
+            readLibrary(i);
+        }
+        readMemberReference();
+    }
+
+    ParseError fail(String message) {
+        return new ParseError(message, _byteIndex, filename, "");
+    }
+
+    // Called for every reference into the string table, the source URI table and the import table, with the
+    // byte index the reference starts at, for the skip scanner to digest them.
+
+    void stringReference(int start, int index) {
+    }
+
+    void uriReference(int start, int index) {
+    }
+
+    void libraryReference(int start, int index) {
+    }
+
+    private int readStringReference() {
+        int start = _byteIndex;
+        int index = readUInt();
+        stringReference(start, index);
+        return index;
+    }
+
+    private int readUriReference() {
+        int start = _byteIndex;
+        int index = readUInt();
+        uriReference(start, index);
+        return index;
+    }
+
+    private int readLibraryReference() {
+        int start = _byteIndex;
+        int index = readUInt();
+        libraryReference(start, index);
+        return index;
+    }
+
+    private int readByte() {
+        return _bytes.get(_byteIndex++) & 0xFF;
+    }
+
+    private int readUInt() {
+        int bbyte = readByte();
+        if ((bbyte & 0x80) == 0) {
+            return bbyte;
+        } else if ((bbyte & 0x40) == 0) {
+            return ((bbyte & 0x3F) << 8) | readByte();
+        } else {
+            return ((bbyte & 0x3F) << 24) |
+                    (readByte() << 16) |
+                    (readByte() << 8) |
+                    readByte();
+        }
+    }
+
+    private int readMagicWord() {
+        int word = _bytes.getInt(_byteIndex);
+        _byteIndex += 4;
+        return word;
+    }
+
+    private int readOffset() {
+        return readUInt() - 1;
+    }
+
+    private StringTable readStringTableOffsets() {
+        int length = readUInt();
+        int[] offsets = new int[2 * length];
+        for (int i = 0; i < length; ++i) {
+            int numBytes = readUInt();
+            offsets[2 * i] = _byteIndex;
+            _byteIndex += numBytes;
+            offsets[2 * i + 1] = _byteIndex;
+        }
+        return new StringTable(_bytes, offsets);
+    }
+
+    boolean readAndCheckOptionTag() {
+        int tag = readByte();
+        switch (tag) {
+            case Tag.Nothing:
+                return false;
+            case Tag.Something:
+                return true;
+            default:
+                throw fail("Invalid Option tag: " + AnyTag.apply(tag));
+        }
+    }
+
+    void readLibrary(int index) {
+        readLibraryHeader(index);
+        int classCount = readUInt();
+        for (int i = 0; i < classCount; ++i) {
+            readClass(readByte(), i);
+        }
+        readMemberList();
+        readMemberList();
+        handler.exitLibrary(index);
+    }
+
+    /** Reads the library up to its classes, reporting its enter event. */
+    void readLibraryHeader(int index) {
+        nodeStart = _byteIndex;
+        int flags = readByte();
+        int name = readStringReference();
+        int importUri = readStringReference();
+        int fileUri = readUriReference();
+        handler.enterLibrary(index, flags, name, importUri, fileUri);
+    }
+
+    /**
+     * Reads the class whose tag byte was just read, returning its number of fields, constructors and
+     * procedures.
+     */
+    int[] readClass(int tag, int index) {
+        if (tag != Tag.NormalClass && tag != Tag.MixinClass) {
+            throw fail("Invalid class tag: " + tag);
+        }
+        int start = _byteIndex - 1;
+        int flags = readByte();
+        int name = readStringReference();
+        nodeStart = start;
+        handler.enterClass(tag, index, flags, name);
+        readUriReference();
+        readExpressionList();
+        readTypeParameterList();
+        int[] counts;
+        if (tag == Tag.NormalClass) {
+            readDartTypeOption();
+            readDartTypeList();
+            counts = new int[]{readMemberList(), readMemberList(), readMemberList()};
+        } else {
+            readDartType();
+            readDartType();
+            readDartTypeList();
+            counts = new int[]{0, readMemberList(), 0};
+        }
+        typeParameterDepth = 0;
+        handler.exitClass(tag, index);
+        return counts;
+    }
+
+    /** Reads a list of members, returning its length. */
+    int readMemberList() {
+        int length = readUInt();
+        for (int i = 0; i < length; i++) {
+            readMember(readByte(), i);
+        }
+        return length;
+    }
+
+    /** Reads the member whose tag is at {@code start}, reporting it at index 0 of its list. */
+    void readMember(int start) {
+        _byteIndex = start;
+        readMember(readByte(), 0);
+    }
+
+    /** Reads the member reference at {@code start}, reporting it unless it is null. */
+    void readMemberReference(int start) {
+        _byteIndex = start;
+        readMemberReference();
+    }
+
+    private void readMember(int tag, int index) {
+        int start = _byteIndex - 1;
+        switch (tag) {
+            case Tag.Field: {
+                readOffset();
+                int flags = readByte();
+                int name = readMemberName();
+                nodeStart = start;
+                handler.enterMember(tag, index, -1, flags, name);
+                readUriReference();
+                readExpressionList();
+                readDartType();
+                skipOptionalInferredValue();
+                readExpressionOption();
+                break;
+            }
+            case Tag.Constructor: {
+                int flags = readByte();
+                int name = readMemberName();
+                nodeStart = start;
+                handler.enterMember(tag, index, -1, flags, name);
+                readExpressionList();
+                // The parameters are in scope of the initializers.
+                variableDepth = readFunctionNode();
+                int length = readUInt();
+                for (int i = 0; i < length; i++) {
+                    readInitializer();
+                }
+                variableDepth = 0;
+                break;
+            }
+            case Tag.Procedure: {
+                int kind = readByte();
+                int flags = readByte();
+                int name = readMemberName();
+                nodeStart = start;
+                handler.enterMember(tag, index, kind, flags, name);
+                readUriReference();
+                readExpressionList();
+                if (readAndCheckOptionTag()) {
+                    readFunctionNode();
+                }
+                break;
+            }
+            default:
+                throw fail("Invalid member tag: " + tag);
+        }
+        handler.exitMember(tag, index);
+    }
+
+    private int readMemberName() {
+        int text = readStringReference();
+        if (_stringTable.isPrivateName(text)) {
+            readLibraryReference();
+        }
+        return text;
+    }
+
+    private void readInitializer() {
+        nodeStart = _byteIndex;
+        int tag = readByte();
+        handler.enterInitializer(tag);
+        switch (tag) {
+            case Tag.InvalidInitializer:
+                break;
+            case Tag.FieldInitializer:
+                readMemberReference();
+                readExpression();
+                break;
+            case Tag.SuperInitializer:
+            case Tag.RedirectingInitializer:
+                readMemberReference();
+                readArguments();
+                break;
+            case Tag.LocalInitializer:
+                readVariableDeclaration();
+                variableDepth++;
+                break;
+            default:
+                throw fail("Invalid initializer tag:" + AnyTag.apply(tag));
+        }
+        handler.exitInitializer(tag);
+    }
+
+    void readExpressionOption() {
+        if (readAndCheckOptionTag()) readExpression();
+    }
+
+    private void readExpressionList() {
+        int length = readUInt();
+        for (int i = 0; i < length; i++) readExpression();
+    }
+
+    private void readExpression() {
+        int start = _byteIndex;
+        int tagByte = readByte();
+        int tag = (tagByte & Tag.SpecializedTagHighBit) == 0
+                ? tagByte
+                : (tagByte & Tag.SpecializedTagMask);
+        switch (tag) {
+            case Tag.PropertyGet:
+            case Tag.PropertySet:
+            case Tag.StaticGet:
+            case Tag.MethodInvocation:
+            case Tag.SuperMethodInvocation:
+            case Tag.StaticInvocation:
+            case Tag.ConstStaticInvocation:
+            case Tag.ConstructorInvocation:
+            case Tag.ConstConstructorInvocation:
+            case Tag.Throw: {
+                int offset = readOffset();
+                nodeStart = start;
+                handler.enterExpression(tag, offset);
+                break;
+            }
+            default:
+                nodeStart = start;
+                handler.enterExpression(tag, -1);
+        }
+        switch (tag) {
+            case Tag.InvalidExpression:
+            case Tag.TrueLiteral:
+            case Tag.FalseLiteral:
+            case Tag.NullLiteral:
+            case Tag.ThisExpression:
+            case Tag.Rethrow:
+                // No payload beyond the tag byte.
+                break;
+            case Tag.SpecializedVariableGet:
+                handler.variableReference(tagByte & Tag.SpecializedPayloadMask);
+                break;
+            case Tag.SpecializedIntLiteral:
+                handler.intLiteral((tagByte & Tag.SpecializedPayloadMask) - Tag.SpecializedIntLiteralBias);
+                break;
+            case Tag.VariableGet:
+                handler.variableReference(readUInt());
+                readDartTypeOption();
+                break;
+            case Tag.VariableSet:
+                handler.variableReference(readUInt());
+                readExpression();
+                break;
+            case Tag.SpecializedVariableSet:
+                handler.variableReference(tagByte & Tag.SpecializedPayloadMask);
+                readExpression();
+                break;
+            case Tag.PropertyGet:
+                readExpression();
+                readName();
+                readMemberReference();
+                break;
+            case Tag.PropertySet:
+                readExpression();
+                readName();
+                readExpression();
+                readMemberReference();
+                break;
+            case Tag.SuperPropertyGet:
+                readName();
+                readMemberReference();
+                break;
+            case Tag.SuperPropertySet:
+                readName();
+                readExpression();
+                readMemberReference();
+                break;
+            case Tag.DirectPropertyGet:
+                readExpression();
+                readMemberReference();
+                break;
+            case Tag.DirectPropertySet:
+                readExpression();
+                readMemberReference();
+                readExpression();
+                break;
+            case Tag.StaticGet:
+                readMemberReference();
+                break;
+            case Tag.StaticSet:
+                readMemberReference();
+                readExpression();
+                break;
+            case Tag.MethodInvocation:
+                readExpression();
+                readName();
+                readArguments();
+                readMemberReference();
+                break;
+            case Tag.SuperMethodInvocation:
+                readName();
+                readArguments();
+                readMemberReference();
+                break;
+            case Tag.DirectMethodInvocation:
+                readExpression();
+                readMemberReference();
+                readArguments();
+                break;
+            case Tag.StaticInvocation:
+            case Tag.ConstStaticInvocation:
+            case Tag.ConstructorInvocation:
+            case Tag.ConstConstructorInvocation:
+                readMemberReference();
+                readArguments();
+                break;
+            case Tag.Not:
+            case Tag.AwaitExpression:
+            case Tag.Throw:
+                readExpression();
+                break;
+            case Tag.LogicalExpression:
+                readExpression();
+                readByte();
+                readExpression();
+                break;
+            case Tag.ConditionalExpression:
+                readExpression();
+                readExpression();
+                readExpression();
+                readDartTypeOption();
+                break;
+            case Tag.StringConcatenation:
+                readExpressionList();
+                break;
+            case Tag.IsExpression:
+            case Tag.AsExpression:
+                readExpression();
+                readDartType();
+                break;
+            case Tag.StringLiteral:
+                handler.stringLiteral(readStringReference());
+                break;
+            case Tag.BigIntLiteral:
+                handler.bigIntLiteral(readStringReference());
+                break;
+            case Tag.DoubleLiteral:
+                handler.doubleLiteral(readStringReference());
+                break;
+            case Tag.SymbolLiteral:
+                handler.symbolLiteral(readStringReference());
+                break;
+            case Tag.PositiveIntLiteral:
+                handler.intLiteral(readUInt());
+                break;
+            case Tag.NegativeIntLiteral:
+                handler.intLiteral(-(long) readUInt());
+                break;
+            case Tag.TypeLiteral:
+                readDartType();
+                break;
+            case Tag.ListLiteral:
+            case Tag.ConstListLiteral:
+                readDartType();
+                readExpressionList();
+                break;
+            case Tag.MapLiteral:
+            case Tag.ConstMapLiteral: {
+                readDartType();
+                readDartType();
+                int length = readUInt();
+                for (int i = 0; i < length; i++) {
+                    readExpression();
+                    readExpression();
+                }
+                break;
+            }
+            case Tag.FunctionExpression:
+                readFunctionNode();
+                break;
+            case Tag.Let: {
+                readVariableDeclaration();
+                variableDepth++;
+                readExpression();
+                variableDepth--;
+                break;
+            }
+            default:
+                throw fail("Invalid expression tag: " + tag);
+        }
+        handler.exitExpression(tag);
+    }
+
+    void readStatementOption() {
+        if (readAndCheckOptionTag()) readStatement();
+    }
+
+    private void readStatement() {
+        nodeStart = _byteIndex;
+        int tag = readByte();
+        handler.enterStatement(tag);
+        switch (tag) {
+            case Tag.InvalidStatement:
+            case Tag.EmptyStatement:
+                // No payload beyond the tag byte.
+                break;
+            case Tag.ExpressionStatement:
+                readExpression();
+                break;
+            case Tag.Block: {
+                int height = variableDepth;
+                int length = readUInt();
+                for (int i = 0; i < length; i++) readStatement();
+                variableDepth = height;
+                break;
+            }
+            case Tag.AssertStatement:
+                readExpression();
+                readExpressionOption();
+                break;
+            case Tag.LabeledStatement:
+                labelDepth++;
+                readStatement();
+                labelDepth--;
+                break;
+            case Tag.BreakStatement:
+                handler.labelReference(labelStackBase + readUInt());
+                break;
+            case Tag.ContinueSwitchStatement:
+                handler.switchCaseReference(readUInt());
+                break;
+            case Tag.WhileStatement:
+                readExpression();
+                readStatement();
+                break;
+            case Tag.DoStatement:
+                readStatement();
+                readExpression();
+                break;
+            case Tag.ForStatement: {
+                int height = variableDepth;
+                readAndPushVariableDeclarationList();
+                readExpressionOption();
+                readExpressionList();
+                readStatement();
+                variableDepth = height;
+                break;
+            }
+            case Tag.ForInStatement:
+            case Tag.AsyncForInStatement: {
+                int height = variableDepth;
+                readVariableDeclaration();
+                variableDepth++;
+                readExpression();
+                readStatement();
+                variableDepth = height;
+                break;
+            }
+            case Tag.SwitchStatement: {
+                readExpression();
+                int count = readUInt();
+                switchCaseDepth += count;
+                for (int i = 0; i < count; i++) {
+                    readExpressionList();
+                    readByte();
+                    readStatement();
+                }
+                switchCaseDepth -= count;
+                break;
+            }
+            case Tag.IfStatement:
+                readExpression();
+                readStatement();
+                readStatement();
+                break;
+            case Tag.ReturnStatement:
+                readExpressionOption();
+                break;
+            case Tag.TryCatch: {
+                readStatement();
+                int length = readUInt();
+                for (int i = 0; i < length; i++) {
+                    int height = variableDepth;
+                    readDartType();
+                    if (readAndCheckOptionTag()) {
+                        readVariableDeclaration();
+                        variableDepth++;
+                    }
+                    if (readAndCheckOptionTag()) {
+                        readVariableDeclaration();
+                        variableDepth++;
+                    }
+                    readStatement();
+                    variableDepth = height;
+                }
+                break;
+            }
+            case Tag.TryFinally:
+                readStatement();
+                readStatement();
+                break;
+            case Tag.YieldStatement:
+                readByte();
+                readExpression();
+                break;
+            case Tag.VariableDeclaration:
+                readVariableDeclaration();
+                // Popped by the enclosing scope.
+                variableDepth++;
+                break;
+            case Tag.FunctionDeclaration:
+                readVariableDeclaration();
+                variableDepth++;
+                readFunctionNode();
+                break;
+            default:
+                throw fail("Invalid statement tag: " + tag);
+        }
+        handler.exitStatement(tag);
+    }
+
+    /** Reads a function node, leaving the scopes as they were, and returns its number of parameters. */
+    private int readFunctionNode() {
+        int typeParameterHeight = typeParameterDepth;
+        int variableHeight = variableDepth;
+        readByte();
+        readTypeParameterList();
+        readUInt();
+        readAndPushVariableDeclarationList();
+        readAndPushVariableDeclarationList();
+        int parameters = variableDepth - variableHeight;
+        readDartType();
+        skipOptionalInferredValue();
+        int oldLabelStackBase = labelStackBase;
+        labelStackBase = labelDepth;
+        readStatementOption();
+        labelStackBase = oldLabelStackBase;
+        variableDepth = variableHeight;
+        typeParameterDepth = typeParameterHeight;
+        return parameters;
+    }
+
+    private void readAndPushVariableDeclarationList() {
+        int length = readUInt();
+        for (int i = 0; i < length; i++) {
+            readVariableDeclaration();
+            variableDepth++;
+        }
+    }
+
+    private void readVariableDeclaration() {
+        int flags = readByte();
+        handler.enterVariableDeclaration(variableDepth, flags, readStringReference());
+        readDartType();
+        skipOptionalInferredValue();
+        readExpressionOption();
+        handler.exitVariableDeclaration(variableDepth);
+    }
+
+    private void readArguments() {
+        readDartTypeList();
+        readExpressionList();
+        int length = readUInt();
+        for (int i = 0; i < length; i++) {
+            readStringReference();
+            readExpression();
+        }
+    }
+
+    private void readName() {
+        int text = readStringReference();
+        handler.name(text, _stringTable.isPrivateName(text) ? readLibraryReference() : -1);
+    }
+
+    private void readMemberReference() {
+        int tag = readByte();
+        switch (tag) {
+            case Tag.LibraryFieldReference:
+            case Tag.LibraryProcedureReference: {
+                int library = readLibraryReference();
+                handler.memberReference(tag, library, -1, readUInt());
+                break;
+            }
+            case Tag.ClassFieldReference:
+            case Tag.ClassConstructorReference:
+            case Tag.ClassProcedureReference: {
+                if (readByte() == Tag.NullReference) {
+                    throw fail("Expected a class reference to be valid but was `null`.");
+                }
+                int library = readLibraryReference();
+                int classIndex = readUInt();
+                handler.memberReference(tag, library, classIndex, readUInt());
+                break;
+            }
+            case Tag.NullReference:
+                break;
+            default:
+                throw fail("Invalid member reference tag: " + AnyTag.apply(tag));
+        }
+    }
+
+    private void readTypeParameterList() {
+        int length = readUInt();
+        typeParameterDepth += length;
+        for (int i = 0; i < length; i++) {
+            handler.enterTypeParameter(readStringReference());
+            readDartType();
+            handler.exitTypeParameter();
+        }
+    }
+
+    private void skipOptionalInferredValue() {
+        if (readAndCheckOptionTag()) {
+            skipClassReference();
+            readByte();
+            readByte();
+        }
+    }
+
+    private void skipClassReference() {
+        if (readByte() != Tag.NullReference) {
+            readLibraryReference();
+            readUInt();
+        }
+    }
+
+    private void readClassReference() {
+        int tag = readByte();
+        if (tag == Tag.NullReference) {
+            throw fail("Expected a class reference to be valid but was `null`.");
+        }
+        int library = readLibraryReference();
+        handler.classReference(tag, library, readUInt());
+    }
+
+    private void readDartTypeOption() {
+        if (readAndCheckOptionTag()) readDartType();
+    }
+
+    private void readDartTypeList() {
+        int count = readUInt();
+        for (int i = 0; i < count; i++) readDartType();
+    }
+
+    private void readDartType() {
+        nodeStart = _byteIndex;
+        int tag = readByte();
+        handler.enterType(tag);
+        switch (tag) {
+            case Tag.BottomType:
+            case Tag.InvalidType:
+            case Tag.DynamicType:
+            case Tag.VoidType:
+                // No payload beyond the tag byte.
+                break;
+            case Tag.InterfaceType:
+                readClassReference();
+                readDartTypeList();
+                break;
+            case Tag.SimpleInterfaceType:
+                readClassReference();
+                break;
+            case Tag.FunctionType: {
+                // The type parameters of the function type are in scope of its own types.
+                int typeParameterHeight = typeParameterDepth;
+                readTypeParameterList();
+                handler.requiredParameterCount(readUInt());
+                readDartTypeList();
+                int count = readUInt();
+                for (int i = 0; i < count; i++) {
+                    handler.enterNamedType(readStringReference());
+                    readDartType();
+                    handler.exitNamedType();
+                }
+                readDartType();
+                typeParameterDepth = typeParameterHeight;
+                break;
+            }
+            case Tag.SimpleFunctionType:
+                readDartTypeList();
+                readDartType();
+                break;
+            case Tag.TypeParameterType:
+                handler.typeParameterReference(readUInt());
+                break;
+            default:
+                throw fail("Invalid dart type tag: " + tag + "(" + AnyTag.apply(tag) + ")");
+        }
+        handler.exitType(tag);
+    }
+}
@@ -1,9 +1,26 @@
 package dk.au.cs.dartkreader.loader;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import dk.au.cs.ast.*;
 
+/**
+ * Resolves the references of the builders that share it to one node per library, class and member. Builders
+ * may share a loader across threads: placeholders are created under the lock of the list they are placed in,
+ * and libraries are registered by import URI in a concurrent map.
+ */
 public class BinaryLoader {
+    final TypeCanonicalizer types = new TypeCanonicalizer();
+    private final ConcurrentHashMap<String, ALibrary> libraries = new ConcurrentHashMap<>();
 
     static int _pow2roundup(int x) {
         --x;
@@ -19,6 +36,121 @@ public class BinaryLoader {
         T build();
     }
 
+    /** The library with the given import URI, created the first time any builder asks for it. */
+    ALibrary getLibrary(String importUri) {
+        return libraries.computeIfAbsent(importUri, uri -> ALibrary.build());
+    }
+
+    public Program loadAll(List<Path> paths) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            return loadAll(paths, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Loads dill files that reference each other, such as an application dill with the dills of the SDK and
+     * packages it was compiled against, into one program. Libraries are linked across the files by import URI,
+     * and classes and members by their index, as the kernel does. Each library is decoded from the first file
+     * that has it as a non-external library, or from the first file that has it at all; the other files only
+     * resolve references to it. The files are planned in parallel, then their libraries are decoded as tasks on
+     * the pool. The main method is the first one found in file order.
+     */
+    public Program loadAll(List<Path> paths, ForkJoinPool pool) throws IOException {
+        List<BinaryBuilder> builders = new ArrayList<>();
+        List<ForkJoinTask<LoadPlan>> planning = new ArrayList<>();
+        for (Path path : paths) {
+            BinaryBuilder builder = new BinaryBuilder(this, path);
+            builders.add(builder);
+            planning.add(pool.submit(() -> builder.readLoadPlan()));
+        }
+        List<LoadPlan> plans = new ArrayList<>();
+        for (ForkJoinTask<LoadPlan> task : planning) {
+            plans.add(task.join());
+        }
+
+        // Import URI to the index of the file that decodes it, preferring files that have it in full.
+        Map<String, Integer> owners = new LinkedHashMap<>();
+        for (int pass = 0; pass < 2; ++pass) {
+            for (int file = 0; file < builders.size(); ++file) {
+                BinaryBuilder builder = builders.get(file);
+                for (int i = 0; i < plans.get(file).libraryStarts.length; ++i) {
+                    if (pass == 1 || !builder.isExternal(i)) {
+                        owners.putIfAbsent(builder.importUri(i), file);
+                    }
+                }
+            }
+        }
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int file = 0; file < builders.size(); ++file) {
+            BinaryBuilder builder = builders.get(file);
+            int libraryCount = plans.get(file).libraryStarts.length;
+            List<ALibrary> linked = new ArrayList<>();
+            boolean[] decode = new boolean[libraryCount];
+            for (int i = 0; i < libraryCount; ++i) {
+                String importUri = builder.importUri(i);
+                linked.add(getLibrary(importUri));
+                decode[i] = owners.get(importUri) == file;
+            }
+            builder.link(linked);
+            tasks.addAll(builder.submitLibraries(pool, plans.get(file), decode));
+        }
+        AMember mainMethod = null;
+        for (int file = 0; file < builders.size() && mainMethod == null; ++file) {
+            mainMethod = builders.get(file).readMainMethod(plans.get(file));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+
+        List<ALibrary> programLibraries = new ArrayList<>();
+        for (String importUri : owners.keySet()) {
+            programLibraries.add(libraries.get(importUri));
+        }
+        List<LineStarts> lineStarts = new ArrayList<>();
+        for (int file = 0; file < builders.size(); ++file) {
+            lineStarts.add(builders.get(file).lineStarts(plans.get(file)));
+        }
+        return new Program(programLibraries, mainMethod, new MergedLineStarts(lineStarts));
+    }
+
+    /** The line starts of several files; a URI in more than one file has the lines of the first. */
+    private static final class MergedLineStarts extends LineStarts {
+        private final List<LineStarts> parts;
+        private final List<String> fileUris = new ArrayList<>();
+
+        MergedLineStarts(List<LineStarts> parts) {
+            this.parts = parts;
+            Set<String> seen = new HashSet<>();
+            for (LineStarts part : parts) {
+                for (String uri : part.fileUris()) {
+                    if (seen.add(uri)) {
+                        fileUris.add(uri);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public List<String> fileUris() {
+            return fileUris;
+        }
+
+        @Override
+        public int[] lineStarts(String fileUri) {
+            for (LineStarts part : parts) {
+                int[] lines = part.lineStarts(fileUri);
+                if (lines != null) {
+                    return lines;
+                }
+            }
+            return null;
+        }
+    }
+
 
     private void setLength(List l, int newSize) {
         for (int i = l.size() - 1; i >= newSize; i--)
@@ -28,19 +160,30 @@ public class BinaryLoader {
     }
 
 
-    <T> T _extendList(List<T> items, int index, Builder<T> build) {
-        if (items.size() <= index) {
-            // Avoid excessive resizing by growing the list in steps.
-            setLength(items, _pow2roundup(index + 1));
+    /**
+     * Synchronized on the list, as builders decoding in parallel may reference the same class or member
+     * while its owner is reading it. The resolution is recorded in the stats of the builder, if it has any.
+     */
+    <T> T _extendList(List<T> items, int index, Builder<T> build, LoadStats stats) {
+        synchronized (items) {
+            if (items.size() <= index) {
+                // Avoid excessive resizing by growing the list in steps.
+                setLength(items, _pow2roundup(index + 1));
+            }
+            T item = items.get(index);
+            if (stats != null) {
+                stats.reference(item == null);
+            }
+            if (item == null) {
+                item = build.build();
+                items.set(index, item);
+            }
+            return item;
         }
-        if (items.get(index) == null) {
-            items.set(index, build.build());
-        }
-        return items.get(index);
     }
 
-    AClass getClassReference(ALibrary library, int tag, int index) {
-        return _extendList(library.classes(), index, () -> _buildClassReference(tag));
+    AClass getClassReference(ALibrary library, int tag, int index, LoadStats stats) {
+        return _extendList(library.classes(), index, () -> _buildClassReference(tag), stats);
     }
 
     AClass _buildClassReference(int tag) {
@@ -59,35 +202,40 @@ public class BinaryLoader {
         return AProcedure.build(null, null, null);
     }
 
-    AMember getMemberReference(TreeNode classOrLibrary, int tag, int index) {
+    AMember getMemberReference(TreeNode classOrLibrary, int tag, int index, LoadStats stats) {
         if (classOrLibrary instanceof AClass) {
-            return getClassMemberReference((AClass) classOrLibrary, tag, index);
+            return getClassMemberReference((AClass) classOrLibrary, tag, index, stats);
         } else {
-            return getLibraryMemberReference((ALibrary) classOrLibrary, tag, index);
+            return getLibraryMemberReference((ALibrary) classOrLibrary, tag, index, stats);
         }
     }
 
-    AMember getLibraryMemberReference(ALibrary library, int tag, int index) {
-        AnyTag$.Value t = AnyTag.apply(tag);
-        if (t == AnyTag.LibraryFieldReference() || t == AnyTag.Field()) {
-            return _extendList(library.fields(), index, () -> _buildFieldReference());
-        } else if (t == AnyTag.LibraryProcedureReference() || t == AnyTag.Procedure()) {
-            return _extendList(library.procedures(), index, () -> _buildProcedureReference());
-        } else {
-            throw new RuntimeException("Invalid library member reference tag: " + tag);
+    AMember getLibraryMemberReference(ALibrary library, int tag, int index, LoadStats stats) {
+        switch (tag) {
+            case Tag.LibraryFieldReference:
+            case Tag.Field:
+                return _extendList(library.fields(), index, () -> _buildFieldReference(), stats);
+            case Tag.LibraryProcedureReference:
+            case Tag.Procedure:
+                return _extendList(library.procedures(), index, () -> _buildProcedureReference(), stats);
+            default:
+                throw new RuntimeException("Invalid library member reference tag: " + tag);
         }
     }
 
-    AMember getClassMemberReference(AClass classNode, int tag, int index) {
-        AnyTag$.Value t = AnyTag.apply(tag);
-        if (t == AnyTag.ClassFieldReference() || t == AnyTag.Field()) {
-            return _extendList(classNode.fields(), index, () -> _buildFieldReference());
-        } else if (t == AnyTag.ClassConstructorReference() || t == AnyTag.Constructor()) {
-            return _extendList(classNode.constructors(), index, () -> _buildConstructorReference());
-        } else if (t == AnyTag.ClassProcedureReference() || t == AnyTag.Procedure()) {
-            return _extendList(classNode.procedures(), index, () -> _buildProcedureReference());
-        } else {
-            throw new RuntimeException("Invalid library member reference tag: " + tag);
+    AMember getClassMemberReference(AClass classNode, int tag, int index, LoadStats stats) {
+        switch (tag) {
+            case Tag.ClassFieldReference:
+            case Tag.Field:
+                return _extendList(classNode.fields(), index, () -> _buildFieldReference(), stats);
+            case Tag.ClassConstructorReference:
+            case Tag.Constructor:
+                return _extendList(classNode.constructors(), index, () -> _buildConstructorReference(), stats);
+            case Tag.ClassProcedureReference:
+            case Tag.Procedure:
+                return _extendList(classNode.procedures(), index, () -> _buildProcedureReference(), stats);
+            default:
+                throw new RuntimeException("Invalid library member reference tag: " + tag);
         }
     }
 }
@@ -0,0 +1,1031 @@
+package dk.au.cs.dartkreader.loader;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import dk.au.cs.ast.*;
+
+/**
+ * Copy pasted and modified from ast_to_binary.dart in the kernel project at tagget SDK release 1.21.1.
+ * Writes a {@link Program} in the encoding {@link BinaryBuilder} reads.
+ * <p>
+ * The program is traversed twice. The first pass only counts the strings and source URIs it references, so
+ * that the string table can be written up front, deduplicated and with the most frequent strings at the
+ * smallest indices. The second pass writes the bytes to the channel through a buffer. A BinaryPrinter can
+ * be used to write one program and must then be discarded.
+ */
+public class BinaryPrinter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final AName emptyName = new AName("", null);
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    // While counting, the buffer is discarded instead of written.
+    private boolean counting;
+
+    // Frequency and, once the table is built, index of every string referenced.
+    private final Map<String, int[]> strings = new LinkedHashMap<>();
+    private final Map<String, Integer> sourceUris = new LinkedHashMap<>();
+
+    // Index of every library in the program, and of every class and member in its parent's list.
+    private final Map<Object, Integer> globalIndex = new IdentityHashMap<>();
+    private final Map<Object, ALibrary> enclosingLibrary = new IdentityHashMap<>();
+    private final Map<AMember, AClass> enclosingClass = new IdentityHashMap<>();
+
+    private VariableIndexer variableIndexer;
+    private Map<LabeledStatement, Integer> labelIndex;
+    private int labelStackHeight;
+    private Map<SwitchCase, Integer> switchCaseIndex;
+    private int switchCaseStackHeight;
+    // TypeParameter is a case class, so type parameters must be told apart by identity.
+    private final Map<TypeParameter, Integer> typeParameterIndex = new IdentityHashMap<>();
+    private int typeParameterStackHeight;
+
+    public BinaryPrinter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public void writeProgramFile(Program program) throws IOException {
+        try {
+            buildGlobalIndex(program);
+            strings.put("", new int[]{1, 0});
+            sourceUris.put("", 0);
+            if (program.uriToLineStarts() != null) {
+                for (String uri : program.uriToLineStarts().fileUris()) {
+                    sourceUris.putIfAbsent(uri, sourceUris.size());
+                }
+            }
+
+            counting = true;
+            writeProgramBody(program);
+            buffer.clear();
+            counting = false;
+            buildStringIndex();
+
+            writeMagicWord(Tag.ProgramFile);
+            writeStringTable(strings.keySet());
+            writeUriToLineStarts(program);
+            writeProgramBody(program);
+            flush();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void writeProgramBody(Program program) {
+        writeUInt30(program.libraries().size());
+        for (ALibrary library : program.libraries()) {
+            writeLibrary(library);
+        }
+        writeMemberReference(program.mainMethod(), true);
+    }
+
+    private void buildGlobalIndex(Program program) {
+        List<ALibrary> libraries = program.libraries();
+        for (int i = 0; i < libraries.size(); ++i) {
+            ALibrary library = libraries.get(i);
+            globalIndex.put(library, i);
+            buildIndexForList(library.classes(), library, null);
+            buildIndexForList(library.fields(), library, null);
+            buildIndexForList(library.procedures(), library, null);
+            for (AClass classNode : library.classes()) {
+                buildIndexForList(classNode.fields(), library, classNode);
+                buildIndexForList(classNode.constructors(), library, classNode);
+                buildIndexForList(classNode.procedures(), library, classNode);
+            }
+        }
+    }
+
+    private void buildIndexForList(List<?> list, ALibrary library, AClass classNode) {
+        for (int i = 0; i < list.size(); ++i) {
+            Object node = list.get(i);
+            if (node != null) {
+                globalIndex.put(node, i);
+                enclosingLibrary.put(node, library);
+                if (classNode != null) {
+                    enclosingClass.put((AMember) node, classNode);
+                }
+            }
+        }
+    }
+
+    /** Orders the string table by decreasing frequency; ties keep the order of first reference. */
+    private void buildStringIndex() {
+        List<Map.Entry<String, int[]>> entries = new ArrayList<>(strings.entrySet());
+        entries.sort((a, b) -> b.getValue()[0] - a.getValue()[0]);
+        strings.clear();
+        for (int i = 0; i < entries.size(); ++i) {
+            int[] entry = entries.get(i).getValue();
+            entry[1] = i;
+            strings.put(entries.get(i).getKey(), entry);
+        }
+    }
+
+    private void flush() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buffer.clear();
+    }
+
+    private void writeByte(int value) {
+        if (!buffer.hasRemaining()) {
+            if (counting) {
+                buffer.clear();
+            } else {
+                flush();
+            }
+        }
+        buffer.put((byte) value);
+    }
+
+    private void writeBytes(byte[] bytes) {
+        for (byte b : bytes) {
+            writeByte(b);
+        }
+    }
+
+    private void writeUInt30(int value) {
+        assert (value >= 0 && value >> 30 == 0);
+        if (value < 0x80) {
+            writeByte(value);
+        } else if (value < 0x4000) {
+            writeByte((value >> 8) | 0x80);
+            writeByte(value & 0xFF);
+        } else {
+            writeByte((value >> 24) | 0xC0);
+            writeByte((value >> 16) & 0xFF);
+            writeByte((value >> 8) & 0xFF);
+            writeByte(value & 0xFF);
+        }
+    }
+
+    private void writeMagicWord(int value) {
+        writeByte((value >> 24) & 0xFF);
+        writeByte((value >> 16) & 0xFF);
+        writeByte((value >> 8) & 0xFF);
+        writeByte(value & 0xFF);
+    }
+
+    private void writeStringTable(Collection<String> entries) {
+        writeUInt30(entries.size());
+        for (String entry : entries) {
+            byte[] utf8Bytes = entry.getBytes(StandardCharsets.UTF_8);
+            writeUInt30(utf8Bytes.length);
+            writeBytes(utf8Bytes);
+        }
+    }
+
+    private void writeStringReference(String string) {
+        int[] entry = strings.get(string);
+        if (counting) {
+            if (entry == null) {
+                strings.put(string, new int[]{1, 0});
+            } else {
+                ++entry[0];
+            }
+            writeByte(0);
+        } else {
+            writeUInt30(entry[1]);
+        }
+    }
+
+    /** Unlike the kernel, URIs without line starts are added to the table rather than written as the empty URI. */
+    private void writeUriReference(String uri) {
+        Integer index = sourceUris.get(uri);
+        if (index == null) {
+            index = sourceUris.size();
+            sourceUris.put(uri, index);
+        }
+        writeUInt30(index);
+    }
+
+    private void writeUriToLineStarts(Program program) {
+        writeStringTable(sourceUris.keySet());
+        for (String uri : sourceUris.keySet()) {
+            int[] lineStarts = program.uriToLineStarts() == null ? null : program.uriToLineStarts().lineStarts(uri);
+            if (lineStarts == null) {
+                writeUInt30(0);
+                continue;
+            }
+            writeUInt30(lineStarts.length);
+            int previousLineStart = 0;
+            for (int lineStart : lineStarts) {
+                writeUInt30(lineStart - previousLineStart);
+                previousLineStart = lineStart;
+            }
+        }
+    }
+
+    private void writeOptionTag(Object node) {
+        writeByte(node == null ? Tag.Nothing : Tag.Something);
+    }
+
+    private void writeOptionalInferredValue(AInferredValue node) {
+        writeOptionTag(node);
+        if (node != null) {
+            writeClassReference(node.baseClass(), true);
+            writeByte(node.baseClassKind().id());
+            writeByte(node.valueBits());
+        }
+    }
+
+    private void writeOffset(TreeNode node) {
+        // File offset ranges from -1 and up,
+        // but is here saved as unsigned (thus the +1)
+        writeUInt30(node.fileOffset() + 1);
+    }
+
+    private void writeLibraryReference(ALibrary node) {
+        Integer index = globalIndex.get(node);
+        if (index == null) {
+            throw new RuntimeException("Missing import for library: " + node.importUri());
+        }
+        writeUInt30(index);
+    }
+
+    private int getGlobalIndex(Object node) {
+        Integer index = globalIndex.get(node);
+        if (index == null) {
+            throw new RuntimeException("Reference to a class or member that is not in the program: " + node);
+        }
+        return index;
+    }
+
+    private void writeClassReference(AClass node, boolean allowNull) {
+        if (node == null) {
+            if (!allowNull) {
+                throw new RuntimeException("Expected a class reference to be valid but was `null`.");
+            }
+            writeByte(Tag.NullReference);
+        } else {
+            int index = getGlobalIndex(node);
+            writeByte(node.mixedInType() != null ? Tag.MixinClassReference : Tag.NormalClassReference);
+            writeLibraryReference(enclosingLibrary.get(node));
+            writeUInt30(index);
+        }
+    }
+
+    private void writeMemberReference(AMember node, boolean allowNull) {
+        if (node == null) {
+            if (!allowNull) {
+                throw new RuntimeException("Expected a member reference to be valid but was `null`.");
+            }
+            writeByte(Tag.NullReference);
+            return;
+        }
+        int index = getGlobalIndex(node);
+        AClass classNode = enclosingClass.get(node);
+        if (node instanceof AConstructor) {
+            writeByte(Tag.ClassConstructorReference);
+            writeClassReference(classNode, false);
+        } else if (classNode != null) {
+            writeByte(node instanceof AField ? Tag.ClassFieldReference : Tag.ClassProcedureReference);
+            writeClassReference(classNode, false);
+        } else {
+            writeByte(node instanceof AField ? Tag.LibraryFieldReference : Tag.LibraryProcedureReference);
+            writeLibraryReference(enclosingLibrary.get(node));
+        }
+        writeUInt30(index);
+    }
+
+    private void writeName(AName node) {
+        writeStringReference(node.name());
+        // TODO: Consider a more compressed format for private names within the
+        // enclosing library.
+        if (node.name().startsWith("_")) {
+            writeLibraryReference(node.library());
+        }
+    }
+
+    private void writeLibrary(ALibrary node) {
+        writeByte(node.isExternal() ? 1 : 0);
+        writeStringReference(node.name() == null ? "" : node.name());
+        writeStringReference(node.importUri() == null ? "" : node.importUri().value());
+        // TODO(jensj): We save (almost) the same URI twice.
+        writeUriReference(node.fileUri() == null ? "" : node.fileUri());
+        writeUInt30(node.classes().size());
+        for (AClass classNode : node.classes()) {
+            writeClass(classNode);
+        }
+        writeUInt30(node.fields().size());
+        for (AField field : node.fields()) {
+            writeField(field);
+        }
+        writeUInt30(node.procedures().size());
+        for (AProcedure procedure : node.procedures()) {
+            writeProcedure(procedure);
+        }
+    }
+
+    private void writeAnnotationList(List<AExpression> annotations) {
+        if (variableIndexer == null) {
+            variableIndexer = new VariableIndexer();
+        }
+        writeExpressionList(annotations);
+    }
+
+    private void writeClass(AClass node) {
+        int flags = node.isAbstract() ? 1 : 0;
+        if (node.level() == ClassLevel.Type()) {
+            flags |= 0x2;
+        }
+        boolean isMixinApplication = node.mixedInType() != null;
+        writeByte(isMixinApplication ? Tag.MixinClass : Tag.NormalClass);
+        writeByte(flags);
+        writeStringReference(node.name() == null ? "" : node.name());
+        writeUriReference(node.fileUri() == null ? "" : node.fileUri());
+        writeAnnotationList(node.annotations());
+        enterTypeParameters(node.typeParameters());
+        writeTypeParameterList(node.typeParameters());
+        if (isMixinApplication) {
+            writeSupertype(node.supertype());
+            writeSupertype(node.mixedInType());
+            writeSupertypeList(node.implementedTypes());
+            writeConstructorList(node.constructors());
+        } else {
+            writeOptionTag(node.supertype());
+            if (node.supertype() != null) {
+                writeSupertype(node.supertype());
+            }
+            writeSupertypeList(node.implementedTypes());
+            writeUInt30(node.fields().size());
+            for (AField field : node.fields()) {
+                writeField(field);
+            }
+            writeConstructorList(node.constructors());
+            writeUInt30(node.procedures().size());
+            for (AProcedure procedure : node.procedures()) {
+                writeProcedure(procedure);
+            }
+        }
+        exitTypeParameters(node.typeParameters());
+    }
+
+    private void writeConstructorList(List<AConstructor> constructors) {
+        writeUInt30(constructors.size());
+        for (AConstructor constructor : constructors) {
+            writeConstructor(constructor);
+        }
+    }
+
+    private void writeConstructor(AConstructor node) {
+        variableIndexer = new VariableIndexer();
+        writeByte(Tag.Constructor);
+        writeByte(node.flags());
+        writeName(node.name() == null ? emptyName : node.name());
+        writeAnnotationList(node.annotations());
+        assert (node.function().typeParameters().isEmpty());
+        writeFunctionNode(node.function());
+        // Parameters are in scope in the initializers.
+        variableIndexer.restoreScope(node.function().positionalParameters().size() +
+                node.function().namedParameters().size());
+        writeUInt30(node.initializers().size());
+        for (AInitializer initializer : node.initializers()) {
+            writeInitializer(initializer);
+        }
+        variableIndexer = null;
+    }
+
+    private void writeProcedure(AProcedure node) {
+        variableIndexer = new VariableIndexer();
+        writeByte(Tag.Procedure);
+        writeByte(node.kind().id());
+        writeByte(node.flags());
+        writeName(node.name() == null ? emptyName : node.name());
+        writeUriReference(node.fileUri() == null ? "" : node.fileUri());
+        writeAnnotationList(node.annotations());
+        writeOptionTag(node.function());
+        if (node.function() != null) {
+            writeFunctionNode(node.function());
+        }
+        variableIndexer = null;
+    }
+
+    private void writeField(AField node) {
+        variableIndexer = new VariableIndexer();
+        writeByte(Tag.Field);
+        writeOffset(node);
+        writeByte(node.flags());
+        writeName(node.name() == null ? emptyName : node.name());
+        writeUriReference(node.fileUri() == null ? "" : node.fileUri());
+        writeAnnotationList(node.annotations());
+        writeDartType(node.ttype());
+        writeOptionalInferredValue(node.inferredValue());
+        writeExpressionOption(node.initializer());
+        variableIndexer = null;
+    }
+
+    private void writeInitializer(AInitializer node) {
+        if (node instanceof FieldInitializer) {
+            FieldInitializer initializer = (FieldInitializer) node;
+            writeByte(Tag.FieldInitializer);
+            writeMemberReference(initializer.field(), false);
+            writeExpression(initializer.value());
+        } else if (node instanceof SuperInitializer) {
+            SuperInitializer initializer = (SuperInitializer) node;
+            writeByte(Tag.SuperInitializer);
+            writeMemberReference(initializer.target(), false);
+            writeArguments(initializer.arguments());
+        } else if (node instanceof RedirectingInitializer) {
+            RedirectingInitializer initializer = (RedirectingInitializer) node;
+            writeByte(Tag.RedirectingInitializer);
+            writeMemberReference(initializer.target(), false);
+            writeArguments(initializer.arguments());
+        } else if (node instanceof ALocalInitializer) {
+            writeByte(Tag.LocalInitializer);
+            writeVariableDeclaration(((ALocalInitializer) node).variable());
+        } else if (node instanceof AInvalidInitializer) {
+            writeByte(Tag.InvalidInitializer);
+        } else {
+            throw new RuntimeException("Unsupported initializer: " + node);
+        }
+    }
+
+    private void writeFunctionNode(AFunctionNode node) {
+        assert (variableIndexer != null);
+        variableIndexer.pushScope();
+        Map<LabeledStatement, Integer> oldLabels = labelIndex;
+        int oldLabelStackHeight = labelStackHeight;
+        labelIndex = new IdentityHashMap<>();
+        labelStackHeight = 0;
+        Map<SwitchCase, Integer> oldCases = switchCaseIndex;
+        int oldSwitchCaseStackHeight = switchCaseStackHeight;
+        switchCaseIndex = new IdentityHashMap<>();
+        switchCaseStackHeight = 0;
+        // Note: FunctionNode has no tag.
+        enterTypeParameters(node.typeParameters());
+        writeByte(node.asyncMarker().id());
+        writeTypeParameterList(node.typeParameters());
+        writeUInt30(node.requiredParameterCount());
+        writeVariableDeclarationList(node.positionalParameters());
+        writeVariableDeclarationList(node.namedParameters());
+        writeDartType(node.returnType());
+        writeOptionalInferredValue(node.inferredReturnValue());
+        AStatement body = node.body();
+        writeOptionTag(body);
+        if (body != null) {
+            writeStatement(body);
+        }
+        labelIndex = oldLabels;
+        labelStackHeight = oldLabelStackHeight;
+        switchCaseIndex = oldCases;
+        switchCaseStackHeight = oldSwitchCaseStackHeight;
+        exitTypeParameters(node.typeParameters());
+        variableIndexer.popScope();
+    }
+
+    private void writeExpressionOption(AExpression node) {
+        writeOptionTag(node);
+        if (node != null) {
+            writeExpression(node);
+        }
+    }
+
+    private void writeExpressionList(List<AExpression> nodes) {
+        writeUInt30(nodes.size());
+        for (AExpression node : nodes) {
+            writeExpression(node);
+        }
+    }
+
+    private void writeExpression(AExpression node) {
+        if (node instanceof AVariableGet) {
+            AVariableGet get = (AVariableGet) node;
+            int index = variableIndexer.get(get.variable());
+            if ((index & Tag.SpecializedPayloadMask) == index && get.promotedType() == null) {
+                writeByte(Tag.SpecializedVariableGet + index);
+            } else {
+                writeByte(Tag.VariableGet);
+                writeUInt30(index);
+                writeDartTypeOption(get.promotedType());
+            }
+        } else if (node instanceof APropertyGet) {
+            APropertyGet get = (APropertyGet) node;
+            writeByte(Tag.PropertyGet);
+            writeOffset(get);
+            writeExpression(get.receiver());
+            writeName(get.name());
+            writeMemberReference(get.interfaceTarget(), true);
+        } else if (node instanceof AMethodInvocation) {
+            AMethodInvocation invocation = (AMethodInvocation) node;
+            writeByte(Tag.MethodInvocation);
+            writeOffset(invocation);
+            writeExpression(invocation.receiver());
+            writeName(invocation.name());
+            writeArguments(invocation.arguments());
+            writeMemberReference(invocation.interfaceTarget(), true);
+        } else if (node instanceof AStaticInvocation) {
+            AStaticInvocation invocation = (AStaticInvocation) node;
+            writeByte(invocation.isConst() ? Tag.ConstStaticInvocation : Tag.StaticInvocation);
+            writeOffset(invocation);
+            writeMemberReference(invocation.target(), false);
+            writeArguments(invocation.arguments());
+        } else if (node instanceof AVariableSet) {
+            AVariableSet set = (AVariableSet) node;
+            int index = variableIndexer.get(set.variable());
+            if ((index & Tag.SpecializedPayloadMask) == index) {
+                writeByte(Tag.SpecializedVariableSet + index);
+            } else {
+                writeByte(Tag.VariableSet);
+                writeUInt30(index);
+            }
+            writeExpression(set.value());
+        } else if (node instanceof APropertySet) {
+            APropertySet set = (APropertySet) node;
+            writeByte(Tag.PropertySet);
+            writeOffset(set);
+            writeExpression(set.receiver());
+            writeName(set.name());
+            writeExpression(set.value());
+            writeMemberReference(set.interfaceTarget(), true);
+        } else if (node instanceof ASuperPropertyGet) {
+            ASuperPropertyGet get = (ASuperPropertyGet) node;
+            writeByte(Tag.SuperPropertyGet);
+            writeName(get.name());
+            writeMemberReference(get.interfaceTarget(), true);
+        } else if (node instanceof ASuperPropertySet) {
+            ASuperPropertySet set = (ASuperPropertySet) node;
+            writeByte(Tag.SuperPropertySet);
+            writeName(set.name());
+            writeExpression(set.value());
+            writeMemberReference(set.interfaceTarget(), true);
+        } else if (node instanceof ADirectPropertyGet) {
+            ADirectPropertyGet get = (ADirectPropertyGet) node;
+            writeByte(Tag.DirectPropertyGet);
+            writeExpression(get.receiver());
+            writeMemberReference(get.target(), false);
+        } else if (node instanceof ADirectPropertySet) {
+            ADirectPropertySet set = (ADirectPropertySet) node;
+            writeByte(Tag.DirectPropertySet);
+            writeExpression(set.receiver());
+            writeMemberReference(set.target(), false);
+            writeExpression(set.value());
+        } else if (node instanceof AStaticGet) {
+            writeByte(Tag.StaticGet);
+            writeOffset((TreeNode) node);
+            writeMemberReference(((AStaticGet) node).target(), false);
+        } else if (node instanceof AStaticSet) {
+            AStaticSet set = (AStaticSet) node;
+            writeByte(Tag.StaticSet);
+            writeMemberReference(set.target(), false);
+            writeExpression(set.value());
+        } else if (node instanceof ASuperMethodInvocation) {
+            ASuperMethodInvocation invocation = (ASuperMethodInvocation) node;
+            writeByte(Tag.SuperMethodInvocation);
+            writeOffset(invocation);
+            writeName(invocation.name());
+            writeArguments(invocation.arguments());
+            writeMemberReference(invocation.interfaceTarget(), true);
+        } else if (node instanceof ADirectMethodInvocation) {
+            ADirectMethodInvocation invocation = (ADirectMethodInvocation) node;
+            writeByte(Tag.DirectMethodInvocation);
+            writeExpression(invocation.receiver());
+            writeMemberReference(invocation.target(), false);
+            writeArguments(invocation.arguments());
+        } else if (node instanceof ConstructorInvocation) {
+            ConstructorInvocation invocation = (ConstructorInvocation) node;
+            writeByte(invocation.isConst() ? Tag.ConstConstructorInvocation : Tag.ConstructorInvocation);
+            writeOffset(invocation);
+            writeMemberReference(invocation.target(), false);
+            writeArguments(invocation.arguments());
+        } else if (node instanceof Not) {
+            writeByte(Tag.Not);
+            writeExpression(((Not) node).operand());
+        } else if (node instanceof ALogicalExpression) {
+            ALogicalExpression logical = (ALogicalExpression) node;
+            writeByte(Tag.LogicalExpression);
+            writeExpression(logical.left());
+            writeByte(logicalOperatorIndex(logical.op()));
+            writeExpression(logical.right());
+        } else if (node instanceof AConditionalExpression) {
+            AConditionalExpression conditional = (AConditionalExpression) node;
+            writeByte(Tag.ConditionalExpression);
+            writeExpression(conditional.condition());
+            writeExpression(conditional.tthen());
+            writeExpression(conditional.otherwise());
+            writeDartTypeOption(conditional.staticType());
+        } else if (node instanceof StringConcatenation) {
+            writeByte(Tag.StringConcatenation);
+            writeExpressionList(((StringConcatenation) node).expressions());
+        } else if (node instanceof IsExpression) {
+            IsExpression is = (IsExpression) node;
+            writeByte(Tag.IsExpression);
+            writeExpression(is.operand());
+            writeDartType(is.ttype());
+        } else if (node instanceof AsExpression) {
+            AsExpression as = (AsExpression) node;
+            writeByte(Tag.AsExpression);
+            writeExpression(as.operand());
+            writeDartType(as.ttype());
+        } else if (node instanceof AStringLiteral) {
+            writeByte(Tag.StringLiteral);
+            writeStringReference(((AStringLiteral) node).value());
+        } else if (node instanceof AIntLiteral) {
+            writeIntLiteral((AIntLiteral) node);
+        } else if (node instanceof ADoubleLiteral) {
+            // TODO: Pick a better format for double literals.
+            writeByte(Tag.DoubleLiteral);
+            writeStringReference(Double.toString(((ADoubleLiteral) node).value()));
+        } else if (node instanceof ABooleanLiteral) {
+            writeByte(((ABooleanLiteral) node).value() ? Tag.TrueLiteral : Tag.FalseLiteral);
+        } else if (node instanceof ANullLiteral) {
+            writeByte(Tag.NullLiteral);
+        } else if (node instanceof ASymbolLiteral) {
+            writeByte(Tag.SymbolLiteral);
+            writeStringReference(((ASymbolLiteral) node).value());
+        } else if (node instanceof TypeLiteral) {
+            writeByte(Tag.TypeLiteral);
+            writeDartType(((TypeLiteral) node).ttype());
+        } else if (node instanceof ThisExpression) {
+            writeByte(Tag.ThisExpression);
+        } else if (node instanceof Rethrow) {
+            writeByte(Tag.Rethrow);
+        } else if (node instanceof Throw) {
+            writeByte(Tag.Throw);
+            writeOffset((TreeNode) node);
+            writeExpression(((Throw) node).expression());
+        } else if (node instanceof ListLiteral) {
+            ListLiteral list = (ListLiteral) node;
+            writeByte(list.isConst() ? Tag.ConstListLiteral : Tag.ListLiteral);
+            writeDartType(list.typeArgument());
+            writeExpressionList(list.expressions());
+        } else if (node instanceof MapLiteral) {
+            MapLiteral map = (MapLiteral) node;
+            writeByte(map.isConst() ? Tag.ConstMapLiteral : Tag.MapLiteral);
+            writeDartType(map.keyType());
+            writeDartType(map.valueType());
+            writeUInt30(map.entries().size());
+            for (MapEntry entry : map.entries()) {
+                // Note: there is no tag on MapEntry
+                writeExpression(entry.key());
+                writeExpression(entry.value());
+            }
+        } else if (node instanceof AwaitExpression) {
+            writeByte(Tag.AwaitExpression);
+            writeExpression(((AwaitExpression) node).operand());
+        } else if (node instanceof FunctionExpression) {
+            writeByte(Tag.FunctionExpression);
+            writeFunctionNode(((FunctionExpression) node).function());
+        } else if (node instanceof Let) {
+            Let let = (Let) node;
+            writeByte(Tag.Let);
+            writeVariableDeclaration(let.variable());
+            writeExpression(let.body());
+            variableIndexer.stackHeight--;
+        } else if (node instanceof AInvalidExpression) {
+            writeByte(Tag.InvalidExpression);
+        } else {
+            throw new RuntimeException("Unsupported expression: " + node);
+        }
+    }
+
+    private void writeIntLiteral(AIntLiteral node) {
+        if (node.isLong()) {
+            long value = node.longValue();
+            long biasedValue = value + Tag.SpecializedIntLiteralBias;
+            if (biasedValue >= 0 && (biasedValue & Tag.SpecializedPayloadMask) == biasedValue) {
+                writeByte(Tag.SpecializedIntLiteral + (int) biasedValue);
+                return;
+            } else if (Math.abs(value) >> 30 == 0) {
+                if (value < 0) {
+                    writeByte(Tag.NegativeIntLiteral);
+                    writeUInt30((int) -value);
+                } else {
+                    writeByte(Tag.PositiveIntLiteral);
+                    writeUInt30((int) value);
+                }
+                return;
+            }
+        }
+        // TODO: Pick a better format for big int literals.
+        writeByte(Tag.BigIntLiteral);
+        writeStringReference(node.value().toString());
+    }
+
+    private int logicalOperatorIndex(String operator) {
+        switch (operator) {
+            case "&&":
+                return 0;
+            case "||":
+                return 1;
+            default:
+                throw new RuntimeException("Not a logical operator: " + operator);
+        }
+    }
+
+    private void writeArguments(AArguments node) {
+        writeDartTypeList(node.types());
+        writeExpressionList(node.positional());
+        writeUInt30(node.named().size());
+        for (ANamedExpression named : node.named()) {
+            writeStringReference(named.name());
+            writeExpression(named.value());
+        }
+    }
+
+    private void writeStatementList(List<AStatement> nodes) {
+        writeUInt30(nodes.size());
+        for (AStatement node : nodes) {
+            writeStatement(node);
+        }
+    }
+
+    private void writeStatement(AStatement node) {
+        if (node instanceof AExpressionStatement) {
+            writeByte(Tag.ExpressionStatement);
+            writeExpression(((AExpressionStatement) node).expression());
+        } else if (node instanceof ABlock) {
+            variableIndexer.pushScope();
+            writeByte(Tag.Block);
+            writeStatementList(((ABlock) node).statements());
+            variableIndexer.popScope();
+        } else if (node instanceof AVariableDeclaration) {
+            writeByte(Tag.VariableDeclaration);
+            writeVariableDeclaration((AVariableDeclaration) node);
+        } else if (node instanceof IfStatement) {
+            IfStatement ifStatement = (IfStatement) node;
+            writeByte(Tag.IfStatement);
+            writeExpression(ifStatement.condition());
+            writeStatement(ifStatement.tthen());
+            if (ifStatement.otherwise() == null) {
+                writeByte(Tag.EmptyStatement);
+            } else {
+                writeStatement(ifStatement.otherwise());
+            }
+        } else if (node instanceof ReturnStatement) {
+            writeByte(Tag.ReturnStatement);
+            writeExpressionOption(((ReturnStatement) node).expression());
+        } else if (node instanceof AEmptyStatement) {
+            writeByte(Tag.EmptyStatement);
+        } else if (node instanceof AssertStatement) {
+            AssertStatement assertStatement = (AssertStatement) node;
+            writeByte(Tag.AssertStatement);
+            writeExpression(assertStatement.condition());
+            writeExpressionOption(assertStatement.message());
+        } else if (node instanceof LabeledStatement) {
+            labelIndex.put((LabeledStatement) node, labelStackHeight++);
+            writeByte(Tag.LabeledStatement);
+            writeStatement(((LabeledStatement) node).body());
+            --labelStackHeight;
+        } else if (node instanceof BreakStatement) {
+            writeByte(Tag.BreakStatement);
+            writeUInt30(labelIndex.get(((BreakStatement) node).target()));
+        } else if (node instanceof WhileStatement) {
+            WhileStatement whileStatement = (WhileStatement) node;
+            writeByte(Tag.WhileStatement);
+            writeExpression(whileStatement.condition());
+            writeStatement(whileStatement.body());
+        } else if (node instanceof DoStatement) {
+            DoStatement doStatement = (DoStatement) node;
+            writeByte(Tag.DoStatement);
+            writeStatement(doStatement.body());
+            writeExpression(doStatement.condition());
+        } else if (node instanceof ForStatement) {
+            ForStatement forStatement = (ForStatement) node;
+            variableIndexer.pushScope();
+            writeByte(Tag.ForStatement);
+            writeVariableDeclarationList(forStatement.variables());
+            writeExpressionOption(forStatement.condition());
+            writeExpressionList(forStatement.updates());
+            writeStatement(forStatement.body());
+            variableIndexer.popScope();
+        } else if (node instanceof ForInStatement) {
+            ForInStatement forIn = (ForInStatement) node;
+            variableIndexer.pushScope();
+            writeByte(forIn.isAsync() ? Tag.AsyncForInStatement : Tag.ForInStatement);
+            writeVariableDeclaration(forIn.variable());
+            writeExpression(forIn.iterable());
+            writeStatement(forIn.body());
+            variableIndexer.popScope();
+        } else if (node instanceof SwitchStatement) {
+            SwitchStatement switchStatement = (SwitchStatement) node;
+            for (SwitchCase caseNode : switchStatement.cases()) {
+                switchCaseIndex.put(caseNode, switchCaseStackHeight++);
+            }
+            writeByte(Tag.SwitchStatement);
+            writeExpression(switchStatement.expression());
+            writeUInt30(switchStatement.cases().size());
+            for (SwitchCase caseNode : switchStatement.cases()) {
+                // Note: there is no tag on SwitchCase.
+                writeExpressionList(caseNode.expressions());
+                writeByte(caseNode.isDefault() ? 1 : 0);
+                writeStatement(caseNode.body());
+            }
+            switchCaseStackHeight -= switchStatement.cases().size();
+        } else if (node instanceof ContinueSwitchStatement) {
+            writeByte(Tag.ContinueSwitchStatement);
+            writeUInt30(switchCaseIndex.get(((ContinueSwitchStatement) node).switchCase()));
+        } else if (node instanceof TryCatch) {
+            TryCatch tryCatch = (TryCatch) node;
+            writeByte(Tag.TryCatch);
+            writeStatement(tryCatch.body());
+            writeUInt30(tryCatch.catches().size());
+            for (ACatch catchNode : tryCatch.catches()) {
+                writeCatch(catchNode);
+            }
+        } else if (node instanceof TryFinally) {
+            TryFinally tryFinally = (TryFinally) node;
+            writeByte(Tag.TryFinally);
+            writeStatement(tryFinally.body());
+            writeStatement(tryFinally.finalizer());
+        } else if (node instanceof YieldStatement) {
+            YieldStatement yield = (YieldStatement) node;
+            writeByte(Tag.YieldStatement);
+            writeByte((yield.isYieldStar() ? YieldStatement.FlagYieldStar() : 0) |
+                    (yield.isNative() ? YieldStatement.FlagNative() : 0));
+            writeExpression(yield.expression());
+        } else if (node instanceof FunctionDeclaration) {
+            FunctionDeclaration declaration = (FunctionDeclaration) node;
+            writeByte(Tag.FunctionDeclaration);
+            writeVariableDeclaration(declaration.variable());
+            writeFunctionNode(declaration.function());
+        } else if (node instanceof AInvalidStatement) {
+            writeByte(Tag.InvalidStatement);
+        } else {
+            throw new RuntimeException("Unsupported statement: " + node);
+        }
+    }
+
+    private void writeCatch(ACatch node) {
+        // Note: there is no tag on Catch.
+        variableIndexer.pushScope();
+        writeDartType(node.guard());
+        writeOptionalVariableDeclaration(node.exception());
+        writeOptionalVariableDeclaration(node.stackTrace());
+        writeStatement(node.body());
+        variableIndexer.popScope();
+    }
+
+    private void writeVariableDeclaration(AVariableDeclaration node) {
+        writeByte(node.flags());
+        writeStringReference(node.name() == null ? "" : node.name());
+        writeDartType(node.ttype());
+        writeOptionalInferredValue(node.inferredValue());
+        writeExpressionOption(node.initializer());
+        // Declare the variable after its initializer. It is not in scope in its
+        // own initializer.
+        variableIndexer.declare(node);
+    }
+
+    private void writeVariableDeclarationList(List<AVariableDeclaration> nodes) {
+        writeUInt30(nodes.size());
+        for (AVariableDeclaration node : nodes) {
+            writeVariableDeclaration(node);
+        }
+    }
+
+    private void writeOptionalVariableDeclaration(AVariableDeclaration node) {
+        writeOptionTag(node);
+        if (node != null) {
+            writeVariableDeclaration(node);
+        }
+    }
+
+    private void writeSupertype(Supertype node) {
+        writeInterfaceType(node.classNode(), node.typeArguments());
+    }
+
+    private void writeSupertypeList(List<Supertype> nodes) {
+        writeUInt30(nodes.size());
+        for (Supertype node : nodes) {
+            writeSupertype(node);
+        }
+    }
+
+    private void writeInterfaceType(AClass classNode, List<DartType> typeArguments) {
+        if (typeArguments.isEmpty()) {
+            writeByte(Tag.SimpleInterfaceType);
+            writeClassReference(classNode, false);
+        } else {
+            writeByte(Tag.InterfaceType);
+            writeClassReference(classNode, false);
+            writeDartTypeList(typeArguments);
+        }
+    }
+
+    private void writeDartTypeOption(DartType node) {
+        writeOptionTag(node);
+        if (node != null) {
+            writeDartType(node);
+        }
+    }
+
+    private void writeDartTypeList(List<DartType> nodes) {
+        writeUInt30(nodes.size());
+        for (DartType node : nodes) {
+            writeDartType(node);
+        }
+    }
+
+    private void writeDartType(DartType node) {
+        if (node instanceof InterfaceType) {
+            InterfaceType type = (InterfaceType) node;
+            writeInterfaceType(type.classNode(), type.typeArguments());
+        } else if (node instanceof DynamicType) {
+            writeByte(Tag.DynamicType);
+        } else if (node instanceof TypeParameterType) {
+            writeByte(Tag.TypeParameterType);
+            writeUInt30(typeParameterIndex.get(((TypeParameterType) node).positional()));
+        } else if (node instanceof FunctionType) {
+            writeFunctionType((FunctionType) node);
+        } else if (node instanceof VoidType) {
+            writeByte(Tag.VoidType);
+        } else if (node instanceof BottomType) {
+            writeByte(Tag.BottomType);
+        } else if (node instanceof InvalidType) {
+            writeByte(Tag.InvalidType);
+        } else {
+            throw new RuntimeException("Unsupported type: " + node);
+        }
+    }
+
+    private void writeFunctionType(FunctionType node) {
+        if (node.requiredParameterCount() == node.positionalParameters().size() &&
+                node.typeParameters().isEmpty() &&
+                node.namedParameters().isEmpty()) {
+            writeByte(Tag.SimpleFunctionType);
+            writeDartTypeList(node.positionalParameters());
+            writeDartType(node.returnType());
+        } else {
+            writeByte(Tag.FunctionType);
+            enterTypeParameters(node.typeParameters());
+            writeTypeParameterList(node.typeParameters());
+            writeUInt30(node.requiredParameterCount());
+            writeDartTypeList(node.positionalParameters());
+            writeUInt30(node.namedParameters().size());
+            for (NamedType named : node.namedParameters()) {
+                writeStringReference(named.name());
+                writeDartType(named.ttype());
+            }
+            writeDartType(node.returnType());
+            exitTypeParameters(node.typeParameters());
+        }
+    }
+
+    private void writeTypeParameterList(List<TypeParameter> nodes) {
+        writeUInt30(nodes.size());
+        for (TypeParameter node : nodes) {
+            writeStringReference(node.name() == null ? "" : node.name());
+            writeDartType(node.bound());
+        }
+    }
+
+    private void enterTypeParameters(List<TypeParameter> typeParameters) {
+        for (TypeParameter parameter : typeParameters) {
+            typeParameterIndex.put(parameter, typeParameterStackHeight++);
+        }
+    }
+
+    private void exitTypeParameters(List<TypeParameter> typeParameters) {
+        typeParameterStackHeight -= typeParameters.size();
+    }
+
+    private static final class VariableIndexer {
+        final Map<AVariableDeclaration, Integer> index = new IdentityHashMap<>();
+        int[] scopes = new int[8];
+        int scopeCount = 0;
+        int stackHeight = 0;
+
+        void declare(AVariableDeclaration node) {
+            index.put(node, stackHeight++);
+        }
+
+        void pushScope() {
+            if (scopeCount == scopes.length) {
+                scopes = Arrays.copyOf(scopes, 2 * scopes.length);
+            }
+            scopes[scopeCount++] = stackHeight;
+        }
+
+        void popScope() {
+            stackHeight = scopes[--scopeCount];
+        }
+
+        void restoreScope(int numberOfVariables) {
+            stackHeight += numberOfVariables;
+        }
+
+        int get(AVariableDeclaration node) {
+            Integer i = index.get(node);
+            if (i == null) {
+                throw new RuntimeException("Reference to a variable that is not in scope: " + node.name());
+            }
+            return i;
+        }
+    }
+}
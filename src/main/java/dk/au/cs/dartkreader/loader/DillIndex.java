@@ -0,0 +1,528 @@
+package dk.au.cs.dartkreader.loader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A random-access index of one dill file: the {@link LoadPlan} of the file, which holds the string table
+ * offsets and the byte index of every library and class, plus the byte index, tag and name of every member
+ * and the import URI and name of every library and class. It is built with one sequential scan and kept in a
+ * sidecar file next to the dill, keyed to the SHA-256 of the dill's contents. The sidecar also holds the
+ * {@link #stamp} of the dill, so opening a dill whose stamp is unchanged only reads the sidecar;
+ * a dill with another stamp is hashed, and its index only built again if its contents changed. Sidecars carry
+ * a CRC-32 of their body, and one that does not check or decode is rebuilt.
+ * <p>
+ * Libraries, classes and members are identified by their position in the file: libraries by their index in
+ * the import table, classes and members by a number counting all of them in the order they are encoded. The
+ * lookups compare names against the raw bytes of the string table without decoding the file. A builder from
+ * {@link #builder} seeks straight to a library, class or member and decodes just that, into the nodes that the
+ * rest of the program's references resolve to.
+ */
+public final class DillIndex {
+    private static final int MAGIC = 0x444B4958; // "DKIX"
+    // Bumped whenever the layout of the sidecar changes, including that of the plan it embeds.
+    private static final int VERSION = 4;
+    private static final int HASH_BYTES = 32;
+    private static final String SUFFIX = ".index";
+
+    private final ByteBuffer bytes;
+    private final String filename;
+    private final LoadPlan plan;
+    private final StringTable strings;
+    // String table index of the import URI of each library, and of the name of each class.
+    private final int[] libraryUris;
+    private final int[] classNames;
+    // Byte index of the tag, tag and string table index of the name of each member.
+    private final int[] members;
+    // Derived from the plan: the members of class k are classMembers[k] until that plus its member count, and
+    // the top-level members of library i start at libraryMembers[i].
+    private final int[] classMembers;
+    private final int[] libraryMembers;
+    private final int[] classLibraries;
+    // Per member: its class, or -1 - its library for a top-level member, and its index in its list.
+    private final int[] memberOwners;
+    private final int[] memberListIndices;
+    // The hash of the contents and the stamp of the dill the index was written for, when opened from a file.
+    private byte[] hash;
+    private byte[] stamp;
+
+    private DillIndex(ByteBuffer bytes, String filename, LoadPlan plan, int[] libraryUris, int[] classNames,
+                      int[] members) {
+        this.bytes = bytes;
+        this.filename = filename;
+        this.plan = plan;
+        this.strings = new StringTable(bytes, plan.strings);
+        this.libraryUris = libraryUris;
+        this.classNames = classNames;
+        this.members = members;
+        int libraryCount = plan.libraryStarts.length;
+        int classCount = plan.classStarts.length;
+        classMembers = new int[classCount];
+        libraryMembers = new int[libraryCount];
+        classLibraries = new int[classCount];
+        memberOwners = new int[memberCount()];
+        memberListIndices = new int[memberCount()];
+        int member = 0;
+        for (int i = 0; i < libraryCount; ++i) {
+            for (int k = plan.firstClass[i]; k < plan.firstClass[i + 1]; ++k) {
+                classLibraries[k] = i;
+                classMembers[k] = member;
+                member = own(member, k, plan.classFields[k]);
+                member = own(member, k, plan.classConstructors[k]);
+                member = own(member, k, plan.classProcedures[k]);
+            }
+            libraryMembers[i] = member;
+            member = own(member, -1 - i, plan.libraryFields[i]);
+            member = own(member, -1 - i, plan.libraryProcedures[i]);
+        }
+        if (member != memberCount()) {
+            throw new IllegalStateException("Index of " + filename + " has " + memberCount()
+                    + " members but its plan " + member);
+        }
+    }
+
+    private int own(int member, int owner, int count) {
+        for (int i = 0; i < count; ++i, ++member) {
+            memberOwners[member] = owner;
+            memberListIndices[member] = i;
+        }
+        return member;
+    }
+
+    /**
+     * Memory maps the dill and returns its index, read from the sidecar file next to it, or built with a scan
+     * of the dill and written to the sidecar if that is missing or for other contents. A sidecar for the same
+     * contents but another stamp is written again with the new stamp.
+     */
+    public static DillIndex open(Path dill) throws IOException {
+        ByteBuffer bytes = BinaryBuilder.map(dill);
+        String filename = dill.getFileName().toString();
+        byte[] stamp = stamp(Files.readAttributes(dill, BasicFileAttributes.class));
+        Path sidecar = sidecar(dill);
+        DillIndex index = read(sidecar, bytes, filename);
+        if (index != null && Arrays.equals(index.stamp, stamp)) {
+            return index;
+        }
+        byte[] hash = sha256(bytes);
+        if (index == null || !Arrays.equals(index.hash, hash)) {
+            index = build(bytes, filename);
+        }
+        index.hash = hash;
+        index.stamp = stamp;
+        index.write(sidecar);
+        return index;
+    }
+
+    /** The sidecar file of the index of the given dill. */
+    public static Path sidecar(Path dill) {
+        return dill.resolveSibling(dill.getFileName() + SUFFIX);
+    }
+
+    /** Builds the index of the dill in the buffer with one sequential scan, without writing it anywhere. */
+    public static DillIndex build(ByteBuffer bytes, String filename) {
+        BinaryBuilder builder = new BinaryBuilder(new BinaryLoader(), bytes, filename);
+        Scan scan = new Scan();
+        builder.indexScan = scan;
+        LoadPlan plan = builder.readLoadPlan();
+        int[] libraryUris = new int[plan.libraryStarts.length];
+        for (int i = 0; i < libraryUris.length; ++i) {
+            libraryUris[i] = builder.getStringTable().indexOf(builder.importUri(i));
+        }
+        return new DillIndex(bytes, filename, plan, libraryUris,
+                Arrays.copyOf(scan.classNames, scan.classLength), Arrays.copyOf(scan.members, scan.memberLength));
+    }
+
+    /**
+     * The index in the sidecar, with the hash and stamp it was written for, or null if there is none, it is not
+     * for a file of this length, or it does not check or decode.
+     */
+    private static DillIndex read(Path sidecar, ByteBuffer bytes, String filename) {
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(sidecar));
+        } catch (IOException e) {
+            return null;
+        }
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getInt() != bytes.capacity()) {
+                return null;
+            }
+            long checksum = buffer.getLong();
+            if (crc32(buffer.array(), buffer.position(), buffer.remaining()) != checksum) {
+                return null;
+            }
+            byte[] hash = new byte[HASH_BYTES];
+            buffer.get(hash);
+            byte[] stamp = new byte[buffer.getInt()];
+            buffer.get(stamp);
+            LoadPlan plan = LoadPlan.read(buffer);
+            IntBuffer ints = buffer.asIntBuffer();
+            int[] libraryUris = readInts(ints);
+            int[] classNames = readInts(ints);
+            int[] members = readInts(ints);
+            DillIndex index = new DillIndex(bytes, filename, plan, libraryUris, classNames, members);
+            index.hash = hash;
+            index.stamp = stamp;
+            return index;
+        } catch (RuntimeException e) {
+            // Truncated or corrupt, e.g. a negative array length; rebuilt like a missing one.
+            return null;
+        }
+    }
+
+    private static int[] readInts(IntBuffer ints) {
+        int[] array = new int[ints.get()];
+        ints.get(array);
+        return array;
+    }
+
+    /**
+     * Writes the index with its hash and stamp through {@link #writeAtomically}, so a process never reads a
+     * partly written sidecar.
+     */
+    private void write(Path sidecar) {
+        int[][] arrays = {libraryUris, classNames, members};
+        int size = 20 + HASH_BYTES + 4 + stamp.length + plan.byteSize();
+        for (int[] array : arrays) {
+            size += 4 + 4 * array.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(bytes.capacity());
+        int checksumAt = buffer.position();
+        buffer.putLong(0);
+        buffer.put(hash);
+        buffer.putInt(stamp.length);
+        buffer.put(stamp);
+        plan.write(buffer);
+        for (int[] array : arrays) {
+            buffer.putInt(array.length);
+            buffer.asIntBuffer().put(array);
+            buffer.position(buffer.position() + 4 * array.length);
+        }
+        buffer.putLong(checksumAt, crc32(buffer.array(), checksumAt + 8, size - checksumAt - 8));
+        writeAtomically(sidecar, buffer.array());
+    }
+
+    /**
+     * The size, modification time and file key of a file. A file whose stamp is unchanged is taken to have the
+     * same contents; as with build tools that trust timestamps, a file rewritten in place with the same size
+     * within the resolution of its modification time is not noticed.
+     */
+    private static byte[] stamp(BasicFileAttributes attributes) {
+        Object fileKey = attributes.fileKey();
+        byte[] key = (fileKey == null ? "" : fileKey.toString()).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(16 + key.length);
+        buffer.putLong(attributes.size());
+        buffer.putLong(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+        buffer.put(key);
+        return buffer.array();
+    }
+
+    private static long crc32(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return crc.getValue();
+    }
+
+    private static byte[] sha256(ByteBuffer bytes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(bytes.duplicate());
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes the file through a temporary file in its directory moved into place atomically. A sidecar that
+     * cannot be written is left out; the index is built again next time.
+     */
+    private static void writeAtomically(Path path, byte[] contents) {
+        Path temporary = null;
+        try {
+            temporary = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+            Files.write(temporary, contents);
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException ignored) {
+                    // A stray temporary file only takes space.
+                }
+            }
+        }
+    }
+
+    /**
+     * A builder over the indexed dill with every library, class and member node created but none decoded,
+     * which decodes what is asked for with {@link BinaryBuilder#readIndexedLibrary},
+     * {@link BinaryBuilder#readIndexedClass} and {@link BinaryBuilder#readIndexedMember}.
+     */
+    public BinaryBuilder builder(BinaryLoader loader) {
+        BinaryBuilder builder = new BinaryBuilder(loader, bytes, filename);
+        builder.readIndexedHeader(this);
+        return builder;
+    }
+
+    LoadPlan plan() {
+        return plan;
+    }
+
+    public StringTable strings() {
+        return strings;
+    }
+
+    public int libraryCount() {
+        return libraryUris.length;
+    }
+
+    public int classCount() {
+        return classNames.length;
+    }
+
+    public int memberCount() {
+        return members.length / 3;
+    }
+
+    public String libraryUri(int library) {
+        return strings.get(libraryUris[library]);
+    }
+
+    public int libraryStart(int library) {
+        return plan.libraryStarts[library];
+    }
+
+    /** The index of the library with the given import URI, or -1. */
+    public int findLibrary(String importUri) {
+        for (int i = 0; i < libraryUris.length; ++i) {
+            if (strings.equals(libraryUris[i], importUri)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** The classes of the library are firstClass(library) until firstClass(library + 1). */
+    public int firstClass(int library) {
+        return plan.firstClass[library];
+    }
+
+    public String className(int classId) {
+        return strings.get(classNames[classId]);
+    }
+
+    public int classLibrary(int classId) {
+        return classLibraries[classId];
+    }
+
+    public int classStart(int classId) {
+        return plan.classStarts[classId];
+    }
+
+    /** The id of the class of the library with the given name, or -1. */
+    public int findClass(int library, String name) {
+        for (int k = plan.firstClass[library]; k < plan.firstClass[library + 1]; ++k) {
+            if (strings.equals(classNames[k], name)) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    /** The members of the class are firstMember(classId) until memberEnd(classId). */
+    public int firstMember(int classId) {
+        return classMembers[classId];
+    }
+
+    public int memberEnd(int classId) {
+        return classMembers[classId] + plan.classFields[classId] + plan.classConstructors[classId]
+                + plan.classProcedures[classId];
+    }
+
+    /** The top-level members of the library are firstLibraryMember(library) until libraryMemberEnd(library). */
+    public int firstLibraryMember(int library) {
+        return libraryMembers[library];
+    }
+
+    public int libraryMemberEnd(int library) {
+        return libraryMembers[library] + plan.libraryFields[library] + plan.libraryProcedures[library];
+    }
+
+    public int memberStart(int member) {
+        return members[3 * member];
+    }
+
+    /** {@link Tag#Field}, {@link Tag#Constructor} or {@link Tag#Procedure}. */
+    public int memberTag(int member) {
+        return members[3 * member + 1];
+    }
+
+    /** The text of the member's name, without the library of a private name. */
+    public String memberName(int member) {
+        return strings.get(memberNameIndex(member));
+    }
+
+    /** The string table index of {@link #memberName}. */
+    public int memberNameIndex(int member) {
+        return members[3 * member + 2];
+    }
+
+    /** The index of the {@code ProcedureKind} of a procedure, or -1 for fields and constructors. */
+    public int memberKind(int member) {
+        return memberTag(member) == Tag.Procedure ? bytes.get(memberStart(member) + 1) & 0xFF : -1;
+    }
+
+    /** The flags of the member, read from the dill where they follow the tag. */
+    public int memberFlags(int member) {
+        int at = memberStart(member) + 1;
+        switch (memberTag(member)) {
+            case Tag.Field: {
+                // After the file offset, a UInt of one, two or four bytes.
+                int first = bytes.get(at) & 0xFF;
+                at += (first & 0x80) == 0 ? 1 : (first & 0x40) == 0 ? 2 : 4;
+                break;
+            }
+            case Tag.Procedure:
+                // After the kind.
+                at++;
+                break;
+            default:
+        }
+        return bytes.get(at) & 0xFF;
+    }
+
+    public int memberLibrary(int member) {
+        int owner = memberOwners[member];
+        return owner >= 0 ? classLibraries[owner] : -1 - owner;
+    }
+
+    /** The class of the member, or -1 for a top-level member. */
+    public int memberClass(int member) {
+        return Math.max(memberOwners[member], -1);
+    }
+
+    /** The index of the member in the field, constructor or procedure list of its class or library. */
+    public int memberListIndex(int member) {
+        return memberListIndices[member];
+    }
+
+    /**
+     * The member that a reference reported by {@link BinaryEventReader.Handler#memberReference} refers to; the
+     * class index is ignored for references to library members.
+     */
+    public int referencedMember(int tag, int library, int classIndex, int index) {
+        switch (tag) {
+            case Tag.LibraryFieldReference:
+                return libraryMembers[library] + index;
+            case Tag.LibraryProcedureReference:
+                return libraryMembers[library] + plan.libraryFields[library] + index;
+            default:
+        }
+        int classId = plan.firstClass[library] + classIndex;
+        int member = classMembers[classId] + index;
+        if (tag == Tag.ClassFieldReference) {
+            return member;
+        }
+        member += plan.classFields[classId];
+        return tag == Tag.ClassConstructorReference ? member : member + plan.classConstructors[classId];
+    }
+
+    /** The main method of the program, or -1 if it has none. */
+    public int mainMethod() {
+        int[] main = {-1};
+        BinaryEventReader reader = eventReader();
+        reader.setHandler(new BinaryEventReader.Handler() {
+            @Override
+            public void memberReference(int tag, int library, int classIndex, int index) {
+                main[0] = referencedMember(tag, library, classIndex, index);
+            }
+        });
+        reader.readMemberReference(plan.mainStart);
+        return main[0];
+    }
+
+    /** A reader of the indexed dill, to walk the members and other parts the index locates. */
+    BinaryEventReader eventReader() {
+        return new BinaryEventReader(bytes, filename, strings, new StringTable(bytes, plan.uris));
+    }
+
+    /**
+     * The first member with the given name in the class, or among the top-level members of the library if
+     * {@code className} is null, or -1. A getter and setter share a name; the one encoded first is found.
+     */
+    public int findMember(String importUri, String className, String name) {
+        int library = findLibrary(importUri);
+        if (library < 0) {
+            return -1;
+        }
+        int start;
+        int end;
+        if (className == null) {
+            start = firstLibraryMember(library);
+            end = libraryMemberEnd(library);
+        } else {
+            int classId = findClass(library, className);
+            if (classId < 0) {
+                return -1;
+            }
+            start = firstMember(classId);
+            end = memberEnd(classId);
+        }
+        for (int m = start; m < end; ++m) {
+            if (strings.equals(members[3 * m + 2], name)) {
+                return m;
+            }
+        }
+        return -1;
+    }
+
+    /** Writes the sidecar index of each dill given, unless it is up to date. */
+    public static void main(String[] args) throws IOException {
+        for (String arg : args) {
+            long start = System.nanoTime();
+            DillIndex index = open(Paths.get(arg));
+            System.out.printf("%s: %d libraries, %d classes, %d members (%.1f ms)%n", sidecar(Paths.get(arg)),
+                    index.libraryCount(), index.classCount(), index.memberCount(), (System.nanoTime() - start) / 1e6);
+        }
+    }
+
+    /** What the skip scan of a builder records while an index is built. */
+    static final class Scan {
+        int[] members = new int[3 * 1024];
+        int memberLength;
+        int[] classNames = new int[256];
+        int classLength;
+
+        void member(int start, int tag, int name) {
+            if (memberLength + 3 > members.length) {
+                members = Arrays.copyOf(members, 2 * members.length);
+            }
+            members[memberLength++] = start;
+            members[memberLength++] = tag;
+            members[memberLength++] = name;
+        }
+
+        void className(int name) {
+            if (classLength == classNames.length) {
+                classNames = Arrays.copyOf(classNames, 2 * classLength);
+            }
+            classNames[classLength++] = name;
+        }
+    }
+}
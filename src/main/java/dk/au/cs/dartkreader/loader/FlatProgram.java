@@ -0,0 +1,520 @@
+package dk.au.cs.dartkreader.loader;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A program kept as a tree in int columns instead of as {@code A*} objects, for holding several large
+ * programs at once. Each node is a row of five columns: its kind, its first child, its next sibling, a
+ * payload and a file offset, with -1 for a missing child, sibling or offset. Strings stay in the string
+ * tables of the file, and declarations, member references and names, which need more than one int, are
+ * rows of side tables that the payload indexes.
+ * <p>
+ * The kinds of libraries, classes, members, initializers, statements, expressions and types are their tags,
+ * with specialized tags replaced by their general tag, so they are below 256; {@link #PROGRAM},
+ * {@link #LIBRARY}, {@link #NAME}, {@link #REFERENCE}, {@link #VARIABLE_DECLARATION}, {@link #TYPE_PARAMETER}
+ * and {@link #NAMED_TYPE} are the kinds added above them. The payload of a node depends on its kind:
+ * <ul>
+ * <li>libraries, classes, members and variable declarations: a row of the declarations, with the name,
+ * which is the import URI for libraries, the flags, and the procedure kind of procedures, the file URI of
+ * libraries or the stack index of variables;</li>
+ * <li>names and member references, and interface types: a row of the names or the references, the row of
+ * an interface type having the class index in its class column and -1 for its index;</li>
+ * <li>type parameters and named types of function types: the string index of their name;</li>
+ * <li>type parameter types: the index into the type parameters in scope, and function types: their number
+ * of required positional parameters;</li>
+ * <li>literals: the string index of strings, doubles, big integers and symbols, or the value of integers;</li>
+ * <li>variable gets and sets, breaks and switch continues: the index into the variable, label or switch
+ * case stack.</li>
+ * </ul>
+ * Node 0 is the program; its children are the libraries followed by the reference to the main method, if
+ * any. Children are in the order they are encoded. Types are nodes like any other, under the node they
+ * belong to: the type arguments of an interface type, the bound of a type parameter and the parameter and
+ * return types of a function type are its children. Function nodes are not kept as nodes of their own;
+ * their type parameters, parameters, return type and body are children of the member or expression
+ * declaring them, and their async marker and required parameter count are not kept.
+ */
+public final class FlatProgram {
+    public static final int PROGRAM = 256;
+    public static final int LIBRARY = 257;
+    public static final int NAME = 258;
+    public static final int REFERENCE = 259;
+    public static final int VARIABLE_DECLARATION = 260;
+    public static final int TYPE_PARAMETER = 261;
+    public static final int NAMED_TYPE = 262;
+
+    private final int[] kinds;
+    private final int[] firstChildren;
+    private final int[] nextSiblings;
+    private final int[] payloads;
+    private final int[] fileOffsets;
+    // Rows of three: name, flags and the procedure kind, file URI or stack index.
+    private final int[] declarations;
+    // Rows of four: tag, library, class or -1, and index, or -1 for classes.
+    private final int[] references;
+    // Rows of two: text and library, or -1 for public names.
+    private final int[] names;
+    private final StringTable strings;
+    private final StringTable sourceUris;
+
+    private FlatProgram(Builder builder, StringTable strings, StringTable sourceUris) {
+        int count = builder.count;
+        this.kinds = Arrays.copyOf(builder.kinds, count);
+        this.firstChildren = Arrays.copyOf(builder.firstChildren, count);
+        this.nextSiblings = Arrays.copyOf(builder.nextSiblings, count);
+        this.payloads = Arrays.copyOf(builder.payloads, count);
+        this.fileOffsets = Arrays.copyOf(builder.fileOffsets, count);
+        this.declarations = Arrays.copyOf(builder.declarations, builder.declarationSize);
+        this.references = Arrays.copyOf(builder.references, builder.referenceSize);
+        this.names = Arrays.copyOf(builder.names, builder.nameSize);
+        this.strings = strings;
+        this.sourceUris = sourceUris;
+    }
+
+    /** Reads the memory mapped file. */
+    public static FlatProgram read(Path path) throws IOException {
+        return read(new BinaryEventReader(path));
+    }
+
+    public static FlatProgram read(BinaryEventReader reader) {
+        // The sample files encode a node in about five bytes.
+        Builder builder = new Builder(Math.max(1024, reader.byteLength() / 4));
+        reader.read(builder);
+        return new FlatProgram(builder, reader.strings(), reader.sourceUris());
+    }
+
+    public int nodeCount() {
+        return kinds.length;
+    }
+
+    public int kind(int node) {
+        return kinds[node];
+    }
+
+    public int firstChild(int node) {
+        return firstChildren[node];
+    }
+
+    public int nextSibling(int node) {
+        return nextSiblings[node];
+    }
+
+    public int payload(int node) {
+        return payloads[node];
+    }
+
+    public int fileOffset(int node) {
+        return fileOffsets[node];
+    }
+
+    public StringTable strings() {
+        return strings;
+    }
+
+    public StringTable sourceUris() {
+        return sourceUris;
+    }
+
+    /** The name of a class, member, variable declaration or name node, or the import URI of a library. */
+    public String name(int node) {
+        int text = kinds[node] == NAME ? names[2 * payloads[node]] : declarations[3 * payloads[node]];
+        return strings.isEmpty(text) ? null : strings.get(text);
+    }
+
+    /** The library of a private name, or -1. */
+    public int nameLibrary(int node) {
+        return names[2 * payloads[node] + 1];
+    }
+
+    /** The flags of a library, class, member or variable declaration. */
+    public int flags(int node) {
+        return declarations[3 * payloads[node] + 1];
+    }
+
+    /** The procedure kind of a procedure, the file URI index of a library, or the stack index of a variable. */
+    public int declarationExtra(int node) {
+        return declarations[3 * payloads[node] + 2];
+    }
+
+    public int referenceTag(int node) {
+        return references[4 * payloads[node]];
+    }
+
+    public int referenceLibrary(int node) {
+        return references[4 * payloads[node] + 1];
+    }
+
+    /** The class of a class member reference or of an interface type, or -1 for library members. */
+    public int referenceClass(int node) {
+        return references[4 * payloads[node] + 2];
+    }
+
+    public int referenceIndex(int node) {
+        return references[4 * payloads[node] + 3];
+    }
+
+    /** Bytes of the columns and side tables, not counting the string tables, which are views of the file. */
+    public long sizeInBytes() {
+        return 4L * (5L * kinds.length + declarations.length + references.length + names.length);
+    }
+
+    /** A cursor at the program node. */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /** Moves over the tree, keeping the path from the program node to find parents. */
+    public final class Cursor {
+        private int node = 0;
+        private int[] path = new int[32];
+        private int depth = 0;
+
+        public int node() {
+            return node;
+        }
+
+        public int kind() {
+            return kinds[node];
+        }
+
+        public int payload() {
+            return payloads[node];
+        }
+
+        public int fileOffset() {
+            return fileOffsets[node];
+        }
+
+        /** Nodes above this one. */
+        public int depth() {
+            return depth;
+        }
+
+        public boolean toFirstChild() {
+            int child = firstChildren[node];
+            if (child < 0) {
+                return false;
+            }
+            if (depth == path.length) {
+                path = Arrays.copyOf(path, 2 * depth);
+            }
+            path[depth++] = node;
+            node = child;
+            return true;
+        }
+
+        public boolean toNextSibling() {
+            int sibling = nextSiblings[node];
+            if (sibling < 0) {
+                return false;
+            }
+            node = sibling;
+            return true;
+        }
+
+        public boolean toParent() {
+            if (depth == 0) {
+                return false;
+            }
+            node = path[--depth];
+            return true;
+        }
+
+        /** Moves to the next node in pre-order, returning false after the last one. */
+        public boolean toNext() {
+            if (toFirstChild()) {
+                return true;
+            }
+            do {
+                if (toNextSibling()) {
+                    return true;
+                }
+            } while (toParent());
+            return false;
+        }
+    }
+
+    /** Appends a row for each event, linking it after the last child of the innermost open node. */
+    private static final class Builder implements BinaryEventReader.Handler {
+        int[] kinds;
+        int[] firstChildren;
+        int[] nextSiblings;
+        int[] payloads;
+        int[] fileOffsets;
+        int count;
+        int[] declarations = new int[3 * 256];
+        int declarationSize;
+        int[] references = new int[4 * 256];
+        int referenceSize;
+        int[] names = new int[2 * 256];
+        int nameSize;
+        private final Map<Long, Integer> nameRows = new HashMap<>();
+
+        // The open nodes and their last child so far.
+        private int[] open = new int[64];
+        private int[] lastChild = new int[64];
+        private int depth;
+
+        Builder(int capacity) {
+            kinds = new int[capacity];
+            firstChildren = new int[capacity];
+            nextSiblings = new int[capacity];
+            payloads = new int[capacity];
+            fileOffsets = new int[capacity];
+            kinds[0] = PROGRAM;
+            firstChildren[0] = -1;
+            nextSiblings[0] = -1;
+            fileOffsets[0] = -1;
+            count = 1;
+            open[0] = 0;
+            lastChild[0] = -1;
+            depth = 1;
+        }
+
+        private int add(int kind, int payload, int fileOffset) {
+            if (count == kinds.length) {
+                int length = 2 * count;
+                kinds = Arrays.copyOf(kinds, length);
+                firstChildren = Arrays.copyOf(firstChildren, length);
+                nextSiblings = Arrays.copyOf(nextSiblings, length);
+                payloads = Arrays.copyOf(payloads, length);
+                fileOffsets = Arrays.copyOf(fileOffsets, length);
+            }
+            int node = count++;
+            kinds[node] = kind;
+            firstChildren[node] = -1;
+            nextSiblings[node] = -1;
+            payloads[node] = payload;
+            fileOffsets[node] = fileOffset;
+            int previous = lastChild[depth - 1];
+            if (previous < 0) {
+                firstChildren[open[depth - 1]] = node;
+            } else {
+                nextSiblings[previous] = node;
+            }
+            lastChild[depth - 1] = node;
+            return node;
+        }
+
+        private void enter(int kind, int payload, int fileOffset) {
+            int node = add(kind, payload, fileOffset);
+            if (depth == open.length) {
+                open = Arrays.copyOf(open, 2 * depth);
+                lastChild = Arrays.copyOf(lastChild, 2 * depth);
+            }
+            open[depth] = node;
+            lastChild[depth] = -1;
+            depth++;
+        }
+
+        private void exit() {
+            depth--;
+        }
+
+        private void setPayload(int payload) {
+            payloads[open[depth - 1]] = payload;
+        }
+
+        private int declaration(int name, int flags, int extra) {
+            if (declarationSize == declarations.length) {
+                declarations = Arrays.copyOf(declarations, 2 * declarationSize);
+            }
+            declarations[declarationSize++] = name;
+            declarations[declarationSize++] = flags;
+            declarations[declarationSize++] = extra;
+            return declarationSize / 3 - 1;
+        }
+
+        @Override
+        public void enterLibrary(int index, int flags, int name, int importUri, int fileUri) {
+            enter(LIBRARY, declaration(importUri, flags, fileUri), -1);
+        }
+
+        @Override
+        public void exitLibrary(int index) {
+            exit();
+        }
+
+        @Override
+        public void enterClass(int tag, int index, int flags, int name) {
+            enter(tag, declaration(name, flags, -1), -1);
+        }
+
+        @Override
+        public void exitClass(int tag, int index) {
+            exit();
+        }
+
+        @Override
+        public void enterMember(int tag, int index, int kind, int flags, int name) {
+            enter(tag, declaration(name, flags, kind), -1);
+        }
+
+        @Override
+        public void exitMember(int tag, int index) {
+            exit();
+        }
+
+        @Override
+        public void enterInitializer(int tag) {
+            enter(tag, 0, -1);
+        }
+
+        @Override
+        public void exitInitializer(int tag) {
+            exit();
+        }
+
+        @Override
+        public void enterStatement(int tag) {
+            enter(tag, 0, -1);
+        }
+
+        @Override
+        public void exitStatement(int tag) {
+            exit();
+        }
+
+        @Override
+        public void enterExpression(int tag, int offset) {
+            enter(tag, 0, offset);
+        }
+
+        @Override
+        public void exitExpression(int tag) {
+            exit();
+        }
+
+        @Override
+        public void enterVariableDeclaration(int index, int flags, int name) {
+            enter(VARIABLE_DECLARATION, declaration(name, flags, index), -1);
+        }
+
+        @Override
+        public void exitVariableDeclaration(int index) {
+            exit();
+        }
+
+        private int reference(int tag, int library, int classIndex, int index) {
+            if (referenceSize == references.length) {
+                references = Arrays.copyOf(references, 2 * referenceSize);
+            }
+            references[referenceSize++] = tag;
+            references[referenceSize++] = library;
+            references[referenceSize++] = classIndex;
+            references[referenceSize++] = index;
+            return referenceSize / 4 - 1;
+        }
+
+        @Override
+        public void memberReference(int tag, int library, int classIndex, int index) {
+            add(REFERENCE, reference(tag, library, classIndex, index), -1);
+        }
+
+        @Override
+        public void enterType(int tag) {
+            enter(tag, 0, -1);
+        }
+
+        @Override
+        public void exitType(int tag) {
+            exit();
+        }
+
+        @Override
+        public void classReference(int tag, int library, int index) {
+            setPayload(reference(tag, library, index, -1));
+        }
+
+        @Override
+        public void typeParameterReference(int index) {
+            setPayload(index);
+        }
+
+        @Override
+        public void requiredParameterCount(int count) {
+            setPayload(count);
+        }
+
+        @Override
+        public void enterTypeParameter(int name) {
+            enter(TYPE_PARAMETER, name, -1);
+        }
+
+        @Override
+        public void exitTypeParameter() {
+            exit();
+        }
+
+        @Override
+        public void enterNamedType(int name) {
+            enter(NAMED_TYPE, name, -1);
+        }
+
+        @Override
+        public void exitNamedType() {
+            exit();
+        }
+
+        /** Names repeat, so each distinct name has one row. */
+        @Override
+        public void name(int text, int library) {
+            Long key = ((long) text << 32) | (library & 0xFFFFFFFFL);
+            Integer row = nameRows.get(key);
+            if (row == null) {
+                if (nameSize == names.length) {
+                    names = Arrays.copyOf(names, 2 * nameSize);
+                }
+                names[nameSize++] = text;
+                names[nameSize++] = library;
+                row = nameSize / 2 - 1;
+                nameRows.put(key, row);
+            }
+            add(NAME, row, -1);
+        }
+
+        @Override
+        public void variableReference(int index) {
+            setPayload(index);
+        }
+
+        @Override
+        public void labelReference(int index) {
+            setPayload(index);
+        }
+
+        @Override
+        public void switchCaseReference(int index) {
+            setPayload(index);
+        }
+
+        @Override
+        public void stringLiteral(int string) {
+            setPayload(string);
+        }
+
+        /** Integer literals in the encoding are at most 30 bits, so they fit the payload. */
+        @Override
+        public void intLiteral(long value) {
+            setPayload((int) value);
+        }
+
+        @Override
+        public void bigIntLiteral(int string) {
+            setPayload(string);
+        }
+
+        @Override
+        public void doubleLiteral(int string) {
+            setPayload(string);
+        }
+
+        @Override
+        public void symbolLiteral(int string) {
+            setPayload(string);
+        }
+    }
+}
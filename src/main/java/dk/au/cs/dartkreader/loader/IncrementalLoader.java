@@ -0,0 +1,93 @@
+package dk.au.cs.dartkreader.loader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import dk.au.cs.ast.*;
+
+/**
+ * Loads successive versions of a dill, such as those written by a compiler in watch mode, reusing the nodes
+ * of the libraries that did not change. Each library is recognized by its import URI and compared by a
+ * digest of its byte range; only libraries that are new or whose digest changed are decoded. They are
+ * decoded into their existing {@link ALibrary} and into the class and member nodes already at each index,
+ * so references from the libraries that were kept resolve to the updated nodes.
+ * <p>
+ * Kept libraries are not decoded again and so still hold the nodes, and with lazy bodies the bytes, of the
+ * version they were read from. The bytes of each version are therefore read onto the heap rather than
+ * mapped, as the file is usually rewritten in place.
+ */
+public class IncrementalLoader {
+    private final BinaryLoader loader = new BinaryLoader();
+    private boolean lazyBodies = false;
+    private Map<String, ALibrary> libraries = new HashMap<>();
+    private Map<String, byte[]> digests = new HashMap<>();
+    private List<ALibrary> changed = Collections.emptyList();
+    private List<String> removed = Collections.emptyList();
+
+    public IncrementalLoader setLazyBodies(boolean lazyBodies) {
+        this.lazyBodies = lazyBodies;
+        return this;
+    }
+
+    public Program load(Path path) throws IOException {
+        return load(Files.readAllBytes(path), path.getFileName().toString());
+    }
+
+    public Program load(byte[] bytes, String filename) {
+        BinaryBuilder builder = new BinaryBuilder(loader, bytes, filename).setLazyBodies(lazyBodies);
+        List<byte[]> newDigests = new ArrayList<>();
+        LoadPlan plan = builder.readLoadPlan(newDigests);
+        List<ALibrary> importTable = new ArrayList<>();
+        boolean[] decode = new boolean[newDigests.size()];
+        Map<String, ALibrary> newLibraries = new HashMap<>();
+        Map<String, byte[]> digestsByUri = new HashMap<>();
+        List<ALibrary> newChanged = new ArrayList<>();
+        for (int i = 0; i < newDigests.size(); ++i) {
+            String importUri = builder.importUri(i);
+            ALibrary library = libraries.get(importUri);
+            if (library == null) {
+                library = ALibrary.build();
+            }
+            decode[i] = !Arrays.equals(newDigests.get(i), digests.get(importUri));
+            if (decode[i]) {
+                newChanged.add(library);
+            }
+            importTable.add(library);
+            newLibraries.put(importUri, library);
+            digestsByUri.put(importUri, newDigests.get(i));
+        }
+        Program program = builder.readProgramFile(plan, importTable, decode);
+
+        List<String> newRemoved = new ArrayList<>();
+        for (String importUri : libraries.keySet()) {
+            if (!newLibraries.containsKey(importUri)) {
+                newRemoved.add(importUri);
+            }
+        }
+        Collections.sort(newRemoved);
+        libraries = newLibraries;
+        digests = digestsByUri;
+        changed = Collections.unmodifiableList(newChanged);
+        removed = Collections.unmodifiableList(newRemoved);
+        return program;
+    }
+
+    /**
+     * The libraries decoded by the last load, in import table order: those that are new or changed. Every
+     * library of the first load is in it.
+     */
+    public List<ALibrary> changedLibraries() {
+        return changed;
+    }
+
+    /** Import URIs of the libraries the last load no longer has. */
+    public List<String> removedLibraries() {
+        return removed;
+    }
+}
@@ -0,0 +1,96 @@
+package dk.au.cs.dartkreader.loader;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import dk.au.cs.ast.LineStarts;
+
+/**
+ * Line starts of a dill file. Reading the source URI section only records where the delta-encoded line
+ * starts of each URI begin and how many there are; the deltas of a file are summed into an int[] the first
+ * time its lines are asked for. A URI is looked up in the table once; its index is kept for later lookups.
+ */
+final class LineStartTable extends LineStarts {
+    private final ByteBuffer bytes;
+    private final StringTable uris;
+    // The encoded line starts of URI i begin at ranges[2 * i] and there are ranges[2 * i + 1] of them.
+    private final int[] ranges;
+    private final AtomicReferenceArray<int[]> decoded;
+    private final ConcurrentHashMap<String, Integer> uriIndexes = new ConcurrentHashMap<>();
+
+    LineStartTable(ByteBuffer bytes, StringTable uris, int[] ranges) {
+        this.bytes = bytes;
+        this.uris = uris;
+        this.ranges = ranges;
+        this.decoded = new AtomicReferenceArray<>(uris.size());
+    }
+
+    int[] ranges() {
+        return ranges;
+    }
+
+    @Override
+    public List<String> fileUris() {
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                return uris.get(index);
+            }
+
+            @Override
+            public int size() {
+                return uris.size();
+            }
+        };
+    }
+
+    @Override
+    public int[] lineStarts(String fileUri) {
+        Integer index = uriIndexes.get(fileUri);
+        if (index == null) {
+            int found = uris.indexOf(fileUri);
+            if (found < 0) {
+                return null;
+            }
+            index = found;
+            uriIndexes.put(fileUri, index);
+        }
+        return lineStarts(index);
+    }
+
+    public int[] lineStarts(int uriIndex) {
+        int[] lines = decoded.get(uriIndex);
+        if (lines == null) {
+            lines = decode(uriIndex);
+            if (!decoded.compareAndSet(uriIndex, null, lines)) {
+                lines = decoded.get(uriIndex);
+            }
+        }
+        return lines;
+    }
+
+    private int[] decode(int uriIndex) {
+        int position = ranges[2 * uriIndex];
+        int[] lines = new int[ranges[2 * uriIndex + 1]];
+        int lineStart = 0;
+        for (int i = 0; i < lines.length; i++) {
+            int first = bytes.get(position++) & 0xFF;
+            int delta;
+            if ((first & 0x80) == 0) {
+                delta = first;
+            } else if ((first & 0x40) == 0) {
+                delta = ((first & 0x3F) << 8) | (bytes.get(position++) & 0xFF);
+            } else {
+                delta = ((first & 0x3F) << 24) |
+                        ((bytes.get(position++) & 0xFF) << 16) |
+                        ((bytes.get(position++) & 0xFF) << 8) |
+                        (bytes.get(position++) & 0xFF);
+            }
+            lineStart += delta;
+            lines[i] = lineStart;
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,91 @@
+package dk.au.cs.dartkreader.loader;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Where everything a {@link BinaryBuilder} scans for before decoding lies in one dill file: the entries of
+ * its string tables, the line starts of each source URI, and the byte ranges and member counts of every
+ * library and class. A builder given a plan takes its tables from it, creates every class and member node
+ * before decoding so that all references resolve to existing nodes, and seeks to the parts it decodes. A plan
+ * is only valid for the exact bytes it was read from.
+ */
+final class LoadPlan {
+    // Start and end of each string and source URI entry, as in StringTable.
+    final int[] strings;
+    final int[] uris;
+    // Start and count of the encoded line starts of each source URI, as in LineStartTable.
+    final int[] lineStarts;
+    // Per library: the byte index of its flags, of its field list, and its number of fields and procedures.
+    final int[] libraryStarts;
+    final int[] memberStarts;
+    final int[] libraryFields;
+    final int[] libraryProcedures;
+    // The classes of library i are firstClass[i] until firstClass[i + 1].
+    final int[] firstClass;
+    // Per class: the byte index of its tag, and its number of fields, constructors and procedures.
+    final int[] classStarts;
+    final int[] classFields;
+    final int[] classConstructors;
+    final int[] classProcedures;
+    final int mainStart;
+
+    LoadPlan(int[] strings, int[] uris, int[] lineStarts, int[] libraryStarts, int[] memberStarts,
+             int[] libraryFields, int[] libraryProcedures, int[] firstClass, int[] classStarts,
+             int[] classFields, int[] classConstructors, int[] classProcedures, int mainStart) {
+        this.strings = strings;
+        this.uris = uris;
+        this.lineStarts = lineStarts;
+        this.libraryStarts = libraryStarts;
+        this.memberStarts = memberStarts;
+        this.libraryFields = libraryFields;
+        this.libraryProcedures = libraryProcedures;
+        this.firstClass = firstClass;
+        this.classStarts = classStarts;
+        this.classFields = classFields;
+        this.classConstructors = classConstructors;
+        this.classProcedures = classProcedures;
+        this.mainStart = mainStart;
+    }
+
+    private int[][] arrays() {
+        return new int[][]{strings, uris, lineStarts, libraryStarts, memberStarts, libraryFields,
+                libraryProcedures, firstClass, classStarts, classFields, classConstructors, classProcedures};
+    }
+
+    int byteSize() {
+        int size = 4;
+        for (int[] array : arrays()) {
+            size += 4 + 4 * array.length;
+        }
+        return size;
+    }
+
+    /**
+     * Writes the plan as length-prefixed big-endian int arrays and the main method start. The file embedding
+     * it versions the layout.
+     */
+    void write(ByteBuffer buffer) {
+        IntBuffer ints = buffer.asIntBuffer();
+        for (int[] array : arrays()) {
+            ints.put(array.length);
+            ints.put(array);
+        }
+        ints.put(mainStart);
+        buffer.position(buffer.position() + 4 * ints.position());
+    }
+
+    /** The plan written at the position of the buffer. */
+    static LoadPlan read(ByteBuffer buffer) {
+        IntBuffer ints = buffer.asIntBuffer();
+        int[][] arrays = new int[12][];
+        for (int i = 0; i < arrays.length; i++) {
+            arrays[i] = new int[ints.get()];
+            ints.get(arrays[i]);
+        }
+        int mainStart = ints.get();
+        buffer.position(buffer.position() + 4 * ints.position());
+        return new LoadPlan(arrays[0], arrays[1], arrays[2], arrays[3], arrays[4], arrays[5], arrays[6],
+                arrays[7], arrays[8], arrays[9], arrays[10], arrays[11], mainStart);
+    }
+}
@@ -0,0 +1,109 @@
+package dk.au.cs.dartkreader.loader;
+
+import java.util.Arrays;
+
+/**
+ * Counts the classes, members, initializers, statements, expressions and types of a library, and their bytes,
+ * into {@link LoadStats}, by walking the library with a {@link BinaryEventReader}. The bytes of a node do not
+ * include the bytes of the nodes nested in it. A builder recording stats walks each library it decodes once
+ * more with a counter, so that decoding itself does not count.
+ */
+final class NodeCounter implements BinaryEventReader.Handler {
+    private final LoadStats stats;
+    private final BinaryEventReader reader;
+    // Per open node: the byte index of its tag and the bytes of the nodes nested in it so far.
+    private int[] starts = new int[64];
+    private int[] nested = new int[64];
+    private int depth;
+
+    NodeCounter(LoadStats stats, BinaryEventReader reader) {
+        this.stats = stats;
+        this.reader = reader;
+        reader.setHandler(this);
+    }
+
+    /** Counts the nodes of the library at the given index of the import table, starting at {@code start}. */
+    void countLibrary(int start, int index) {
+        reader.seek(start);
+        reader.readLibrary(index);
+    }
+
+    private void enter() {
+        if (depth == starts.length) {
+            starts = Arrays.copyOf(starts, 2 * depth);
+            nested = Arrays.copyOf(nested, 2 * depth);
+        }
+        starts[depth] = reader.nodeStart();
+        nested[depth] = 0;
+        depth++;
+    }
+
+    private void exit(int tag) {
+        depth--;
+        int bytes = reader.byteIndex() - starts[depth];
+        stats.node(tag, bytes - nested[depth]);
+        if (depth > 0) {
+            nested[depth - 1] += bytes;
+        }
+    }
+
+    @Override
+    public void enterClass(int tag, int index, int flags, int name) {
+        enter();
+    }
+
+    @Override
+    public void exitClass(int tag, int index) {
+        exit(tag);
+    }
+
+    @Override
+    public void enterMember(int tag, int index, int kind, int flags, int name) {
+        enter();
+    }
+
+    @Override
+    public void exitMember(int tag, int index) {
+        exit(tag);
+    }
+
+    @Override
+    public void enterInitializer(int tag) {
+        enter();
+    }
+
+    @Override
+    public void exitInitializer(int tag) {
+        exit(tag);
+    }
+
+    @Override
+    public void enterStatement(int tag) {
+        enter();
+    }
+
+    @Override
+    public void exitStatement(int tag) {
+        exit(tag);
+    }
+
+    @Override
+    public void enterExpression(int tag, int offset) {
+        enter();
+    }
+
+    @Override
+    public void exitExpression(int tag) {
+        exit(tag);
+    }
+
+    @Override
+    public void enterType(int tag) {
+        enter();
+    }
+
+    @Override
+    public void exitType(int tag) {
+        exit(tag);
+    }
+}
@@ -0,0 +1,130 @@
+package dk.au.cs.dartkreader.loader;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.BitSet;
+import dk.au.cs.ast.TransformerFlag;
+
+/**
+ * The walk a {@link BinaryBuilder} skips classes, member lists and bodies with instead of reading them: the
+ * walk of a {@link BinaryEventReader} over the bytes of the builder, handling its own events. Transformer
+ * flags are still recorded, so that they are correct on a member before its body is decoded, and the
+ * classes and members skipped are recorded for a dill index when there is a scan.
+ * <p>
+ * While a digest is set, the bytes walked are fed to it, except that references to strings and source URIs
+ * are fed as a 64-bit hash of the entry they refer to, and references to libraries by index, with the
+ * libraries referenced collected for the builder to digest their import URIs.
+ */
+final class SkipScanner extends BinaryEventReader implements BinaryEventReader.Handler {
+    private final ByteBuffer bytes;
+    private final StringTable strings;
+    private final StringTable sourceUris;
+    private int transformerFlags;
+    private final DillIndex.Scan indexScan;
+
+    // Set while digesting libraries; digestedUpTo is where the bytes not yet fed to it start.
+    MessageDigest digest;
+    private int digestedUpTo;
+    // Libraries referenced by the library being digested.
+    final BitSet referencedLibraries = new BitSet();
+    private final byte[] digestScratch = new byte[8];
+
+    SkipScanner(ByteBuffer bytes, String filename, StringTable strings, StringTable sourceUris,
+                DillIndex.Scan indexScan) {
+        super(bytes, filename, strings, sourceUris);
+        this.bytes = bytes;
+        this.strings = strings;
+        this.sourceUris = sourceUris;
+        this.indexScan = indexScan;
+        setHandler(this);
+    }
+
+    /** The transformer flags seen since the last call. */
+    int takeTransformerFlags() {
+        int flags = transformerFlags;
+        transformerFlags = 0;
+        return flags;
+    }
+
+    @Override
+    public void enterExpression(int tag, int offset) {
+        switch (tag) {
+            case Tag.SuperPropertyGet:
+            case Tag.SuperPropertySet:
+            case Tag.SuperMethodInvocation:
+                transformerFlags |= TransformerFlag.superCalls().id();
+                break;
+            default:
+        }
+    }
+
+    @Override
+    public void enterClass(int tag, int index, int flags, int name) {
+        if (indexScan != null) {
+            indexScan.className(name);
+        }
+    }
+
+    @Override
+    public void enterMember(int tag, int index, int kind, int flags, int name) {
+        if (indexScan != null) {
+            indexScan.member(nodeStart(), tag, name);
+        }
+    }
+
+    @Override
+    void stringReference(int start, int index) {
+        if (digest != null) {
+            digestReference(start, strings.contentHash(index));
+        }
+    }
+
+    @Override
+    void uriReference(int start, int index) {
+        if (digest != null) {
+            digestReference(start, sourceUris.contentHash(index));
+        }
+    }
+
+    @Override
+    void libraryReference(int start, int index) {
+        if (digest != null) {
+            digestReference(start, index);
+            referencedLibraries.set(index);
+        }
+    }
+
+    /** Starts feeding the bytes from {@code start} on. */
+    void digestFrom(int start) {
+        digestedUpTo = start;
+    }
+
+    /**
+     * Feeds the bytes skipped since the last reference, up to the reference starting at {@code start}, and
+     * then the hash of what the reference refers to.
+     */
+    private void digestReference(int start, long referent) {
+        digestSkipped(start);
+        digestLong(referent);
+        digestedUpTo = byteIndex();
+    }
+
+    void digestLong(long value) {
+        for (int i = 0; i < 8; i++) {
+            digestScratch[i] = (byte) (value >>> (56 - 8 * i));
+        }
+        digest.update(digestScratch);
+    }
+
+    /** Feeds the bytes not fed yet up to {@code end}. */
+    void digestSkipped(int end) {
+        if (bytes.hasArray()) {
+            digest.update(bytes.array(), bytes.arrayOffset() + digestedUpTo, end - digestedUpTo);
+        } else {
+            ByteBuffer skipped = bytes.duplicate();
+            skipped.limit(end).position(digestedUpTo);
+            digest.update(skipped);
+        }
+        digestedUpTo = end;
+    }
+}
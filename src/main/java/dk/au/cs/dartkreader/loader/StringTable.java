@@ -0,0 +1,208 @@
+package dk.au.cs.dartkreader.loader;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A string table of a dill file. Reading the table only records where each UTF-8 entry starts and ends;
+ * an entry is decoded the first time it is asked for, and later requests return the same instance.
+ * Entries can also be compared or looked up as raw bytes without decoding them.
+ */
+public final class StringTable {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[256]);
+
+    private final ByteBuffer bytes;
+    // Start and end of entry i are at offsets[2 * i] and offsets[2 * i + 1].
+    private final int[] offsets;
+    private final String[] strings;
+    // Built once under the lock of the table; read without it afterwards.
+    private volatile int[] hashIndex;
+    // Racing threads at worst compute the same hash twice.
+    private long[] contentHashes;
+    LoadStats stats;
+
+    StringTable(ByteBuffer bytes, int[] offsets) {
+        this.bytes = bytes;
+        this.offsets = offsets;
+        this.strings = new String[offsets.length / 2];
+    }
+
+    /** A table over the same entries as {@code other} with none of them decoded yet. */
+    StringTable(StringTable other) {
+        this(other.bytes, other.offsets);
+    }
+
+    int[] offsets() {
+        return offsets;
+    }
+
+    public int size() {
+        return strings.length;
+    }
+
+    public String get(int index) {
+        String string = strings[index];
+        if (stats != null) {
+            stats.string(string != null);
+        }
+        if (string == null) {
+            // Strings are immutable, so a racing thread at worst decodes the entry again; the first one
+            // stored wins so that every caller ends up with the same instance.
+            string = decode(index);
+            synchronized (strings) {
+                if (strings[index] == null) {
+                    strings[index] = string;
+                } else {
+                    string = strings[index];
+                }
+            }
+        }
+        return string;
+    }
+
+    /** Byte length of the UTF-8 encoding of the entry. */
+    public int byteLength(int index) {
+        return offsets[2 * index + 1] - offsets[2 * index];
+    }
+
+    public boolean isEmpty(int index) {
+        return byteLength(index) == 0;
+    }
+
+    /** Whether the entry starts with an underscore, i.e. names a private member. */
+    public boolean isPrivateName(int index) {
+        return byteLength(index) > 0 && bytes.get(offsets[2 * index]) == '_';
+    }
+
+    /**
+     * A 64-bit FNV-1a hash of the UTF-8 bytes of the entry, computed once. Digests of the bytes that refer to
+     * an entry are fed this hash in place of the entry itself.
+     */
+    long contentHash(int index) {
+        long[] hashes = contentHashes;
+        if (hashes == null) {
+            hashes = contentHashes = new long[strings.length];
+        }
+        long hash = hashes[index];
+        if (hash == 0) {
+            hash = FNV_OFFSET;
+            for (int i = offsets[2 * index], end = offsets[2 * index + 1]; i < end; i++) {
+                hash = (hash ^ (bytes.get(i) & 0xFF)) * FNV_PRIME;
+            }
+            hashes[index] = hash;
+        }
+        return hash;
+    }
+
+    static long contentHash(byte[] utf8) {
+        long hash = FNV_OFFSET;
+        for (byte b : utf8) {
+            hash = (hash ^ (b & 0xFF)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /** Compares the entry with the given UTF-8 bytes without decoding it. */
+    public boolean equals(int index, byte[] utf8) {
+        int start = offsets[2 * index];
+        if (offsets[2 * index + 1] - start != utf8.length) {
+            return false;
+        }
+        for (int i = 0; i < utf8.length; i++) {
+            if (bytes.get(start + i) != utf8[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean equals(int index, String string) {
+        String decoded = strings[index];
+        if (decoded != null) {
+            return decoded.equals(string);
+        }
+        return equals(index, string.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Index of the entry with the given UTF-8 bytes, or -1. The first lookup builds a hash index over the raw
+     * bytes of all entries; no entry is decoded.
+     */
+    public int indexOf(byte[] utf8) {
+        int[] index = hashIndex();
+        int mask = index.length - 1;
+        for (int slot = hashBytes(utf8) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+            int candidate = index[slot] - 1;
+            if (equals(candidate, utf8)) {
+                return candidate;
+            }
+        }
+        return -1;
+    }
+
+    public int indexOf(String string) {
+        return indexOf(string.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private int[] hashIndex() {
+        int[] built = hashIndex;
+        return built != null ? built : buildHashIndex();
+    }
+
+    private synchronized int[] buildHashIndex() {
+        if (hashIndex == null) {
+            // Slots hold entry index + 1 so that 0 marks an empty slot.
+            int[] index = new int[BinaryLoader._pow2roundup(Math.max(2, strings.length * 2))];
+            int mask = index.length - 1;
+            for (int i = 0; i < strings.length; i++) {
+                int slot = hashEntry(i) & mask;
+                while (index[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                index[slot] = i + 1;
+            }
+            hashIndex = index;
+        }
+        return hashIndex;
+    }
+
+    private int hashEntry(int index) {
+        int hash = 1;
+        for (int i = offsets[2 * index], end = offsets[2 * index + 1]; i < end; i++) {
+            hash = 31 * hash + bytes.get(i);
+        }
+        return mix(hash);
+    }
+
+    private static int hashBytes(byte[] utf8) {
+        int hash = 1;
+        for (byte b : utf8) {
+            hash = 31 * hash + b;
+        }
+        return mix(hash);
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private String decode(int index) {
+        int start = offsets[2 * index];
+        int length = offsets[2 * index + 1] - start;
+        // Unlike Dart's Utf8Decoder, the JDK decoder keeps leading byte order marks as U+FEFF.
+        if (bytes.hasArray()) {
+            return new String(bytes.array(), bytes.arrayOffset() + start, length, StandardCharsets.UTF_8);
+        }
+        byte[] utf8 = scratch.get();
+        if (utf8.length < length) {
+            utf8 = new byte[Math.max(length, 2 * utf8.length)];
+            scratch.set(utf8);
+        }
+        for (int i = 0; i < length; i++) {
+            utf8[i] = bytes.get(start + i);
+        }
+        return new String(utf8, 0, length, StandardCharsets.UTF_8);
+    }
+}
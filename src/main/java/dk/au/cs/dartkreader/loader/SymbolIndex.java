@@ -0,0 +1,324 @@
+package dk.au.cs.dartkreader.loader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import dk.au.cs.ast.AClass;
+import dk.au.cs.ast.ALibrary;
+import dk.au.cs.ast.AMember;
+import dk.au.cs.ast.TreeNode;
+
+/**
+ * The libraries, classes and members of a program by qualified name, filled in by a builder given the index
+ * with {@link BinaryBuilder#setSymbolIndex} as it decodes them. A symbol is keyed by the import URI of its
+ * library, its class name and its member name, interned as their index in the string table of the file, and
+ * for a private name the index in the import table of the library it is private to, so a key is four ints.
+ * The keys are kept in an open addressing table of ints. A lookup turns its strings into string table indices,
+ * through the hash index of the table the first time and a map of the strings found after that, and probes
+ * the table once.
+ * <p>
+ * A getter and a setter share their key; {@link #members} returns both. Prefix and wildcard queries run over
+ * the qualified names, such as {@code dart:core::List::add}, which are sorted the first time one is asked for.
+ * An index holds the symbols of one file. All methods are thread safe, so a parallel load can fill it.
+ */
+public final class SymbolIndex {
+    private static final int NONE = -1;
+
+    private StringTable strings;
+    // Per symbol: import URI, class name and member name as string table indices, and the import table index
+    // of the library of a private name, or NONE.
+    private int[] keys = new int[4 * 1024];
+    private TreeNode[] nodes = new TreeNode[1024];
+    // The import table index of a library symbol, NONE for other symbols.
+    private int[] importTableIndices = new int[1024];
+    // The next symbol with the same key, or NONE.
+    private int[] next = new int[1024];
+    private int size;
+    // Open addressing table of the first symbol of each key, plus one; 0 is an empty slot.
+    private int[] table = new int[2048];
+    private int keyCount;
+    // Symbol of each library and class added, to find the key of what they contain.
+    private final Map<TreeNode, Integer> containers = new IdentityHashMap<>();
+    // String table index of each string a lookup found, so that repeated lookups do not encode and hash it.
+    private final Map<String, Integer> interned = new HashMap<>();
+    // Symbols sorted by qualified name, built by the first query and dropped when a symbol is added.
+    private int[] sorted;
+    private String[] qualifiedNames;
+
+    synchronized void addLibrary(StringTable strings, int importUri, int importTableIndex, ALibrary node) {
+        if (this.strings == null) {
+            this.strings = strings;
+        } else if (this.strings != strings) {
+            throw new IllegalStateException("A symbol index holds the symbols of one file");
+        }
+        int symbol = add(importUri, NONE, NONE, NONE, node);
+        importTableIndices[symbol] = importTableIndex;
+        containers.put(node, symbol);
+    }
+
+    synchronized void addClass(ALibrary library, int name, AClass node) {
+        Integer container = containers.get(library);
+        if (container != null) {
+            containers.put(node, add(keys[4 * container], name, NONE, NONE, node));
+        }
+    }
+
+    synchronized void addMember(ALibrary library, AClass owner, int name, int privateLibrary, AMember node) {
+        Integer container = containers.get(owner != null ? owner : library);
+        if (container != null) {
+            add(keys[4 * container], keys[4 * container + 1], name, privateLibrary, node);
+        }
+    }
+
+    /** Adds the symbol unless the node is there already, as when a member is decoded again, and returns it. */
+    private int add(int importUri, int className, int name, int privateLibrary, TreeNode node) {
+        int slot = find(importUri, className, name, privateLibrary);
+        int last = NONE;
+        for (int symbol = table[slot] - 1; symbol != NONE; symbol = next[symbol]) {
+            if (nodes[symbol] == node) {
+                return symbol;
+            }
+            last = symbol;
+        }
+        if (size == nodes.length) {
+            keys = Arrays.copyOf(keys, 8 * size);
+            nodes = Arrays.copyOf(nodes, 2 * size);
+            next = Arrays.copyOf(next, 2 * size);
+            importTableIndices = Arrays.copyOf(importTableIndices, 2 * size);
+        }
+        int symbol = size++;
+        keys[4 * symbol] = importUri;
+        keys[4 * symbol + 1] = className;
+        keys[4 * symbol + 2] = name;
+        keys[4 * symbol + 3] = privateLibrary;
+        nodes[symbol] = node;
+        next[symbol] = NONE;
+        importTableIndices[symbol] = NONE;
+        sorted = null;
+        if (last != NONE) {
+            next[last] = symbol;
+        } else {
+            table[slot] = symbol + 1;
+            if (2 * ++keyCount > table.length) {
+                rehash();
+            }
+        }
+        return symbol;
+    }
+
+    /** The slot of the key, or the empty slot where it goes. */
+    private int find(int importUri, int className, int name, int privateLibrary) {
+        int mask = table.length - 1;
+        int slot = hash(importUri, className, name, privateLibrary) & mask;
+        while (true) {
+            int symbol = table[slot] - 1;
+            if (symbol == NONE || keys[4 * symbol] == importUri && keys[4 * symbol + 1] == className
+                    && keys[4 * symbol + 2] == name && keys[4 * symbol + 3] == privateLibrary) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void rehash() {
+        int[] old = table;
+        table = new int[2 * old.length];
+        for (int entry : old) {
+            if (entry != 0) {
+                int symbol = entry - 1;
+                table[find(keys[4 * symbol], keys[4 * symbol + 1], keys[4 * symbol + 2], keys[4 * symbol + 3])] = entry;
+            }
+        }
+    }
+
+    private static int hash(int importUri, int className, int name, int privateLibrary) {
+        int h = ((importUri * 31 + className) * 31 + name) * 31 + privateLibrary;
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /** Symbols added so far. */
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized ALibrary library(String importUri) {
+        return (ALibrary) first(importUri, null, null, null);
+    }
+
+    public synchronized AClass classNode(String importUri, String name) {
+        return (AClass) first(importUri, name, null, null);
+    }
+
+    /**
+     * The member with the given name in the class, or among the top-level members of the library if
+     * {@code className} is null, or null. A private name is taken to be private to the library.
+     */
+    public synchronized AMember member(String importUri, String className, String name) {
+        return (AMember) first(importUri, className, name, null);
+    }
+
+    /** As above, for a private name of the library with import URI {@code privateLibrary}. */
+    public synchronized AMember member(String importUri, String className, String name, String privateLibrary) {
+        return (AMember) first(importUri, className, name, privateLibrary);
+    }
+
+    /** Every member with the key, such as both a getter and a setter, in the order they were decoded. */
+    public synchronized List<AMember> members(String importUri, String className, String name) {
+        return members(importUri, className, name, null);
+    }
+
+    /**
+     * As above, for a private name of the library with import URI {@code privateLibrary}, as the members a
+     * mixin application copies from a mixin of another library have.
+     */
+    public synchronized List<AMember> members(String importUri, String className, String name,
+                                              String privateLibrary) {
+        List<AMember> members = new ArrayList<>();
+        for (int symbol = lookup(importUri, className, name, privateLibrary); symbol != NONE; symbol = next[symbol]) {
+            members.add((AMember) nodes[symbol]);
+        }
+        return members;
+    }
+
+    private TreeNode first(String importUri, String className, String name, String privateLibrary) {
+        int symbol = lookup(importUri, className, name, privateLibrary);
+        return symbol == NONE ? null : nodes[symbol];
+    }
+
+    private int lookup(String importUri, String className, String name, String privateLibrary) {
+        if (strings == null) {
+            return NONE;
+        }
+        int uri = intern(importUri);
+        int classIndex = className == null ? NONE : intern(className);
+        int nameIndex = name == null ? NONE : intern(name);
+        if (uri < 0 || className != null && classIndex < 0 || name != null && nameIndex < 0) {
+            return NONE;
+        }
+        int privateIndex = NONE;
+        if (name != null && name.startsWith("_")) {
+            int library = privateLibrary == null ? uri : intern(privateLibrary);
+            int symbol = library < 0 ? NONE : table[find(library, NONE, NONE, NONE)] - 1;
+            if (symbol == NONE) {
+                return NONE;
+            }
+            privateIndex = importTableIndices[symbol];
+        }
+        return table[find(uri, classIndex, nameIndex, privateIndex)] - 1;
+    }
+
+    private int intern(String string) {
+        Integer index = interned.get(string);
+        if (index != null) {
+            return index;
+        }
+        int found = strings.indexOf(string);
+        if (found >= 0) {
+            interned.put(string, found);
+        }
+        return found;
+    }
+
+    /** Symbols whose qualified name starts with the prefix, in order of qualified name. */
+    public synchronized List<TreeNode> withPrefix(String prefix) {
+        sort();
+        List<TreeNode> result = new ArrayList<>();
+        for (int i = lowerBound(prefix); i < size && qualifiedNames[sorted[i]].startsWith(prefix); i++) {
+            result.add(nodes[sorted[i]]);
+        }
+        return result;
+    }
+
+    /**
+     * Symbols whose qualified name matches the pattern, in which {@code *} stands for any run of characters
+     * and {@code ?} for any one character, in order of qualified name. The part of the pattern before its
+     * first wildcard narrows the search like a prefix.
+     */
+    public synchronized List<TreeNode> matching(String pattern) {
+        sort();
+        int wildcard = 0;
+        while (wildcard < pattern.length() && pattern.charAt(wildcard) != '*' && pattern.charAt(wildcard) != '?') {
+            wildcard++;
+        }
+        String prefix = pattern.substring(0, wildcard);
+        List<TreeNode> result = new ArrayList<>();
+        for (int i = lowerBound(prefix); i < size && qualifiedNames[sorted[i]].startsWith(prefix); i++) {
+            if (matches(pattern, qualifiedNames[sorted[i]])) {
+                result.add(nodes[sorted[i]]);
+            }
+        }
+        return result;
+    }
+
+    private String qualifiedName(int symbol) {
+        StringBuilder builder = new StringBuilder(strings.get(keys[4 * symbol]));
+        for (int part = 1; part <= 2; part++) {
+            if (keys[4 * symbol + part] != NONE) {
+                builder.append("::").append(strings.get(keys[4 * symbol + part]));
+            }
+        }
+        return builder.toString();
+    }
+
+    private void sort() {
+        if (sorted != null) {
+            return;
+        }
+        qualifiedNames = new String[size];
+        Integer[] order = new Integer[size];
+        for (int symbol = 0; symbol < size; symbol++) {
+            qualifiedNames[symbol] = qualifiedName(symbol);
+            order[symbol] = symbol;
+        }
+        Arrays.sort(order, (a, b) -> qualifiedNames[a].compareTo(qualifiedNames[b]));
+        sorted = new int[size];
+        for (int i = 0; i < size; i++) {
+            sorted[i] = order[i];
+        }
+    }
+
+    /** The first position in the sorted symbols whose qualified name is not less than the key. */
+    private int lowerBound(String key) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (qualifiedNames[sorted[middle]].compareTo(key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /** Glob matching with backtracking to the last {@code *}, linear in practice. */
+    static boolean matches(String pattern, String text) {
+        int p = 0;
+        int t = 0;
+        int star = NONE;
+        int starText = 0;
+        while (t < text.length()) {
+            if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == text.charAt(t))) {
+                p++;
+                t++;
+            } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                star = p++;
+                starText = t;
+            } else if (star != NONE) {
+                p = star + 1;
+                t = ++starText;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+}
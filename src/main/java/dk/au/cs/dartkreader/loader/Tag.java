@@ -0,0 +1,127 @@
+package dk.au.cs.dartkreader.loader;
+
+/**
+ * Node tags as plain int constants, so that the decoder can dispatch on them with {@code switch}.
+ * Must agree with {@link dk.au.cs.ast.AnyTag}, which is kept for naming tags in error messages.
+ */
+public final class Tag {
+    private Tag() {
+    }
+
+    public static final int Nothing = 0;
+    public static final int Something = 1;
+
+    public static final int BottomType = 89;
+    public static final int InvalidType = 90;
+    public static final int DynamicType = 91;
+    public static final int VoidType = 92;
+    public static final int InterfaceType = 93;
+    public static final int FunctionType = 94;
+    public static final int TypeParameterType = 95;
+    public static final int SimpleInterfaceType = 96;
+    public static final int SimpleFunctionType = 97;
+
+    public static final int NormalClass = 2;
+    public static final int MixinClass = 3;
+
+    public static final int Field = 4;
+    public static final int Constructor = 5;
+    public static final int Procedure = 6;
+
+    public static final int InvalidInitializer = 7;
+    public static final int FieldInitializer = 8;
+    public static final int SuperInitializer = 9;
+    public static final int RedirectingInitializer = 10;
+    public static final int LocalInitializer = 11;
+
+    public static final int DirectPropertyGet = 15;
+    public static final int DirectPropertySet = 16;
+    public static final int DirectMethodInvocation = 17;
+    public static final int ConstStaticInvocation = 18;
+    public static final int InvalidExpression = 19;
+    public static final int VariableGet = 20;
+    public static final int VariableSet = 21;
+    public static final int PropertyGet = 22;
+    public static final int PropertySet = 23;
+    public static final int SuperPropertyGet = 24;
+    public static final int SuperPropertySet = 25;
+    public static final int StaticGet = 26;
+    public static final int StaticSet = 27;
+    public static final int MethodInvocation = 28;
+    public static final int SuperMethodInvocation = 29;
+    public static final int StaticInvocation = 30;
+    public static final int ConstructorInvocation = 31;
+    public static final int ConstConstructorInvocation = 32;
+    public static final int Not = 33;
+    public static final int LogicalExpression = 34;
+    public static final int ConditionalExpression = 35;
+    public static final int StringConcatenation = 36;
+    public static final int IsExpression = 37;
+    public static final int AsExpression = 38;
+    public static final int StringLiteral = 39;
+    public static final int DoubleLiteral = 40;
+    public static final int TrueLiteral = 41;
+    public static final int FalseLiteral = 42;
+    public static final int NullLiteral = 43;
+    public static final int SymbolLiteral = 44;
+    public static final int TypeLiteral = 45;
+    public static final int ThisExpression = 46;
+    public static final int Rethrow = 47;
+    public static final int Throw = 48;
+    public static final int ListLiteral = 49;
+    public static final int MapLiteral = 50;
+    public static final int AwaitExpression = 51;
+    public static final int FunctionExpression = 52;
+    public static final int Let = 53;
+    public static final int BlockExpression = 54;
+    public static final int PositiveIntLiteral = 55;
+    public static final int NegativeIntLiteral = 56;
+    public static final int BigIntLiteral = 57;
+    public static final int ConstListLiteral = 58;
+    public static final int ConstMapLiteral = 59;
+
+    public static final int NullReference = 99;
+    public static final int NormalClassReference = 100;
+    public static final int MixinClassReference = 101;
+
+    public static final int LibraryFieldReference = 102;
+    public static final int ClassFieldReference = 103;
+    public static final int ClassConstructorReference = 104;
+    public static final int LibraryProcedureReference = 105;
+    public static final int ClassProcedureReference = 106;
+
+    public static final int SpecializedVariableGet = 128;
+    public static final int SpecializedVariableSet = 136;
+    public static final int SpecializedIntLiteral = 144;
+
+    public static final int InvalidStatement = 60;
+    public static final int ExpressionStatement = 61;
+    public static final int Block = 62;
+    public static final int EmptyStatement = 63;
+    public static final int AssertStatement = 64;
+    public static final int LabeledStatement = 65;
+    public static final int BreakStatement = 66;
+    public static final int WhileStatement = 67;
+    public static final int DoStatement = 68;
+    public static final int ForStatement = 69;
+    public static final int ForInStatement = 70;
+    public static final int SwitchStatement = 71;
+    public static final int ContinueSwitchStatement = 72;
+    public static final int IfStatement = 73;
+    public static final int ReturnStatement = 74;
+    public static final int TryCatch = 75;
+    public static final int TryFinally = 76;
+    public static final int YieldStatement = 77;
+    public static final int VariableDeclaration = 78;
+    public static final int FunctionDeclaration = 79;
+    public static final int AsyncForInStatement = 80;
+
+    public static final int SpecializedIntLiteralBias = 3;
+
+    public static final int SpecializedTagHighBit = 0x80;
+    public static final int SpecializedTagMask = 0xF8;
+    public static final int SpecializedPayloadMask = 0x7;
+
+    public static final int LibraryFile = 0x12345678;
+    public static final int ProgramFile = 0x90ABCDEF;
+}
@@ -0,0 +1,536 @@
+package dk.au.cs.dartkreader.loader;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import dk.au.cs.ast.*;
+
+/**
+ * Loads the members of a program reachable from its main method, as treeshaker.dart of the kernel decides
+ * what to keep. Starting from the main method, a worklist scans each reached member and follows its static,
+ * direct and super calls and gets, its constructor calls, which instantiate their class and reach its
+ * instance fields, and its dynamic selectors, which reach the members they dispatch to in every instantiated
+ * class. Names the runtime dispatches on its own, such as {@code toString} and {@code ==}, count as selected
+ * from the start. Literals instantiate their class of {@code dart:core}, for-in loops select
+ * {@code iterator}, {@code moveNext} and {@code current}, and await selects {@code then}.
+ * <p>
+ * The worklist runs on the ids of a {@link DillIndex}: reached members are scanned with a
+ * {@link BinaryEventReader} from the byte index the index records for them, and the dispatch tables of
+ * instantiated classes are built from the names, kinds and flags of their members as the index reads them.
+ * Only the headers of the libraries and classes are decoded for it. The reached members are decoded last;
+ * the others stay the empty nodes the index creates for them, which references into them resolve to.
+ */
+public final class TreeShaker {
+    private static final String[] RUNTIME_SELECTORS = {"==", "hashCode", "toString", "noSuchMethod", "call"};
+
+    private final DillIndex index;
+    private final StringTable strings;
+    private final BitSet reached = new BitSet();
+    private int[] worklist = new int[256];
+    private int worklistSize;
+    private final BitSet instantiated = new BitSet();
+    // Per class, the class it extends and the class it mixes in, or -1; from the decoded class headers.
+    private int[] superclasses;
+    private int[] mixins;
+    private final Map<AClass, Integer> classIds = new IdentityHashMap<>();
+    private final Set<AMember> reachedNodes = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int coreLibrary;
+    private final Map<String, Integer> coreClasses = new HashMap<>();
+    // Names are interned to dense ids; a private name is keyed by its library as well as its text.
+    private final Map<Long, Integer> nameIds = new HashMap<>();
+    private final BitSet getterSelectors = new BitSet();
+    private final BitSet setterSelectors = new BitSet();
+    // Per name id, members of instantiated classes that a dispatch of the name, once selected, reaches.
+    private final Candidates getterCandidates = new Candidates();
+    private final Candidates setterCandidates = new Candidates();
+    private MemberTable[] getterTables;
+    private MemberTable[] setterTables;
+    private long retainedBytes;
+    private long skippedBytes = -1;
+
+    /** Shakes the program of the indexed dill. */
+    public TreeShaker(DillIndex index) {
+        this.index = index;
+        this.strings = index.strings();
+    }
+
+    /**
+     * Finds the members reachable from the main method and returns the program with them decoded, and with
+     * the header of every library and class.
+     */
+    public Program shake(BinaryLoader loader) {
+        BinaryBuilder builder = index.builder(loader);
+        int classCount = index.classCount();
+        superclasses = new int[classCount];
+        mixins = new int[classCount];
+        getterTables = new MemberTable[classCount];
+        setterTables = new MemberTable[classCount];
+        AClass[] classes = new AClass[classCount];
+        for (int i = 0; i < index.libraryCount(); ++i) {
+            builder.readIndexedLibraryHeader(i);
+        }
+        for (int k = 0; k < classCount; ++k) {
+            classes[k] = builder.readIndexedClassHeader(k);
+            classIds.put(classes[k], k);
+        }
+        for (int k = 0; k < classCount; ++k) {
+            superclasses[k] = classId(classes[k].supertype());
+            mixins[k] = classId(classes[k].mixedInType());
+        }
+        coreLibrary = index.findLibrary("dart:core");
+
+        for (String name : RUNTIME_SELECTORS) {
+            selectPublic(name, false);
+        }
+        reach(index.mainMethod());
+        Scanner scanner = new Scanner(index.eventReader());
+        while (worklistSize > 0) {
+            scanner.scan(worklist[--worklistSize]);
+        }
+        for (int member = reached.nextSetBit(0); member >= 0; member = reached.nextSetBit(member + 1)) {
+            reachedNodes.add(builder.readIndexedMember(member));
+        }
+        return builder.readIndexedProgram();
+    }
+
+    /** Whether the member was reached from the main method, and so decoded. */
+    public boolean isReached(AMember member) {
+        return reachedNodes.contains(member);
+    }
+
+    public boolean isReached(int member) {
+        return reached.get(member);
+    }
+
+    public int reachedMembers() {
+        return reached.cardinality();
+    }
+
+    /** Whether a reached constructor call or literal instantiates the class. */
+    public boolean isInstantiated(AClass c) {
+        Integer id = classIds.get(c);
+        return id != null && instantiated.get(id);
+    }
+
+    /** Bytes of the reached members, which were scanned and decoded. */
+    public long retainedBytes() {
+        return retainedBytes;
+    }
+
+    /** Bytes of the members that were not reached, measured with a walk of them on the first call. */
+    public long skippedBytes() {
+        if (skippedBytes < 0) {
+            BinaryEventReader reader = index.eventReader();
+            reader.setHandler(new BinaryEventReader.Handler() {
+            });
+            long skipped = 0;
+            for (int member = reached.nextClearBit(0); member < index.memberCount();
+                 member = reached.nextClearBit(member + 1)) {
+                int start = index.memberStart(member);
+                reader.readMember(start);
+                skipped += reader.byteIndex() - start;
+            }
+            skippedBytes = skipped;
+        }
+        return skippedBytes;
+    }
+
+    private int classId(Supertype supertype) {
+        Integer id = supertype == null ? null : classIds.get(supertype.classNode());
+        return id == null ? -1 : id;
+    }
+
+    private void reach(int member) {
+        if (member >= 0 && !reached.get(member)) {
+            reached.set(member);
+            if (worklistSize == worklist.length) {
+                worklist = Arrays.copyOf(worklist, 2 * worklistSize);
+            }
+            worklist[worklistSize++] = member;
+        }
+    }
+
+    /** The class whose members the class declares: the class it mixes in, followed to the end. */
+    private int declaring(int classId) {
+        while (mixins[classId] >= 0) {
+            classId = mixins[classId];
+        }
+        return classId;
+    }
+
+    private void instantiate(int classId) {
+        if (classId < 0 || instantiated.get(classId)) {
+            return;
+        }
+        instantiated.set(classId);
+        dispatchTargets(classId, false);
+        dispatchTargets(classId, true);
+        // Instance field initializers run when the class or a subclass is constructed.
+        for (int superclass = classId; superclass >= 0; superclass = superclasses[superclass]) {
+            int declaring = declaring(superclass);
+            for (int m = index.firstMember(declaring), end = index.memberEnd(declaring); m < end; ++m) {
+                if (index.memberTag(m) == Tag.Field && !AField.isStatic(index.memberFlags(m))) {
+                    reach(m);
+                }
+            }
+        }
+    }
+
+    /** Reaches the members of the class that selected names dispatch to, and records the rest as candidates. */
+    private void dispatchTargets(int classId, boolean setter) {
+        BitSet selectors = setter ? setterSelectors : getterSelectors;
+        Candidates candidates = setter ? setterCandidates : getterCandidates;
+        MemberTable table = table(classId, setter);
+        for (int slot = 0; slot < table.keys.length; ++slot) {
+            int name = table.keys[slot] - 1;
+            if (name < 0) {
+                continue;
+            }
+            int target = table.members[slot];
+            if (selectors.get(name)) {
+                reach(target);
+            } else if (!reached.get(target)) {
+                candidates.add(name, target);
+            }
+        }
+    }
+
+    /**
+     * The instance members that a dispatch as a getter or call, or as a setter, reaches in the class, as
+     * {@link DispatchTables} finds them: the members the class declares, or those of its mixin, over those of
+     * its superclass, leaving out abstract and static members.
+     */
+    private MemberTable table(int classId, boolean setter) {
+        MemberTable[] tables = setter ? setterTables : getterTables;
+        if (tables[classId] != null) {
+            return tables[classId];
+        }
+        int superclass = superclasses[classId];
+        MemberTable getters = superclass < 0 ? MemberTable.EMPTY : table(superclass, false);
+        MemberTable setters = superclass < 0 ? MemberTable.EMPTY : table(superclass, true);
+        int declaring = declaring(classId);
+        int start = index.firstMember(declaring);
+        int end = index.memberEnd(declaring);
+        int[] declaredGetters = new int[2 * (end - start)];
+        int[] declaredSetters = new int[2 * (end - start)];
+        int getterCount = 0;
+        int setterCount = 0;
+        for (int m = start; m < end; ++m) {
+            int flags = index.memberFlags(m);
+            int name = memberNameId(m);
+            switch (index.memberTag(m)) {
+                case Tag.Field:
+                    if (!AField.isStatic(flags)) {
+                        declaredGetters[getterCount++] = name;
+                        declaredGetters[getterCount++] = m;
+                        if (!AField.isFinal(flags) && !AField.isConst(flags)) {
+                            declaredSetters[setterCount++] = name;
+                            declaredSetters[setterCount++] = m;
+                        }
+                    }
+                    break;
+                case Tag.Procedure: {
+                    int kind = index.memberKind(m);
+                    if ((flags & (AProcedure.FlagStatic() | AProcedure.FlagAbstract())) == 0
+                            && kind != ProcedureKind.Factory().id()) {
+                        if (kind == ProcedureKind.Setter().id()) {
+                            declaredSetters[setterCount++] = name;
+                            declaredSetters[setterCount++] = m;
+                        } else {
+                            declaredGetters[getterCount++] = name;
+                            declaredGetters[getterCount++] = m;
+                        }
+                    }
+                    break;
+                }
+                default:
+            }
+        }
+        getterTables[classId] = getters.extend(declaredGetters, getterCount);
+        setterTables[classId] = setters.extend(declaredSetters, setterCount);
+        return tables[classId];
+    }
+
+    private int memberNameId(int member) {
+        int text = index.memberNameIndex(member);
+        // A private member name belongs to the library of the member.
+        return nameId(text, strings.isPrivateName(text) ? index.memberLibrary(member) : -1);
+    }
+
+    private int nameId(int text, int library) {
+        Long key = ((long) library << 32) | text;
+        Integer id = nameIds.get(key);
+        if (id == null) {
+            id = nameIds.size();
+            nameIds.put(key, id);
+        }
+        return id;
+    }
+
+    private void select(int name, boolean setter) {
+        BitSet selectors = setter ? setterSelectors : getterSelectors;
+        if (selectors.get(name)) {
+            return;
+        }
+        selectors.set(name);
+        int[] targets = (setter ? setterCandidates : getterCandidates).take(name);
+        if (targets != null) {
+            for (int i = 1; i <= targets[0]; ++i) {
+                reach(targets[i]);
+            }
+        }
+    }
+
+    private void selectPublic(String name, boolean setter) {
+        int text = strings.indexOf(name);
+        if (text >= 0) {
+            select(nameId(text, -1), setter);
+        }
+    }
+
+    private void instantiateCore(String name) {
+        Integer classId = coreClasses.get(name);
+        if (classId == null) {
+            classId = coreLibrary < 0 ? -1 : index.findClass(coreLibrary, name);
+            coreClasses.put(name, classId);
+        }
+        instantiate(classId);
+    }
+
+    /** Member ids parked per name id, each list holding its length first. */
+    private static final class Candidates {
+        private int[][] lists = new int[256][];
+
+        void add(int name, int member) {
+            if (name >= lists.length) {
+                lists = Arrays.copyOf(lists, Math.max(2 * lists.length, name + 1));
+            }
+            int[] list = lists[name];
+            if (list == null) {
+                list = lists[name] = new int[4];
+            } else if (list[0] + 1 == list.length) {
+                list = lists[name] = Arrays.copyOf(list, 2 * list.length);
+            }
+            list[++list[0]] = member;
+        }
+
+        /** Removes and returns the list of the name, or null if it has none. */
+        int[] take(int name) {
+            if (name >= lists.length) {
+                return null;
+            }
+            int[] list = lists[name];
+            lists[name] = null;
+            return list;
+        }
+    }
+
+    /** A map from name id to member id with open addressing and linear probing, as in {@link DispatchTables}. */
+    private static final class MemberTable {
+        static final MemberTable EMPTY = new MemberTable(new int[1], new int[1], 0);
+
+        // Keys are name ids plus one, so that zero marks an empty slot.
+        final int[] keys;
+        final int[] members;
+        final int size;
+
+        MemberTable(int[] keys, int[] members, int size) {
+            this.keys = keys;
+            this.members = members;
+            this.size = size;
+        }
+
+        /** A new table with this table's entries, overridden by the given pairs of name and member id. */
+        MemberTable extend(int[] declared, int length) {
+            if (length == 0) {
+                return this;
+            }
+            int capacity = Integer.highestOneBit(Math.max(4, 2 * (size + length / 2)) - 1) << 1;
+            MemberTable table = new MemberTable(new int[capacity], new int[capacity], 0);
+            int newSize = 0;
+            for (int i = 0; i < keys.length; ++i) {
+                if (keys[i] != 0) {
+                    newSize += table.put(keys[i], members[i]);
+                }
+            }
+            for (int i = 0; i < length; i += 2) {
+                newSize += table.put(declared[i] + 1, declared[i + 1]);
+            }
+            return new MemberTable(table.keys, table.members, newSize);
+        }
+
+        /** Puts the entry into this table while it is built, returning 1 if the key is new. */
+        private int put(int key, int member) {
+            int mask = keys.length - 1;
+            int slot = mix(key) & mask;
+            while (keys[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            int added = keys[slot] == 0 ? 1 : 0;
+            keys[slot] = key;
+            members[slot] = member;
+            return added;
+        }
+
+        private static int mix(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /** Finds the uses in a reached member, walking its bytes. */
+    private final class Scanner implements BinaryEventReader.Handler {
+        private final BinaryEventReader reader;
+        // Per string index, the name id of the public name, or -1 if not interned yet.
+        private final int[] publicNameIds;
+        // Tags of the expressions and initializers being scanned, innermost last.
+        private int[] tags = new int[64];
+        private int depth;
+
+        Scanner(BinaryEventReader reader) {
+            this.reader = reader;
+            this.publicNameIds = new int[strings.size()];
+            Arrays.fill(publicNameIds, -1);
+            reader.setHandler(this);
+        }
+
+        void scan(int member) {
+            int start = index.memberStart(member);
+            reader.readMember(start);
+            retainedBytes += reader.byteIndex() - start;
+        }
+
+        private void push(int tag) {
+            if (depth == tags.length) {
+                tags = Arrays.copyOf(tags, 2 * depth);
+            }
+            tags[depth++] = tag;
+        }
+
+        @Override
+        public void enterExpression(int tag, int offset) {
+            push(tag);
+            switch (tag) {
+                case Tag.StringLiteral:
+                case Tag.StringConcatenation:
+                    instantiateCore("String");
+                    break;
+                case Tag.SpecializedIntLiteral:
+                case Tag.PositiveIntLiteral:
+                case Tag.NegativeIntLiteral:
+                case Tag.BigIntLiteral:
+                    instantiateCore("int");
+                    break;
+                case Tag.DoubleLiteral:
+                    instantiateCore("double");
+                    break;
+                case Tag.TrueLiteral:
+                case Tag.FalseLiteral:
+                    instantiateCore("bool");
+                    break;
+                case Tag.SymbolLiteral:
+                    instantiateCore("Symbol");
+                    break;
+                case Tag.TypeLiteral:
+                    instantiateCore("Type");
+                    break;
+                case Tag.ListLiteral:
+                case Tag.ConstListLiteral:
+                    instantiateCore("List");
+                    break;
+                case Tag.MapLiteral:
+                case Tag.ConstMapLiteral:
+                    instantiateCore("Map");
+                    break;
+                case Tag.FunctionExpression:
+                    instantiateCore("Function");
+                    break;
+                case Tag.AwaitExpression:
+                    selectPublic("then", false);
+                    break;
+                default:
+            }
+        }
+
+        @Override
+        public void exitExpression(int tag) {
+            depth--;
+        }
+
+        @Override
+        public void enterInitializer(int tag) {
+            push(tag);
+        }
+
+        @Override
+        public void exitInitializer(int tag) {
+            depth--;
+        }
+
+        @Override
+        public void enterStatement(int tag) {
+            if (tag == Tag.ForInStatement || tag == Tag.AsyncForInStatement) {
+                selectPublic("iterator", false);
+                selectPublic("moveNext", false);
+                selectPublic("current", false);
+                if (tag == Tag.AsyncForInStatement) {
+                    selectPublic("cancel", false);
+                }
+            }
+        }
+
+        @Override
+        public void memberReference(int tag, int library, int classIndex, int memberIndex) {
+            if (depth == 0) {
+                return;
+            }
+            switch (tags[depth - 1]) {
+                case Tag.ConstructorInvocation:
+                case Tag.ConstConstructorInvocation:
+                    instantiate(index.firstClass(library) + classIndex);
+                    reach(index.referencedMember(tag, library, classIndex, memberIndex));
+                    break;
+                case Tag.StaticGet:
+                case Tag.StaticSet:
+                case Tag.StaticInvocation:
+                case Tag.ConstStaticInvocation:
+                case Tag.DirectMethodInvocation:
+                case Tag.DirectPropertyGet:
+                case Tag.DirectPropertySet:
+                case Tag.SuperMethodInvocation:
+                case Tag.SuperPropertyGet:
+                case Tag.SuperPropertySet:
+                case Tag.SuperInitializer:
+                case Tag.RedirectingInitializer:
+                    reach(index.referencedMember(tag, library, classIndex, memberIndex));
+                    break;
+                default:
+            }
+        }
+
+        @Override
+        public void name(int text, int library) {
+            if (depth == 0) {
+                return;
+            }
+            int tag = tags[depth - 1];
+            if (tag != Tag.PropertyGet && tag != Tag.PropertySet && tag != Tag.MethodInvocation) {
+                return;
+            }
+            int id;
+            if (library < 0) {
+                id = publicNameIds[text];
+                if (id < 0) {
+                    id = publicNameIds[text] = nameId(text, -1);
+                }
+            } else {
+                id = nameId(text, library);
+            }
+            select(id, tag == Tag.PropertySet);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package dk.au.cs.dartkreader.loader;
+
+import dk.au.cs.ast.*;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hash-conses the types built while loading, so that structurally equal types are one shared instance and
+ * can be compared by reference. Classes and type parameters are keyed by identity; the structural equality
+ * of the case classes is never used, as it does not terminate for F-bounded type parameters.
+ * <p>
+ * Function types that declare their own type parameters are not shared, since their parameters are fresh
+ * binders. The type argument and parameter lists of shared types are unmodifiable, and the named types of a
+ * shared function type are themselves shared, so they must not be assigned to.
+ * <p>
+ * The table holds its types and the classes and type parameters they are keyed by weakly: an entry goes
+ * once no node refers to its type any more, as when a program is dropped, or a library is decoded again and
+ * replaces the type parameters its types were built over.
+ */
+final class TypeCanonicalizer {
+    static final DynamicType DYNAMIC = new DynamicType();
+    static final VoidType VOID = new VoidType();
+    static final BottomType BOTTOM = new BottomType();
+    static final InvalidType INVALID = new InvalidType();
+
+    private final ConcurrentHashMap<Key, Entry> types = new ConcurrentHashMap<>();
+    private final ReferenceQueue<DartType> collected = new ReferenceQueue<>();
+
+    InterfaceType interfaceType(AClass classNode, DartType[] typeArguments) {
+        Key key = new Key(classNode, typeArguments);
+        DartType type = lookup(key);
+        if (type == null) {
+            List<DartType> arguments = typeArguments.length == 0
+                    ? Collections.<DartType>emptyList()
+                    : Collections.unmodifiableList(Arrays.asList(typeArguments));
+            type = intern(key, new InterfaceType(classNode, arguments));
+        }
+        return (InterfaceType) type;
+    }
+
+    TypeParameterType typeParameterType(TypeParameter parameter) {
+        Key key = new Key(parameter, null);
+        DartType type = lookup(key);
+        if (type == null) {
+            type = intern(key, new TypeParameterType(parameter));
+        }
+        return (TypeParameterType) type;
+    }
+
+    NamedType namedType(String name, DartType type) {
+        Key key = new Key(NamedType.class, new Object[]{name, type});
+        DartType named = lookup(key);
+        if (named == null) {
+            named = intern(key, new NamedType(name, type));
+        }
+        return (NamedType) named;
+    }
+
+    /** The named types are replaced by shared ones, so the function type does not keep the caller's. */
+    FunctionType functionType(List<DartType> positional, DartType returnType, List<NamedType> named,
+                              int requiredParameterCount) {
+        // Flattened as: required count, return type, positional types, then the shared named types.
+        Object[] parts = new Object[2 + positional.size() + named.size()];
+        parts[0] = requiredParameterCount;
+        parts[1] = returnType;
+        for (int i = 0; i < positional.size(); i++) {
+            parts[2 + i] = positional.get(i);
+        }
+        for (int i = 0; i < named.size(); i++) {
+            NamedType namedType = named.get(i);
+            parts[2 + positional.size() + i] = namedType(namedType.name(), namedType.ttype());
+        }
+        Key key = new Key(FunctionType.class, parts);
+        DartType type = lookup(key);
+        if (type == null) {
+            List<NamedType> sharedNamed = new ArrayList<>(named.size());
+            for (int i = 0; i < named.size(); i++) {
+                sharedNamed.add((NamedType) parts[2 + positional.size() + i]);
+            }
+            type = intern(key, FunctionType.build(
+                    Collections.unmodifiableList(new ArrayList<>(positional)),
+                    returnType,
+                    Collections.<TypeParameter>emptyList(),
+                    requiredParameterCount,
+                    Collections.unmodifiableList(sharedNamed)));
+        }
+        return (FunctionType) type;
+    }
+
+    /** Entries in the table, including those whose type was collected but that were not removed yet. */
+    int size() {
+        return types.size();
+    }
+
+    private DartType lookup(Key key) {
+        Entry entry = types.get(key);
+        return entry == null ? null : entry.get();
+    }
+
+    private DartType intern(Key key, DartType type) {
+        expunge();
+        Key stored = key.weak();
+        Entry entry = new Entry(stored, type, collected);
+        while (true) {
+            Entry existing = types.putIfAbsent(stored, entry);
+            if (existing == null) {
+                return type;
+            }
+            DartType shared = existing.get();
+            if (shared != null) {
+                return shared;
+            }
+            types.remove(stored, existing);
+        }
+    }
+
+    /** Removes the entries whose type was collected. */
+    private void expunge() {
+        for (Object reference; (reference = collected.poll()) != null; ) {
+            Entry entry = (Entry) reference;
+            types.remove(entry.key, entry);
+        }
+    }
+
+    private static final class Entry extends WeakReference<DartType> {
+        final Key key;
+
+        Entry(Key key, DartType type, ReferenceQueue<DartType> queue) {
+            super(type, queue);
+            this.key = key;
+        }
+    }
+
+    /**
+     * The head is compared by identity, the parts by identity except for boxed and string values which
+     * are compared by value. A key stored in the table refers to its nodes and types weakly; a collected
+     * one equals no other key.
+     */
+    private static final class Key {
+        private final Object head;
+        private final Object[] parts;
+        private final int hash;
+
+        Key(Object head, Object[] parts) {
+            this(head, parts, hash(head, parts));
+        }
+
+        private Key(Object head, Object[] parts, int hash) {
+            this.head = head;
+            this.parts = parts;
+            this.hash = hash;
+        }
+
+        private static int hash(Object head, Object[] parts) {
+            int h = System.identityHashCode(head);
+            if (parts != null) {
+                for (Object part : parts) {
+                    h = 31 * h + partHash(part);
+                }
+            }
+            return h;
+        }
+
+        /** The key with its nodes and types held by weak references. */
+        Key weak() {
+            Object[] weakParts = null;
+            if (parts != null) {
+                weakParts = new Object[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    weakParts[i] = parts[i] instanceof String || parts[i] instanceof Integer || parts[i] == null
+                            ? parts[i] : new WeakReference<>(parts[i]);
+                }
+            }
+            return new Key(head instanceof Class ? head : new WeakReference<>(head), weakParts, hash);
+        }
+
+        private static Object referent(Object part) {
+            return part instanceof WeakReference ? ((WeakReference<?>) part).get() : part;
+        }
+
+        private static int partHash(Object part) {
+            return part instanceof String || part instanceof Integer ? part.hashCode() : System.identityHashCode(part);
+        }
+
+        private static boolean partEquals(Object a, Object b) {
+            if (a == b) {
+                return true;
+            }
+            a = referent(a);
+            b = referent(b);
+            return a != null && a == b || (a instanceof String || a instanceof Integer) && a.equals(b);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            if (hash != other.hash || !partEquals(head, other.head)) {
+                return false;
+            }
+            if (parts == null || other.parts == null) {
+                return parts == other.parts;
+            }
+            if (parts.length != other.parts.length) {
+                return false;
+            }
+            for (int i = 0; i < parts.length; i++) {
+                if (!partEquals(parts[i], other.parts[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -5,11 +5,19 @@ import java.util
 import scala.collection.JavaConversions._
 import scala.collection.mutable
 
+import TreeNode._
+
 trait AstNode {
   def toCustomString(visited: mutable.Set[AstNode], indentation: Int) = {
     if (visited.contains(this)) this.getClass.getName + "(...)"
     else toString
   }
+
+  /**
+    * Calls `accept` on each child, in the order they are in the binary format, except that libraries and
+    * classes visit their procedures before their fields, as the kernel does.
+    */
+  def visitChildren[R](v: Visitor[R]): Unit = ()
 }
 
 object ProcedureKind extends Enumeration {
@@ -20,24 +28,90 @@ object AsyncMarker extends Enumeration {
   val Sync, SyncStar, Async, AsyncStar, SyncYielding = Value
 }
 
+/**
+  * Decodes a node that was skipped during loading, see
+  * [[dk.au.cs.dartkreader.loader.BinaryBuilder#setLazyBodies]].
+  */
+trait LazyDecoder[T] {
+  def decode(): T
+}
+
+/**
+  * Told of every access to a function body that may be dropped and decoded again, see
+  * [[dk.au.cs.dartkreader.loader.BodyCache]]. Called without holding the lock of the node.
+  */
+trait BodyAccess {
+  def accessed(node: AFunctionNode, decoded: Boolean): Unit
+}
+
 class LabelId(var id: Int)
 
 object LabelId {
-  var id = -1
+  // Shared by every builder, including those decoding in parallel.
+  private val counter = new java.util.concurrent.atomic.AtomicInteger(-1)
 
-  def next(): LabelId = {
-    id += 1
-    new LabelId(id)
-  }
+  def next(): LabelId = new LabelId(counter.incrementAndGet())
 }
 
 abstract class TreeNode extends AstNode {
   var fileOffset: Int = -1
+
+  def accept[R](v: TreeVisitor[R]): R
+
+  /** Replaces each child by the result of transforming it with `v`. */
+  def transformChildren(v: Transformer): Unit = ()
+}
+
+/**
+  * Null-safe traversal of children, without allocating iterators or closures; the lists of the AST are all
+  * random access.
+  */
+object TreeNode {
+  def visitNode[R](node: TreeNode, v: Visitor[R]): Unit =
+    if (node != null) node.accept(v)
+
+  def visitNode[R](node: DartType, v: Visitor[R]): Unit =
+    if (node != null) node.accept(v)
+
+  def visitNode[R](node: Supertype, v: Visitor[R]): Unit =
+    if (node != null) node.accept(v)
+
+  def visitNode[R](node: AName, v: Visitor[R]): Unit =
+    if (node != null) node.accept(v)
+
+  def visitNodes[R](nodes: java.util.List[_ <: TreeNode], v: Visitor[R]): Unit = {
+    var i = 0
+    while (i < nodes.size) {
+      visitNode(nodes.get(i), v)
+      i += 1
+    }
+  }
+
+  def visitTypes[R](types: java.util.List[_ <: DartType], v: Visitor[R]): Unit = {
+    var i = 0
+    while (i < types.size) {
+      visitNode(types.get(i), v)
+      i += 1
+    }
+  }
+
+  def visitSupertypes[R](types: java.util.List[Supertype], v: Visitor[R]): Unit = {
+    var i = 0
+    while (i < types.size) {
+      visitNode(types.get(i), v)
+      i += 1
+    }
+  }
 }
 
 class Supertype(var classNode: AClass,
                 var typeArguments: java.util.List[DartType])
-    extends AstNode
+    extends AstNode {
+
+  def accept[R](v: Visitor[R]): R = v.visitSupertype(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = visitTypes(typeArguments, v)
+}
 
 object ALibrary {
   def build(): ALibrary = new ALibrary(null, null, null)
@@ -54,6 +128,20 @@ class ALibrary(
     var isExternal: Boolean = false
 ) extends TreeNode {
 
+  def accept[R](v: TreeVisitor[R]): R = v.visitLibrary(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNodes(classes, v)
+    visitNodes(procedures, v)
+    visitNodes(fields, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    v.transformList(classes)
+    v.transformList(procedures)
+    v.transformList(fields)
+  }
+
   override def toCustomString(visited: mutable.Set[AstNode],
                               indentation: Int) =
     if (visited.contains(this))
@@ -100,6 +188,30 @@ class AClass(var name: String = null,
              var flags: Int = 0)
     extends TreeNode {
 
+  // The id of the class in the most recently built hierarchy containing it, see ClassHierarchy.classId.
+  // One immutable pair, so that a thread never sees the id of one hierarchy with another hierarchy.
+  @volatile private[ast] var hierarchyId: ClassHierarchy.Id = null
+
+  def accept[R](v: TreeVisitor[R]): R = v.visitClass(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNodes(annotations, v)
+    visitTypes(typeParameters, v)
+    visitNode(supertype, v)
+    visitNode(mixedInType, v)
+    visitSupertypes(implementedTypes, v)
+    visitNodes(constructors, v)
+    visitNodes(procedures, v)
+    visitNodes(fields, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    v.transformList(annotations)
+    v.transformList(constructors)
+    v.transformList(procedures)
+    v.transformList(fields)
+  }
+
   override def toCustomString(visited: mutable.Set[AstNode],
                               indentation: Int) =
     if (visited.contains(this))
@@ -129,18 +241,66 @@ abstract class AMember extends TreeNode {
   def name: AName
 
   def annotations: java.util.List[AExpression]
+
+  def accept[R](v: MemberVisitor[R]): R
+
+  override def accept[R](v: TreeVisitor[R]): R = accept(v: MemberVisitor[R])
 }
 
 class AField(var name: AName,
              var annotations: java.util.List[AExpression] =
                new util.ArrayList[AExpression](),
              var ttype: DartType = DynamicType(),
-             var initializer: AExpression = null,
+             initialInitializer: AExpression = null,
              var inferredValue: AInferredValue = null,
              var flags: Int = 0,
              var fileUri: String = null,
              var transformerFlags: Int = 0)
-    extends AMember
+    extends AMember {
+
+  def accept[R](v: MemberVisitor[R]): R = v.visitField(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNodes(annotations, v)
+    visitNode(name, v)
+    visitNode(ttype, v)
+    visitNode(inferredValue, v)
+    visitNode(initializer, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    v.transformList(annotations)
+    inferredValue = v.transform(inferredValue)
+    initializer = v.transform(initializer)
+  }
+
+  private var _initializer = initialInitializer
+  @volatile private var initializerDecoder: LazyDecoder[AExpression] = null
+
+  /** Decoded on first access if the field was loaded lazily. */
+  def initializer: AExpression = {
+    if (initializerDecoder != null) synchronized {
+      if (initializerDecoder != null) {
+        _initializer = initializerDecoder.decode()
+        initializerDecoder = null
+      }
+    }
+    _initializer
+  }
+
+  def initializer_=(e: AExpression): Unit = synchronized {
+    _initializer = e
+    initializerDecoder = null
+  }
+
+  def deferInitializer(decoder: LazyDecoder[AExpression]): Unit =
+    synchronized {
+      _initializer = null
+      initializerDecoder = decoder
+    }
+
+  def isInitializerLoaded = initializerDecoder == null
+}
 
 object AField {
   val FlagFinal = 1 << 0
@@ -169,7 +329,23 @@ class AConstructor(var function: AFunctionNode,
                      new util.ArrayList[AExpression](),
                    var initializers: java.util.List[AInitializer] =
                      new util.ArrayList[AInitializer]())
-    extends AMember {}
+    extends AMember {
+
+  def accept[R](v: MemberVisitor[R]): R = v.visitConstructor(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNodes(annotations, v)
+    visitNode(name, v)
+    visitNode(function, v)
+    visitNodes(initializers, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    v.transformList(annotations)
+    function = v.transform(function)
+    v.transformList(initializers)
+  }
+}
 
 object AProcedure {
   val FlagStatic = 1 << 0;
@@ -194,6 +370,19 @@ class AProcedure(var name: AName,
                  var transformerFlags: Int = 0)
     extends AMember {
 
+  def accept[R](v: MemberVisitor[R]): R = v.visitProcedure(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNodes(annotations, v)
+    visitNode(name, v)
+    visitNode(function, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    v.transformList(annotations)
+    function = v.transform(function)
+  }
+
   def isStatic = (flags & AProcedure.FlagStatic) != 0
 
   def isAbstract = (flags & AProcedure.FlagAbstract) != 0
@@ -210,28 +399,77 @@ class AProcedure(var name: AName,
 
 }
 
-class AInvalidInitializer() extends AInitializer
+class AInvalidInitializer() extends AInitializer {
 
-class AInvalidExpression() extends AExpression
+  def accept[R](v: InitializerVisitor[R]): R = v.visitInvalidInitializer(this)
+}
 
-class AInvalidStatement() extends AStatement
+class AInvalidExpression() extends AExpression {
 
-trait AInitializer extends TreeNode
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitInvalidExpression(this)
+}
+
+class AInvalidStatement() extends AStatement {
+
+  def accept[R](v: StatementVisitor[R]): R = v.visitInvalidStatement(this)
+}
+
+trait AInitializer extends TreeNode {
+  def accept[R](v: InitializerVisitor[R]): R
+
+  override def accept[R](v: TreeVisitor[R]): R = accept(v: InitializerVisitor[R])
+}
 
 class FieldInitializer(var field: AMember, var value: AExpression)
-    extends AInitializer
+    extends AInitializer {
+
+  def accept[R](v: InitializerVisitor[R]): R = v.visitFieldInitializer(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNode(value, v)
+
+  override def transformChildren(v: Transformer): Unit = {
+    value = v.transform(value)
+  }
+}
 
 class SuperInitializer(var target: AMember, var arguments: AArguments)
-    extends AInitializer
+    extends AInitializer {
+
+  def accept[R](v: InitializerVisitor[R]): R = v.visitSuperInitializer(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNode(arguments, v)
+
+  override def transformChildren(v: Transformer): Unit = {
+    arguments = v.transform(arguments)
+  }
+}
 
 class RedirectingInitializer(var target: AMember, var arguments: AArguments)
-    extends AInitializer
+    extends AInitializer {
+
+  def accept[R](v: InitializerVisitor[R]): R = v.visitRedirectingInitializer(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNode(arguments, v)
+
+  override def transformChildren(v: Transformer): Unit = {
+    arguments = v.transform(arguments)
+  }
+}
 
 class ALocalInitializer(var variable: AVariableDeclaration)
-    extends AInitializer
+    extends AInitializer {
+
+  def accept[R](v: InitializerVisitor[R]): R = v.visitLocalInitializer(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNode(variable, v)
+
+  override def transformChildren(v: Transformer): Unit = {
+    variable = v.transform(variable)
+  }
+}
 
 class AFunctionNode(
-    var body: AStatement,
+    initialBody: AStatement,
     var typeParameters: java.util.List[TypeParameter],
     var requiredParameterCount: Int,
     var positionalParameters: java.util.List[AVariableDeclaration],
@@ -239,62 +477,285 @@ class AFunctionNode(
     var returnType: DartType,
     var inferredReturnValue: AInferredValue,
     var asyncMarker: AsyncMarker.Value
-) extends TreeNode
+) extends TreeNode {
+
+  def accept[R](v: TreeVisitor[R]): R = v.visitFunctionNode(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitTypes(typeParameters, v)
+    visitNodes(positionalParameters, v)
+    visitNodes(namedParameters, v)
+    visitNode(returnType, v)
+    visitNode(inferredReturnValue, v)
+    visitNode(body, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    v.transformList(positionalParameters)
+    v.transformList(namedParameters)
+    inferredReturnValue = v.transform(inferredReturnValue)
+    body = v.transform(body)
+  }
+
+  private var _body = initialBody
+  @volatile private var bodyDecoder: LazyDecoder[AStatement] = null
+  // Kept while the body can be evicted, to decode it again.
+  private var evictableDecoder: LazyDecoder[AStatement] = null
+  @volatile private var bodyAccess: BodyAccess = null
+  @volatile private var _evictions = 0
+
+  /** Decoded on first access if the function was loaded lazily, and again after it was evicted. */
+  def body: AStatement = {
+    val access = bodyAccess
+    if (access == null) {
+      if (bodyDecoder != null) synchronized {
+        if (bodyDecoder != null) {
+          _body = bodyDecoder.decode()
+          bodyDecoder = null
+        }
+      }
+      _body
+    } else {
+      var decoded = false
+      val result = synchronized {
+        if (bodyDecoder != null) {
+          _body = bodyDecoder.decode()
+          bodyDecoder = null
+          decoded = true
+        }
+        _body
+      }
+      access.accessed(this, decoded)
+      result
+    }
+  }
+
+  /** A body that is set is kept; it can no longer be evicted. */
+  def body_=(b: AStatement): Unit = synchronized {
+    _body = b
+    bodyDecoder = null
+    evictableDecoder = null
+    bodyAccess = null
+  }
+
+  def deferBody(decoder: LazyDecoder[AStatement]): Unit = synchronized {
+    _body = null
+    bodyDecoder = decoder
+  }
+
+  /** Defers the body so that [[evictBody]] can drop it again, telling the access of every read. */
+  def deferBody(decoder: LazyDecoder[AStatement], access: BodyAccess): Unit = synchronized {
+    deferBody(decoder)
+    evictableDecoder = decoder
+    bodyAccess = access
+  }
+
+  /**
+    * Drops the decoded body, to be decoded again on the next access. Nodes of the dropped body are not
+    * reused, so a body read before and after an eviction has equal but not identical nodes. Returns false
+    * if the body is not loaded or cannot be evicted.
+    */
+  def evictBody(): Boolean = synchronized {
+    if (evictableDecoder == null || bodyDecoder != null) false
+    else {
+      _body = null
+      bodyDecoder = evictableDecoder
+      _evictions += 1
+      true
+    }
+  }
+
+  def isBodyLoaded = bodyDecoder == null
+
+  /** How often the body was evicted. Nodes read from the body belong to its current decode while this stays. */
+  def evictions: Int = _evictions
+}
 
-trait AExpression extends TreeNode
+trait AExpression extends TreeNode {
+  def accept[R](v: ExpressionVisitor[R]): R
+
+  override def accept[R](v: TreeVisitor[R]): R = accept(v: ExpressionVisitor[R])
+}
 
 class AVariableGet(var variable: AVariableDeclaration,
                    var promotedType: DartType)
-    extends AExpression
+    extends AExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitVariableGet(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNode(promotedType, v)
+}
 
 class AVariableSet(var variable: AVariableDeclaration, var value: AExpression)
-    extends AExpression
+    extends AExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitVariableSet(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNode(value, v)
+
+  override def transformChildren(v: Transformer): Unit = {
+    value = v.transform(value)
+  }
+}
 
 class APropertyGet(var receiver: AExpression,
                    var name: AName,
                    var interfaceTarget: AMember)
-    extends AExpression
+    extends AExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitPropertyGet(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(receiver, v)
+    visitNode(name, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    receiver = v.transform(receiver)
+  }
+}
 
 class APropertySet(var receiver: AExpression,
                    var name: AName,
                    var value: AExpression,
                    var interfaceTarget: AMember)
-    extends AExpression
+    extends AExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitPropertySet(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(receiver, v)
+    visitNode(name, v)
+    visitNode(value, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    receiver = v.transform(receiver)
+    value = v.transform(value)
+  }
+}
 
 class ADirectPropertyGet(var receiver: AExpression, var target: AMember)
-    extends AExpression
+    extends AExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitDirectPropertyGet(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNode(receiver, v)
+
+  override def transformChildren(v: Transformer): Unit = {
+    receiver = v.transform(receiver)
+  }
+}
 
 class ADirectPropertySet(var receiver: AExpression,
                          var target: AMember,
                          var value: AExpression)
-    extends AExpression
+    extends AExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitDirectPropertySet(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(receiver, v)
+    visitNode(value, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    receiver = v.transform(receiver)
+    value = v.transform(value)
+  }
+}
 
 class ADirectMethodInvocation(
     var receiver: AExpression,
     var target: AMember,
     var arguments: AArguments
-) extends AExpression
+) extends AExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitDirectMethodInvocation(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(receiver, v)
+    visitNode(arguments, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    receiver = v.transform(receiver)
+    arguments = v.transform(arguments)
+  }
+}
 
 class ASuperPropertyGet(var name: AName, var interfaceTarget: AMember)
-    extends AExpression
+    extends AExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitSuperPropertyGet(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNode(name, v)
+}
 
 class ASuperPropertySet(var name: AName,
                         var value: AExpression,
                         var interfaceTarget: AMember)
-    extends AExpression
+    extends AExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitSuperPropertySet(this)
 
-class AStaticGet(var target: AMember) extends AExpression
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(name, v)
+    visitNode(value, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    value = v.transform(value)
+  }
+}
+
+class AStaticGet(var target: AMember) extends AExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitStaticGet(this)
+}
 
 class AStaticSet(var target: AMember, var value: AExpression)
-    extends AExpression
+    extends AExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitStaticSet(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNode(value, v)
+
+  override def transformChildren(v: Transformer): Unit = {
+    value = v.transform(value)
+  }
+}
 
 class AArguments(var positional: java.util.List[AExpression],
                  var types: java.util.List[DartType],
                  var named: java.util.List[ANamedExpression])
-    extends TreeNode
+    extends TreeNode {
+
+  def accept[R](v: TreeVisitor[R]): R = v.visitArguments(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitTypes(types, v)
+    visitNodes(positional, v)
+    visitNodes(named, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    v.transformList(positional)
+    v.transformList(named)
+  }
+}
 
 class ANamedExpression(var name: String, var value: AExpression)
-    extends TreeNode
+    extends TreeNode {
+
+  def accept[R](v: TreeVisitor[R]): R = v.visitNamedExpression(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNode(value, v)
+
+  override def transformChildren(v: Transformer): Unit = {
+    value = v.transform(value)
+  }
+}
 
 abstract class AInvocationExpression() extends AExpression
 
@@ -302,129 +763,527 @@ class AMethodInvocation(var receiver: AExpression,
                         var name: AName,
                         var arguments: AArguments,
                         var interfaceTarget: AMember)
-    extends AInvocationExpression
+    extends AInvocationExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitMethodInvocation(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(receiver, v)
+    visitNode(name, v)
+    visitNode(arguments, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    receiver = v.transform(receiver)
+    arguments = v.transform(arguments)
+  }
+}
 
 class ASuperMethodInvocation(var name: AName,
                              var arguments: AArguments,
                              var interfaceTarget: AMember)
-    extends AInvocationExpression
+    extends AInvocationExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitSuperMethodInvocation(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(name, v)
+    visitNode(arguments, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    arguments = v.transform(arguments)
+  }
+}
 
 class AStaticInvocation(var target: AMember,
                         var arguments: AArguments,
                         var isConst: Boolean)
-    extends AInvocationExpression
+    extends AInvocationExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitStaticInvocation(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNode(arguments, v)
+
+  override def transformChildren(v: Transformer): Unit = {
+    arguments = v.transform(arguments)
+  }
+}
 
 class ConstructorInvocation(var target: AMember,
                             var arguments: AArguments,
                             var isConst: Boolean)
-    extends AInvocationExpression
+    extends AInvocationExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitConstructorInvocation(this)
 
-class Not(var operand: AExpression) extends AExpression
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNode(arguments, v)
+
+  override def transformChildren(v: Transformer): Unit = {
+    arguments = v.transform(arguments)
+  }
+}
+
+class Not(var operand: AExpression) extends AExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitNot(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNode(operand, v)
+
+  override def transformChildren(v: Transformer): Unit = {
+    operand = v.transform(operand)
+  }
+}
 
 class ALogicalExpression(var left: AExpression,
                          var op: String,
                          var right: AExpression)
-    extends AExpression
+    extends AExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitLogicalExpression(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(left, v)
+    visitNode(right, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    left = v.transform(left)
+    right = v.transform(right)
+  }
+}
 
 class AConditionalExpression(var condition: AExpression,
                              var tthen: AExpression,
                              var otherwise: AExpression,
                              var staticType: DartType)
-    extends AExpression
+    extends AExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitConditionalExpression(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(condition, v)
+    visitNode(tthen, v)
+    visitNode(otherwise, v)
+    visitNode(staticType, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    condition = v.transform(condition)
+    tthen = v.transform(tthen)
+    otherwise = v.transform(otherwise)
+  }
+}
 
 class StringConcatenation(var expressions: java.util.List[AExpression])
-    extends AExpression
+    extends AExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitStringConcatenation(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNodes(expressions, v)
+
+  override def transformChildren(v: Transformer): Unit = {
+    v.transformList(expressions)
+  }
+}
 
 class IsExpression(var operand: AExpression, var ttype: DartType)
-    extends AExpression
+    extends AExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitIsExpression(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(operand, v)
+    visitNode(ttype, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    operand = v.transform(operand)
+  }
+}
 
 class AsExpression(var operand: AExpression, var ttype: DartType)
-    extends AExpression
+    extends AExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitAsExpression(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(operand, v)
+    visitNode(ttype, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    operand = v.transform(operand)
+  }
+}
 
 trait ABasicLiteral extends AExpression
 
-class AStringLiteral(var value: String) extends ABasicLiteral
+class AStringLiteral(var value: String) extends ABasicLiteral {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitStringLiteral(this)
+}
+
+/**
+  * Values that fit in a `Long` are held unboxed in `longValue`; `bigValue` is
+  * only set for the rest. Each occurrence is its own node, as nodes carry a
+  * file offset.
+  */
+class AIntLiteral private (private var _longValue: Long, private var _bigValue: BigInt)
+    extends ABasicLiteral {
+
+  def this(value: Long) = this(value, null)
+
+  def this(value: BigInt) = {
+    this(0L, null)
+    this.value = value
+  }
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitIntLiteral(this)
+
+  def longValue: Long = _longValue
+
+  def bigValue: BigInt = _bigValue
+
+  def isLong = _bigValue == null
+
+  def value: BigInt = if (_bigValue != null) _bigValue else BigInt(_longValue)
+
+  def value_=(value: BigInt): Unit =
+    if (value.isValidLong) {
+      _longValue = value.toLong
+      _bigValue = null
+    } else {
+      _longValue = 0
+      _bigValue = value
+    }
+}
+
+object AIntLiteral {
+
+  def valueOf(value: Long): AIntLiteral = new AIntLiteral(value)
+
+  def valueOf(value: BigInt): AIntLiteral = new AIntLiteral(value)
+
+  /** Parses a decimal literal, only going through `BigInt` when it does not fit in a `Long`. */
+  def parse(text: String): AIntLiteral =
+    if (text.length <= 18) valueOf(java.lang.Long.parseLong(text))
+    else valueOf(BigInt(text))
+}
+
+class ADoubleLiteral(var value: Double) extends ABasicLiteral {
 
-class AIntLiteral(var value: BigInt) extends ABasicLiteral
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitDoubleLiteral(this)
+}
+
+class ABooleanLiteral(var value: Boolean) extends ABasicLiteral {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitBoolLiteral(this)
+}
 
-class ADoubleLiteral(var value: Double) extends ABasicLiteral
+class ANullLiteral() extends ABasicLiteral {
 
-class ABooleanLiteral(var value: Boolean) extends ABasicLiteral
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitNullLiteral(this)
+}
+
+class ASymbolLiteral(var value: String) extends AExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitSymbolLiteral(this)
+}
 
-class ANullLiteral() extends ABasicLiteral
+class TypeLiteral(var ttype: DartType) extends AExpression {
 
-class ASymbolLiteral(var value: String) extends AExpression
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitTypeLiteral(this)
 
-class TypeLiteral(var ttype: DartType) extends AExpression
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNode(ttype, v)
+}
+
+class ThisExpression() extends AExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitThisExpression(this)
+}
+
+class Rethrow() extends AExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitRethrow(this)
+}
 
-class ThisExpression() extends AExpression
+class Throw(var expression: AExpression) extends AExpression {
 
-class Rethrow() extends AExpression
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitThrow(this)
 
-class Throw(var expression: AExpression) extends AExpression
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNode(expression, v)
+
+  override def transformChildren(v: Transformer): Unit = {
+    expression = v.transform(expression)
+  }
+}
 
 class ListLiteral(var expressions: java.util.List[AExpression],
                   var typeArgument: DartType,
                   var isConst: Boolean)
-    extends AExpression
+    extends AExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitListLiteral(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(typeArgument, v)
+    visitNodes(expressions, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    v.transformList(expressions)
+  }
+}
 
 class MapLiteral(var entries: java.util.List[MapEntry],
                  var keyType: DartType,
                  var valueType: DartType,
                  var isConst: Boolean)
-    extends AExpression
+    extends AExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitMapLiteral(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(keyType, v)
+    visitNode(valueType, v)
+    visitNodes(entries, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    v.transformList(entries)
+  }
+}
 
 class MapEntry(
     var key: AExpression,
     var value: AExpression
-) extends TreeNode
+) extends TreeNode {
+
+  def accept[R](v: TreeVisitor[R]): R = v.visitMapEntry(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(key, v)
+    visitNode(value, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    key = v.transform(key)
+    value = v.transform(value)
+  }
+}
+
+class AwaitExpression(var operand: AExpression) extends AExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitAwaitExpression(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNode(operand, v)
+
+  override def transformChildren(v: Transformer): Unit = {
+    operand = v.transform(operand)
+  }
+}
+
+class FunctionExpression(var function: AFunctionNode) extends AExpression {
 
-class AwaitExpression(var operand: AExpression) extends AExpression
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitFunctionExpression(this)
 
-class FunctionExpression(var function: AFunctionNode) extends AExpression
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNode(function, v)
+
+  override def transformChildren(v: Transformer): Unit = {
+    function = v.transform(function)
+  }
+}
 
 class Let(var variable: AVariableDeclaration, var body: AExpression)
-    extends AExpression
+    extends AExpression {
+
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitLet(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(variable, v)
+    visitNode(body, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    variable = v.transform(variable)
+    body = v.transform(body)
+  }
+}
 
 class BlockExpression(var body: ABlock, var value: AExpression)
-    extends AExpression
+    extends AExpression {
 
-trait AStatement extends TreeNode
+  def accept[R](v: ExpressionVisitor[R]): R = v.visitBlockExpression(this)
 
-class AExpressionStatement(var expression: AExpression) extends AStatement
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(body, v)
+    visitNode(value, v)
+  }
 
-class ABlock(var statements: java.util.List[AStatement]) extends AStatement
+  override def transformChildren(v: Transformer): Unit = {
+    body = v.transform(body)
+    value = v.transform(value)
+  }
+}
+
+trait AStatement extends TreeNode {
+  def accept[R](v: StatementVisitor[R]): R
 
-class AEmptyStatement() extends AStatement
+  override def accept[R](v: TreeVisitor[R]): R = accept(v: StatementVisitor[R])
+}
+
+class AExpressionStatement(var expression: AExpression) extends AStatement {
+
+  def accept[R](v: StatementVisitor[R]): R = v.visitExpressionStatement(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNode(expression, v)
+
+  override def transformChildren(v: Transformer): Unit = {
+    expression = v.transform(expression)
+  }
+}
+
+class ABlock(var statements: java.util.List[AStatement]) extends AStatement {
+
+  def accept[R](v: StatementVisitor[R]): R = v.visitBlock(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNodes(statements, v)
+
+  override def transformChildren(v: Transformer): Unit = {
+    v.transformList(statements)
+  }
+}
+
+class AEmptyStatement() extends AStatement {
+
+  def accept[R](v: StatementVisitor[R]): R = v.visitEmptyStatement(this)
+}
 
 class AssertStatement(var condition: AExpression, var message: AExpression)
-    extends AStatement
+    extends AStatement {
+
+  def accept[R](v: StatementVisitor[R]): R = v.visitAssertStatement(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(condition, v)
+    visitNode(message, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    condition = v.transform(condition)
+    message = v.transform(message)
+  }
+}
 
-class LabeledStatement(var body: AStatement) extends AStatement
+class LabeledStatement(var body: AStatement) extends AStatement {
 
-class BreakStatement(var target: LabeledStatement) extends AStatement
+  def accept[R](v: StatementVisitor[R]): R = v.visitLabeledStatement(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNode(body, v)
+
+  override def transformChildren(v: Transformer): Unit = {
+    body = v.transform(body)
+  }
+}
+
+class BreakStatement(var target: LabeledStatement) extends AStatement {
+
+  def accept[R](v: StatementVisitor[R]): R = v.visitBreakStatement(this)
+}
 
 class WhileStatement(var condition: AExpression, var body: AStatement)
-    extends AStatement
+    extends AStatement {
+
+  def accept[R](v: StatementVisitor[R]): R = v.visitWhileStatement(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(condition, v)
+    visitNode(body, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    condition = v.transform(condition)
+    body = v.transform(body)
+  }
+}
 
 class DoStatement(var body: AStatement, var condition: AExpression)
-    extends AStatement
+    extends AStatement {
+
+  def accept[R](v: StatementVisitor[R]): R = v.visitDoStatement(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(body, v)
+    visitNode(condition, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    body = v.transform(body)
+    condition = v.transform(condition)
+  }
+}
 
 class ForStatement(var variables: java.util.List[AVariableDeclaration],
                    var condition: AExpression,
                    var updates: java.util.List[AExpression],
                    var body: AStatement)
-    extends AStatement
+    extends AStatement {
+
+  def accept[R](v: StatementVisitor[R]): R = v.visitForStatement(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNodes(variables, v)
+    visitNode(condition, v)
+    visitNodes(updates, v)
+    visitNode(body, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    v.transformList(variables)
+    condition = v.transform(condition)
+    v.transformList(updates)
+    body = v.transform(body)
+  }
+}
 
 class ForInStatement(var variable: AVariableDeclaration,
                      var iterable: AExpression,
                      var body: AStatement,
                      var isAsync: Boolean)
-    extends AStatement
+    extends AStatement {
+
+  def accept[R](v: StatementVisitor[R]): R = v.visitForInStatement(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(variable, v)
+    visitNode(iterable, v)
+    visitNode(body, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    variable = v.transform(variable)
+    iterable = v.transform(iterable)
+    body = v.transform(body)
+  }
+}
 
 class SwitchStatement(var expression: AExpression,
                       var cases: java.util.List[SwitchCase])
-    extends AStatement
+    extends AStatement {
+
+  def accept[R](v: StatementVisitor[R]): R = v.visitSwitchStatement(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(expression, v)
+    visitNodes(cases, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    expression = v.transform(expression)
+    v.transformList(cases)
+  }
+}
 
 object SwitchCase {
   def build(): SwitchCase = new SwitchCase()
@@ -434,28 +1293,110 @@ class SwitchCase(var expressions: java.util.List[AExpression] =
                    new util.ArrayList[AExpression](),
                  var body: AStatement = null,
                  var isDefault: Boolean = false)
-    extends TreeNode
+    extends TreeNode {
+
+  def accept[R](v: TreeVisitor[R]): R = v.visitSwitchCase(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNodes(expressions, v)
+    visitNode(body, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    v.transformList(expressions)
+    body = v.transform(body)
+  }
+}
 
-class ContinueSwitchStatement(var switchCase: SwitchCase) extends AStatement
+class ContinueSwitchStatement(var switchCase: SwitchCase) extends AStatement {
+
+  def accept[R](v: StatementVisitor[R]): R = v.visitContinueSwitchStatement(this)
+}
 
 class IfStatement(var condition: AExpression,
                   var tthen: AStatement,
                   var otherwise: AStatement)
-    extends AStatement
+    extends AStatement {
 
-class ReturnStatement(var expression: AExpression) extends AStatement
+  def accept[R](v: StatementVisitor[R]): R = v.visitIfStatement(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(condition, v)
+    visitNode(tthen, v)
+    visitNode(otherwise, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    condition = v.transform(condition)
+    tthen = v.transform(tthen)
+    otherwise = v.transform(otherwise)
+  }
+}
+
+class ReturnStatement(var expression: AExpression) extends AStatement {
+
+  def accept[R](v: StatementVisitor[R]): R = v.visitReturnStatement(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNode(expression, v)
+
+  override def transformChildren(v: Transformer): Unit = {
+    expression = v.transform(expression)
+  }
+}
 
 class TryCatch(var body: AStatement, var catches: java.util.List[ACatch])
-    extends AStatement
+    extends AStatement {
+
+  def accept[R](v: StatementVisitor[R]): R = v.visitTryCatch(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(body, v)
+    visitNodes(catches, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    body = v.transform(body)
+    v.transformList(catches)
+  }
+}
 
 class ACatch(var exception: AVariableDeclaration,
              var body: AStatement,
              var guard: DartType = DynamicType(),
              var stackTrace: AVariableDeclaration)
-    extends TreeNode
+    extends TreeNode {
+
+  def accept[R](v: TreeVisitor[R]): R = v.visitCatch(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(guard, v)
+    visitNode(exception, v)
+    visitNode(stackTrace, v)
+    visitNode(body, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    exception = v.transform(exception)
+    stackTrace = v.transform(stackTrace)
+    body = v.transform(body)
+  }
+}
 
 class TryFinally(var body: AStatement, var finalizer: AStatement)
-    extends AStatement
+    extends AStatement {
+
+  def accept[R](v: StatementVisitor[R]): R = v.visitTryFinally(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(body, v)
+    visitNode(finalizer, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    body = v.transform(body)
+    finalizer = v.transform(finalizer)
+  }
+}
 
 object YieldStatement {
   val FlagYieldStar = 1 << 0
@@ -465,7 +1406,16 @@ object YieldStatement {
 class YieldStatement(var expression: AExpression,
                      var isYieldStar: Boolean,
                      var isNative: Boolean)
-    extends AStatement
+    extends AStatement {
+
+  def accept[R](v: StatementVisitor[R]): R = v.visitYieldStatement(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNode(expression, v)
+
+  override def transformChildren(v: Transformer): Unit = {
+    expression = v.transform(expression)
+  }
+}
 
 object AVariableDeclaration {
   val FlagFinal = 1 << 0
@@ -484,6 +1434,19 @@ class AVariableDeclaration(
     cconst: Boolean
 ) extends AStatement {
 
+  def accept[R](v: StatementVisitor[R]): R = v.visitVariableDeclaration(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(ttype, v)
+    visitNode(inferredValue, v)
+    visitNode(initializer, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    inferredValue = v.transform(inferredValue)
+    initializer = v.transform(initializer)
+  }
+
   var flags = 0
 
   isFinal = ffinal
@@ -509,15 +1472,124 @@ class AVariableDeclaration(
 
 class FunctionDeclaration(var variable: AVariableDeclaration,
                           var function: AFunctionNode)
-    extends AStatement
+    extends AStatement {
+
+  def accept[R](v: StatementVisitor[R]): R = v.visitFunctionDeclaration(this)
 
-class AName(var name: String, var library: ALibrary) extends AstNode
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitNode(variable, v)
+    visitNode(function, v)
+  }
+
+  override def transformChildren(v: Transformer): Unit = {
+    variable = v.transform(variable)
+    function = v.transform(function)
+  }
+}
+
+class AName(var name: String, var library: ALibrary) extends AstNode {
+
+  def accept[R](v: Visitor[R]): R = v.visitName(this)
+}
+
+/**
+  * Line starts of the source files of a program, keyed by file URI. Each entry is the ascending array of
+  * offsets at which the lines of the file begin.
+  */
+abstract class LineStarts {
+
+  def fileUris: java.util.List[String]
+
+  /** Line starts of the file, or null if the program has no such file. */
+  def lineStarts(fileUri: String): Array[Int]
+
+  def getLocation(fileUri: String, offset: Int): Location = {
+    val lines = linesOf(fileUri)
+    val line = LineStarts.lineIndex(lines, offset)
+    Location(fileUri, line + 1, offset - lineStart(lines, line))
+  }
+
+  /**
+    * Resolves every offset of the file at once into the given line and column arrays, without allocating
+    * a location per offset. Ascending offsets only pay for a binary search when they leave the line of
+    * the previous offset.
+    */
+  def getLocations(fileUri: String,
+                   offsets: Array[Int],
+                   lines: Array[Int],
+                   columns: Array[Int]): Unit = {
+    val starts = linesOf(fileUri)
+    val last = starts.length - 1
+    var line = 0
+    var i = 0
+    while (i < offsets.length) {
+      val offset = offsets(i)
+      if (offset < lineStart(starts, line) || (line < last && starts(line + 1) <= offset)) {
+        line = LineStarts.lineIndex(starts, offset)
+      }
+      lines(i) = line + 1
+      columns(i) = offset - lineStart(starts, line)
+      i += 1
+    }
+  }
+
+  private def linesOf(fileUri: String): Array[Int] = {
+    val lines = lineStarts(fileUri)
+    if (lines == null) {
+      throw new NoSuchElementException(s"No line starts for $fileUri")
+    }
+    lines
+  }
+
+  private def lineStart(lines: Array[Int], line: Int) =
+    if (lines.length == 0) 0 else lines(line)
+}
+
+object LineStarts {
+
+  /** Index of the last line starting at or before the offset, as in Program.getLocation of the kernel. */
+  private def lineIndex(lines: Array[Int], offset: Int): Int = {
+    var low = 0
+    var high = lines.length - 1
+    while (low < high) {
+      val mid = high - ((high - low) >> 1) // Get middle, rounding up.
+      if (lines(mid) <= offset) {
+        low = mid
+      } else {
+        high = mid - 1
+      }
+    }
+    low
+  }
+}
+
+/** A file, a 1-based line and a 0-based column, for displaying human-readable locations. */
+case class Location(file: String, line: Int, column: Int) {
+  override def toString = s"$file:$line:$column"
+}
 
 class Program(var libraries: java.util.List[ALibrary],
               var mainMethod: AMember,
-              var uriToLineStarts: java.util.HashMap[String, Array[Integer]])
+              var uriToLineStarts: LineStarts)
     extends TreeNode {
 
+  def accept[R](v: TreeVisitor[R]): R = v.visitProgram(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNodes(libraries, v)
+
+  override def transformChildren(v: Transformer): Unit = {
+    v.transformList(libraries)
+  }
+
+  def getLocation(fileUri: String, offset: Int): Location =
+    uriToLineStarts.getLocation(fileUri, offset)
+
+  def getLocations(fileUri: String,
+                   offsets: Array[Int],
+                   lines: Array[Int],
+                   columns: Array[Int]): Unit =
+    uriToLineStarts.getLocations(fileUri, offsets, lines, columns)
+
   override def toCustomString(visited: mutable.Set[AstNode],
                               indentation: Int) =
     s"Program(" +
@@ -531,4 +1603,7 @@ class AInferredValue(
     var baseClass: AClass,
     var baseClassKind: BaseClassKind.Value,
     var valueBits: Int
-) extends TreeNode
+) extends TreeNode {
+
+  def accept[R](v: TreeVisitor[R]): R = v.visitInferredValue(this)
+}
@@ -0,0 +1,203 @@
+package dk.au.cs.ast
+
+import java.util
+import java.util.concurrent.ForkJoinPool
+
+/**
+  * The calls between the members of a program, from static, constructor, direct and super invocations to
+  * their targets and from method invocations to their interface targets. Members are numbered densely in
+  * the order of [[ParallelTraversal.members]], and the calls are kept in compressed sparse row form, once
+  * by caller and once by callee: the calls of member `m` are the edges from `callsFrom(m)` until
+  * `callsFrom(m + 1)`, and each edge has the callee and the file offset of the call site. Listing the
+  * calls to a member thus takes time in its number of callers. The graph takes four ints per call: its
+  * callee and offset by caller, and its caller and offset by callee.
+  *
+  * The members are visited in parallel, which decodes any lazily loaded bodies.
+  */
+final class CallGraph private (val members: Array[AMember],
+                               ids: util.IdentityHashMap[AMember, Integer],
+                               outStart: Array[Int],
+                               outCallees: Array[Int],
+                               outOffsets: Array[Int],
+                               inStart: Array[Int],
+                               inCallers: Array[Int],
+                               inOffsets: Array[Int]) {
+
+  def edgeCount: Int = outCallees.length
+
+  /** The id of the member, or -1 if it is not in the graph. */
+  def memberId(member: AMember): Int = {
+    val id = ids.get(member)
+    if (id == null) -1 else id
+  }
+
+  /** The first edge of the calls made by the member; its last edge is before `callsFrom(member + 1)`. */
+  def callsFrom(member: Int): Int = outStart(member)
+
+  def callee(edge: Int): Int = outCallees(edge)
+
+  def calleeOffset(edge: Int): Int = outOffsets(edge)
+
+  /** The first edge of the calls to the member; its last edge is before `callsTo(member + 1)`. */
+  def callsTo(member: Int): Int = inStart(member)
+
+  def caller(edge: Int): Int = inCallers(edge)
+
+  def callerOffset(edge: Int): Int = inOffsets(edge)
+
+  /** The callees of the member, once per call. */
+  def callees(member: AMember): util.List[AMember] =
+    select(memberId(member), outStart, outCallees)
+
+  /** The callers of the member, once per call. */
+  def callers(member: AMember): util.List[AMember] =
+    select(memberId(member), inStart, inCallers)
+
+  private def select(id: Int, start: Array[Int], targets: Array[Int]): util.List[AMember] = {
+    val result = new util.ArrayList[AMember]()
+    if (id >= 0) {
+      var edge = start(id)
+      while (edge < start(id + 1)) {
+        result.add(members(targets(edge)))
+        edge += 1
+      }
+    }
+    result
+  }
+}
+
+object CallGraph {
+
+  def build(program: Program): CallGraph = build(program, ForkJoinPool.commonPool())
+
+  def build(program: Program, pool: ForkJoinPool): CallGraph = {
+    val members = ParallelTraversal.members(program)
+    val ids = new util.IdentityHashMap[AMember, Integer](members.length)
+    var i = 0
+    while (i < members.length) {
+      ids.put(members(i), i)
+      i += 1
+    }
+    val collectors =
+      new ParallelTraversal(pool).visitMembers(members, () => new CallCollector(ids))
+
+    // Place the calls by caller, keeping the order in which each caller makes them.
+    val n = members.length
+    val outStart = new Array[Int](n + 1)
+    var c = 0
+    while (c < collectors.size) {
+      val calls = collectors.get(c)
+      var j = 0
+      while (j < calls.size) {
+        outStart(calls.callers(j) + 1) += 1
+        j += 1
+      }
+      c += 1
+    }
+    i = 0
+    while (i < n) {
+      outStart(i + 1) += outStart(i)
+      i += 1
+    }
+    val edges = outStart(n)
+    val outCallees = new Array[Int](edges)
+    val outOffsets = new Array[Int](edges)
+    val next = util.Arrays.copyOf(outStart, n)
+    c = 0
+    while (c < collectors.size) {
+      val calls = collectors.get(c)
+      var j = 0
+      while (j < calls.size) {
+        val edge = next(calls.callers(j))
+        outCallees(edge) = calls.callees(j)
+        outOffsets(edge) = calls.offsets(j)
+        next(calls.callers(j)) = edge + 1
+        j += 1
+      }
+      c += 1
+    }
+
+    // Place them again by callee, in ascending order of callers.
+    val inStart = new Array[Int](n + 1)
+    var edge = 0
+    while (edge < edges) {
+      inStart(outCallees(edge) + 1) += 1
+      edge += 1
+    }
+    i = 0
+    while (i < n) {
+      inStart(i + 1) += inStart(i)
+      i += 1
+    }
+    val inCallers = new Array[Int](edges)
+    val inOffsets = new Array[Int](edges)
+    System.arraycopy(inStart, 0, next, 0, n)
+    var caller = 0
+    while (caller < n) {
+      edge = outStart(caller)
+      while (edge < outStart(caller + 1)) {
+        val slot = next(outCallees(edge))
+        inCallers(slot) = caller
+        inOffsets(slot) = outOffsets(edge)
+        next(outCallees(edge)) = slot + 1
+        edge += 1
+      }
+      caller += 1
+    }
+    new CallGraph(members, ids, outStart, outCallees, outOffsets, inStart, inCallers, inOffsets)
+  }
+
+  /** Records the calls of the members one worker visits as (caller, callee, offset) triples. */
+  private class CallCollector(ids: util.IdentityHashMap[AMember, Integer])
+      extends RecursiveVisitor[Unit] {
+    var callers = new Array[Int](256)
+    var callees = new Array[Int](256)
+    var offsets = new Array[Int](256)
+    var size = 0
+    private var current = -1
+
+    override def defaultMember(node: AMember): Unit = {
+      current = ids.get(node)
+      node.visitChildren(this)
+    }
+
+    override def visitStaticInvocation(node: AStaticInvocation): Unit = {
+      add(node.target, node.fileOffset)
+      node.visitChildren(this)
+    }
+
+    override def visitConstructorInvocation(node: ConstructorInvocation): Unit = {
+      add(node.target, node.fileOffset)
+      node.visitChildren(this)
+    }
+
+    override def visitDirectMethodInvocation(node: ADirectMethodInvocation): Unit = {
+      add(node.target, node.fileOffset)
+      node.visitChildren(this)
+    }
+
+    override def visitSuperMethodInvocation(node: ASuperMethodInvocation): Unit = {
+      add(node.interfaceTarget, node.fileOffset)
+      node.visitChildren(this)
+    }
+
+    override def visitMethodInvocation(node: AMethodInvocation): Unit = {
+      add(node.interfaceTarget, node.fileOffset)
+      node.visitChildren(this)
+    }
+
+    private def add(target: AMember, offset: Int): Unit = {
+      val callee = if (target == null) null else ids.get(target)
+      if (callee == null) return
+      if (size == callers.length) {
+        callers = util.Arrays.copyOf(callers, 2 * size)
+        callees = util.Arrays.copyOf(callees, 2 * size)
+        offsets = util.Arrays.copyOf(offsets, 2 * size)
+      }
+      callers(size) = current
+      callees(size) = callee
+      offsets(size) = offset
+      size += 1
+    }
+  }
+}
@@ -0,0 +1,221 @@
+package dk.au.cs.ast
+
+import java.util
+
+/**
+  * Answers subclass, submixture and subtype queries between the classes of a program, as
+  * class_hierarchy.dart of the kernel. Each class gets a dense id, its index in [[classes]], which orders
+  * every class after its supertypes; the queries taking ids avoid looking the classes up.
+  *
+  * `isSubclassOf` is a constant time interval test: the classes are numbered in pre-order of the
+  * `extends` forest, so the subclasses of a class are the numbers from its own up to the end of its
+  * subtree. `isSubmixtureOf` and `isSubtypeOf` binary search the sorted ids of the supertypes a class has
+  * through `extends` and `with`, and through `extends`, `with` and `implements`.
+  *
+  * The hierarchy does not see classes or supertypes added to the program after it was built.
+  */
+final class ClassHierarchy(program: Program) {
+
+  private val index = new util.IdentityHashMap[AClass, Integer]()
+
+  /** All classes of the program, supertypes first. The id of a class is its index in this array. */
+  val classes: Array[AClass] = {
+    val sorted = new util.ArrayList[AClass]()
+    val visiting = new util.IdentityHashMap[AClass, AClass]()
+    val libraries = program.libraries
+    var i = 0
+    while (i < libraries.size) {
+      val library = libraries.get(i)
+      if (library != null) {
+        var j = 0
+        while (j < library.classes.size) {
+          topologicalSortVisit(library.classes.get(j), sorted, visiting)
+          j += 1
+        }
+      }
+      i += 1
+    }
+    sorted.toArray(new Array[AClass](sorted.size))
+  }
+
+  // Id of the superclass of each class, or -1.
+  private val superclass = classes.map(c => supertypeId(c.supertype))
+
+  // Pre-order number of each class and of the first class after its subtree.
+  private val (subclassStart, subclassEnd) = {
+    val n = classes.length
+    val size = Array.fill(n)(1)
+    var i = n - 1
+    while (i >= 0) {
+      if (superclass(i) >= 0) size(superclass(i)) += size(i)
+      i -= 1
+    }
+    val start = new Array[Int](n)
+    val nextChild = new Array[Int](n)
+    var nextRoot = 0
+    i = 0
+    while (i < n) {
+      val s = superclass(i)
+      if (s < 0) {
+        start(i) = nextRoot
+        nextRoot += size(i)
+      } else {
+        start(i) = nextChild(s)
+        nextChild(s) += size(i)
+      }
+      nextChild(i) = start(i) + 1
+      i += 1
+    }
+    (start, Array.tabulate(n)(i => start(i) + size(i)))
+  }
+
+  // Sorted ids of the strict supertypes of each class through extends and with, and through all three.
+  private val (submixtureOf, subtypeOf) = {
+    val n = classes.length
+    val mixtures = new Array[Array[Int]](n)
+    val supertypes = new Array[Array[Int]](n)
+    val scratch = new ClassHierarchy.IdSet
+    var i = 0
+    while (i < n) {
+      val c = classes(i)
+      val mixedIn = supertypeId(c.mixedInType)
+      scratch.clear()
+      scratch.addWithSupertypes(superclass(i), mixtures)
+      scratch.addWithSupertypes(mixedIn, mixtures)
+      mixtures(i) = scratch.toSortedArray
+      scratch.clear()
+      scratch.addWithSupertypes(superclass(i), supertypes)
+      scratch.addWithSupertypes(mixedIn, supertypes)
+      var j = 0
+      while (j < c.implementedTypes.size) {
+        scratch.addWithSupertypes(supertypeId(c.implementedTypes.get(j)), supertypes)
+        j += 1
+      }
+      supertypes(i) = scratch.toSortedArray
+      i += 1
+    }
+    (mixtures, supertypes)
+  }
+
+  classes.indices.foreach { i =>
+    classes(i).hierarchyId = new ClassHierarchy.Id(this, i)
+  }
+
+  /**
+    * The id of the class, or -1 if it is not part of the hierarchy. Classes remember their id in the
+    * hierarchy built last, so only queries to older hierarchies look the class up in a map.
+    */
+  def classId(c: AClass): Int = {
+    val remembered = c.hierarchyId
+    if (remembered != null && (remembered.hierarchy eq this)) remembered.id
+    else {
+      val id = index.get(c)
+      if (id == null) -1 else id
+    }
+  }
+
+  /** True if `subclass` inherits from `superclass` through zero or more `extends` relationships. */
+  def isSubclassOf(subclass: AClass, superclass: AClass): Boolean =
+    (subclass eq superclass) || isSubclassOf(idOf(subclass), idOf(superclass))
+
+  def isSubclassOf(subclass: Int, superclass: Int): Boolean = {
+    val number = subclassStart(subclass)
+    subclassStart(superclass) <= number && number < subclassEnd(superclass)
+  }
+
+  /** True if `submixture` inherits from `superclass` through zero or more `extends` and `with` relationships. */
+  def isSubmixtureOf(submixture: AClass, superclass: AClass): Boolean =
+    (submixture eq superclass) || isSubmixtureOf(idOf(submixture), idOf(superclass))
+
+  def isSubmixtureOf(submixture: Int, superclass: Int): Boolean =
+    submixture == superclass || util.Arrays.binarySearch(submixtureOf(submixture), superclass) >= 0
+
+  /**
+    * True if `subtype` inherits from `superclass` through zero or more `extends`, `with` and `implements`
+    * relationships.
+    */
+  def isSubtypeOf(subtype: AClass, superclass: AClass): Boolean =
+    (subtype eq superclass) || isSubtypeOf(idOf(subtype), idOf(superclass))
+
+  def isSubtypeOf(subtype: Int, superclass: Int): Boolean =
+    subtype == superclass || util.Arrays.binarySearch(subtypeOf(subtype), superclass) >= 0
+
+  /** Ids of the strict supertypes of the class, ascending, so each is listed after its own supertypes. */
+  def supertypeIds(id: Int): Array[Int] = subtypeOf(id).clone()
+
+  /** The id of the superclass of the class, or -1 if it has none. */
+  def superclassId(id: Int): Int = superclass(id)
+
+  private def idOf(c: AClass): Int = {
+    val id = classId(c)
+    if (id < 0) {
+      throw new IllegalArgumentException(s"Class ${c.name} is not in the hierarchy")
+    }
+    id
+  }
+
+  private def supertypeId(supertype: Supertype): Int =
+    if (supertype == null || supertype.classNode == null) -1
+    else index.get(supertype.classNode).intValue
+
+  /** Numbers the class after its supertypes, which need not be in the program's libraries. */
+  private def topologicalSortVisit(c: AClass,
+                                   sorted: util.ArrayList[AClass],
+                                   visiting: util.IdentityHashMap[AClass, AClass]): Unit = {
+    if (c == null || index.containsKey(c)) return
+    if (visiting.put(c, c) != null) {
+      throw new IllegalArgumentException(s"Cyclic inheritance involving ${c.name}")
+    }
+    if (c.supertype != null) topologicalSortVisit(c.supertype.classNode, sorted, visiting)
+    if (c.mixedInType != null) topologicalSortVisit(c.mixedInType.classNode, sorted, visiting)
+    var i = 0
+    while (i < c.implementedTypes.size) {
+      topologicalSortVisit(c.implementedTypes.get(i).classNode, sorted, visiting)
+      i += 1
+    }
+    visiting.remove(c)
+    index.put(c, sorted.size)
+    sorted.add(c)
+  }
+}
+
+object ClassHierarchy {
+
+  /** The id of a class in a hierarchy, as remembered by the class. */
+  private[ast] final class Id(val hierarchy: ClassHierarchy, val id: Int)
+
+  /** A growable set of class ids, reused while building the supertype arrays. */
+  private class IdSet {
+    private var ids = new Array[Int](16)
+    private var size = 0
+
+    def clear(): Unit = size = 0
+
+    /** Adds the class and the supertypes recorded for it in `supertypes`, unless `id` is -1. */
+    def addWithSupertypes(id: Int, supertypes: Array[Array[Int]]): Unit =
+      if (id >= 0) {
+        val inherited = supertypes(id)
+        if (size + inherited.length + 1 > ids.length) {
+          ids = util.Arrays.copyOf(ids, 2 * (size + inherited.length + 1))
+        }
+        System.arraycopy(inherited, 0, ids, size, inherited.length)
+        size += inherited.length
+        ids(size) = id
+        size += 1
+      }
+
+    def toSortedArray: Array[Int] = {
+      util.Arrays.sort(ids, 0, size)
+      var distinct = 0
+      var i = 0
+      while (i < size) {
+        if (distinct == 0 || ids(distinct - 1) != ids(i)) {
+          ids(distinct) = ids(i)
+          distinct += 1
+        }
+        i += 1
+      }
+      util.Arrays.copyOf(ids, distinct)
+    }
+  }
+}
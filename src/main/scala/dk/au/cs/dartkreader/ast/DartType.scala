@@ -2,16 +2,33 @@ package dk.au.cs.ast
 
 import java.util
 
-trait DartType extends AstNode
+import TreeNode._
 
-case class NoTypeYet() extends DartType
+trait DartType extends AstNode {
+  def accept[R](v: DartTypeVisitor[R]): R
+}
+
+case class NoTypeYet() extends DartType {
+
+  def accept[R](v: DartTypeVisitor[R]): R = v.visitNoTypeYet(this)
+}
 
 case class InterfaceType(classNode: AClass,
                          typeArguments: java.util.List[DartType])
-    extends DartType
+    extends DartType {
+
+  def accept[R](v: DartTypeVisitor[R]): R = v.visitInterfaceType(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = visitTypes(typeArguments, v)
+}
 
 case class TypeParameter(var name: String, var bound: DartType)
-    extends DartType
+    extends DartType {
+
+  def accept[R](v: DartTypeVisitor[R]): R = v.visitTypeParameter(this)
+
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNode(bound, v)
+}
 
 object FunctionType {
   def build(positionalParameters: java.util.List[DartType],
@@ -28,9 +45,11 @@ object FunctionType {
     )
   }
 
+  /** All positional parameters are required, as in the kernel's `FunctionType`. */
   def build(positional: java.util.List[DartType], returnType: DartType) =
     new FunctionType(positionalParameters = positional,
-                     returnType = returnType)
+                     returnType = returnType,
+                     requiredParameterCount = positional.size())
 
 }
 
@@ -42,21 +61,51 @@ case class FunctionType(positionalParameters: java.util.List[DartType] =
                         typeParameters: java.util.List[TypeParameter] =
                           new util.ArrayList[TypeParameter](),
                         requiredParameterCount: Int = 0)
-    extends DartType
+    extends DartType {
 
-case class NamedType(var name: String, var ttype: DartType) extends DartType
+  def accept[R](v: DartTypeVisitor[R]): R = v.visitFunctionType(this)
 
-case class VoidType() extends DartType
+  override def visitChildren[R](v: Visitor[R]): Unit = {
+    visitTypes(typeParameters, v)
+    visitTypes(positionalParameters, v)
+    visitTypes(namedParameters, v)
+    visitNode(returnType, v)
+  }
+}
+
+case class NamedType(var name: String, var ttype: DartType) extends DartType {
 
-case class DynamicType() extends DartType
+  def accept[R](v: DartTypeVisitor[R]): R = v.visitNamedType(this)
 
-case class InvalidType() extends DartType
+  override def visitChildren[R](v: Visitor[R]): Unit = visitNode(ttype, v)
+}
+
+case class VoidType() extends DartType {
+
+  def accept[R](v: DartTypeVisitor[R]): R = v.visitVoidType(this)
+}
+
+case class DynamicType() extends DartType {
+
+  def accept[R](v: DartTypeVisitor[R]): R = v.visitDynamicType(this)
+}
+
+case class InvalidType() extends DartType {
+
+  def accept[R](v: DartTypeVisitor[R]): R = v.visitInvalidType(this)
+}
 
 case class TypeName(name: String)
 
-case class BottomType() extends DartType
+case class BottomType() extends DartType {
+
+  def accept[R](v: DartTypeVisitor[R]): R = v.visitBottomType(this)
+}
+
+case class TypeParameterType(positional: TypeParameter) extends DartType {
 
-case class TypeParameterType(positional: TypeParameter) extends DartType
+  def accept[R](v: DartTypeVisitor[R]): R = v.visitTypeParameterType(this)
+}
 
 object BaseClassKind extends Enumeration {
   val None, Exact, Subclass, Subtype = Value
@@ -0,0 +1,214 @@
+package dk.au.cs.ast
+
+import java.util
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.{ForkJoinPool, ForkJoinTask, RecursiveAction}
+
+/**
+  * The instance member that a dynamic dispatch of a name to each class of a hierarchy reaches, as
+  * `getDispatchTarget` of the kernel's class hierarchy. Names are interned to dense ids, with private
+  * names distinguished by library, and each class has two tables from name id to member: one for getters
+  * and calls, which holds fields, getters, methods and operators, and one for setters, which holds
+  * non-final fields and setters. A class's tables hold the members it declares, or those of its mixin,
+  * over those of its superclass's tables; abstract and static members are left out.
+  *
+  * Tables are built on first use, or all at once by [[buildAll]]; building from several threads at once
+  * is safe.
+  */
+final class DispatchTables(val hierarchy: ClassHierarchy) {
+  import DispatchTables._
+
+  private val classes = hierarchy.classes
+
+  private val nameIds: util.HashMap[AnyRef, Integer] = {
+    val ids = new util.HashMap[AnyRef, Integer]()
+    var i = 0
+    while (i < classes.length) {
+      val c = classes(i)
+      var j = 0
+      while (j < c.procedures.size) {
+        intern(ids, c.procedures.get(j).name)
+        j += 1
+      }
+      j = 0
+      while (j < c.fields.size) {
+        intern(ids, c.fields.get(j).name)
+        j += 1
+      }
+      i += 1
+    }
+    ids
+  }
+
+  private val getterTables = new AtomicReferenceArray[MemberTable](classes.length)
+  private val setterTables = new AtomicReferenceArray[MemberTable](classes.length)
+
+  /** Name ids are below this. */
+  def nameCount: Int = nameIds.size
+
+  /** The id of the name, or -1 if no class of the hierarchy has a member with that name. */
+  def nameId(name: AName): Int = {
+    val id = nameIds.get(key(name))
+    if (id == null) -1 else id
+  }
+
+  /**
+    * The member that a dispatch of the name as a getter or call, or as a setter, to an instance of the
+    * class reaches, or null if there is none.
+    */
+  def dispatchTarget(c: AClass, name: AName, setter: Boolean): AMember = {
+    val classId = hierarchy.classId(c)
+    val id = nameId(name)
+    if (classId < 0 || id < 0) null else dispatchTarget(classId, id, setter)
+  }
+
+  def dispatchTarget(classId: Int, nameId: Int, setter: Boolean): AMember =
+    table(classId, setter).get(nameId)
+
+  /** The ids of the names that reach a member when dispatched to the class, in no particular order. */
+  def dispatchedNameIds(classId: Int, setter: Boolean): Array[Int] =
+    table(classId, setter).nameIds
+
+  /** Builds the tables of every class on the pool. */
+  def buildAll(pool: ForkJoinPool): Unit =
+    pool.invoke(new BuildTask(this, 0, classes.length))
+
+  private def table(classId: Int, setter: Boolean): MemberTable = {
+    val tables = if (setter) setterTables else getterTables
+    val table = tables.get(classId)
+    if (table != null) table
+    else {
+      build(classId)
+      tables.get(classId)
+    }
+  }
+
+  private def build(classId: Int): Unit = {
+    val superclass = hierarchy.superclassId(classId)
+    val inheritedGetters = if (superclass < 0) MemberTable.Empty else table(superclass, setter = false)
+    val inheritedSetters = if (superclass < 0) MemberTable.Empty else table(superclass, setter = true)
+    var declaring = classes(classId)
+    while (declaring.mixedInType != null) declaring = declaring.mixedInType.classNode
+
+    val getters = new util.ArrayList[AMember]()
+    val setters = new util.ArrayList[AMember]()
+    var i = 0
+    while (i < declaring.procedures.size) {
+      val procedure = declaring.procedures.get(i)
+      if (!procedure.isStatic && !procedure.isAbstract && procedure.kind != ProcedureKind.Factory) {
+        if (procedure.kind == ProcedureKind.Setter) setters.add(procedure) else getters.add(procedure)
+      }
+      i += 1
+    }
+    i = 0
+    while (i < declaring.fields.size) {
+      val field = declaring.fields.get(i)
+      if (!AField.isStatic(field.flags)) {
+        getters.add(field)
+        if (!AField.isFinal(field.flags) && !AField.isConst(field.flags)) setters.add(field)
+      }
+      i += 1
+    }
+    // Lost races build the same tables; the first one stored is kept.
+    getterTables.compareAndSet(classId, null, inheritedGetters.extend(getters, this))
+    setterTables.compareAndSet(classId, null, inheritedSetters.extend(setters, this))
+  }
+}
+
+object DispatchTables {
+
+  /** Private names are only equal within their library. */
+  private case class PrivateName(text: String, library: ALibrary)
+
+  private def key(name: AName): AnyRef =
+    if (name.library == null) name.name else PrivateName(name.name, name.library)
+
+  private def intern(ids: util.HashMap[AnyRef, Integer], name: AName): Unit =
+    if (name != null) {
+      val k = key(name)
+      if (!ids.containsKey(k)) ids.put(k, ids.size)
+    }
+
+  /** A map from name id to member with open addressing and linear probing. */
+  private final class MemberTable(keys: Array[Int], members: Array[AMember], val size: Int) {
+    // Keys are name ids plus one, so that zero marks an empty slot.
+    private val mask = keys.length - 1
+
+    def get(nameId: Int): AMember = {
+      val key = nameId + 1
+      var slot = mix(key) & mask
+      while (true) {
+        val k = keys(slot)
+        if (k == key) return members(slot)
+        if (k == 0) return null
+        slot = (slot + 1) & mask
+      }
+      null
+    }
+
+    def nameIds: Array[Int] = {
+      val ids = new Array[Int](size)
+      var count = 0
+      var slot = 0
+      while (slot < keys.length) {
+        if (keys(slot) != 0) {
+          ids(count) = keys(slot) - 1
+          count += 1
+        }
+        slot += 1
+      }
+      ids
+    }
+
+    /** A new table with this table's entries, overridden by the given members. */
+    def extend(declared: util.List[AMember], tables: DispatchTables): MemberTable = {
+      if (declared.isEmpty) return this
+      val capacity = Integer.highestOneBit(Math.max(4, 2 * (size + declared.size)) - 1) << 1
+      val newKeys = new Array[Int](capacity)
+      val newMembers = new Array[AMember](capacity)
+      var newSize = 0
+      def put(key: Int, member: AMember): Unit = {
+        var slot = mix(key) & (capacity - 1)
+        while (newKeys(slot) != 0 && newKeys(slot) != key) slot = (slot + 1) & (capacity - 1)
+        if (newKeys(slot) == 0) newSize += 1
+        newKeys(slot) = key
+        newMembers(slot) = member
+      }
+      var i = 0
+      while (i < keys.length) {
+        if (keys(i) != 0) put(keys(i), members(i))
+        i += 1
+      }
+      i = 0
+      while (i < declared.size) {
+        val member = declared.get(i)
+        put(tables.nameId(member.name) + 1, member)
+        i += 1
+      }
+      new MemberTable(newKeys, newMembers, newSize)
+    }
+  }
+
+  private object MemberTable {
+    val Empty = new MemberTable(new Array[Int](1), new Array[AMember](1), 0)
+  }
+
+  private def mix(key: Int): Int = {
+    val h = key * 0x9E3779B9
+    h ^ (h >>> 16)
+  }
+
+  private class BuildTask(tables: DispatchTables, from: Int, to: Int) extends RecursiveAction {
+    override def compute(): Unit =
+      if (to - from <= 64) {
+        var i = from
+        while (i < to) {
+          tables.table(i, setter = false)
+          i += 1
+        }
+      } else {
+        val middle = (from + to) >>> 1
+        ForkJoinTask.invokeAll(new BuildTask(tables, from, middle), new BuildTask(tables, middle, to))
+      }
+  }
+}
@@ -0,0 +1,102 @@
+package dk.au.cs.ast
+
+import java.util
+import java.util.concurrent.{ConcurrentHashMap, ForkJoinPool, ForkJoinTask, RecursiveAction}
+
+/**
+  * Runs read-only visitors over the members of a program on a ForkJoin pool. The members of all libraries
+  * and classes are collected into one array, which tasks halve until at most `grain` members are left to
+  * visit in a loop. Each worker thread visits with its own visitor, created the first time the thread runs
+  * a task, so visitors need no synchronization; the visitors are returned for the caller to merge their
+  * results. They are kept in a map local to the traversal, so no worker holds on to one afterwards.
+  *
+  * Only members are visited: library and class annotations, type parameters and supertypes are not.
+  * Visitors must not change the tree; lazily loaded bodies are decoded by the worker that visits them.
+  */
+class ParallelTraversal(pool: ForkJoinPool, grain: Int = 16) {
+
+  def this() = this(ForkJoinPool.commonPool())
+
+  /** Visits every member of the program, returning the visitors that were created. */
+  def visitMembers[V <: MemberVisitor[_]](program: Program,
+                                          newVisitor: () => V): util.List[V] =
+    visitMembers(ParallelTraversal.members(program), newVisitor)
+
+  def visitMembers[V <: MemberVisitor[_]](members: Array[AMember],
+                                          newVisitor: () => V): util.List[V] = {
+    val visitors = new ConcurrentHashMap[Thread, V]()
+    pool.invoke(
+      new ParallelTraversal.MemberTask(members, 0, members.length, grain, visitors, newVisitor))
+    new util.ArrayList[V](visitors.values)
+  }
+}
+
+object ParallelTraversal {
+
+  /** The members of the program in library order, each library's own members after those of its classes. */
+  def members(program: Program): Array[AMember] = {
+    val members = new util.ArrayList[AMember]()
+    val libraries = program.libraries
+    var i = 0
+    while (i < libraries.size) {
+      val library = libraries.get(i)
+      if (library != null) {
+        val classes = library.classes
+        var j = 0
+        while (j < classes.size) {
+          val c = classes.get(j)
+          if (c != null) {
+            addAll(members, c.fields)
+            addAll(members, c.constructors)
+            addAll(members, c.procedures)
+          }
+          j += 1
+        }
+        addAll(members, library.fields)
+        addAll(members, library.procedures)
+      }
+      i += 1
+    }
+    members.toArray(new Array[AMember](members.size))
+  }
+
+  private def addAll(members: util.ArrayList[AMember],
+                     list: util.List[_ <: AMember]): Unit = {
+    var i = 0
+    while (i < list.size) {
+      val member = list.get(i)
+      if (member != null) members.add(member)
+      i += 1
+    }
+  }
+
+  private class MemberTask[V <: MemberVisitor[_]](members: Array[AMember],
+                                                  from: Int,
+                                                  to: Int,
+                                                  grain: Int,
+                                                  visitors: ConcurrentHashMap[Thread, V],
+                                                  newVisitor: () => V)
+      extends RecursiveAction {
+
+    override def compute(): Unit =
+      if (to - from <= grain) {
+        val thread = Thread.currentThread
+        var visitor = visitors.get(thread)
+        if (visitor == null) {
+          // Only this thread adds its own visitor.
+          visitor = newVisitor()
+          visitors.put(thread, visitor)
+        }
+        var i = from
+        while (i < to) {
+          members(i).accept(visitor.asInstanceOf[MemberVisitor[Any]])
+          i += 1
+        }
+      } else {
+        val middle = (from + to) >>> 1
+        ForkJoinTask.invokeAll(
+          new MemberTask(members, from, middle, grain, visitors, newVisitor),
+          new MemberTask(members, middle, to, grain, visitors, newVisitor))
+      }
+  }
+}
@@ -0,0 +1,377 @@
+package dk.au.cs.ast
+
+import java.lang.ref.WeakReference
+import java.util
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+  * Finds the innermost member and expression at a position of a source file, for hover and go to
+  * definition. The binary format only records a single file offset for a node, and none for procedures and
+  * constructors, so the extent of a node is taken to be the span of the offsets in its subtree: from the
+  * least to the greatest offset of the node and the nodes below it. Members are indexed by the offsets of
+  * their bodies, and expressions that have an offset of their own by the span of their subtree.
+  *
+  * The index of a file is built on the first query for it, visiting only the members declared in it, which
+  * decodes their lazily loaded bodies. The spans are swept into sorted segments, each holding the node of
+  * least span containing it, so a query is a binary search. Line and column queries go through the line
+  * starts of the program. Indices of different files may be built concurrently.
+  *
+  * Segments hold expressions weakly, so that bodies evicted from a body cache can be collected. With each
+  * expression they keep its member, its position in a pre-order walk of the member, and how often the
+  * member's body had been evicted when it was found. A query returns the expression it holds unless that was
+  * collected or the body was evicted since; then the expression is found again by walking the member's
+  * current body.
+  *
+  * The index does not see nodes added to the program after the file was indexed.
+  */
+final class SourceIndex(program: Program) {
+
+  // The members declared in each file; a constructor is declared in the file of its class.
+  private val membersByFile: util.Map[String, util.List[AMember]] = {
+    val byFile = new util.HashMap[String, util.List[AMember]]()
+    def add(fileUri: String, member: AMember): Unit =
+      if (fileUri != null) {
+        var members = byFile.get(fileUri)
+        if (members == null) {
+          members = new util.ArrayList[AMember]()
+          byFile.put(fileUri, members)
+        }
+        members.add(member)
+      }
+    val libraries = program.libraries
+    var i = 0
+    while (i < libraries.size) {
+      val library = libraries.get(i)
+      if (library != null) {
+        var j = 0
+        while (j < library.classes.size) {
+          val c = library.classes.get(j)
+          var k = 0
+          while (k < c.fields.size) {
+            add(c.fields.get(k).fileUri, c.fields.get(k))
+            k += 1
+          }
+          k = 0
+          while (k < c.constructors.size) {
+            add(c.fileUri, c.constructors.get(k))
+            k += 1
+          }
+          k = 0
+          while (k < c.procedures.size) {
+            add(c.procedures.get(k).fileUri, c.procedures.get(k))
+            k += 1
+          }
+          j += 1
+        }
+        j = 0
+        while (j < library.fields.size) {
+          add(library.fields.get(j).fileUri, library.fields.get(j))
+          j += 1
+        }
+        j = 0
+        while (j < library.procedures.size) {
+          add(library.procedures.get(j).fileUri, library.procedures.get(j))
+          j += 1
+        }
+      }
+      i += 1
+    }
+    byFile
+  }
+
+  private val files = new ConcurrentHashMap[String, SourceIndex.FileIndex]()
+
+  /** The innermost member whose span contains the offset of the file, or null. */
+  def memberAt(fileUri: String, offset: Int): AMember = {
+    val index = fileIndex(fileUri)
+    if (index == null) null else index.memberAt(offset)
+  }
+
+  /** The innermost expression with an offset of its own whose span contains the offset of the file, or null. */
+  def expressionAt(fileUri: String, offset: Int): AExpression = {
+    val index = fileIndex(fileUri)
+    if (index == null) null else index.expressionAt(offset)
+  }
+
+  /** As [[memberAt]] for a 1-based line and 0-based column, as in [[Location]]. */
+  def memberAt(fileUri: String, line: Int, column: Int): AMember = {
+    val offset = offsetOf(fileUri, line, column)
+    if (offset < 0) null else memberAt(fileUri, offset)
+  }
+
+  def expressionAt(fileUri: String, line: Int, column: Int): AExpression = {
+    val offset = offsetOf(fileUri, line, column)
+    if (offset < 0) null else expressionAt(fileUri, offset)
+  }
+
+  /** The file offset of a 1-based line and 0-based column, or -1 if the file has no such line. */
+  def offsetOf(fileUri: String, line: Int, column: Int): Int = {
+    val lines = program.uriToLineStarts.lineStarts(fileUri)
+    if (lines == null || line < 1 || line > math.max(lines.length, 1)) -1
+    else if (lines.isEmpty) column
+    else lines(line - 1) + column
+  }
+
+  def location(fileUri: String, offset: Int): Location = program.getLocation(fileUri, offset)
+
+  private def fileIndex(fileUri: String): SourceIndex.FileIndex = {
+    val index = files.get(fileUri)
+    if (index != null) {
+      return index
+    }
+    val members = membersByFile.get(fileUri)
+    if (members == null) {
+      return null
+    }
+    val built = SourceIndex.FileIndex.build(members)
+    val raced = files.putIfAbsent(fileUri, built)
+    if (raced == null) built else raced
+  }
+}
+
+object SourceIndex {
+
+  /**
+    * The member segments hold the index of the innermost member in the members of the file, and the
+    * expression segments the key of the innermost expression. Expression k is at ordinal
+    * `expressionOrdinals(k)` of member `expressionMembers(k)`, and was last found as `hits(k)`.
+    */
+  private final class FileIndex(members: util.List[AMember], memberSegments: Segments,
+                                expressionSegments: Segments, expressionMembers: Array[Int],
+                                expressionOrdinals: Array[Int], hits: Array[Hit]) {
+
+    def memberAt(offset: Int): AMember = {
+      val key = memberSegments.at(offset)
+      if (key < 0) null else members.get(key.toInt)
+    }
+
+    def expressionAt(offset: Int): AExpression = {
+      val key = expressionSegments.at(offset)
+      if (key < 0) {
+        return null
+      }
+      val k = key.toInt
+      val member = members.get(expressionMembers(k))
+      // Read before walking, so that an eviction during the walk makes the next query walk again.
+      val generation = evictions(member)
+      val hit = hits(k)
+      val node = hit.get
+      if (node != null && hit.generation == generation) {
+        return node
+      }
+      val finder = new ExpressionFinder(expressionOrdinals(k))
+      member.accept(finder)
+      if (finder.found != null) {
+        hits(k) = new Hit(finder.found, generation)
+      }
+      finder.found
+    }
+  }
+
+  private object FileIndex {
+
+    def build(members: util.List[AMember]): FileIndex = {
+      val memberSpans = new Spans
+      val expressionSpans = new Spans
+      val collector = new SpanCollector(expressionSpans)
+      var i = 0
+      while (i < members.size) {
+        val member = members.get(i)
+        collector.reset(i, evictions(member))
+        member.accept(collector)
+        if (collector.first <= collector.last) {
+          memberSpans.add(i, collector.first, collector.last)
+        }
+        i += 1
+      }
+      val count = collector.count
+      new FileIndex(members, memberSpans.sweep(), expressionSpans.sweep(),
+        util.Arrays.copyOf(collector.members, count), util.Arrays.copyOf(collector.ordinals, count),
+        util.Arrays.copyOf(collector.hits, count))
+    }
+  }
+
+  /** The evictions of the member's body; a node found in the member is current while they stay the same. */
+  private def evictions(member: AMember): Int = member match {
+    case p: AProcedure if p.function != null => p.function.evictions
+    case c: AConstructor if c.function != null => c.function.evictions
+    case _ => 0
+  }
+
+  /** An expression as found after the given number of evictions of its member's body. */
+  private final class Hit(node: AExpression, val generation: Int) extends WeakReference[AExpression](node)
+
+  /**
+    * Records the span of each expression with an offset, in post-order, and the span of everything visited.
+    * The key of an expression's span is the number of spans recorded before it; its member, its ordinal and
+    * the expression are kept by that key. Ordinals count the expressions with an offset in pre-order.
+    */
+  private final class SpanCollector(spans: Spans) extends RecursiveVisitor[Unit] {
+    var first: Int = Int.MaxValue
+    var last: Int = Int.MinValue
+    var members = new Array[Int](64)
+    var ordinals = new Array[Int](64)
+    var hits = new Array[Hit](64)
+    var count = 0
+    private var member = 0
+    private var generation = 0
+    private var ordinal = 0
+
+    def reset(member: Int, generation: Int): Unit = {
+      first = Int.MaxValue
+      last = Int.MinValue
+      this.member = member
+      this.generation = generation
+      ordinal = 0
+    }
+
+    override def defaultExpression(node: AExpression): Unit =
+      if (node.fileOffset < 0) {
+        span(node, -1)
+      } else {
+        ordinal += 1
+        span(node, ordinal - 1)
+      }
+
+    override def defaultTreeNode(node: TreeNode): Unit = span(node, -1)
+
+    /**
+      * Adds the span of the node and its subtree for the expression of the ordinal unless it is -1, and widens
+      * the enclosing span.
+      */
+    private def span(node: TreeNode, nodeOrdinal: Int): Unit = {
+      val outerFirst = first
+      val outerLast = last
+      first = if (node.fileOffset >= 0) node.fileOffset else Int.MaxValue
+      last = if (node.fileOffset >= 0) node.fileOffset else Int.MinValue
+      node.visitChildren(this)
+      if (nodeOrdinal >= 0) {
+        if (count == members.length) {
+          members = util.Arrays.copyOf(members, 2 * count)
+          ordinals = util.Arrays.copyOf(ordinals, 2 * count)
+          hits = util.Arrays.copyOf(hits, 2 * count)
+        }
+        members(count) = member
+        ordinals(count) = nodeOrdinal
+        hits(count) = new Hit(node.asInstanceOf[AExpression], generation)
+        spans.add(count, first, last)
+        count += 1
+      }
+      first = math.min(first, outerFirst)
+      last = math.max(last, outerLast)
+    }
+  }
+
+  /** Finds the expression with an offset of the given ordinal, counting as [[SpanCollector]] does. */
+  private final class ExpressionFinder(ordinal: Int) extends RecursiveVisitor[Unit] {
+    var found: AExpression = _
+    private var count = 0
+
+    override def defaultExpression(node: AExpression): Unit =
+      if (found == null) {
+        if (node.fileOffset >= 0 && count == ordinal) {
+          found = node
+        } else {
+          if (node.fileOffset >= 0) {
+            count += 1
+          }
+          node.visitChildren(this)
+        }
+      }
+
+    override def defaultTreeNode(node: TreeNode): Unit =
+      if (found == null) {
+        node.visitChildren(this)
+      }
+  }
+
+  /** Inclusive spans of nodes, by non-negative key, added innermost first where they are nested. */
+  private final class Spans {
+    private var keys = new Array[Long](64)
+    private var firsts = new Array[Int](64)
+    private var lasts = new Array[Int](64)
+    private var size = 0
+
+    def add(key: Long, first: Int, last: Int): Unit = {
+      if (size == keys.length) {
+        keys = util.Arrays.copyOf(keys, 2 * size)
+        firsts = util.Arrays.copyOf(firsts, 2 * size)
+        lasts = util.Arrays.copyOf(lasts, 2 * size)
+      }
+      keys(size) = key
+      firsts(size) = first
+      lasts(size) = last
+      size += 1
+    }
+
+    /**
+      * Sweeps over the starts and ends of the spans, keeping the open spans in a heap by length and then by
+      * the order they were added, so that the top of the heap is the innermost span at each point.
+      */
+    def sweep(): Segments = {
+      // Events sort by position; each is a span index, plus size when the span closes after its last offset.
+      val events = new Array[Long](2 * size)
+      var i = 0
+      while (i < size) {
+        events(2 * i) = (firsts(i).toLong << 32) | (size + i)
+        events(2 * i + 1) = ((lasts(i).toLong + 1) << 32) | i
+        i += 1
+      }
+      util.Arrays.sort(events)
+      val open = new util.PriorityQueue[Integer](math.max(1, size), new util.Comparator[Integer] {
+        override def compare(a: Integer, b: Integer): Int = {
+          val byLength = java.lang.Long.compare(lasts(a).toLong - firsts(a), lasts(b).toLong - firsts(b))
+          if (byLength != 0) byLength else Integer.compare(a, b)
+        }
+      })
+      val closed = new Array[Boolean](size)
+      val starts = new Array[Int](2 * size)
+      val innermost = new Array[Long](2 * size)
+      var segments = 0
+      i = 0
+      while (i < events.length) {
+        val position = (events(i) >> 32).toInt
+        while (i < events.length && (events(i) >> 32).toInt == position) {
+          val event = (events(i) & 0xFFFFFFFFL).toInt
+          if (event >= size) {
+            open.add(event - size)
+          } else {
+            closed(event) = true
+          }
+          i += 1
+        }
+        while (!open.isEmpty && closed(open.peek())) {
+          open.poll()
+        }
+        val key = if (open.isEmpty) -1L else keys(open.peek())
+        if (segments == 0 || innermost(segments - 1) != key) {
+          starts(segments) = position
+          innermost(segments) = key
+          segments += 1
+        }
+      }
+      new Segments(util.Arrays.copyOf(starts, segments), util.Arrays.copyOf(innermost, segments))
+    }
+  }
+
+  /** Segment i covers the offsets from starts(i) until starts(i + 1), and the key of its innermost node, or -1. */
+  private final class Segments(starts: Array[Int], innermost: Array[Long]) {
+
+    def at(offset: Int): Long = {
+      var low = 0
+      var high = starts.length - 1
+      if (high < 0 || offset < starts(0)) {
+        return -1L
+      }
+      while (low < high) {
+        val mid = high - ((high - low) >> 1)
+        if (starts(mid) <= offset) {
+          low = mid
+        } else {
+          high = mid - 1
+        }
+      }
+      innermost(low)
+    }
+  }
+}
@@ -0,0 +1,193 @@
+package dk.au.cs.ast
+
+/**
+  * Visitors over the AST, as in visitor.dart of the kernel. Every node kind has its own `visit` method,
+  * reached through the node's `accept`, and each `visit` method falls back to the `default` method of its
+  * category, so a visitor only overrides the kinds it cares about. Visiting a lazily loaded body decodes it.
+  */
+trait ExpressionVisitor[R] {
+  def defaultExpression(node: AExpression): R = null.asInstanceOf[R]
+  def defaultBasicLiteral(node: ABasicLiteral): R = defaultExpression(node)
+
+  def visitInvalidExpression(node: AInvalidExpression): R = defaultExpression(node)
+  def visitVariableGet(node: AVariableGet): R = defaultExpression(node)
+  def visitVariableSet(node: AVariableSet): R = defaultExpression(node)
+  def visitPropertyGet(node: APropertyGet): R = defaultExpression(node)
+  def visitPropertySet(node: APropertySet): R = defaultExpression(node)
+  def visitDirectPropertyGet(node: ADirectPropertyGet): R = defaultExpression(node)
+  def visitDirectPropertySet(node: ADirectPropertySet): R = defaultExpression(node)
+  def visitSuperPropertyGet(node: ASuperPropertyGet): R = defaultExpression(node)
+  def visitSuperPropertySet(node: ASuperPropertySet): R = defaultExpression(node)
+  def visitStaticGet(node: AStaticGet): R = defaultExpression(node)
+  def visitStaticSet(node: AStaticSet): R = defaultExpression(node)
+  def visitMethodInvocation(node: AMethodInvocation): R = defaultExpression(node)
+  def visitDirectMethodInvocation(node: ADirectMethodInvocation): R = defaultExpression(node)
+  def visitSuperMethodInvocation(node: ASuperMethodInvocation): R = defaultExpression(node)
+  def visitStaticInvocation(node: AStaticInvocation): R = defaultExpression(node)
+  def visitConstructorInvocation(node: ConstructorInvocation): R = defaultExpression(node)
+  def visitNot(node: Not): R = defaultExpression(node)
+  def visitLogicalExpression(node: ALogicalExpression): R = defaultExpression(node)
+  def visitConditionalExpression(node: AConditionalExpression): R = defaultExpression(node)
+  def visitStringConcatenation(node: StringConcatenation): R = defaultExpression(node)
+  def visitIsExpression(node: IsExpression): R = defaultExpression(node)
+  def visitAsExpression(node: AsExpression): R = defaultExpression(node)
+  def visitSymbolLiteral(node: ASymbolLiteral): R = defaultExpression(node)
+  def visitTypeLiteral(node: TypeLiteral): R = defaultExpression(node)
+  def visitThisExpression(node: ThisExpression): R = defaultExpression(node)
+  def visitRethrow(node: Rethrow): R = defaultExpression(node)
+  def visitThrow(node: Throw): R = defaultExpression(node)
+  def visitListLiteral(node: ListLiteral): R = defaultExpression(node)
+  def visitMapLiteral(node: MapLiteral): R = defaultExpression(node)
+  def visitAwaitExpression(node: AwaitExpression): R = defaultExpression(node)
+  def visitFunctionExpression(node: FunctionExpression): R = defaultExpression(node)
+  def visitStringLiteral(node: AStringLiteral): R = defaultBasicLiteral(node)
+  def visitIntLiteral(node: AIntLiteral): R = defaultBasicLiteral(node)
+  def visitDoubleLiteral(node: ADoubleLiteral): R = defaultBasicLiteral(node)
+  def visitBoolLiteral(node: ABooleanLiteral): R = defaultBasicLiteral(node)
+  def visitNullLiteral(node: ANullLiteral): R = defaultBasicLiteral(node)
+  def visitLet(node: Let): R = defaultExpression(node)
+  def visitBlockExpression(node: BlockExpression): R = defaultExpression(node)
+}
+
+trait StatementVisitor[R] {
+  def defaultStatement(node: AStatement): R = null.asInstanceOf[R]
+
+  def visitInvalidStatement(node: AInvalidStatement): R = defaultStatement(node)
+  def visitExpressionStatement(node: AExpressionStatement): R = defaultStatement(node)
+  def visitBlock(node: ABlock): R = defaultStatement(node)
+  def visitEmptyStatement(node: AEmptyStatement): R = defaultStatement(node)
+  def visitAssertStatement(node: AssertStatement): R = defaultStatement(node)
+  def visitLabeledStatement(node: LabeledStatement): R = defaultStatement(node)
+  def visitBreakStatement(node: BreakStatement): R = defaultStatement(node)
+  def visitWhileStatement(node: WhileStatement): R = defaultStatement(node)
+  def visitDoStatement(node: DoStatement): R = defaultStatement(node)
+  def visitForStatement(node: ForStatement): R = defaultStatement(node)
+  def visitForInStatement(node: ForInStatement): R = defaultStatement(node)
+  def visitSwitchStatement(node: SwitchStatement): R = defaultStatement(node)
+  def visitContinueSwitchStatement(node: ContinueSwitchStatement): R = defaultStatement(node)
+  def visitIfStatement(node: IfStatement): R = defaultStatement(node)
+  def visitReturnStatement(node: ReturnStatement): R = defaultStatement(node)
+  def visitTryCatch(node: TryCatch): R = defaultStatement(node)
+  def visitTryFinally(node: TryFinally): R = defaultStatement(node)
+  def visitYieldStatement(node: YieldStatement): R = defaultStatement(node)
+  def visitVariableDeclaration(node: AVariableDeclaration): R = defaultStatement(node)
+  def visitFunctionDeclaration(node: FunctionDeclaration): R = defaultStatement(node)
+}
+
+trait MemberVisitor[R] {
+  def defaultMember(node: AMember): R = null.asInstanceOf[R]
+
+  def visitConstructor(node: AConstructor): R = defaultMember(node)
+  def visitProcedure(node: AProcedure): R = defaultMember(node)
+  def visitField(node: AField): R = defaultMember(node)
+}
+
+trait InitializerVisitor[R] {
+  def defaultInitializer(node: AInitializer): R = null.asInstanceOf[R]
+
+  def visitInvalidInitializer(node: AInvalidInitializer): R = defaultInitializer(node)
+  def visitFieldInitializer(node: FieldInitializer): R = defaultInitializer(node)
+  def visitSuperInitializer(node: SuperInitializer): R = defaultInitializer(node)
+  def visitRedirectingInitializer(node: RedirectingInitializer): R = defaultInitializer(node)
+  def visitLocalInitializer(node: ALocalInitializer): R = defaultInitializer(node)
+}
+
+trait DartTypeVisitor[R] {
+  def defaultDartType(node: DartType): R = null.asInstanceOf[R]
+
+  def visitNoTypeYet(node: NoTypeYet): R = defaultDartType(node)
+  def visitInvalidType(node: InvalidType): R = defaultDartType(node)
+  def visitDynamicType(node: DynamicType): R = defaultDartType(node)
+  def visitVoidType(node: VoidType): R = defaultDartType(node)
+  def visitBottomType(node: BottomType): R = defaultDartType(node)
+  def visitInterfaceType(node: InterfaceType): R = defaultDartType(node)
+  def visitFunctionType(node: FunctionType): R = defaultDartType(node)
+  def visitNamedType(node: NamedType): R = defaultDartType(node)
+  def visitTypeParameter(node: TypeParameter): R = defaultDartType(node)
+  def visitTypeParameterType(node: TypeParameterType): R = defaultDartType(node)
+}
+
+/** Visits every kind of [[TreeNode]]; types are not tree nodes and are left to [[Visitor]]. */
+trait TreeVisitor[R]
+    extends ExpressionVisitor[R]
+    with StatementVisitor[R]
+    with MemberVisitor[R]
+    with InitializerVisitor[R] {
+
+  def defaultTreeNode(node: TreeNode): R = null.asInstanceOf[R]
+
+  override def defaultExpression(node: AExpression): R = defaultTreeNode(node)
+  override def defaultStatement(node: AStatement): R = defaultTreeNode(node)
+  override def defaultMember(node: AMember): R = defaultTreeNode(node)
+  override def defaultInitializer(node: AInitializer): R = defaultTreeNode(node)
+
+  def visitProgram(node: Program): R = defaultTreeNode(node)
+  def visitLibrary(node: ALibrary): R = defaultTreeNode(node)
+  def visitClass(node: AClass): R = defaultTreeNode(node)
+  def visitFunctionNode(node: AFunctionNode): R = defaultTreeNode(node)
+  def visitArguments(node: AArguments): R = defaultTreeNode(node)
+  def visitNamedExpression(node: ANamedExpression): R = defaultTreeNode(node)
+  def visitMapEntry(node: MapEntry): R = defaultTreeNode(node)
+  def visitSwitchCase(node: SwitchCase): R = defaultTreeNode(node)
+  def visitCatch(node: ACatch): R = defaultTreeNode(node)
+  def visitInferredValue(node: AInferredValue): R = defaultTreeNode(node)
+}
+
+/** Visits every kind of node, falling back to [[defaultNode]]. */
+trait Visitor[R] extends TreeVisitor[R] with DartTypeVisitor[R] {
+
+  def defaultNode(node: AstNode): R = null.asInstanceOf[R]
+
+  override def defaultTreeNode(node: TreeNode): R = defaultNode(node)
+  override def defaultDartType(node: DartType): R = defaultNode(node)
+
+  def visitSupertype(node: Supertype): R = defaultNode(node)
+  def visitName(node: AName): R = defaultNode(node)
+}
+
+/**
+  * Visits a node and everything below it. Overriding methods call `node.visitChildren(this)` to continue
+  * below the nodes they handle. References to classes, members, variables and labels are not followed.
+  */
+class RecursiveVisitor[R] extends Visitor[R] {
+  override def defaultNode(node: AstNode): R = {
+    node.visitChildren(this)
+    null.asInstanceOf[R]
+  }
+}
+
+/**
+  * Rewrites a tree in place. Each `visit` method returns the node to put where the visited node was: the
+  * node itself, possibly changed, a new node, or null to drop it from a list. By default the children of
+  * each node are transformed and the node is kept. Types are shared between nodes and are not visited.
+  *
+  * Overriding methods call `node.transformChildren(this)` to continue below the nodes they handle, and
+  * are responsible for keeping the AST a tree.
+  */
+class Transformer extends TreeVisitor[TreeNode] {
+  override def defaultTreeNode(node: TreeNode): TreeNode = {
+    node.transformChildren(this)
+    node
+  }
+
+  /** The node the child is replaced by, or null for a null child. */
+  def transform[T <: TreeNode](node: T): T =
+    if (node == null) node else node.accept(this).asInstanceOf[T]
+
+  /** Transforms the nodes of a list in place, dropping the nodes that are replaced by null. */
+  def transformList[T <: TreeNode](nodes: java.util.List[T]): Unit = {
+    val size = nodes.size
+    var kept = 0
+    var i = 0
+    while (i < size) {
+      val node = nodes.get(i)
+      val result = transform(node)
+      if (result != null || node == null) {
+        if ((result ne node) || kept != i) nodes.set(kept, result)
+        kept += 1
+      }
+      i += 1
+    }
+    if (kept < size) nodes.subList(kept, size).clear()
+  }
+}
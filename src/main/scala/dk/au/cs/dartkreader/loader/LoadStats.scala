@@ -0,0 +1,79 @@
+package dk.au.cs.dartkreader.loader
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.{AtomicLongArray, LongAdder}
+
+import dk.au.cs.ast.AnyTag
+import org.json4s.JsonAST.{JField, JObject, JValue}
+import org.json4s.JsonDSL._
+import org.json4s.native.JsonMethods._
+
+import scala.collection.JavaConversions._
+
+/**
+  * Counters filled in by a [[BinaryBuilder]] given to it with `setStats`, and by the forks decoding in
+  * parallel or decoding deferred bodies. Nodes are counted by a [[NodeCounter]] walking each library loaded.
+  * The bytes of a node do not include the bytes of the nodes nested in it, which are counted at those nodes.
+  */
+class LoadStats {
+
+  private val nodeCounts = new AtomicLongArray(256)
+  private val nodeBytes = new AtomicLongArray(256)
+  private val libraryNanos = new ConcurrentHashMap[String, LongAdder]()
+  private val stringsDecoded = new LongAdder
+  private val stringHits = new LongAdder
+  private val referencesCreated = new LongAdder
+  private val referencesResolved = new LongAdder
+
+  private[loader] def node(tag: Int, bytes: Int): Unit = {
+    nodeCounts.incrementAndGet(tag)
+    nodeBytes.addAndGet(tag, bytes)
+  }
+
+  private[loader] def library(importUri: String, nanos: Long): Unit = {
+    var adder = libraryNanos.get(importUri)
+    if (adder == null) {
+      libraryNanos.putIfAbsent(importUri, new LongAdder)
+      adder = libraryNanos.get(importUri)
+    }
+    adder.add(nanos)
+  }
+
+  private[loader] def string(hit: Boolean): Unit =
+    if (hit) stringHits.increment() else stringsDecoded.increment()
+
+  private[loader] def reference(created: Boolean): Unit =
+    if (created) referencesCreated.increment() else referencesResolved.increment()
+
+  def count(tag: AnyTag.Value): Long = nodeCounts.get(tag.id)
+
+  def bytes(tag: AnyTag.Value): Long = nodeBytes.get(tag.id)
+
+  /** Time spent decoding the library, summed over the tasks that decoded it when loading in parallel. */
+  def libraryNanos(importUri: String): Long =
+    Option(libraryNanos.get(importUri)).map(_.sum).getOrElse(0L)
+
+  /** String table lookups that returned an entry decoded before, and lookups that decoded one. */
+  def stringTableHits: Long = stringHits.sum
+  def stringTableDecodes: Long = stringsDecoded.sum
+
+  /** References resolved to a node that already existed, and references that created a placeholder. */
+  def resolvedReferences: Long = referencesResolved.sum
+  def createdReferences: Long = referencesCreated.sum
+
+  def toJson: JValue = {
+    val tags = (0 until nodeCounts.length).filter(nodeCounts.get(_) > 0)
+    val nodes = tags.map { tag =>
+      JField(AnyTag(tag).toString, ("count" -> nodeCounts.get(tag)) ~ ("bytes" -> nodeBytes.get(tag)))
+    }
+    val libraries = libraryNanos.toSeq.sortBy(_._1).map {
+      case (uri, nanos) => JField(uri, "nanos" -> nanos.sum)
+    }
+    ("nodes" -> JObject(nodes.toList)) ~
+      ("libraries" -> JObject(libraries.toList)) ~
+      ("strings" -> (("hits" -> stringTableHits) ~ ("decoded" -> stringTableDecodes))) ~
+      ("references" -> (("resolved" -> resolvedReferences) ~ ("created" -> createdReferences)))
+  }
+
+  def toJsonString: String = compact(render(toJson))
+}
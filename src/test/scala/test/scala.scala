@@ -1,10 +1,17 @@
 package test
 
+import java.io.ByteArrayOutputStream
+import java.nio.channels.Channels
 import java.nio.file.{Files, Paths}
 
-import dk.au.cs.dartkreader.loader.{BinaryBuilder, BinaryLoader}
+import dk.au.cs.ast._
+import dk.au.cs.dartkreader.loader.{BinaryBuilder, BinaryEventReader, BodyCache, BinaryLoader, DillIndex, BinaryPrinter, FlatProgram, IncrementalLoader, LoadStats, SymbolIndex, Tag, TreeShaker}
+import org.json4s.DefaultFormats
+import org.json4s.native.JsonMethods.parse
 import org.scalatest._
 
+import scala.collection.JavaConversions._
+
 class SmokeTest extends FlatSpec with Matchers {
 
   "The Binary Reader" should "be able to read the dartk dill" in {
@@ -15,4 +22,930 @@ class SmokeTest extends FlatSpec with Matchers {
     println("Done")
   }
 
+  it should "read the dartk dill from a memory mapped file" in {
+    val program = new BinaryBuilder(new BinaryLoader(), Paths.get("samples/dartk.dill")).readProgramFile()
+    program.libraries.size() should be > 0
+  }
+
+  it should "decode member bodies on first access in lazy mode" in {
+    val path = Paths.get("samples/dartk.dill")
+    val eager = new BinaryBuilder(new BinaryLoader(), path).readProgramFile()
+    val lazily = new BinaryBuilder(new BinaryLoader(), path).setLazyBodies(true).readProgramFile()
+
+    val deferred = lazily.libraries.flatMap(_.procedures).filter(p => p.function != null)
+    deferred.exists(p => !p.function.isBodyLoaded) should be(true)
+
+    def bodies(p: Program) =
+      p.libraries.flatMap(l => l.procedures.map(_.function) ++ l.classes.flatMap(c =>
+        c.procedures.map(_.function) ++ c.constructors.map(_.function))).filter(_ != null).map(_.body)
+    def initializers(p: Program) =
+      p.libraries.flatMap(l => l.fields ++ l.classes.flatMap(_.fields)).map(_.initializer)
+
+    bodies(lazily).map(shape) should equal(bodies(eager).map(shape))
+    initializers(lazily).map(shape) should equal(initializers(eager).map(shape))
+  }
+
+  it should "resolve references to the declared classes when loading in parallel" in {
+    val path = Paths.get("samples/dartk.dill")
+    val sequential = new BinaryBuilder(new BinaryLoader(), path).readProgramFile()
+    val pool = new java.util.concurrent.ForkJoinPool(4)
+    val parallel =
+      try new BinaryBuilder(new BinaryLoader(), path).readProgramFile(pool)
+      finally pool.shutdown()
+
+    def declared(p: Program) = {
+      val classes = java.util.Collections.newSetFromMap(new java.util.IdentityHashMap[AClass, java.lang.Boolean]())
+      p.libraries.foreach(l => classes.addAll(l.classes))
+      classes
+    }
+    for (p <- Seq(sequential, parallel)) {
+      val classes = declared(p)
+      for (l <- p.libraries; c <- l.classes if c.supertype != null)
+        classes.contains(c.supertype.classNode) should be(true)
+    }
+    parallel.libraries.map(_.classes.map(_.name)) should equal(sequential.libraries.map(_.classes.map(_.name)))
+    parallel.libraries.flatMap(_.classes.flatMap(_.procedures.map(_.transformerFlags))) should
+      equal(sequential.libraries.flatMap(_.classes.flatMap(_.procedures.map(_.transformerFlags))))
+  }
+
+  it should "share one instance between equal types" in {
+    val program = new BinaryBuilder(new BinaryLoader(), Paths.get("samples/dartk.dill")).readProgramFile()
+    val fieldTypes = program.libraries.flatMap(l => l.fields ++ l.classes.flatMap(_.fields)).map(_.ttype)
+    val rawTypes = fieldTypes.collect { case t: InterfaceType if t.typeArguments.isEmpty => t }
+    rawTypes.groupBy(t => System.identityHashCode(t.classNode)).values.foreach { sameClass =>
+      sameClass.forall(_ eq sameClass.head) should be(true)
+    }
+    fieldTypes.collect { case t: DynamicType => t }.distinct.size should be <= 1
+    val namedTypes = fieldTypes.collect { case t: FunctionType if t.typeParameters.isEmpty => t }
+      .flatMap(_.namedParameters)
+    namedTypes.groupBy(n => (n.name, System.identityHashCode(n.ttype))).values.foreach { same =>
+      same.forall(_ eq same.head) should be(true)
+    }
+    // Supertypes keep type argument lists of their own.
+    val supertype = program.libraries.flatMap(_.classes).map(_.supertype)
+      .find(s => s != null && !s.typeArguments.isEmpty).get
+    supertype.typeArguments.add(supertype.typeArguments.get(0))
+    supertype.typeArguments.remove(supertype.typeArguments.size - 1)
+  }
+
+  it should "record node counts, bytes and resolutions when given stats" in {
+    val path = Paths.get("samples/dartk.dill")
+    val sequential = new LoadStats
+    new BinaryBuilder(new BinaryLoader(), path).setStats(sequential).readProgramFile()
+    val parallel = new LoadStats
+    val pool = new java.util.concurrent.ForkJoinPool(4)
+    try new BinaryBuilder(new BinaryLoader(), path).setStats(parallel).readProgramFile(pool)
+    finally pool.shutdown()
+
+    AnyTag.values.toSeq.map(sequential.count) should equal(AnyTag.values.toSeq.map(parallel.count))
+    AnyTag.values.toSeq.map(sequential.bytes) should equal(AnyTag.values.toSeq.map(parallel.bytes))
+    AnyTag.values.toSeq.map(sequential.bytes).sum should be < Files.size(path)
+    sequential.count(AnyTag.Procedure) should be > 0L
+    sequential.stringTableHits should be > 0L
+    sequential.resolvedReferences should be > 0L
+
+    implicit val formats = DefaultFormats
+    val json = parse(sequential.toJsonString)
+    (json \ "nodes" \ "Procedure" \ "count").extract[Long] should equal(sequential.count(AnyTag.Procedure))
+    (json \ "libraries").children.size should be > 0
+  }
+
+  it should "raise a ParseError on a tag it does not know" in {
+    val bytes = Files.readAllBytes(Paths.get("samples/dartk.dill"))
+    val classStart = DillIndex.build(java.nio.ByteBuffer.wrap(bytes), "dartk.dill").classStart(0)
+    // No node has tag 14.
+    bytes(classStart) = 14
+    val error = intercept[ParseError] {
+      new BinaryBuilder(new BinaryLoader(), bytes, "dartk.dill").readProgramFile()
+    }
+    error.message should equal("Invalid class tag: 14")
+    error.byteIndex should equal(classStart + 1)
+  }
+
+  "An integer literal" should "only use a BigInt outside the Long range" in {
+    AIntLiteral.parse("9223372036854775807").isLong should be(true)
+    AIntLiteral.parse("9223372036854775808").value should equal(BigInt("9223372036854775808"))
+    (AIntLiteral.valueOf(-3) eq AIntLiteral.valueOf(-3)) should be(false)
+    val literal = new AIntLiteral(BigInt(7))
+    literal.longValue should equal(7)
+    literal.value = BigInt("9223372036854775808")
+    literal.isLong should be(false)
+    literal.value = BigInt(-1)
+    literal.isLong should be(true)
+    literal.longValue should equal(-1)
+    AIntLiteral.valueOf(1000).longValue should equal(1000)
+  }
+
+  "A program" should "map file offsets to lines and columns" in {
+    val program = new BinaryBuilder(new BinaryLoader(), Paths.get("samples/dartk.dill")).readProgramFile()
+    val file = program.uriToLineStarts.fileUris.find(u => program.uriToLineStarts.lineStarts(u).length > 2).get
+    val lines = program.uriToLineStarts.lineStarts(file)
+    lines.toSeq should equal(lines.sorted.toSeq)
+    program.getLocation(file, lines(1)) should equal(Location(file, 2, 0))
+    program.getLocation(file, lines(2) - 1) should equal(Location(file, 2, lines(2) - 1 - lines(1)))
+
+    val offsets = (0 until lines.last + 10 by 7).toArray
+    val (batchLines, batchColumns) = (new Array[Int](offsets.length), new Array[Int](offsets.length))
+    val reversed = offsets.reverse
+    program.getLocations(file, reversed, batchLines, batchColumns)
+    reversed.indices.foreach { i =>
+      Location(file, batchLines(i), batchColumns(i)) should equal(program.getLocation(file, reversed(i)))
+    }
+    program.getLocations(file, offsets, batchLines, batchColumns)
+    offsets.indices.foreach { i =>
+      Location(file, batchLines(i), batchColumns(i)) should equal(program.getLocation(file, offsets(i)))
+    }
+  }
+
+  it should "write a dill that reads back and writes to the same bytes" in {
+    def write(program: Program): Array[Byte] = {
+      val out = new ByteArrayOutputStream()
+      new BinaryPrinter(Channels.newChannel(out)).writeProgramFile(program)
+      out.toByteArray
+    }
+    val program = new BinaryBuilder(new BinaryLoader(), Paths.get("samples/dartk.dill")).readProgramFile()
+    val written = write(program)
+    val reread = new BinaryBuilder(new BinaryLoader(), written, "written.dill").readProgramFile()
+    reread.libraries.map(_.importUri.value) should equal(program.libraries.map(_.importUri.value))
+    reread.mainMethod.name.name should equal(program.mainMethod.name.name)
+    val members = ParallelTraversal.members(program)
+    val rereadMembers = ParallelTraversal.members(reread)
+    rereadMembers.length should equal(members.length)
+    members.indices.foreach { m =>
+      rereadMembers(m).name.name should equal(members(m).name.name)
+      structure(rereadMembers(m)) should equal(structure(members(m)))
+    }
+    write(reread) should equal(written)
+  }
+
+  it should "look up non-ASCII, empty and missing strings in the string table" in {
+    val program = new BinaryBuilder(new BinaryLoader(), Paths.get("samples/dartk.dill")).readProgramFile()
+    val unicode = "ünïcødé ✓ 𝄞"
+    program.libraries.get(0).name = unicode
+    program.libraries.get(1).name = ""
+    val out = new ByteArrayOutputStream()
+    new BinaryPrinter(Channels.newChannel(out)).writeProgramFile(program)
+    val builder = new BinaryBuilder(new BinaryLoader(), out.toByteArray, "unicode.dill")
+    val reread = builder.readProgramFile()
+    reread.libraries.get(0).name should equal(unicode)
+    val strings = builder.getStringTable
+
+    val index = strings.indexOf(unicode)
+    index should be >= 0
+    strings.get(index) should equal(unicode)
+    strings.get(index) should be theSameInstanceAs strings.get(index)
+    strings.byteLength(index) should equal(unicode.getBytes("UTF-8").length)
+    strings.equals(index, unicode) should be(true)
+    strings.equals(index, unicode.getBytes("UTF-8")) should be(true)
+    strings.equals(index, "ünïcødé ✓ ") should be(false)
+    strings.indexOf(unicode.getBytes("UTF-8")) should equal(index)
+
+    val empty = strings.indexOf("")
+    empty should be >= 0
+    strings.isEmpty(empty) should be(true)
+    strings.byteLength(empty) should equal(0)
+    strings.get(empty) should equal("")
+    strings.isEmpty(index) should be(false)
+
+    strings.indexOf("no such string in the table") should equal(-1)
+    strings.indexOf("ünïcødé") should equal(-1)
+  }
+
+  it should "only decode the libraries that changed between two versions" in {
+    def write(program: Program): Array[Byte] = {
+      val out = new ByteArrayOutputStream()
+      new BinaryPrinter(Channels.newChannel(out)).writeProgramFile(program)
+      out.toByteArray
+    }
+    def members(p: Program) = p.libraries.map(l => (l.importUri.value, l.procedures.map(_.name.name),
+      l.classes.map(c => (c.name, c.fields.map(_.name.name), c.procedures.map(_.name.name)))))
+    val program = new BinaryBuilder(new BinaryLoader(), Paths.get("samples/dartk.dill")).readProgramFile()
+    val first = write(program)
+    val edited = program.libraries
+      .filter(l => l.classes.exists(_.procedures.nonEmpty) && l.classes.exists(!_.typeParameters.isEmpty)).last
+    edited.classes.find(_.procedures.nonEmpty).get.procedures.get(0).name = new AName("renamedByTheTest", null)
+    val second = write(program)
+
+    val loader = new IncrementalLoader()
+    val v1 = loader.load(first, "first.dill")
+    loader.changedLibraries.size should equal(v1.libraries.size)
+    val renamed = v1.libraries.find(_.importUri.value == edited.importUri.value).get
+      .classes.find(_.procedures.nonEmpty).get.procedures.get(0)
+
+    val typeParameters = v1.libraries.flatMap(_.classes).map(_.typeParameters.toList)
+
+    val v2 = loader.load(second, "second.dill")
+    loader.changedLibraries.map(_.importUri.value) should equal(Seq(edited.importUri.value))
+    v2.libraries.flatMap(_.classes).map(_.typeParameters.toList).zip(typeParameters).foreach { case (p2, p1) =>
+      p2.size should equal(p1.size)
+      p2.zip(p1).forall { case (a, b) => a eq b } should be(true)
+    }
+    loader.removedLibraries shouldBe empty
+    v2.libraries.zip(v1.libraries).foreach { case (l2, l1) =>
+      l2 should be theSameInstanceAs l1
+      l2.classes.zip(l1.classes).foreach { case (c2, c1) => c2 should be theSameInstanceAs c1 }
+    }
+    renamed.name.name should equal("renamedByTheTest")
+    members(v2) should equal(members(new BinaryBuilder(new BinaryLoader(), second, "second.dill").readProgramFile()))
+
+    loader.load(second, "second.dill")
+    loader.changedLibraries shouldBe empty
+  }
+
+  it should "link several dills loaded in parallel through one loader" in {
+    val path = Paths.get("samples/dartk.dill")
+    val single = new BinaryBuilder(new BinaryLoader(), path).readProgramFile()
+    val rewritten = Files.createTempFile("rewritten", ".dill")
+    val linked =
+      try {
+        val channel = java.nio.channels.FileChannel.open(rewritten, java.nio.file.StandardOpenOption.WRITE)
+        try new BinaryPrinter(channel).writeProgramFile(single)
+        finally channel.close()
+
+        val pool = new java.util.concurrent.ForkJoinPool(4)
+        try new BinaryLoader().loadAll(java.util.Arrays.asList(path, rewritten, path, rewritten), pool)
+        finally pool.shutdown()
+      } finally {
+        Files.deleteIfExists(rewritten)
+      }
+
+    def members(p: Program) = p.libraries.map(l => (l.importUri.value, l.procedures.map(_.name.name),
+      l.classes.map(c => (c.name, c.fields.map(_.name.name), c.procedures.map(_.name.name)))))
+    members(linked) should equal(members(single))
+    val classes = java.util.Collections.newSetFromMap(new java.util.IdentityHashMap[AClass, java.lang.Boolean]())
+    linked.libraries.foreach(l => classes.addAll(l.classes))
+    for (l <- linked.libraries; c <- l.classes if c.supertype != null)
+      classes.contains(c.supertype.classNode) should be(true)
+    linked.mainMethod.name.name should equal(single.mainMethod.name.name)
+  }
+
+  it should "decode each library from the dill that owns it when the others hold external stubs" in {
+    val path = Paths.get("samples/dartk.dill")
+    def isSdk(l: ALibrary) = l.importUri.value.startsWith("dart:")
+    // A dill owning the libraries that pass the filter, with the others as external stubs without bodies.
+    def writeOwning(owned: ALibrary => Boolean): java.nio.file.Path = {
+      val program = new BinaryBuilder(new BinaryLoader(), path).readProgramFile()
+      for (l <- program.libraries if !owned(l)) {
+        l.isExternal = true
+        val members = l.fields ++ l.procedures ++ l.classes.flatMap(c => c.fields ++ c.constructors ++ c.procedures)
+        members.foreach {
+          case f: AField => f.initializer = null
+          case c: AConstructor => c.function.body = null
+          case p: AProcedure => if (p.function != null) p.function.body = null
+        }
+      }
+      val file = Files.createTempFile("owning", ".dill")
+      val channel = java.nio.channels.FileChannel.open(file, java.nio.file.StandardOpenOption.WRITE)
+      try new BinaryPrinter(channel).writeProgramFile(program)
+      finally channel.close()
+      file
+    }
+    val app = writeOwning(!isSdk(_))
+    val sdk = writeOwning(isSdk)
+    val linked =
+      try new BinaryLoader().loadAll(java.util.Arrays.asList(app, sdk))
+      finally {
+        Files.delete(app)
+        Files.delete(sdk)
+      }
+
+    val single = new BinaryBuilder(new BinaryLoader(), path).readProgramFile()
+    def bodies(p: Program) = p.libraries.map(l => (l.importUri.value, l.isExternal,
+      (l.procedures ++ l.classes.flatMap(_.procedures)).filter(_.function != null).map(p => shape(p.function.body))))
+    // Libraries come in the order the files own them.
+    bodies(linked).sortBy(_._1) should equal(bodies(single).sortBy(_._1))
+
+    // Calls from the application resolve to the SDK members decoded from the SDK dill.
+    def members(l: ALibrary): Seq[AMember] =
+      l.fields ++ l.procedures ++ l.classes.flatMap(c => c.fields ++ c.constructors ++ c.procedures)
+    val sdkMembers = java.util.Collections.newSetFromMap(new java.util.IdentityHashMap[AMember, java.lang.Boolean]())
+    linked.libraries.filter(isSdk).foreach(l => sdkMembers.addAll(members(l)))
+    val sdkTargets = new java.util.ArrayList[AMember]()
+    for (l <- linked.libraries if !isSdk(l); member <- members(l))
+      member.accept(new RecursiveVisitor[Unit] {
+        override def visitStaticInvocation(node: AStaticInvocation): Unit = {
+          if (sdkMembers.contains(node.target)) sdkTargets.add(node.target)
+          super.visitStaticInvocation(node)
+        }
+      })
+    sdkTargets should not be empty
+    sdkTargets.collect { case p: AProcedure if !p.isExternal => p.function.body }.forall(_ != null) should be(true)
+  }
+
+  "A visitor" should "visit the same nodes when run over the members in parallel" in {
+    val program = new BinaryBuilder(new BinaryLoader(), Paths.get("samples/dartk.dill"))
+      .setLazyBodies(true).readProgramFile()
+    val sequential = new NodeCounter
+    ParallelTraversal.members(program).foreach(_.accept(sequential))
+    sequential.invocations should be > 0
+
+    val pool = new java.util.concurrent.ForkJoinPool(4)
+    val counters =
+      try new ParallelTraversal(pool, 8).visitMembers(program, () => new NodeCounter)
+      finally pool.shutdown()
+    counters.map(_.nodes).sum should equal(sequential.nodes)
+    counters.map(_.invocations).sum should equal(sequential.invocations)
+
+    val whole = new NodeCounter
+    program.accept(whole)
+    whole.nodes should be > sequential.nodes
+  }
+
+  "A transformer" should "replace the nodes its visit methods return" in {
+    val program = new BinaryBuilder(new BinaryLoader(), Paths.get("samples/dartk.dill")).readProgramFile()
+    def strings = {
+      val values = new java.util.ArrayList[String]()
+      program.accept(new RecursiveVisitor[Unit] {
+        override def visitStringLiteral(node: AStringLiteral): Unit = values.add(node.value)
+      })
+      values.toList
+    }
+    val before = strings
+    program.accept(new Transformer {
+      override def visitStringLiteral(node: AStringLiteral): TreeNode = new AStringLiteral(node.value.toUpperCase)
+    })
+    strings should equal(before.map(_.toUpperCase))
+  }
+
+  "A class hierarchy" should "agree with walking the supertypes by hand" in {
+    val program = new BinaryBuilder(new BinaryLoader(), Paths.get("samples/dartk.dill")).readProgramFile()
+    val hierarchy = new ClassHierarchy(program)
+    def supers(c: AClass, mixins: Boolean, interfaces: Boolean): Seq[AClass] =
+      Option(c.supertype).toSeq ++ (if (mixins) Option(c.mixedInType).toSeq else Nil) ++
+        (if (interfaces) c.implementedTypes.toSeq else Nil) map (_.classNode)
+    def walk(sub: AClass, sup: AClass, mixins: Boolean, interfaces: Boolean): Boolean =
+      (sub eq sup) || supers(sub, mixins, interfaces).exists(walk(_, sup, mixins, interfaces))
+
+    val classes = hierarchy.classes
+    classes.zipWithIndex.foreach { case (c, id) =>
+      hierarchy.classId(c) should equal(id)
+      supers(c, mixins = true, interfaces = true).foreach(s => hierarchy.classId(s) should be < id)
+    }
+    val random = new scala.util.Random(12345)
+    for (_ <- 0 until 20000) {
+      val (sub, sup) = (classes(random.nextInt(classes.length)), classes(random.nextInt(classes.length)))
+      // Also pick a supertype of sub half the time, as random pairs are rarely related.
+      val related = if (random.nextBoolean() && sub.supertype != null) sub.supertype.classNode else sup
+      for (s <- Seq(sup, related)) {
+        hierarchy.isSubclassOf(sub, s) should equal(walk(sub, s, mixins = false, interfaces = false))
+        hierarchy.isSubmixtureOf(sub, s) should equal(walk(sub, s, mixins = true, interfaces = false))
+        hierarchy.isSubtypeOf(sub, s) should equal(walk(sub, s, mixins = true, interfaces = true))
+      }
+    }
+    val obj = classes(0)
+    classes.forall(c => hierarchy.isSubclassOf(c, obj)) should be(true)
+  }
+
+  "Dispatch tables" should "find the member a lookup up the superclass chain finds" in {
+    val program = new BinaryBuilder(new BinaryLoader(), Paths.get("samples/dartk.dill")).readProgramFile()
+    val tables = new DispatchTables(new ClassHierarchy(program))
+    def sameName(a: AName, b: AName) = a.name == b.name && (a.library eq b.library)
+    def lookup(c: AClass, name: AName, setter: Boolean): AMember = if (c == null) null else {
+      var declaring = c
+      while (declaring.mixedInType != null) declaring = declaring.mixedInType.classNode
+      val procedure = declaring.procedures.find(p => !p.isStatic && !p.isAbstract && sameName(p.name, name) &&
+        p.kind != ProcedureKind.Factory && (p.kind == ProcedureKind.Setter) == setter)
+      val field = declaring.fields.find(f => !AField.isStatic(f.flags) && sameName(f.name, name) &&
+        (!setter || !(AField.isFinal(f.flags) || AField.isConst(f.flags))))
+      procedure.orElse(field).getOrElse(lookup(Option(c.supertype).map(_.classNode).orNull, name, setter))
+    }
+
+    val pool = new java.util.concurrent.ForkJoinPool(4)
+    try tables.buildAll(pool)
+    finally pool.shutdown()
+    val names = tables.hierarchy.classes.flatMap(c => c.procedures.map(_.name) ++ c.fields.map(_.name))
+    val random = new scala.util.Random(12345)
+    for (c <- tables.hierarchy.classes; _ <- 0 until 20) {
+      val name = names(random.nextInt(names.length))
+      for (setter <- Seq(false, true))
+        tables.dispatchTarget(c, name, setter) should be theSameInstanceAs lookup(c, name, setter)
+    }
+    tables.dispatchTarget(tables.hierarchy.classes(0), new AName("noSuchMember", null), false) should be(null)
+  }
+
+  "A call graph" should "list the same calls by caller and by callee" in {
+    val program = new BinaryBuilder(new BinaryLoader(), Paths.get("samples/dartk.dill")).readProgramFile()
+    val pool = new java.util.concurrent.ForkJoinPool(4)
+    val graph =
+      try CallGraph.build(program, pool)
+      finally pool.shutdown()
+
+    val calls = new java.util.ArrayList[(AMember, AMember, Int)]()
+    for (member <- graph.members) {
+      member.accept(new RecursiveVisitor[Unit] {
+        def add(target: AMember, node: TreeNode) =
+          if (target != null) calls.add((member, target, node.fileOffset))
+        override def visitStaticInvocation(node: AStaticInvocation) = { add(node.target, node); defaultNode(node) }
+        override def visitMethodInvocation(node: AMethodInvocation) = { add(node.interfaceTarget, node); defaultNode(node) }
+        override def visitConstructorInvocation(node: ConstructorInvocation) = { add(node.target, node); defaultNode(node) }
+        override def visitSuperMethodInvocation(node: ASuperMethodInvocation) = { add(node.interfaceTarget, node); defaultNode(node) }
+        override def visitDirectMethodInvocation(node: ADirectMethodInvocation) = { add(node.target, node); defaultNode(node) }
+      })
+    }
+    graph.edgeCount should equal(calls.size)
+    graph.edgeCount should be > 0
+
+    val byCaller = calls.groupBy(_._1)
+    val byCallee = calls.groupBy(_._2)
+    for (member <- graph.members) {
+      val id = graph.memberId(member)
+      graph.callees(member).toList should equal(byCaller.getOrElse(member, Nil).map(_._2).toList)
+      val expected = byCallee.getOrElse(member, Nil).map(c => (graph.memberId(c._1), c._3)).sortBy(_._1).toList
+      (graph.callsTo(id) until graph.callsTo(id + 1)).map(e => (graph.caller(e), graph.callerOffset(e))).toList should
+        equal(expected)
+    }
+  }
+
+  "A tree shaker" should "decode only the members reachable from the main method" in {
+    val path = Paths.get("samples/dartk.dill")
+    val shaker = new TreeShaker(DillIndex.build(java.nio.ByteBuffer.wrap(Files.readAllBytes(path)), "dartk.dill"))
+    val program = shaker.shake(new BinaryLoader())
+    val members = ParallelTraversal.members(program)
+    shaker.isReached(program.mainMethod) should be(true)
+    shaker.reachedMembers should be < members.length
+    members.count(shaker.isReached) should equal(shaker.reachedMembers)
+    members.filterNot(shaker.isReached).forall(_.name == null) should be(true)
+    program.libraries.forall(_.importUri != null) should be(true)
+    program.libraries.flatMap(_.classes).forall(_.name != null) should be(true)
+    shaker.retainedBytes should be > 0L
+    shaker.skippedBytes should be > 0L
+    shaker.retainedBytes + shaker.skippedBytes should be < Files.size(path)
+
+    // The reached members are decoded as a full load decodes them.
+    val eager = ParallelTraversal.members(new BinaryBuilder(new BinaryLoader(), path).readProgramFile())
+    eager.length should equal(members.length)
+    for ((member, full) <- members.zip(eager) if shaker.isReached(member)) {
+      structure(member) should equal(structure(full))
+    }
+  }
+
+  it should "reach every member a reached member calls or dispatches to" in {
+    val path = Paths.get("samples/dartk.dill")
+    val shaker = new TreeShaker(DillIndex.build(java.nio.ByteBuffer.wrap(Files.readAllBytes(path)), "dartk.dill"))
+    val shaken = shaker.shake(new BinaryLoader())
+    // Checked against a full load, whose members and classes are in the same order as the shaken ones.
+    val program = new BinaryBuilder(new BinaryLoader(), path).readProgramFile()
+    val reached = java.util.Collections.newSetFromMap(new java.util.IdentityHashMap[AMember, java.lang.Boolean]())
+    for ((member, full) <- ParallelTraversal.members(shaken).zip(ParallelTraversal.members(program))
+         if shaker.isReached(member)) reached.add(full)
+    val isInstantiated =
+      program.libraries.flatMap(_.classes).zip(shaken.libraries.flatMap(_.classes).map(shaker.isInstantiated)).toMap
+    val core = program.libraries.find(_.importUri.value == "dart:core").get.classes.map(c => c.name -> c).toMap
+    val getters = new java.util.HashSet[AName]()
+    val setters = new java.util.HashSet[AName]()
+    val instantiated = new java.util.HashSet[AClass]()
+    val targets = new java.util.ArrayList[AMember]()
+    val constructorClasses = program.libraries.flatMap(_.classes).flatMap(c => c.constructors.map(k => (k: AMember) -> c)).toMap
+    val uses = new RecursiveVisitor[Unit] {
+      override def visitStaticInvocation(node: AStaticInvocation): Unit = { targets.add(node.target); super.visitStaticInvocation(node) }
+      override def visitStaticGet(node: AStaticGet): Unit = { targets.add(node.target); super.visitStaticGet(node) }
+      override def visitStaticSet(node: AStaticSet): Unit = { targets.add(node.target); super.visitStaticSet(node) }
+      override def visitSuperInitializer(node: SuperInitializer): Unit = { targets.add(node.target); super.visitSuperInitializer(node) }
+      override def visitConstructorInvocation(node: ConstructorInvocation): Unit = {
+        targets.add(node.target)
+        instantiated.add(constructorClasses(node.target))
+        super.visitConstructorInvocation(node)
+      }
+      override def visitMethodInvocation(node: AMethodInvocation): Unit = { getters.add(node.name); super.visitMethodInvocation(node) }
+      override def visitPropertyGet(node: APropertyGet): Unit = { getters.add(node.name); super.visitPropertyGet(node) }
+      override def visitPropertySet(node: APropertySet): Unit = { setters.add(node.name); super.visitPropertySet(node) }
+      override def visitStringLiteral(node: AStringLiteral): Unit = { instantiated.add(core("String")); super.visitStringLiteral(node) }
+      override def visitIntLiteral(node: AIntLiteral): Unit = { instantiated.add(core("int")); super.visitIntLiteral(node) }
+      override def visitListLiteral(node: ListLiteral): Unit = { instantiated.add(core("List")); super.visitListLiteral(node) }
+      override def visitMapLiteral(node: MapLiteral): Unit = { instantiated.add(core("Map")); super.visitMapLiteral(node) }
+      override def visitAwaitExpression(node: AwaitExpression): Unit = {
+        getters.add(new AName("then", null))
+        super.visitAwaitExpression(node)
+      }
+      override def visitForInStatement(node: ForInStatement): Unit = {
+        Seq("iterator", "moveNext", "current").foreach(name => getters.add(new AName(name, null)))
+        super.visitForInStatement(node)
+      }
+    }
+    reached.foreach(_.accept(uses))
+    targets.forall(reached.contains) should be(true)
+    instantiated.forall(isInstantiated) should be(true)
+    val tables = new DispatchTables(new ClassHierarchy(program))
+    for (c <- tables.hierarchy.classes if isInstantiated(c)) {
+      for (name <- getters) Option(tables.dispatchTarget(c, name, false)).forall(reached.contains) should be(true)
+      for (name <- setters) Option(tables.dispatchTarget(c, name, true)).forall(reached.contains) should be(true)
+    }
+  }
+
+  it should "instantiate int from a member whose only literals are small ints" in {
+    val program = new BinaryBuilder(new BinaryLoader(), Paths.get("samples/dartk.dill")).readProgramFile()
+    // Ints from -3 to 4 are written in the tag byte of a specialized int literal.
+    def onlySmallInts(member: AMember): Boolean = {
+      var smallInts = 0
+      var others = 0
+      member.accept(new RecursiveVisitor[Unit] {
+        override def defaultExpression(node: AExpression): Unit = { others += 1; super.defaultExpression(node) }
+        override def visitVariableGet(node: AVariableGet): Unit = super.defaultExpression(node)
+        override def visitIntLiteral(node: AIntLiteral): Unit =
+          if (node.longValue >= -3 && node.longValue <= 4) smallInts += 1 else others += 1
+      })
+      smallInts > 0 && others == 0
+    }
+    val member = ParallelTraversal.members(program).find(onlySmallInts).get
+    program.mainMethod = member
+    val path = Files.createTempFile("small-int", ".dill")
+    try {
+      val channel = java.nio.channels.FileChannel.open(path, java.nio.file.StandardOpenOption.WRITE)
+      try new BinaryPrinter(channel).writeProgramFile(program)
+      finally channel.close()
+      val shaker = new TreeShaker(DillIndex.build(java.nio.ByteBuffer.wrap(Files.readAllBytes(path)), "small-int.dill"))
+      val shaken = shaker.shake(new BinaryLoader())
+      val int = shaken.libraries.find(_.importUri.value == "dart:core").get.classes.find(_.name == "int").get
+      shaker.isInstantiated(int) should be(true)
+    } finally {
+      Files.deleteIfExists(path)
+    }
+  }
+
+  "An event reader" should "report the members, invocations and literals a full build finds" in {
+    val path = Paths.get("samples/dartk.dill")
+    val reader = new BinaryEventReader(path)
+    var members = 0
+    var invocations = 0
+    var depth = 0
+    val literals = new java.util.ArrayList[String]()
+    reader.read(new BinaryEventReader.Handler {
+      override def enterMember(tag: Int, index: Int, kind: Int, flags: Int, name: Int): Unit = members += 1
+      override def enterExpression(tag: Int, offset: Int): Unit = {
+        depth += 1
+        if (tag == Tag.StaticInvocation || tag == Tag.ConstStaticInvocation) invocations += 1
+      }
+      override def exitExpression(tag: Int): Unit = depth -= 1
+      override def stringLiteral(string: Int): Unit = literals.add(reader.strings.get(string))
+    })
+    depth should be(0)
+    reader.variableDepth should be(0)
+    reader.typeParameterDepth should be(0)
+
+    val program = new BinaryBuilder(new BinaryLoader(), path).readProgramFile()
+    val counter = new NodeCounter
+    program.accept(counter)
+    val built = new java.util.ArrayList[String]()
+    program.accept(new RecursiveVisitor[Unit] {
+      override def visitStringLiteral(node: AStringLiteral): Unit = built.add(node.value)
+    })
+    members should equal(ParallelTraversal.members(program).length)
+    invocations should equal(counter.invocations)
+    literals.sorted should equal(built.sorted)
+  }
+
+  "A flat program" should "hold the members, literals and main method of the object graph" in {
+    val path = Paths.get("samples/dartk.dill")
+    val flat = new BinaryBuilder(new BinaryLoader(), path).readFlatProgramFile()
+    val program = new BinaryBuilder(new BinaryLoader(), path).readProgramFile()
+
+    val cursor = flat.cursor()
+    var visited = 1
+    var members = 0
+    val literals = new java.util.ArrayList[String]()
+    while (cursor.toNext()) {
+      visited += 1
+      cursor.kind match {
+        case Tag.Field | Tag.Constructor | Tag.Procedure => members += 1
+        case Tag.StringLiteral => literals.add(flat.strings.get(cursor.payload))
+        case _ =>
+      }
+    }
+    visited should equal(flat.nodeCount)
+    cursor.node should equal(0)
+    members should equal(ParallelTraversal.members(program).length)
+    val built = new java.util.ArrayList[String]()
+    program.accept(new RecursiveVisitor[Unit] {
+      override def visitStringLiteral(node: AStringLiteral): Unit = built.add(node.value)
+    })
+    literals.sorted should equal(built.sorted)
+
+    var last = flat.firstChild(0)
+    while (flat.nextSibling(last) >= 0) last = flat.nextSibling(last)
+    flat.kind(last) should equal(FlatProgram.REFERENCE)
+    val library = program.libraries.get(flat.referenceLibrary(last))
+    val main = if (flat.referenceClass(last) < 0) library.procedures.get(flat.referenceIndex(last))
+      else library.classes.get(flat.referenceClass(last)).procedures.get(flat.referenceIndex(last))
+    main should be theSameInstanceAs program.mainMethod
+    flat.name(flat.firstChild(0)) should equal(program.libraries.head.importUri.value)
+
+    // The return type of a library procedure is its only type child.
+    def children(node: Int) = Iterator.iterate(flat.firstChild(node))(flat.nextSibling).takeWhile(_ >= 0).toList
+    val libraryNodes = children(0).filter(flat.kind(_) == FlatProgram.LIBRARY)
+    libraryNodes.size should equal(program.libraries.size)
+    var interfaceTypes = 0
+    for ((libraryNode, library) <- libraryNodes.zip(program.libraries)) {
+      val procedures = children(libraryNode).filter(flat.kind(_) == Tag.Procedure)
+      procedures.size should equal(library.procedures.size)
+      for ((node, procedure) <- procedures.zip(library.procedures) if procedure.function != null) {
+        val types = children(node).filter(n => flat.kind(n) >= Tag.BottomType && flat.kind(n) <= Tag.SimpleFunctionType)
+        types.size should equal(1)
+        val kind = flat.kind(types.head)
+        procedure.function.returnType match {
+          case t: InterfaceType =>
+            Seq(Tag.InterfaceType, Tag.SimpleInterfaceType) should contain(kind)
+            program.libraries.get(flat.referenceLibrary(types.head)).classes.get(flat.referenceClass(types.head)) should
+              be theSameInstanceAs t.classNode
+            interfaceTypes += 1
+          case _: FunctionType => Seq(Tag.FunctionType, Tag.SimpleFunctionType) should contain(kind)
+          case _: TypeParameterType => kind should equal(Tag.TypeParameterType)
+          case _: DynamicType => kind should equal(Tag.DynamicType)
+          case _: VoidType => kind should equal(Tag.VoidType)
+          case _ =>
+        }
+      }
+    }
+    interfaceTypes should be > 0
+  }
+
+  "A body cache" should "keep decoded bodies within its budget and decode evicted ones again" in {
+    val cache = new BodyCache(200000)
+    val program = new BinaryBuilder(new BinaryLoader(), Paths.get("samples/dartk.dill"))
+      .setBodyCache(cache).readProgramFile()
+    val functions = ParallelTraversal.members(program).toSeq.collect {
+      case p: AProcedure if p.function != null => p.function
+      case c: AConstructor => c.function
+    }
+    def targets(function: AFunctionNode) = {
+      val members = new java.util.ArrayList[AMember]()
+      function.accept(new RecursiveVisitor[Unit] {
+        override def visitStaticInvocation(node: AStaticInvocation): Unit = {
+          members.add(node.target)
+          defaultExpression(node)
+        }
+      })
+      members.toList
+    }
+
+    val first = functions.map(f => shape(f.body))
+    cache.residentBytes should be <= cache.budget
+    cache.evictions should be > 0L
+    cache.redecodes should be(0L)
+    val caller = functions.find(targets(_).nonEmpty).get
+    val before = targets(caller)
+    caller.body
+    cache.hits should be > 0L
+
+    cache.clear()
+    cache.residentBytes should be(0L)
+    caller.isBodyLoaded should be(false)
+    val after = targets(caller)
+    after.size should equal(before.size)
+    after.zip(before).forall { case (a, b) => a eq b } should be(true)
+    // The only resident body is accounted by what its decode built, at least a node for every tree node.
+    var nodes = 0L
+    caller.body.accept(new RecursiveVisitor[Unit] {
+      override def defaultNode(node: AstNode): Unit = {
+        node match {
+          case _: AInferredValue =>
+          case _: TreeNode => nodes += 1
+          case _ =>
+        }
+        super.defaultNode(node)
+      }
+    })
+    caller.isBodyLoaded should be(true)
+    cache.residentBytes should be >= nodes * BodyCache.NODE_BYTES
+    functions.map(f => shape(f.body)) should equal(first)
+    cache.redecodes should be > 0L
+    cache.misses should equal(functions.length + cache.redecodes)
+  }
+
+  "A dill index" should "decode a single library, class or member like a full load does" in {
+    val directory = Files.createTempDirectory("dill-index")
+    val dill = directory.resolve("dartk.dill")
+    Files.copy(Paths.get("samples/dartk.dill"), dill)
+    try {
+      val program = new BinaryBuilder(new BinaryLoader(), Paths.get("samples/dartk.dill")).readProgramFile()
+      val members = ParallelTraversal.members(program)
+      val index = DillIndex.open(dill)
+      Files.exists(DillIndex.sidecar(dill)) should be(true)
+      DillIndex.open(dill).memberCount should equal(index.memberCount)
+      index.libraryCount should equal(program.libraries.size)
+      index.memberCount should equal(members.length)
+      members.indices.forall(m => members(m).name.name == index.memberName(m)) should be(true)
+
+      def body(member: AMember): String = member match {
+        case p: AProcedure => shape(if (p.function == null) null else p.function.body)
+        case c: AConstructor => shape(c.function.body) + c.initializers.map(shape).mkString
+        case f: AField => shape(f.initializer)
+      }
+      val builder = index.builder(new BinaryLoader())
+      for (m <- 0 until index.memberCount by 97) {
+        val member = builder.readIndexedMember(m)
+        member.name.name should equal(members(m).name.name)
+        body(member) should equal(body(members(m)))
+      }
+      val toString = index.findMember("dart:core", "Object", "toString")
+      index.memberName(toString) should equal("toString")
+      builder.readIndexedMember(toString).name.name should equal("toString")
+
+      val classId = index.findClass(index.findLibrary("dart:core"), "String")
+      val string = builder.readIndexedClass(classId)
+      val expected = program.libraries.find(_.importUri.value == "dart:core").get.classes.find(_.name == "String").get
+      string.name should equal("String")
+      string.procedures.map(_.name.name) should equal(expected.procedures.map(_.name.name))
+      string.implementedTypes.size should equal(expected.implementedTypes.size)
+      val library = builder.readIndexedLibrary(0)
+      library.importUri.value should equal(program.libraries.get(0).importUri.value)
+      library.procedures.map(body) should equal(program.libraries.get(0).procedures.map(body))
+
+      // A sidecar that fails its checksum is rebuilt.
+      val sidecar = DillIndex.sidecar(dill)
+      val written = Files.readAllBytes(sidecar)
+      val corrupt = written.clone()
+      corrupt(corrupt.length / 2) = (corrupt(corrupt.length / 2) ^ 0xFF).toByte
+      Files.write(sidecar, corrupt)
+      DillIndex.open(dill).memberCount should equal(index.memberCount)
+      Files.readAllBytes(sidecar) should equal(written)
+
+      // A dill touched without changing keeps its index, which is written again with the new stamp.
+      val modified = Files.getLastModifiedTime(dill).toMillis + 60000
+      Files.setLastModifiedTime(dill, java.nio.file.attribute.FileTime.fromMillis(modified))
+      DillIndex.open(dill).memberCount should equal(index.memberCount)
+      Files.readAllBytes(sidecar).sameElements(written) should be(false)
+      Files.size(sidecar) should equal(written.length)
+
+      // A sidecar that does not decode is rebuilt.
+      Files.write(sidecar, java.util.Arrays.copyOf(Files.readAllBytes(sidecar), 100))
+      DillIndex.open(dill).memberCount should equal(index.memberCount)
+      Files.size(sidecar) should be > 100L
+    } finally {
+      Files.deleteIfExists(DillIndex.sidecar(dill))
+      Files.deleteIfExists(dill)
+      Files.deleteIfExists(directory)
+    }
+  }
+
+  "A symbol index" should "find every library, class and member by qualified name" in {
+    val symbols = new SymbolIndex()
+    val program = new BinaryBuilder(new BinaryLoader(), Paths.get("samples/dartk.dill"))
+      .setSymbolIndex(symbols).setLazyBodies(true).readProgramFile()
+    val members = ParallelTraversal.members(program)
+    symbols.size should equal(program.libraries.size + program.libraries.map(_.classes.size).sum + members.length)
+    def privateLibrary(m: AMember) = if (m.name.library == null) null else m.name.library.importUri.value
+    for (library <- program.libraries) {
+      val uri = library.importUri.value
+      symbols.library(uri) should be theSameInstanceAs library
+      for (c <- library.classes) {
+        symbols.classNode(uri, c.name) should be theSameInstanceAs c
+        for (m <- c.fields ++ c.constructors ++ c.procedures) {
+          symbols.members(uri, c.name, m.name.name, privateLibrary(m)).exists(_ eq m) should be(true)
+        }
+      }
+      for (m <- library.fields ++ library.procedures) {
+        symbols.members(uri, null, m.name.name, privateLibrary(m)).exists(_ eq m) should be(true)
+      }
+    }
+    symbols.member("dart:core", "List", "add").name.name should equal("add")
+    symbols.member("dart:core", "List", "noSuchMember") should be(null)
+    symbols.member("dart:nowhere", null, "print") should be(null)
+
+    val list = symbols.classNode("dart:core", "List")
+    symbols.withPrefix("dart:core::List::").map(_.asInstanceOf[AMember].name.name).sorted should equal(
+      (list.fields ++ list.constructors ++ list.procedures).map(_.name.name).sorted)
+    val adds = symbols.matching("dart:core::*::add")
+    adds.size should be > 1
+    adds.forall(_.asInstanceOf[AMember].name.name == "add") should be(true)
+    symbols.matching("dart:cor?::Li*") should contain(list)
+
+    val parallel = new SymbolIndex()
+    val pool = new java.util.concurrent.ForkJoinPool(4)
+    try new BinaryBuilder(new BinaryLoader(), Paths.get("samples/dartk.dill"))
+      .setSymbolIndex(parallel).readProgramFile(pool)
+    finally pool.shutdown()
+    parallel.size should equal(symbols.size)
+    parallel.matching("*::_*").size should equal(symbols.matching("*::_*").size)
+  }
+
+  "A source index" should "find the innermost member and expression at an offset" in {
+    val program = new BinaryBuilder(new BinaryLoader(), Paths.get("samples/dartk.dill")).readProgramFile()
+    val index = new SourceIndex(program)
+    val fields = ParallelTraversal.members(program).toSeq.collect {
+      case f: AField if f.fileOffset >= 0 && f.fileUri != null => f
+    }
+    for (f <- fields.take(500)) {
+      val member = index.memberAt(f.fileUri, f.fileOffset)
+      member.name.name should equal(f.name.name)
+    }
+
+    // Against a brute force search over the spans of the expressions of one file.
+    val fileUri = fields.map(_.fileUri).groupBy(identity).maxBy(_._2.size)._1
+    val spans = new java.util.ArrayList[(AExpression, Int, Int)]()
+    def span(node: AstNode): (Int, Int) = {
+      var first = Int.MaxValue
+      var last = Int.MinValue
+      node match {
+        case t: TreeNode if t.fileOffset >= 0 =>
+          first = t.fileOffset
+          last = t.fileOffset
+        case _ =>
+      }
+      node.visitChildren(new Visitor[Unit] {
+        override def defaultNode(child: AstNode): Unit = {
+          val (f, l) = span(child)
+          first = math.min(first, f)
+          last = math.max(last, l)
+        }
+      })
+      node match {
+        case e: AExpression if e.fileOffset >= 0 => spans.add((e, first, last))
+        case _ =>
+      }
+      (first, last)
+    }
+    for (library <- program.libraries; c <- library.classes) {
+      for (m <- c.procedures if m.fileUri == fileUri) span(m)
+      for (m <- c.fields if m.fileUri == fileUri) span(m)
+      if (c.fileUri == fileUri) c.constructors.foreach(span)
+    }
+    for (library <- program.libraries; m <- library.procedures if m.fileUri == fileUri) span(m)
+    for (library <- program.libraries; m <- library.fields if m.fileUri == fileUri) span(m)
+    spans.size should be > 100
+    val queries = spans.flatMap { case (_, first, last) => Seq(first, last + 1) }.distinct
+    for (offset <- queries) {
+      val containing = spans.filter { case (_, first, last) => first <= offset && offset <= last }
+      val found = index.expressionAt(fileUri, offset)
+      if (containing.isEmpty) {
+        found should be(null)
+      } else {
+        val (_, first, last) = spans.find(_._1 eq found).get
+        last - first should equal(containing.map { case (_, f, l) => l - f }.min)
+      }
+    }
+
+    val offset = spans.get(spans.size / 2)._2
+    val location = index.location(fileUri, offset)
+    index.offsetOf(fileUri, location.line, location.column) should equal(offset)
+    index.expressionAt(fileUri, location.line, location.column) should be theSameInstanceAs index.expressionAt(fileUri, offset)
+    index.memberAt("file:///no/such/file.dart", 0) should be(null)
+
+    // Expressions are found again in bodies decoded after an eviction, not kept from before it.
+    val cache = new BodyCache(Long.MaxValue)
+    val cached = new BinaryBuilder(new BinaryLoader(), Paths.get("samples/dartk.dill"))
+      .setBodyCache(cache).readProgramFile()
+    val cachedIndex = new SourceIndex(cached)
+    val inBody = spans.map(_._2).find(o => cachedIndex.memberAt(fileUri, o) match {
+      case p: AProcedure => p.function != null
+      case _: AConstructor => true
+      case _ => false
+    }).get
+    val before = cachedIndex.expressionAt(fileUri, inBody)
+    cache.clear()
+    val after = cachedIndex.expressionAt(fileUri, inBody)
+    after should not be theSameInstanceAs(before)
+    shape(after) should equal(shape(before))
+    cachedIndex.expressionAt(fileUri, inBody) should be theSameInstanceAs after
+    var reachable = false
+    cachedIndex.memberAt(fileUri, inBody).accept(new RecursiveVisitor[Unit] {
+      override def defaultExpression(node: AExpression): Unit = {
+        reachable ||= node eq after
+        super.defaultExpression(node)
+      }
+    })
+    reachable should be(true)
+  }
+
+  private class NodeCounter extends RecursiveVisitor[Unit] {
+    var nodes = 0
+    var invocations = 0
+
+    override def defaultNode(node: AstNode): Unit = {
+      nodes += 1
+      super.defaultNode(node)
+    }
+
+    override def visitStaticInvocation(node: AStaticInvocation): Unit = {
+      invocations += 1
+      defaultExpression(node)
+    }
+  }
+
+  /** Every node below the member in pre-order, with its kind and file offset, nested in parentheses. */
+  private def structure(member: AMember): String = {
+    val out = new StringBuilder
+    member.accept(new RecursiveVisitor[Unit] {
+      override def defaultNode(node: AstNode): Unit = {
+        out.append(node.getClass.getSimpleName)
+        node match {
+          case t: TreeNode => out.append('@').append(t.fileOffset)
+          case _ =>
+        }
+        out.append('(')
+        super.defaultNode(node)
+        out.append(')')
+      }
+    })
+    out.toString
+  }
+
+  /** Class names of a statement's direct structure, enough to tell whether two decodes agree. */
+  private def shape(node: AnyRef): String = node match {
+    case null => "null"
+    case b: ABlock => b.statements.map(shape).mkString("{", ";", "}")
+    case s: AExpressionStatement => shape(s.expression)
+    case r: ReturnStatement => "return " + shape(r.expression)
+    case v: AVariableGet => "get " + (if (v.variable == null) "null" else v.variable.name)
+    case n => n.getClass.getSimpleName
+  }
 }